@@ -1,9 +1,14 @@
 package com.accountservice.listener;
 
+import com.accountservice.service.kafka.BalanceLedger;
 import com.accountservice.service.kafka.KafkaCommandHandlerService;
+import com.project.kafkamessagemodels.dedupe.ProcessedCommandStore;
 import com.project.kafkamessagemodels.model.CommandMessage;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.kafka.support.Acknowledgment;
 import org.springframework.messaging.handler.annotation.Payload;
@@ -15,13 +20,75 @@ import org.springframework.stereotype.Component;
 public class KafkaCommandListener {
 
     private final KafkaCommandHandlerService commandHandlerService;
+    private final BalanceLedger balanceLedger;
+    // Commands taken on by messageId, the orchestrator may publish a command more than once
+    private final ProcessedCommandStore processedCommands;
+
+    @Value("${kafka.topics.account-commands.common}")
+    private String commonCommandsTopic;
+
+    @Value("${kafka.topics.account-commands.deposit}")
+    private String depositCommandsTopic;
+
+    @Value("${kafka.topics.account-commands.withdrawal}")
+    private String withdrawalCommandsTopic;
+
+    @Value("${kafka.topics.account-commands.order-buy}")
+    private String orderBuyCommandsTopic;
+
+    @Value("${kafka.topics.account-commands.order-sell}")
+    private String orderSellCommandsTopic;
+
+    /**
+     * All account command topics in one container when commands are keyed by accountId, so a consumer owns
+     * the same partition number of every topic and with it the balances of those accounts (BalanceLedger).
+     * The per-topic listeners below stand in when affinity is off.
+     */
+    @KafkaListener(
+            id = "accountAffinityCommandsListener",
+            topics = {
+                    "${kafka.topics.account-commands.common}",
+                    "${kafka.topics.account-commands.deposit}",
+                    "${kafka.topics.account-commands.withdrawal}",
+                    "${kafka.topics.account-commands.order-buy}",
+                    "${kafka.topics.account-commands.order-sell}"
+            },
+            containerFactory = "accountAffinityListenerContainerFactory",
+            autoStartup = "${kafka.account-affinity.enabled:false}"
+    )
+    public void consumeAccountCommands(ConsumerRecord<String, CommandMessage> record, Acknowledgment ack) {
+        CommandMessage command = record.value();
+        String topic = record.topic();
+        balanceLedger.handle(new TopicPartition(topic, record.partition()), record.key(), () -> {
+            if (topic.equals(commonCommandsTopic)) {
+                consumeAccountCommonCommands(command, ack);
+            } else if (topic.equals(depositCommandsTopic)) {
+                consumeAccountDepositCommands(command, ack);
+            } else if (topic.equals(withdrawalCommandsTopic)) {
+                consumeAccountWithdrawalCommands(command, ack);
+            } else if (topic.equals(orderBuyCommandsTopic)) {
+                consumeAccountOrderCommands(command, ack);
+            } else if (topic.equals(orderSellCommandsTopic)) {
+                consumeAccountOrderSellCommands(command, ack);
+            } else {
+                log.warn("Command {} from unexpected topic {}", command.getType(), topic);
+                ack.acknowledge();
+            }
+        });
+    }
 
     @KafkaListener(
             id = "accountCommonCommandsListener",
             topics = "${kafka.topics.account-commands.common}",
-            containerFactory = "kafkaListenerContainerFactory"
+            containerFactory = "kafkaListenerContainerFactory",
+            autoStartup = "#{!${kafka.account-affinity.enabled:false}}"
     )
     public void consumeAccountCommonCommands(@Payload CommandMessage command, Acknowledgment ack) {
+        if (!processedCommands.claim(command)) {
+            log.info("Skipping command {} of saga {}, already taken on", command.getMessageId(), command.getSagaId());
+            ack.acknowledge();
+            return;
+        }
         try {
             log.info("Processing command type: {} for saga: {}", command.getType(), command.getSagaId());
 
@@ -51,6 +118,7 @@ public class KafkaCommandListener {
             ack.acknowledge();
 
         } catch (Exception e) {
+            processedCommands.release(command);
             log.error("Error processing command: {}", e.getMessage(), e);
             // Don't acknowledge - will be retried or sent to DLQ
             throw new RuntimeException("Command processing failed", e);
@@ -60,9 +128,15 @@ public class KafkaCommandListener {
     @KafkaListener(
             id = "accountDepositCommandsListener",
             topics = "${kafka.topics.account-commands.deposit}",
-            containerFactory = "kafkaListenerContainerFactory"
+            containerFactory = "kafkaListenerContainerFactory",
+            autoStartup = "#{!${kafka.account-affinity.enabled:false}}"
     )
     public void consumeAccountDepositCommands(@Payload CommandMessage command, Acknowledgment ack) {
+        if (!processedCommands.claim(command)) {
+            log.info("Skipping command {} of saga {}, already taken on", command.getMessageId(), command.getSagaId());
+            ack.acknowledge();
+            return;
+        }
         try {
             log.info("Processing command type: {} for saga: {}", command.getType(), command.getSagaId());
 
@@ -87,6 +161,7 @@ public class KafkaCommandListener {
             ack.acknowledge();
 
         } catch (Exception e) {
+            processedCommands.release(command);
             log.error("Error processing command: {}", e.getMessage(), e);
             // Don't acknowledge - will be retried or sent to DLQ
             throw new RuntimeException("Command processing failed", e);
@@ -96,9 +171,15 @@ public class KafkaCommandListener {
     @KafkaListener(
             id = "accountWithdrawalCommandsListener",
             topics = "${kafka.topics.account-commands.withdrawal}",
-            containerFactory = "kafkaListenerContainerFactory"
+            containerFactory = "kafkaListenerContainerFactory",
+            autoStartup = "#{!${kafka.account-affinity.enabled:false}}"
     )
     public void consumeAccountWithdrawalCommands(@Payload CommandMessage command, Acknowledgment ack) {
+        if (!processedCommands.claim(command)) {
+            log.info("Skipping command {} of saga {}, already taken on", command.getMessageId(), command.getSagaId());
+            ack.acknowledge();
+            return;
+        }
         try {
             log.info("Processing command type: {} for saga: {}", command.getType(), command.getSagaId());
 
@@ -121,6 +202,7 @@ public class KafkaCommandListener {
             ack.acknowledge();
 
         } catch (Exception e) {
+            processedCommands.release(command);
             log.error("Error processing command: {}", e.getMessage(), e);
             // Don't acknowledge - will be retried or sent to DLQ
             throw new RuntimeException("Command processing failed", e);
@@ -132,9 +214,15 @@ public class KafkaCommandListener {
     @KafkaListener(
             id = "accountOrderCommandsListener",
             topics = "${kafka.topics.account-commands.order-buy}",
-            containerFactory = "kafkaListenerContainerFactory"
+            containerFactory = "kafkaListenerContainerFactory",
+            autoStartup = "#{!${kafka.account-affinity.enabled:false}}"
     )
     public void consumeAccountOrderCommands(@Payload CommandMessage command, Acknowledgment ack) {
+        if (!processedCommands.claim(command)) {
+            log.info("Skipping command {} of saga {}, already taken on", command.getMessageId(), command.getSagaId());
+            ack.acknowledge();
+            return;
+        }
         try {
             log.info("Processing order command type: {} for saga: {}", command.getType(), command.getSagaId());
 
@@ -163,6 +251,7 @@ public class KafkaCommandListener {
             ack.acknowledge();
 
         } catch (Exception e) {
+            processedCommands.release(command);
             log.error("Error processing account order command: {}", e.getMessage(), e);
             // Don't acknowledge - will be retried or sent to DLQ
             throw new RuntimeException("Command processing failed", e);
@@ -172,9 +261,15 @@ public class KafkaCommandListener {
     @KafkaListener(
             id = "accountOrderSellCommandsListener",
             topics = "${kafka.topics.account-commands.order-sell}",
-            containerFactory = "kafkaListenerContainerFactory"
+            containerFactory = "kafkaListenerContainerFactory",
+            autoStartup = "#{!${kafka.account-affinity.enabled:false}}"
     )
     public void consumeAccountOrderSellCommands(@Payload CommandMessage command, Acknowledgment ack) {
+        if (!processedCommands.claim(command)) {
+            log.info("Skipping command {} of saga {}, already taken on", command.getMessageId(), command.getSagaId());
+            ack.acknowledge();
+            return;
+        }
         try {
             log.info("Processing account sell command type: {} for saga: {}", command.getType(), command.getSagaId());
 
@@ -197,6 +292,7 @@ public class KafkaCommandListener {
             ack.acknowledge();
 
         } catch (Exception e) {
+            processedCommands.release(command);
             log.error("Error processing account sell command: {}", e.getMessage(), e);
             // Don't acknowledge - will be retried or sent to DLQ
             throw new RuntimeException("Command processing failed", e);
@@ -0,0 +1,164 @@
+package com.accountservice.service.kafka;
+
+import com.accountservice.model.Balance;
+import com.accountservice.repository.BalanceRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.utils.Utils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.listener.ConsumerAwareRebalanceListener;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Balances of the accounts whose command partition this instance owns, held in memory.
+ * With the orchestrator keying commands by accountId (saga.commands.partition-key=account) every command
+ * of an account arrives on the same partition number of the account command topics, which the affinity
+ * listener consumes together, so the owning consumer thread is the only writer of those balances.
+ * Balances are loaded when a partition is assigned (or on first use), written through to Mongo on every
+ * save and dropped when the partition is revoked; the next owner loads them from Mongo.
+ * Outside an owned partition, or with affinity off, every call goes straight to the repository.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class BalanceLedger implements ConsumerAwareRebalanceListener {
+
+    private final BalanceRepository balanceRepository;
+
+    // Account balances by partition number, for the partitions this instance owns
+    private final Map<Integer, Map<String, Balance>> owned = new ConcurrentHashMap<>();
+
+    // Partition and key of the command the current thread is handling
+    private final ThreadLocal<TopicPartition> currentPartition = new ThreadLocal<>();
+    private final ThreadLocal<String> currentKey = new ThreadLocal<>();
+
+    @Value("${kafka.account-affinity.preload:true}")
+    private boolean preload;
+
+    /**
+     * Run the handling of a command received on an owned partition, with the command's key
+     */
+    public void handle(TopicPartition partition, String key, Runnable handling) {
+        currentPartition.set(partition);
+        currentKey.set(key);
+        try {
+            handling.run();
+        } finally {
+            currentPartition.remove();
+            currentKey.remove();
+        }
+    }
+
+    public Optional<Balance> findBalanceByAccountId(String accountId) {
+        return Optional.ofNullable(findByAccountId(accountId));
+    }
+
+    /**
+     * A copy of the account's balance, changes take effect once saved
+     */
+    public Balance findByAccountId(String accountId) {
+        Map<String, Balance> balances = balancesOf(accountId);
+        if (balances == null) {
+            return balanceRepository.findByAccountId(accountId);
+        }
+        Balance balance = balances.get(accountId);
+        if (balance == null) {
+            balance = balanceRepository.findByAccountId(accountId);
+            if (balance == null) {
+                return null;
+            }
+            balances.put(accountId, balance);
+        }
+        return copyOf(balance);
+    }
+
+    public Balance save(Balance balance) {
+        Balance saved = balanceRepository.save(balance);
+        Map<String, Balance> balances = balancesOf(saved.getAccountId());
+        if (balances != null) {
+            balances.put(saved.getAccountId(), copyOf(saved));
+        } else {
+            // Written outside its owner, a copy held here would be stale
+            owned.values().forEach(held -> held.remove(saved.getAccountId()));
+        }
+        return saved;
+    }
+
+    @Override
+    public void onPartitionsAssigned(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+        Set<Integer> assigned = new TreeSet<>();
+        for (TopicPartition partition : partitions) {
+            if (owned.putIfAbsent(partition.partition(), new ConcurrentHashMap<>()) == null) {
+                assigned.add(partition.partition());
+            }
+        }
+        if (assigned.isEmpty()) {
+            return;
+        }
+        if (preload) {
+            int partitionCount = consumer.partitionsFor(partitions.iterator().next().topic()).size();
+            int loaded = 0;
+            for (Balance balance : balanceRepository.findAll()) {
+                int partition = partitionOf(balance.getAccountId(), partitionCount);
+                if (assigned.contains(partition)) {
+                    owned.get(partition).put(balance.getAccountId(), balance);
+                    loaded++;
+                }
+            }
+            log.info("Took over account partitions {}, loaded {} balances", assigned, loaded);
+        } else {
+            log.info("Took over account partitions {}", assigned);
+        }
+    }
+
+    @Override
+    public void onPartitionsRevokedAfterCommit(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+        handOff(partitions);
+    }
+
+    @Override
+    public void onPartitionsLost(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+        handOff(partitions);
+    }
+
+    // Balances are already in Mongo, dropping them is all the next owner needs
+    private void handOff(Collection<TopicPartition> partitions) {
+        Set<Integer> released = new TreeSet<>();
+        for (TopicPartition partition : partitions) {
+            if (owned.remove(partition.partition()) != null) {
+                released.add(partition.partition());
+            }
+        }
+        if (!released.isEmpty()) {
+            log.info("Handed off account partitions {}", released);
+        }
+    }
+
+    /**
+     * Held balances of the account's partition, null unless the current thread is handling a command
+     * keyed by this account on a partition this instance owns
+     */
+    private Map<String, Balance> balancesOf(String accountId) {
+        TopicPartition partition = currentPartition.get();
+        if (partition == null || accountId == null || !accountId.equals(currentKey.get())) {
+            return null;
+        }
+        return owned.get(partition.partition());
+    }
+
+    // Same choice as the producer's default partitioner for a keyed record
+    static int partitionOf(String accountId, int partitionCount) {
+        return Utils.toPositive(Utils.murmur2(accountId.getBytes(StandardCharsets.UTF_8))) % partitionCount;
+    }
+
+    private static Balance copyOf(Balance balance) {
+        return new Balance(balance.getId(), balance.getAccountId(), balance.getTotal(), balance.getCurrency(),
+                balance.getAvailable(), balance.getReserved(), balance.getUpdatedAt());
+    }
+}
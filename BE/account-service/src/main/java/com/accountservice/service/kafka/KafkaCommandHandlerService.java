@@ -6,6 +6,7 @@ import com.accountservice.service.PaymentMethodService;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.project.kafkamessagemodels.model.CommandMessage;
 import com.project.kafkamessagemodels.model.EventMessage;
+import com.project.kafkamessagemodels.model.payload.*;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
@@ -30,7 +31,7 @@ public class KafkaCommandHandlerService {
     private final PaymentMethodRepository paymentMethodRepository;
     private final TradingAccountRepository tradingAccountRepository;
     private final TransactionRepository transactionRepository;
-    private final BalanceRepository balanceRepository;
+    private final BalanceLedger balanceLedger;
     private final ReservationRecordRepository reservationRecordRepository;
     private final Random random = new Random();
 
@@ -214,18 +215,9 @@ public class KafkaCommandHandlerService {
      * Handle ACCOUNT_CHECK_BALANCE command
      */
     public void handleCheckBalance(CommandMessage command) {
-        Object amountObj = command.getPayloadValue("amount");
-        String accountId = command.getPayloadValue("accountId");
-        BigDecimal amount;
-        if (amountObj instanceof BigDecimal) {
-            amount = (BigDecimal) amountObj;
-        } else if (amountObj instanceof Number) {
-            amount = BigDecimal.valueOf(((Number) amountObj).doubleValue());
-        } else if (amountObj instanceof String) {
-            amount = new BigDecimal((String) amountObj);
-        } else {
-            throw new IllegalArgumentException("Amount is not a valid number: " + amountObj);
-        }
+        CheckBalancePayload payload = command.getPayloadAs(CheckBalancePayload.class);
+        String accountId = payload.getAccountId();
+        BigDecimal amount = payload.getAmount();
         EventMessage event = new EventMessage();
         event.setMessageId(UUID.randomUUID().toString());
         event.setSagaId(command.getSagaId());
@@ -233,7 +225,7 @@ public class KafkaCommandHandlerService {
         event.setSourceService("ACCOUNT_SERVICE");
         event.setTimestamp(Instant.now());
 
-        Balance balance = balanceRepository.findBalanceByAccountId(accountId).orElse(null);
+        Balance balance = balanceLedger.findBalanceByAccountId(accountId).orElse(null);
         if (balance == null) {
             handleCheckBalanceFailure(event, "BALANCE_NOT_FOUND", "Balance not found");
             return;
@@ -274,22 +266,12 @@ public class KafkaCommandHandlerService {
     public void handleCreateDepositPendingTransaction(CommandMessage command) {
         log.info("Handling ACCOUNT_CREATE_DEPOSIT_PENDING_TRANSACTION command for saga: {}", command.getSagaId());
 
-        String accountId = command.getPayloadValue("accountId");
-//         Safe conversion from any numeric type to BigDecimal
-        Object amountObj = command.getPayloadValue("amount");
-        BigDecimal amount;
-        if (amountObj instanceof BigDecimal) {
-            amount = (BigDecimal) amountObj;
-        } else if (amountObj instanceof Number) {
-            amount = BigDecimal.valueOf(((Number) amountObj).doubleValue());
-        } else if (amountObj instanceof String) {
-            amount = new BigDecimal((String) amountObj);
-        } else {
-            throw new IllegalArgumentException("Amount is not a valid number: " + amountObj);
-        }
-        String currency = command.getPayloadValue("currency");
-        String description = command.getPayloadValue("description");
-        String paymentMethodId = command.getPayloadValue("paymentMethodId");
+        PendingTransactionPayload payload = command.getPayloadAs(PendingTransactionPayload.class);
+        String accountId = payload.getAccountId();
+        BigDecimal amount = payload.getAmount();
+        String currency = payload.getCurrency();
+        String description = payload.getDescription();
+        String paymentMethodId = payload.getPaymentMethodId();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -373,22 +355,12 @@ public class KafkaCommandHandlerService {
      */
     public void handleCreateWithdrawalPendingTransaction(CommandMessage command) {
         log.info("Handling ACCOUNT_CREATE_WITHDRAWAL_PENDING_TRANSACTION command for saga: {}", command.getSagaId());
-        String accountId = command.getPayloadValue("accountId");
-//         Safe conversion from any numeric type to BigDecimal
-        Object amountObj = command.getPayloadValue("amount");
-        BigDecimal amount;
-        if (amountObj instanceof BigDecimal) {
-            amount = (BigDecimal) amountObj;
-        } else if (amountObj instanceof Number) {
-            amount = BigDecimal.valueOf(((Number) amountObj).doubleValue());
-        } else if (amountObj instanceof String) {
-            amount = new BigDecimal((String) amountObj);
-        } else {
-            throw new IllegalArgumentException("Amount is not a valid number: " + amountObj);
-        }
-        String currency = command.getPayloadValue("currency");
-        String description = command.getPayloadValue("description");
-        String paymentMethodId = command.getPayloadValue("paymentMethodId");
+        PendingTransactionPayload payload = command.getPayloadAs(PendingTransactionPayload.class);
+        String accountId = payload.getAccountId();
+        BigDecimal amount = payload.getAmount();
+        String currency = payload.getCurrency();
+        String description = payload.getDescription();
+        String paymentMethodId = payload.getPaymentMethodId();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -548,20 +520,10 @@ public class KafkaCommandHandlerService {
     public void handleDepositUpdateBalance(CommandMessage command) {
         log.info("Handling ACCOUNT_DEPOSIT_UPDATE_BALANCE command for saga: {}", command.getSagaId());
 
-        String accountId = command.getPayloadValue("accountId");
-        // Safe conversion from any numeric type to BigDecimal
-        Object amountObj = command.getPayloadValue("amount");
-        BigDecimal amount;
-        if (amountObj instanceof BigDecimal) {
-            amount = (BigDecimal) amountObj;
-        } else if (amountObj instanceof Number) {
-            amount = BigDecimal.valueOf(((Number) amountObj).doubleValue());
-        } else if (amountObj instanceof String) {
-            amount = new BigDecimal((String) amountObj);
-        } else {
-            throw new IllegalArgumentException("Amount is not a valid number: " + amountObj);
-        }
-        String transactionId = command.getPayloadValue("transactionId");
+        BalanceUpdatePayload payload = command.getPayloadAs(BalanceUpdatePayload.class);
+        String accountId = payload.getAccountId();
+        BigDecimal amount = payload.getAmount();
+        String transactionId = payload.getTransactionId();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -600,7 +562,7 @@ public class KafkaCommandHandlerService {
             log.debug("Updating balance: available={}, total={}", newAvailable, newTotal);
 
             // Save the updated balance
-            balanceRepository.save(balance);
+            balanceLedger.save(balance);
 
             // Set success response
             event.setType("DEPOSIT_BALANCE_UPDATED");
@@ -656,20 +618,10 @@ public class KafkaCommandHandlerService {
     public void handleWithdrawalUpdateBalance(CommandMessage command) {
         log.info("Handling ACCOUNT_WITHDRAWAL_UPDATE_BALANCE command for saga: {}", command.getSagaId());
 
-        String accountId = command.getPayloadValue("accountId");
-        // Safe conversion from any numeric type to BigDecimal
-        Object amountObj = command.getPayloadValue("amount");
-        BigDecimal amount;
-        if (amountObj instanceof BigDecimal) {
-            amount = (BigDecimal) amountObj;
-        } else if (amountObj instanceof Number) {
-            amount = BigDecimal.valueOf(((Number) amountObj).doubleValue());
-        } else if (amountObj instanceof String) {
-            amount = new BigDecimal((String) amountObj);
-        } else {
-            throw new IllegalArgumentException("Amount is not a valid number: " + amountObj);
-        }
-        String transactionId = command.getPayloadValue("transactionId");
+        BalanceUpdatePayload payload = command.getPayloadAs(BalanceUpdatePayload.class);
+        String accountId = payload.getAccountId();
+        BigDecimal amount = payload.getAmount();
+        String transactionId = payload.getTransactionId();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -713,7 +665,7 @@ public class KafkaCommandHandlerService {
             log.debug("Updating balance: available={}, total={}", newAvailable, newTotal);
 
             // Save the updated balance
-            balanceRepository.save(balance);
+            balanceLedger.save(balance);
 
             // Set success response
             event.setType("WITHDRAWAL_BALANCE_UPDATED");
@@ -768,7 +720,7 @@ public class KafkaCommandHandlerService {
      */
     private Balance getOrCreateBalance(TradingAccount account) {
         // First try to find existing balance
-        Balance balance = balanceRepository.findByAccountId(account.getId());
+        Balance balance = balanceLedger.findByAccountId(account.getId());
 
         // If no balance exists, create a new one
         if (balance == null) {
@@ -873,21 +825,11 @@ public class KafkaCommandHandlerService {
     public void handleDepositReverseBalanceUpdate(CommandMessage command) {
         log.info("Handling ACCOUNT_DEPOSIT_REVERSE_BALANCE_UPDATE command for saga: {}", command.getSagaId());
 
-        String accountId = command.getPayloadValue("accountId");
-        // Safe conversion from any numeric type to BigDecimal
-        Object amountObj = command.getPayloadValue("amount");
-        BigDecimal amount;
-        if (amountObj instanceof BigDecimal) {
-            amount = (BigDecimal) amountObj;
-        } else if (amountObj instanceof Number) {
-            amount = BigDecimal.valueOf(((Number) amountObj).doubleValue());
-        } else if (amountObj instanceof String) {
-            amount = new BigDecimal((String) amountObj);
-        } else {
-            throw new IllegalArgumentException("Amount is not a valid number: " + amountObj);
-        }
-        String transactionId = command.getPayloadValue("transactionId");
-        String reason = command.getPayloadValue("reason");
+        BalanceUpdatePayload payload = command.getPayloadAs(BalanceUpdatePayload.class);
+        String accountId = payload.getAccountId();
+        BigDecimal amount = payload.getAmount();
+        String transactionId = payload.getTransactionId();
+        String reason = payload.getReason();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -907,7 +849,7 @@ public class KafkaCommandHandlerService {
             }
 
             // Find balance
-            Balance balance = balanceRepository.findByAccountId(accountId);
+            Balance balance = balanceLedger.findByAccountId(accountId);
             if (balance == null) {
                 handleDepositBalanceReverseFailure(event, "BALANCE_NOT_FOUND",
                         "Balance not found for account: " + accountId);
@@ -915,7 +857,7 @@ public class KafkaCommandHandlerService {
             }
 
             // Get expected values from the original operation
-            BigDecimal originalAmount = command.getPayloadValue("amount");
+            BigDecimal originalAmount = amount;
             BigDecimal expectedAvailable = null;
 
             // Get the original event data if possible from the saga
@@ -955,7 +897,7 @@ public class KafkaCommandHandlerService {
                 log.debug("Reversing balance update: available={}, total={}", newAvailable, newTotal);
 
                 // Save the updated balance
-                balanceRepository.save(balance);
+                balanceLedger.save(balance);
 
                 // Create a reversal transaction record
 
@@ -1043,21 +985,11 @@ public class KafkaCommandHandlerService {
     public void handleWithdrawalReverseBalanceUpdate(CommandMessage command) {
         log.info("Handling ACCOUNT_WITHDRAWAL_REVERSE_BALANCE_UPDATE command for saga: {}", command.getSagaId());
 
-        String accountId = command.getPayloadValue("accountId");
-        // Safe conversion from any numeric type to BigDecimal
-        Object amountObj = command.getPayloadValue("amount");
-        BigDecimal amount;
-        if (amountObj instanceof BigDecimal) {
-            amount = (BigDecimal) amountObj;
-        } else if (amountObj instanceof Number) {
-            amount = BigDecimal.valueOf(((Number) amountObj).doubleValue());
-        } else if (amountObj instanceof String) {
-            amount = new BigDecimal((String) amountObj);
-        } else {
-            throw new IllegalArgumentException("Amount is not a valid number: " + amountObj);
-        }
-        String transactionId = command.getPayloadValue("transactionId");
-        String reason = command.getPayloadValue("reason");
+        BalanceUpdatePayload payload = command.getPayloadAs(BalanceUpdatePayload.class);
+        String accountId = payload.getAccountId();
+        BigDecimal amount = payload.getAmount();
+        String transactionId = payload.getTransactionId();
+        String reason = payload.getReason();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -1077,7 +1009,7 @@ public class KafkaCommandHandlerService {
             }
 
             // Find balance
-            Balance balance = balanceRepository.findByAccountId(accountId);
+            Balance balance = balanceLedger.findByAccountId(accountId);
             if (balance == null) {
                 handleDepositBalanceReverseFailure(event, "BALANCE_NOT_FOUND",
                         "Balance not found for account: " + accountId);
@@ -1099,7 +1031,7 @@ public class KafkaCommandHandlerService {
                 log.debug("Reversing balance update: available={}, total={}", newAvailable, newTotal);
 
                 // Save the updated balance
-                balanceRepository.save(balance);
+                balanceLedger.save(balance);
 
                 // Create a reversal transaction record
 
@@ -1361,13 +1293,11 @@ public class KafkaCommandHandlerService {
     public void handleReserveFunds(CommandMessage command) {
         log.info("Handling ACCOUNT_RESERVE_FUNDS command for saga: {}", command.getSagaId());
 
-        String accountId = command.getPayloadValue("accountId");
-        String orderId = command.getPayloadValue("orderId");
-        String stockSymbol = command.getPayloadValue("stockSymbol");
-
-        // Handle different possible formats of amount
-        Object amountObj = command.getPayloadValue("amount");
-        BigDecimal amount = convertToBigDecimal(amountObj);
+        FundsReservationPayload payload = command.getPayloadAs(FundsReservationPayload.class);
+        String accountId = payload.getAccountId();
+        String orderId = payload.getOrderId();
+        String stockSymbol = payload.getStockSymbol();
+        BigDecimal amount = payload.getAmount();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -1421,7 +1351,7 @@ public class KafkaCommandHandlerService {
 
             // Save both the reservation and updated balance
             ReservationRecord savedReservation = reservationRecordRepository.save(reservation);
-            balanceRepository.save(balance);
+            balanceLedger.save(balance);
 
             log.info("Successfully reserved funds: {} for order: {}", amount, orderId);
 
@@ -1473,30 +1403,16 @@ public class KafkaCommandHandlerService {
         }
     }
 
-    /**
-     * Helper method to safely convert any numeric type to BigDecimal
-     */
-    private BigDecimal convertToBigDecimal(Object amountObj) {
-        if (amountObj instanceof BigDecimal) {
-            return (BigDecimal) amountObj;
-        } else if (amountObj instanceof Number) {
-            return BigDecimal.valueOf(((Number) amountObj).doubleValue());
-        } else if (amountObj instanceof String) {
-            return new BigDecimal((String) amountObj);
-        } else {
-            throw new IllegalArgumentException("Amount is not a valid number: " + amountObj);
-        }
-    }
-
     /**
      * Handle ACCOUNT_RELEASE_FUNDS command (compensation)
      */
     public void handleReleaseFunds(CommandMessage command) {
         log.info("Handling ACCOUNT_RELEASE_FUNDS command for saga: {}", command.getSagaId());
 
-        String accountId = command.getPayloadValue("accountId");
-        String reservationId = command.getPayloadValue("reservationId");
-        String orderId = command.getPayloadValue("orderId");
+        FundsReservationPayload payload = command.getPayloadAs(FundsReservationPayload.class);
+        String accountId = payload.getAccountId();
+        String reservationId = payload.getReservationId();
+        String orderId = payload.getOrderId();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -1532,7 +1448,7 @@ public class KafkaCommandHandlerService {
             // Only process if the reservation is still active
             if (reservation.getStatus().equals(ReservationRecord.ReservationStatus.ACTIVE.toString())) {
                 // Find account balance
-                Balance balance = balanceRepository.findByAccountId(reservation.getAccountId());
+                Balance balance = balanceLedger.findByAccountId(reservation.getAccountId());
 
                 if (balance != null) {
                     // Update balance (move from reserved back to available)
@@ -1545,7 +1461,7 @@ public class KafkaCommandHandlerService {
                     balance.setUpdatedAt(Instant.now());
 
                     // Save the updated balance
-                    balanceRepository.save(balance);
+                    balanceLedger.save(balance);
 
                     log.info("Released reserved funds: {} for order: {}", reservedAmount, orderId);
                 }
@@ -1592,13 +1508,13 @@ public class KafkaCommandHandlerService {
     public void handleSettleTransaction(CommandMessage command) {
         log.info("Handling ACCOUNT_SETTLE_TRANSACTION command for saga: {}", command.getSagaId());
 
-        String accountId = command.getPayloadValue("accountId");
-        String reservationId = command.getPayloadValue("reservationId");
-        String orderId = command.getPayloadValue("orderId");
+        SettlementPayload payload = command.getPayloadAs(SettlementPayload.class);
+        String accountId = payload.getAccountId();
+        String reservationId = payload.getReservationId();
+        String orderId = payload.getOrderId();
 
         // Get the final amount to settle (could be different from initial reserved amount)
-        Object finalAmountObj = command.getPayloadValue("finalAmount");
-        BigDecimal finalAmount = convertToBigDecimal(finalAmountObj);
+        BigDecimal finalAmount = payload.getFinalAmount();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -1638,7 +1554,7 @@ public class KafkaCommandHandlerService {
             }
 
             // Get balance
-            Balance balance = balanceRepository.findByAccountId(accountId);
+            Balance balance = balanceLedger.findByAccountId(accountId);
             if (balance == null) {
                 handleSettlementFailure(event, "BALANCE_NOT_FOUND",
                         "Balance record not found for account: " + accountId);
@@ -1692,7 +1608,7 @@ public class KafkaCommandHandlerService {
             transaction.setExternalReferenceId(orderId);
 
             // Save all updates
-            balanceRepository.save(balance);
+            balanceLedger.save(balance);
             reservationRecordRepository.save(reservation);
             transactionRepository.save(transaction);
 
@@ -1755,13 +1671,13 @@ public class KafkaCommandHandlerService {
     public void handleReverseSettlement(CommandMessage command) {
         log.info("Handling ACCOUNT_REVERSE_SETTLEMENT command for saga: {}", command.getSagaId());
 
-        String accountId = command.getPayloadValue("accountId");
-        String reservationId = command.getPayloadValue("reservationId");
-        String orderId = command.getPayloadValue("orderId");
+        SettlementPayload payload = command.getPayloadAs(SettlementPayload.class);
+        String accountId = payload.getAccountId();
+        String reservationId = payload.getReservationId();
+        String orderId = payload.getOrderId();
 
         // Get the amount to reverse
-        Object amountObj = command.getPayloadValue("amount");
-        BigDecimal amount = convertToBigDecimal(amountObj);
+        BigDecimal amount = payload.getAmount();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -1789,7 +1705,7 @@ public class KafkaCommandHandlerService {
             TradingAccount account = accountOpt.get();
 
             // Find relevant balance record
-            Balance balance = balanceRepository.findByAccountId(accountId);
+            Balance balance = balanceLedger.findByAccountId(accountId);
             if (balance == null) {
                 log.warn("Balance not found during settlement reversal: {}", accountId);
                 event.setType("SETTLEMENT_REVERSED");
@@ -1822,7 +1738,7 @@ public class KafkaCommandHandlerService {
             balance.setUpdatedAt(Instant.now());
 
             // Save changes
-            balanceRepository.save(balance);
+            balanceLedger.save(balance);
             transactionRepository.save(reversal);
 
             // If the reservation record still exists, update it
@@ -1872,13 +1788,13 @@ public class KafkaCommandHandlerService {
     public void handleSettleTransactionSell(CommandMessage command) {
         log.info("Handling ACCOUNT_SETTLE_TRANSACTION command for sell saga: {}", command.getSagaId());
 
-        String accountId = command.getPayloadValue("accountId");
-        String orderId = command.getPayloadValue("orderId");
-        String transactionType = command.getPayloadValue("transactionType");
+        SettlementPayload payload = command.getPayloadAs(SettlementPayload.class);
+        String accountId = payload.getAccountId();
+        String orderId = payload.getOrderId();
+        String transactionType = payload.getTransactionType();
 
         // Get the amount to credit - expected to be positive for sell orders
-        Object amountObj = command.getPayloadValue("amount");
-        BigDecimal amount = convertToBigDecimal(amountObj);
+        BigDecimal amount = payload.getAmount();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -1899,7 +1815,7 @@ public class KafkaCommandHandlerService {
             TradingAccount account = accountOpt.get();
 
             // Get balance
-            Balance balance = balanceRepository.findByAccountId(accountId);
+            Balance balance = balanceLedger.findByAccountId(accountId);
             if (balance == null) {
                 // If no balance exists, create one
                 balance = new Balance();
@@ -1936,7 +1852,7 @@ public class KafkaCommandHandlerService {
             transaction.setExternalReferenceId(orderId);
 
             // Save all updates
-            balanceRepository.save(balance);
+            balanceLedger.save(balance);
             transactionRepository.save(transaction);
 
             // Set success response
@@ -1998,12 +1914,12 @@ public class KafkaCommandHandlerService {
     public void handleReverseSettlementSell(CommandMessage command) {
         log.info("Handling ACCOUNT_REVERSE_SETTLEMENT command for sell saga: {}", command.getSagaId());
 
-        String accountId = command.getPayloadValue("accountId");
-        String orderId = command.getPayloadValue("orderId");
+        SettlementPayload payload = command.getPayloadAs(SettlementPayload.class);
+        String accountId = payload.getAccountId();
+        String orderId = payload.getOrderId();
 
         // Get the amount to reverse (should be the original credited amount)
-        Object amountObj = command.getPayloadValue("amount");
-        BigDecimal amount = convertToBigDecimal(amountObj);
+        BigDecimal amount = payload.getAmount();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -2031,7 +1947,7 @@ public class KafkaCommandHandlerService {
             TradingAccount account = accountOpt.get();
 
             // Find relevant balance record
-            Balance balance = balanceRepository.findByAccountId(accountId);
+            Balance balance = balanceLedger.findByAccountId(accountId);
             if (balance == null) {
                 log.warn("Balance not found during settlement reversal: {}", accountId);
                 event.setType("SETTLEMENT_REVERSED");
@@ -2077,7 +1993,7 @@ public class KafkaCommandHandlerService {
             balance.setUpdatedAt(Instant.now());
 
             // Save changes
-            balanceRepository.save(balance);
+            balanceLedger.save(balance);
             transactionRepository.save(reversal);
 
             // Set success response
@@ -1,10 +1,19 @@
 package com.stocktrading.kafka.config;
 
+import com.project.kafkamessagemodels.codec.BinaryMessageDeserializer;
+import com.project.kafkamessagemodels.codec.BinaryMessageSerializer;
+import com.project.kafkamessagemodels.codec.MessageCodec;
+import com.project.kafkamessagemodels.hop.HopInterceptors;
+import com.project.kafkamessagemodels.hop.HopMetrics;
 import com.project.kafkamessagemodels.model.CommandMessage;
 import com.project.kafkamessagemodels.model.EventMessage;
+import com.stocktrading.kafka.service.IdempotencyService;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
 import org.apache.kafka.clients.admin.AdminClientConfig;
 import org.apache.kafka.clients.admin.NewTopic;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.common.serialization.StringDeserializer;
 import org.apache.kafka.common.serialization.StringSerializer;
@@ -16,21 +25,31 @@ import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
 import org.springframework.kafka.core.*;
 import org.springframework.kafka.listener.DeadLetterPublishingRecoverer;
 import org.springframework.kafka.listener.DefaultErrorHandler;
+import org.springframework.kafka.support.ExponentialBackOffWithMaxRetries;
 import org.springframework.kafka.support.serializer.ErrorHandlingDeserializer;
 import org.springframework.kafka.support.serializer.JsonDeserializer;
 import org.springframework.kafka.support.serializer.JsonSerializer;
 import org.springframework.util.backoff.ExponentialBackOff;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
 @EnableKafka
 @Configuration
+@RequiredArgsConstructor
 public class KafkaConfig {
 
+    private final MeterRegistry meterRegistry;
+    private final IdempotencyService idempotencyService;
+
     @Value("${spring.kafka.bootstrap-servers}")
     private String bootstrapServers;
 
+    // Wire format of saga messages, json or binary
+    @Value("${kafka.message-codec:json}")
+    private String messageCodec;
+
     // Default consumer group ID
     @Value("${spring.kafka.consumer.group-id}")
     private String defaultGroupId;
@@ -95,6 +114,37 @@ public class KafkaConfig {
     @Value("${kafka.topics.dlq:saga.dlq}")
     private String dlqTopic;
 
+    // Events that failed in their batch, retried per saga family away from the batch
+    @Value("${kafka.topics.saga-retry.deposit-withdrawal:saga.retry.deposit-withdrawal}")
+    private String depositWithdrawalRetryTopic;
+
+    @Value("${kafka.topics.saga-retry.order-buy:saga.retry.order-buy}")
+    private String orderBuyRetryTopic;
+
+    @Value("${kafka.topics.saga-retry.order-sell:saga.retry.order-sell}")
+    private String orderSellRetryTopic;
+
+    @Value("${saga.executor.max-attempts:3}")
+    private int maxAttempts;
+
+    @Value("${saga.executor.retry-backoff-ms:1000}")
+    private long retryBackoffMs;
+
+    // Let the producer group outbox commands per partition
+    @Value("${kafka.producer.linger-ms:5}")
+    private int producerLingerMs;
+
+    @Value("${kafka.producer.batch-size:65536}")
+    private int producerBatchSize;
+
+    // Upper bound of an event batch
+    @Value("${saga.listener.max-poll-records:500}")
+    private int maxPollRecords;
+
+    // Consumers per saga family, each reading all event topics of its family
+    @Value("${saga.listener.concurrency:3}")
+    private int listenerConcurrency;
+
     // Order sell saga topics
     @Value("${kafka.topics.user-commands.order-sell:user.commands.order-sell}")
     private String userCommandsOrderSellTopic;
@@ -305,12 +355,15 @@ public class KafkaConfig {
         Map<String, Object> configProps = new HashMap<>();
         configProps.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
         configProps.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
-        configProps.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, JsonSerializer.class);
+        configProps.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, messageSerializerClass());
         configProps.put(ProducerConfig.ACKS_CONFIG, "all");
         configProps.put(ProducerConfig.RETRIES_CONFIG, 3);
         configProps.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true);
+        configProps.put(ProducerConfig.LINGER_MS_CONFIG, producerLingerMs);
+        configProps.put(ProducerConfig.BATCH_SIZE_CONFIG, producerBatchSize);
         // Add type information to headers
         configProps.put(JsonSerializer.ADD_TYPE_INFO_HEADERS, true);
+        configProps.putAll(HopInterceptors.producerProps(hopMetrics()));
         return new DefaultKafkaProducerFactory<>(configProps);
     }
 
@@ -325,7 +378,7 @@ public class KafkaConfig {
         Map<String, Object> configProps = new HashMap<>();
         configProps.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
         configProps.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
-        configProps.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, JsonSerializer.class);
+        configProps.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, messageSerializerClass());
         // Add type info headers
         configProps.put(JsonSerializer.ADD_TYPE_INFO_HEADERS, true);
         return new DefaultKafkaProducerFactory<>(configProps);
@@ -355,27 +408,48 @@ public class KafkaConfig {
         props.put(ConsumerConfig.GROUP_ID_CONFIG, groupId);
         props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
         props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ErrorHandlingDeserializer.class);
-        props.put(ErrorHandlingDeserializer.VALUE_DESERIALIZER_CLASS, JsonDeserializer.class.getName());
+        props.put(ErrorHandlingDeserializer.VALUE_DESERIALIZER_CLASS, messageDeserializerClass());
         // Set trusted packages
         props.put(JsonDeserializer.TRUSTED_PACKAGES, "*");
         // Use correct package for model class
         props.put(JsonDeserializer.VALUE_DEFAULT_TYPE, "com.project.kafkamessagemodels.model.EventMessage");
         props.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
         props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+        props.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, maxPollRecords);
         // Add type info for deserialization
         props.put(JsonDeserializer.USE_TYPE_INFO_HEADERS, true);
         props.put(JsonDeserializer.REMOVE_TYPE_INFO_HEADERS, false);
+        props.putAll(HopInterceptors.consumerProps(hopMetrics()));
 
         return new DefaultKafkaConsumerFactory<>(props);
     }
 
+    // Saga event partitions moving between instances: the idempotency filter loads the records of those it gets
+    @Bean
+    public ConsumerRebalanceListener idempotencyRebalanceListener() {
+        return new ConsumerRebalanceListener() {
+            @Override
+            public void onPartitionsAssigned(Collection<org.apache.kafka.common.TopicPartition> partitions) {
+                idempotencyService.partitionsAssigned(partitions);
+            }
+
+            @Override
+            public void onPartitionsRevoked(Collection<org.apache.kafka.common.TopicPartition> partitions) {
+                idempotencyService.partitionsRevoked(partitions);
+            }
+        };
+    }
+
     // Main container factory for events - used by default for all event listeners
     @Bean
     public ConcurrentKafkaListenerContainerFactory<String, EventMessage> eventKafkaListenerContainerFactory() {
         ConcurrentKafkaListenerContainerFactory<String, EventMessage> factory = new ConcurrentKafkaListenerContainerFactory<>();
         factory.setConsumerFactory(depositEventConsumerFactory());
-        factory.setConcurrency(3);
+        factory.setConcurrency(listenerConcurrency);
         factory.getContainerProperties().setAckMode(org.springframework.kafka.listener.ContainerProperties.AckMode.MANUAL_IMMEDIATE);
+        // Whole polls are handed to the listener so sagas can be loaded and written in bulk
+        factory.setBatchListener(true);
+        factory.getContainerProperties().setConsumerRebalanceListener(idempotencyRebalanceListener());
 
         // Configure error handling with dead letter topic
         DefaultErrorHandler errorHandler = new DefaultErrorHandler(
@@ -392,8 +466,11 @@ public class KafkaConfig {
     public ConcurrentKafkaListenerContainerFactory<String, EventMessage> orderBuyEventKafkaListenerContainerFactory() {
         ConcurrentKafkaListenerContainerFactory<String, EventMessage> factory = new ConcurrentKafkaListenerContainerFactory<>();
         factory.setConsumerFactory(orderBuyEventConsumerFactory());
-        factory.setConcurrency(3);
+        factory.setConcurrency(listenerConcurrency);
         factory.getContainerProperties().setAckMode(org.springframework.kafka.listener.ContainerProperties.AckMode.MANUAL_IMMEDIATE);
+        // Whole polls are handed to the listener so sagas can be loaded and written in bulk
+        factory.setBatchListener(true);
+        factory.getContainerProperties().setConsumerRebalanceListener(idempotencyRebalanceListener());
 
         // Configure error handling with dead letter topic
         DefaultErrorHandler errorHandler = new DefaultErrorHandler(
@@ -405,6 +482,42 @@ public class KafkaConfig {
         return factory;
     }
 
+    // Retry topics of the saga families
+    @Bean
+    public NewTopic depositWithdrawalRetryTopic() {
+        return new NewTopic(depositWithdrawalRetryTopic, 3, (short) 1);
+    }
+
+    @Bean
+    public NewTopic orderBuyRetryTopic() {
+        return new NewTopic(orderBuyRetryTopic, 3, (short) 1);
+    }
+
+    @Bean
+    public NewTopic orderSellRetryTopic() {
+        return new NewTopic(orderSellRetryTopic, 3, (short) 1);
+    }
+
+    // Retried events one at a time: the backoff between attempts only holds up other retries, never a saga batch
+    @Bean
+    public ConcurrentKafkaListenerContainerFactory<String, EventMessage> sagaRetryKafkaListenerContainerFactory() {
+        ConcurrentKafkaListenerContainerFactory<String, EventMessage> factory = new ConcurrentKafkaListenerContainerFactory<>();
+        factory.setConsumerFactory(createEventConsumerFactory(defaultGroupId + "-retry"));
+        factory.getContainerProperties().setAckMode(org.springframework.kafka.listener.ContainerProperties.AckMode.MANUAL_IMMEDIATE);
+
+        // The first attempt was made in the batch, the last failure goes to the dead letter topic
+        ExponentialBackOffWithMaxRetries backOff = new ExponentialBackOffWithMaxRetries(Math.max(0, maxAttempts - 2));
+        backOff.setInitialInterval(retryBackoffMs);
+        backOff.setMultiplier(2);
+        DefaultErrorHandler errorHandler = new DefaultErrorHandler(
+                new DeadLetterPublishingRecoverer(eventKafkaTemplate(), (rec, ex) -> new org.apache.kafka.common.TopicPartition(dlqTopic, 0)),
+                backOff
+        );
+        factory.setCommonErrorHandler(errorHandler);
+
+        return factory;
+    }
+
     // Generic error handler bean
     @Bean
     public DefaultErrorHandler kafkaErrorHandler() {
@@ -436,8 +549,11 @@ public class KafkaConfig {
     public ConcurrentKafkaListenerContainerFactory<String, EventMessage> orderSellEventKafkaListenerContainerFactory() {
         ConcurrentKafkaListenerContainerFactory<String, EventMessage> factory = new ConcurrentKafkaListenerContainerFactory<>();
         factory.setConsumerFactory(orderSellEventConsumerFactory());
-        factory.setConcurrency(3);
+        factory.setConcurrency(listenerConcurrency);
         factory.getContainerProperties().setAckMode(org.springframework.kafka.listener.ContainerProperties.AckMode.MANUAL_IMMEDIATE);
+        // Whole polls are handed to the listener so sagas can be loaded and written in bulk
+        factory.setBatchListener(true);
+        factory.getContainerProperties().setConsumerRebalanceListener(idempotencyRebalanceListener());
 
         // Configure error handling with dead letter topic
         DefaultErrorHandler errorHandler = new DefaultErrorHandler(
@@ -448,4 +564,19 @@ public class KafkaConfig {
 
         return factory;
     }
-}
\ No newline at end of file
+
+    // Hop trails of saga messages, timed per message type
+    @Bean
+    public HopMetrics hopMetrics() {
+        return new HopMetrics(meterRegistry, "SAGA_ORCHESTRATOR");
+    }
+
+    private Class<?> messageSerializerClass() {
+        return MessageCodec.BINARY.equals(messageCodec) ? BinaryMessageSerializer.class : JsonSerializer.class;
+    }
+
+    private String messageDeserializerClass() {
+        return MessageCodec.BINARY.equals(messageCodec)
+                ? BinaryMessageDeserializer.class.getName() : JsonDeserializer.class.getName();
+    }
+}
@@ -0,0 +1,128 @@
+package com.stocktrading.kafka.config;
+
+import com.stocktrading.kafka.model.DepositSagaState;
+import com.stocktrading.kafka.model.OrderBuySagaState;
+import com.stocktrading.kafka.model.OrderSellSagaState;
+import com.stocktrading.kafka.model.WithdrawalSagaState;
+import com.stocktrading.kafka.model.enums.SagaStatus;
+import com.stocktrading.kafka.model.enums.SagaType;
+import com.stocktrading.kafka.repository.DepositSagaRepository;
+import com.stocktrading.kafka.repository.OrderBuySagaRepository;
+import com.stocktrading.kafka.repository.OrderSellSagaRepository;
+import com.stocktrading.kafka.repository.WithdrawalSagaRepository;
+import com.stocktrading.kafka.service.CommandOutboxRelay;
+import com.stocktrading.kafka.service.IdempotencyService;
+import com.stocktrading.kafka.service.SagaEventLog;
+import com.stocktrading.kafka.service.SagaMonitoringService;
+import com.stocktrading.kafka.service.SagaOwnershipService;
+import com.stocktrading.kafka.service.SagaStateCache;
+import com.stocktrading.kafka.service.SagaTimeoutPolicy;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.time.Instant;
+
+/**
+ * In-memory saga state caches, one per saga type.
+ * Every save stamps the saga with the deadline of its current step and reports its transition to the metrics.
+ */
+@Configuration
+@RequiredArgsConstructor
+public class SagaStateCacheConfig {
+
+    private final MongoTemplate mongoTemplate;
+    private final MeterRegistry meterRegistry;
+    private final SagaEventLog sagaEventLog;
+    private final CommandOutboxRelay commandOutboxRelay;
+    private final IdempotencyService idempotencyService;
+    private final SagaOwnershipService sagaOwnershipService;
+    private final SagaTimeoutPolicy timeoutPolicy;
+    private final SagaMonitoringService sagaMonitoringService;
+
+    @Value("${saga.cache.write-behind:true}")
+    private boolean writeBehind;
+
+    @Value("${saga.cache.idle-evict-ms:600000}")
+    private long idleEvictMs;
+
+    @Bean
+    public SagaStateCache<OrderBuySagaState> orderBuySagaCache(OrderBuySagaRepository repository) {
+        return new SagaStateCache<>(SagaType.ORDER_BUY.getKey(), OrderBuySagaState.class, mongoTemplate, meterRegistry,
+                OrderBuySagaState::getSagaId, repository::findById,
+                saga -> isFinished(saga.getStatus(), saga.getEndTime()),
+                OrderBuySagaState::drainPendingEvents, sagaEventLog, commandOutboxRelay, idempotencyService,
+                sagaOwnershipService,
+                saga -> {
+                    saga.setTimeoutShard(SagaTimeoutPolicy.shardOf(saga.getSagaId()));
+                    saga.setNextDeadline(timeoutPolicy.deadline(saga.getStatus(), saga.getCurrentStep(),
+                            saga.getCurrentStepStartTime(), timeoutPolicy.forOrderStep()));
+                    sagaMonitoringService.recordTransition(SagaType.ORDER_BUY, saga.getSagaId(), saga.getCurrentStep(),
+                            saga.getStatus(), saga.getCurrentStepStartTime(), saga.getStartTime(), saga.getEndTime());
+                },
+                writeBehind, idleEvictMs);
+    }
+
+    @Bean
+    public SagaStateCache<OrderSellSagaState> orderSellSagaCache(OrderSellSagaRepository repository) {
+        return new SagaStateCache<>(SagaType.ORDER_SELL.getKey(), OrderSellSagaState.class, mongoTemplate, meterRegistry,
+                OrderSellSagaState::getSagaId, repository::findById,
+                saga -> isFinished(saga.getStatus(), saga.getEndTime()),
+                OrderSellSagaState::drainPendingEvents, sagaEventLog, commandOutboxRelay, idempotencyService,
+                sagaOwnershipService,
+                saga -> {
+                    saga.setTimeoutShard(SagaTimeoutPolicy.shardOf(saga.getSagaId()));
+                    saga.setNextDeadline(timeoutPolicy.deadline(saga.getStatus(), saga.getCurrentStep(),
+                            saga.getCurrentStepStartTime(), timeoutPolicy.forOrderStep()));
+                    sagaMonitoringService.recordTransition(SagaType.ORDER_SELL, saga.getSagaId(), saga.getCurrentStep(),
+                            saga.getStatus(), saga.getCurrentStepStartTime(), saga.getStartTime(), saga.getEndTime());
+                },
+                writeBehind, idleEvictMs);
+    }
+
+    @Bean
+    public SagaStateCache<DepositSagaState> depositSagaCache(DepositSagaRepository repository) {
+        return new SagaStateCache<>(SagaType.DEPOSIT.getKey(), DepositSagaState.class, mongoTemplate, meterRegistry,
+                DepositSagaState::getSagaId, repository::getDepositSagaStateBySagaId,
+                saga -> isFinished(saga.getStatus(), saga.getEndTime()),
+                DepositSagaState::drainPendingEvents, sagaEventLog, commandOutboxRelay, idempotencyService,
+                sagaOwnershipService,
+                saga -> {
+                    saga.setTimeoutShard(SagaTimeoutPolicy.shardOf(saga.getSagaId()));
+                    saga.setNextDeadline(timeoutPolicy.deadline(saga.getStatus(), saga.getCurrentStep(),
+                            saga.getCurrentStepStartTime(),
+                            saga.getCurrentStep() != null ? timeoutPolicy.forStep(saga.getCurrentStep()) : null));
+                    sagaMonitoringService.recordTransition(SagaType.DEPOSIT, saga.getSagaId(), saga.getCurrentStep(),
+                            saga.getStatus(), saga.getCurrentStepStartTime(), saga.getStartTime(), saga.getEndTime());
+                },
+                writeBehind, idleEvictMs);
+    }
+
+    @Bean
+    public SagaStateCache<WithdrawalSagaState> withdrawalSagaCache(WithdrawalSagaRepository repository) {
+        return new SagaStateCache<>(SagaType.WITHDRAWAL.getKey(), WithdrawalSagaState.class, mongoTemplate, meterRegistry,
+                WithdrawalSagaState::getSagaId, repository::getWithdrawalSagaStateBySagaId,
+                saga -> isFinished(saga.getStatus(), saga.getEndTime()),
+                WithdrawalSagaState::drainPendingEvents, sagaEventLog, commandOutboxRelay, idempotencyService,
+                sagaOwnershipService,
+                saga -> {
+                    saga.setTimeoutShard(SagaTimeoutPolicy.shardOf(saga.getSagaId()));
+                    saga.setNextDeadline(timeoutPolicy.deadline(saga.getStatus(), saga.getCurrentStep(),
+                            saga.getCurrentStepStartTime(),
+                            saga.getCurrentStep() != null ? timeoutPolicy.forStep(saga.getCurrentStep()) : null));
+                    sagaMonitoringService.recordTransition(SagaType.WITHDRAWAL, saga.getSagaId(), saga.getCurrentStep(),
+                            saga.getStatus(), saga.getCurrentStepStartTime(), saga.getStartTime(), saga.getEndTime());
+                },
+                writeBehind, idleEvictMs);
+    }
+
+    // A saga with an end time will not receive further events worth keeping it in memory for
+    private static boolean isFinished(SagaStatus status, Instant endTime) {
+        return endTime != null
+                || status == SagaStatus.COMPLETED
+                || status == SagaStatus.COMPENSATION_COMPLETED;
+    }
+}
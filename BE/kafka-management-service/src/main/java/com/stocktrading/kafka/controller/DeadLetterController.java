@@ -0,0 +1,33 @@
+package com.stocktrading.kafka.controller;
+
+import com.stocktrading.kafka.dto.DeadLetterReplayResult;
+import com.stocktrading.kafka.service.DeadLetterReplayService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+@Slf4j
+@RestController
+@RequestMapping("sagas/api/v1/dead-letters")
+@RequiredArgsConstructor
+public class DeadLetterController {
+
+    private final DeadLetterReplayService deadLetterReplayService;
+
+    /**
+     * Replay the dead letters of a participant's command topic, e.g. account.commands.deposit
+     */
+    @PostMapping("/replay")
+    public ResponseEntity<DeadLetterReplayResult> replay(@RequestParam String topic,
+                                                         @RequestParam(defaultValue = "100") int limit) {
+        if (limit < 1 || limit > 10_000) {
+            return ResponseEntity.badRequest().build();
+        }
+        log.info("Received request to replay up to {} dead letters of {}", limit, topic);
+
+        return deadLetterReplayService.replay(topic, limit)
+                .map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
+    }
+}
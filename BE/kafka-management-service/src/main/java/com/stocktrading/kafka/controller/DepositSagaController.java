@@ -3,7 +3,10 @@ package com.stocktrading.kafka.controller;
 
 import com.stocktrading.kafka.dto.*;
 import com.stocktrading.kafka.model.DepositSagaState;
+import com.stocktrading.kafka.model.enums.SagaType;
 import com.stocktrading.kafka.service.DepositSagaService;
+import com.stocktrading.kafka.service.SagaEventLog;
+import com.stocktrading.kafka.service.SagaTimeoutService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.HttpStatus;
@@ -23,8 +26,12 @@ import java.util.stream.Collectors;
 @RequestMapping("sagas/api/v1/deposit")
 @RequiredArgsConstructor
 public class DepositSagaController {
+
+    private static final int RECENT_EVENTS = 10;
     
     private final DepositSagaService depositSagaService;
+    private final SagaEventLog sagaEventLog;
+    private final SagaTimeoutService sagaTimeoutService;
 
     /**
      * Start a new deposit saga
@@ -55,6 +62,10 @@ public class DepositSagaController {
         
         return optionalSaga
             .map(this::mapToDepositDto)
+            .map(dto -> {
+                dto.setRecentEvents(sagaEventLog.getRecentEvents(sagaId, dto.getEventCount(), RECENT_EVENTS));
+                return dto;
+            })
             .map(ResponseEntity::ok)
             .orElse(ResponseEntity.notFound().build());
     }
@@ -82,11 +93,29 @@ public class DepositSagaController {
     public ResponseEntity<String> checkTimeouts() {
         log.info("Received request to check for timeouts");
         
-        depositSagaService.checkForTimeouts();
+        sagaTimeoutService.checkForTimeouts(SagaType.DEPOSIT);
         
         return ResponseEntity.ok("Timeout check initiated");
     }
     
+    /**
+     * Get a page of a saga's event history
+     */
+    @GetMapping("/{sagaId}/events")
+    public ResponseEntity<SagaEventPage> getSagaEvents(@PathVariable String sagaId,
+                                                       @RequestParam(defaultValue = "0") int page,
+                                                       @RequestParam(defaultValue = "50") int size) {
+        if (page < 0 || size < 1 || size > 500) {
+            return ResponseEntity.badRequest().build();
+        }
+
+        return depositSagaService.findById(sagaId)
+                .map(saga -> new SagaEventPage(sagaId, page, size, saga.getEventCount(),
+                        sagaEventLog.getEvents(sagaId, saga.getEventCount(), page, size)))
+                .map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
+    }
+
     /**
      * Map a saga state entity to a Deposit DTO
      */
@@ -115,12 +144,8 @@ public class DepositSagaController {
         dto.setRetryCount(saga.getRetryCount());
         dto.setMaxRetries(saga.getMaxRetries());
         
-        // Filter events to a reasonable number (last 10)
-        if (saga.getSagaEvents() != null && !saga.getSagaEvents().isEmpty()) {
-            int eventsSize = saga.getSagaEvents().size();
-            int startIndex = Math.max(0, eventsSize - 10);
-            dto.setRecentEvents(saga.getSagaEvents().subList(startIndex, eventsSize));
-        }
+        dto.setEventCount(saga.getEventCount());
+        dto.setLastEvent(saga.getLastEvent());
         
         return dto;
     }
@@ -2,9 +2,13 @@ package com.stocktrading.kafka.controller;
 
 import com.stocktrading.kafka.dto.OrderSellSagaDto;
 import com.stocktrading.kafka.dto.OrderSellSagaRequest;
+import com.stocktrading.kafka.dto.SagaEventPage;
 import com.stocktrading.kafka.dto.SagaListResponse;
 import com.stocktrading.kafka.model.OrderSellSagaState;
+import com.stocktrading.kafka.model.enums.SagaType;
 import com.stocktrading.kafka.service.OrderSellSagaService;
+import com.stocktrading.kafka.service.SagaEventLog;
+import com.stocktrading.kafka.service.SagaTimeoutService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.HttpStatus;
@@ -26,7 +30,11 @@ import java.util.stream.Collectors;
 @RequiredArgsConstructor
 public class OrderSellSagaController {
 
+    private static final int RECENT_EVENTS = 10;
+
     private final OrderSellSagaService orderSellSagaService;
+    private final SagaEventLog sagaEventLog;
+    private final SagaTimeoutService sagaTimeoutService;
 
     /**
      * Start a new order sell saga
@@ -57,6 +65,10 @@ public class OrderSellSagaController {
 
         return optionalSaga
                 .map(this::mapToDto)
+                .map(dto -> {
+                    dto.setRecentEvents(sagaEventLog.getRecentEvents(sagaId, dto.getEventCount(), RECENT_EVENTS));
+                    return dto;
+                })
                 .map(ResponseEntity::ok)
                 .orElse(ResponseEntity.notFound().build());
     }
@@ -130,11 +142,29 @@ public class OrderSellSagaController {
     public ResponseEntity<String> checkTimeouts() {
         log.info("Received request to check for timeouts");
 
-        orderSellSagaService.checkForTimeouts();
+        sagaTimeoutService.checkForTimeouts(SagaType.ORDER_SELL);
 
         return ResponseEntity.ok("Timeout check initiated");
     }
 
+    /**
+     * Get a page of a saga's event history
+     */
+    @GetMapping("/{sagaId}/events")
+    public ResponseEntity<SagaEventPage> getSagaEvents(@PathVariable String sagaId,
+                                                       @RequestParam(defaultValue = "0") int page,
+                                                       @RequestParam(defaultValue = "50") int size) {
+        if (page < 0 || size < 1 || size > 500) {
+            return ResponseEntity.badRequest().build();
+        }
+
+        return orderSellSagaService.findById(sagaId)
+                .map(saga -> new SagaEventPage(sagaId, page, size, saga.getEventCount(),
+                        sagaEventLog.getEvents(sagaId, saga.getEventCount(), page, size)))
+                .map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
+    }
+
     /**
      * Map a saga state entity to a DTO
      */
@@ -170,12 +200,8 @@ public class OrderSellSagaController {
         dto.setRetryCount(saga.getRetryCount());
         dto.setMaxRetries(saga.getMaxRetries());
 
-        // Filter events to a reasonable number (last 10)
-        if (saga.getSagaEvents() != null && !saga.getSagaEvents().isEmpty()) {
-            int eventsSize = saga.getSagaEvents().size();
-            int startIndex = Math.max(0, eventsSize - 10);
-            dto.setRecentEvents(saga.getSagaEvents().subList(startIndex, eventsSize));
-        }
+        dto.setEventCount(saga.getEventCount());
+        dto.setLastEvent(saga.getLastEvent());
 
         return dto;
     }
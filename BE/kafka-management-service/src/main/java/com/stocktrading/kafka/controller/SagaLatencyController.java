@@ -0,0 +1,25 @@
+package com.stocktrading.kafka.controller;
+
+import com.stocktrading.kafka.dto.SagaCriticalPath;
+import com.stocktrading.kafka.service.SagaCriticalPathService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+@RestController
+@RequestMapping("sagas/api/v1/latency")
+@RequiredArgsConstructor
+public class SagaLatencyController {
+
+    private final SagaCriticalPathService sagaCriticalPathService;
+
+    /**
+     * Get the critical-path breakdown of a recent saga of any type
+     */
+    @GetMapping("/{sagaId}/critical-path")
+    public ResponseEntity<SagaCriticalPath> getCriticalPath(@PathVariable String sagaId) {
+        return sagaCriticalPathService.getCriticalPath(sagaId)
+                .map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
+    }
+}
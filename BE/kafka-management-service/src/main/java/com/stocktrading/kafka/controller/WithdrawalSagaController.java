@@ -4,6 +4,7 @@ package com.stocktrading.kafka.controller;
 import com.stocktrading.kafka.dto.*;
 import com.stocktrading.kafka.model.WithdrawalSagaState;
 import com.stocktrading.kafka.service.WithdrawalSagaService;
+import com.stocktrading.kafka.service.SagaEventLog;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.HttpStatus;
@@ -18,7 +19,10 @@ import javax.validation.Valid;
 @RequiredArgsConstructor
 public class WithdrawalSagaController {
 
+    private static final int RECENT_EVENTS = 10;
+
     private final WithdrawalSagaService withdrawalSagaService;
+    private final SagaEventLog sagaEventLog;
 
     /**
      * Start a new withdrawal saga
@@ -39,6 +43,24 @@ public class WithdrawalSagaController {
         return ResponseEntity.status(HttpStatus.CREATED).body(mapToWithdrawalDto(saga));
     }
 
+    /**
+     * Get a page of a saga's event history
+     */
+    @GetMapping("/{sagaId}/events")
+    public ResponseEntity<SagaEventPage> getSagaEvents(@PathVariable String sagaId,
+                                                       @RequestParam(defaultValue = "0") int page,
+                                                       @RequestParam(defaultValue = "50") int size) {
+        if (page < 0 || size < 1 || size > 500) {
+            return ResponseEntity.badRequest().build();
+        }
+
+        return withdrawalSagaService.findById(sagaId)
+                .map(saga -> new SagaEventPage(sagaId, page, size, saga.getEventCount(),
+                        sagaEventLog.getEvents(sagaId, saga.getEventCount(), page, size)))
+                .map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
+    }
+
     /**
      * Map a saga state entity to a Withdrawal DTO
      */
@@ -63,12 +85,8 @@ public class WithdrawalSagaController {
         dto.setEndTime(saga.getEndTime());
         dto.setLastUpdatedTime(saga.getLastUpdatedTime());
 
-        // Filter events to a reasonable number (last 10)
-        if (saga.getSagaEvents() != null && !saga.getSagaEvents().isEmpty()) {
-            int eventsSize = saga.getSagaEvents().size();
-            int startIndex = Math.max(0, eventsSize - 10);
-            dto.setRecentEvents(saga.getSagaEvents().subList(startIndex, eventsSize));
-        }
+        dto.setEventCount(saga.getEventCount());
+        dto.setLastEvent(saga.getLastEvent());
 
         dto.setFailureReason(saga.getFailureReason());
         dto.setRetryCount(saga.getRetryCount());
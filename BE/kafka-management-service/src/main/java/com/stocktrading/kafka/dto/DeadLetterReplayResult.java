@@ -0,0 +1,21 @@
+package com.stocktrading.kafka.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Outcome of replaying a participant's dead-letter topic onto the command topic it came from
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DeadLetterReplayResult {
+    private String deadLetterTopic;
+    private String targetTopic;
+    private int replayed;
+    // Dead letters dropped because their saga had moved past the step, or could not be read
+    private int skipped;
+    // Dead letters left behind, more than the limit or arrived while replaying
+    private long remaining;
+}
@@ -28,6 +28,8 @@ public class DepositSagaDto {
     private String status;
     private List<String> completedSteps;
     private List<SagaEvent> recentEvents;
+    private int eventCount;
+    private SagaEvent lastEvent;
     private String failureReason;
     private Instant startTime;
     private Instant endTime;
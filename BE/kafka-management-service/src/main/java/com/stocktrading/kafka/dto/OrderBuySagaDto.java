@@ -32,6 +32,8 @@ public class OrderBuySagaDto {
     private String status;
     private List<String> completedSteps;
     private List<SagaEvent> recentEvents;
+    private int eventCount;
+    private SagaEvent lastEvent;
     private String failureReason;
     private Instant startTime;
     private Instant endTime;
@@ -0,0 +1,41 @@
+package com.stocktrading.kafka.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where the time of a saga went, step by step, from the hop trails of the events answering its commands.
+ * Segments crossing services rely on their clocks agreeing.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SagaCriticalPath {
+    private String sagaId;
+    private long elapsedMs;
+    // Segment name to milliseconds, summed over the steps on the critical path
+    private Map<String, Long> segmentTotals;
+    private String dominantSegment;
+    private List<Step> steps;
+
+    @Data
+    @NoArgsConstructor
+    public static class Step {
+        private String stepId;
+        private String eventType;
+        private String service;
+        private long commandSentAt;
+        private long handledAt;
+        // Since the event that let the orchestrator send this step's command was handled
+        private Long waitMs;
+        private Long commandTransitMs;
+        private Long handlingMs;
+        private Long eventTransitMs;
+        private Long orchestratorMs;
+        private boolean onCriticalPath;
+    }
+}
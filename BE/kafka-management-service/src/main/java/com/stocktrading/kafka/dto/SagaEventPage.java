@@ -0,0 +1,22 @@
+package com.stocktrading.kafka.dto;
+
+import com.stocktrading.kafka.model.SagaEvent;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * One page of a saga's event history, oldest first
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SagaEventPage {
+    private String sagaId;
+    private int page;
+    private int size;
+    private int totalEvents;
+    private List<SagaEvent> events;
+}
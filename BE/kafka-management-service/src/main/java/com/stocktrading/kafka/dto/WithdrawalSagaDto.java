@@ -25,6 +25,8 @@ public class WithdrawalSagaDto {
     private String status;
     private List<String> completedSteps;
     private List<SagaEvent> recentEvents;
+    private int eventCount;
+    private SagaEvent lastEvent;
     private String failureReason;
     private Instant startTime;
     private Instant endTime;
@@ -4,13 +4,29 @@ import com.project.kafkamessagemodels.model.EventMessage;
 import com.stocktrading.kafka.service.*;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.listener.BatchListenerFailedException;
 import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.messaging.handler.annotation.Payload;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
 /**
- * Kafka listener for processing event messages
+ * Kafka listener for processing event messages.
+ * Each saga family has one consumer group over all its event topics, and every event is routed to the one
+ * saga service that owns its saga. Listeners receive whole polled batches. Each saga's events run in order on
+ * its lane of the keyed executor, and the batch is acknowledged once the saga states it touched have been written.
+ * An event that fails is handed to its family's retry topic instead of holding up the batch, together with the
+ * later events of its saga in the same batch, and retried there in order with backoff before it goes to the DLQ.
+ * The batch is only acknowledged once the retry topic has them. Events of the saga in later batches can still
+ * overtake them; the saga's transitions ignore an event for a step it has left.
  */
 @Slf4j
 @Component
@@ -22,326 +38,328 @@ public class KafkaEventListener {
     private final OrderBuySagaService orderBuySagaService;
     private final OrderSellSagaService orderSellSagaService;
     private final IdempotencyService idempotencyService;
+    private final SagaEventExecutor sagaEventExecutor;
+    private final KafkaMessagePublisher kafkaMessagePublisher;
+    private final SagaFlushService sagaFlushService;
+    private final SagaCriticalPathService sagaCriticalPathService;
 
-    // ====== DEPOSIT SAGA EVENT LISTENERS ======
-    @KafkaListener(
-            topics = "${kafka.topics.account-events.common}",
-            containerFactory = "eventKafkaListenerContainerFactory",
-            groupId = "${spring.kafka.consumer.group-id}-account-common"
-    )
-    public void consumeAccountCommonEvents(@Payload EventMessage event, Acknowledgment ack) {
-        try {
-            log.debug("Received account common event: {}", event.getType());
-            depositSagaService.handleEventMessage(event);
-            withdrawalSagaService.handleEventMessage(event);
-            // Acknowledge the message
-            ack.acknowledge();
-        } catch (Exception e) {
-            log.error("Error processing account common event: {}", e.getMessage(), e);
-            throw new RuntimeException("Event processing failed", e);
-        }
-    }
+    @Value("${kafka.topics.saga-retry.deposit-withdrawal:saga.retry.deposit-withdrawal}")
+    private String depositWithdrawalRetryTopic;
 
-    @KafkaListener(
-            topics = "${kafka.topics.user-events.common}",
-            containerFactory = "eventKafkaListenerContainerFactory",
-            groupId = "${spring.kafka.consumer.group-id}-user-common"
-    )
-    public void consumeUserCommonEvents(@Payload EventMessage event, Acknowledgment ack) {
-        try {
-            log.debug("Received user common event: {}", event.getType());
-            depositSagaService.handleEventMessage(event);
-            withdrawalSagaService.handleEventMessage(event);
-            // Acknowledge the message
-            ack.acknowledge();
-        } catch (Exception e) {
-            log.error("Error processing user common event: {}", e.getMessage(), e);
-            throw new RuntimeException("Event processing failed", e);
-        }
-    }
+    @Value("${kafka.topics.saga-retry.order-buy:saga.retry.order-buy}")
+    private String orderBuyRetryTopic;
 
-    @KafkaListener(
-            topics = "${kafka.topics.account-events.deposit}",
-            containerFactory = "eventKafkaListenerContainerFactory",
-            groupId = "${spring.kafka.consumer.group-id}-deposit-account"
-    )
-    public void consumeAccountDepositEvents(@Payload EventMessage event, Acknowledgment ack) {
-        try {
-            log.debug("Received account deposit event: {}", event.getType());
-            depositSagaService.handleEventMessage(event);
-            // Acknowledge the message
-            ack.acknowledge();
-        } catch (Exception e) {
-            log.error("Error processing account deposit event: {}", e.getMessage(), e);
-            throw new RuntimeException("Event processing failed", e);
-        }
-    }
+    @Value("${kafka.topics.saga-retry.order-sell:saga.retry.order-sell}")
+    private String orderSellRetryTopic;
 
-    @KafkaListener(
-            topics = "${kafka.topics.payment-events.deposit}",
-            containerFactory = "eventKafkaListenerContainerFactory",
-            groupId = "${spring.kafka.consumer.group-id}-deposit-payment"
-    )
-    public void consumePaymentDepositEvents(@Payload EventMessage event, Acknowledgment ack) {
-        try {
-            log.debug("Received payment deposit event: {}", event.getType());
-            depositSagaService.handleEventMessage(event);
-            ack.acknowledge();
-        } catch (Exception e) {
-            log.error("Error processing payment deposit event: {}", e.getMessage(), e);
-            throw new RuntimeException("Event processing failed", e);
-        }
-    }
+    @Value("${saga.executor.retry-send-timeout-ms:10000}")
+    private long retrySendTimeoutMs;
 
-    // ====== WITHDRAWAL SAGA EVENT LISTENERS ======
-    @KafkaListener(
-            topics = "${kafka.topics.account-events.withdrawal}",
-            containerFactory = "eventKafkaListenerContainerFactory",
-            groupId = "${spring.kafka.consumer.group-id}-withdrawal-account"
-    )
-    public void consumeAccountWithdrawalEvents(@Payload EventMessage event, Acknowledgment ack) {
-        try {
-            log.debug("Received account withdrawal event: {}", event.getType());
-            withdrawalSagaService.handleEventMessage(event);
-            // Acknowledge the message
-            ack.acknowledge();
-        } catch (Exception e) {
-            log.error("Error processing account withdrawal event: {}", e.getMessage(), e);
-            throw new RuntimeException("Event processing failed", e);
-        }
+    // One consumer group per saga family, events are routed to the saga type that owns them
+    private SagaFamily depositWithdrawal;
+    private SagaFamily orderBuy;
+    private SagaFamily orderSell;
+
+    @PostConstruct
+    public void init() {
+        depositWithdrawal = new SagaFamily("deposit/withdrawal", depositWithdrawalRetryTopic,
+                depositSagaService, withdrawalSagaService);
+        orderBuy = new SagaFamily("order-buy", orderBuyRetryTopic, orderBuySagaService);
+        orderSell = new SagaFamily("order-sell", orderSellRetryTopic, orderSellSagaService);
     }
 
+    // ====== DEPOSIT AND WITHDRAWAL SAGA EVENT LISTENER ======
     @KafkaListener(
-            topics = "${kafka.topics.payment-events.withdrawal}",
+            topics = {
+                    "${kafka.topics.account-events.common}",
+                    "${kafka.topics.user-events.common}",
+                    "${kafka.topics.account-events.deposit}",
+                    "${kafka.topics.payment-events.deposit}",
+                    "${kafka.topics.account-events.withdrawal}",
+                    "${kafka.topics.payment-events.withdrawal}"
+            },
             containerFactory = "eventKafkaListenerContainerFactory",
-            groupId = "${spring.kafka.consumer.group-id}-withdrawal-payment"
+            groupId = "${spring.kafka.consumer.group-id}-deposit-withdrawal"
     )
-    public void consumePaymentWithdrawalEvents(@Payload EventMessage event, Acknowledgment ack) {
-        try {
-            log.debug("Received payment withdrawal event: {}", event.getType());
-            withdrawalSagaService.handleEventMessage(event);
-            ack.acknowledge();
-        } catch (Exception e) {
-            log.error("Error processing payment withdrawal event: {}", e.getMessage(), e);
-            throw new RuntimeException("Event processing failed", e);
-        }
+    public void consumeDepositWithdrawalEvents(@Payload List<EventMessage> events,
+                                               @Header(KafkaHeaders.RECEIVED_TOPIC) List<String> topics,
+                                               @Header(KafkaHeaders.RECEIVED_PARTITION_ID) List<Integer> partitions,
+                                               Acknowledgment ack) {
+        log.debug("Received {} deposit/withdrawal events", events.size());
+        dispatch(events, topics, partitions, ack, depositWithdrawal);
     }
 
-    // ====== ORDER BUY SAGA EVENT LISTENERS ======
-
+    // ====== ORDER BUY SAGA EVENT LISTENER ======
     @KafkaListener(
-            topics = "${kafka.topics.user-events.order-buy}",
+            topics = {
+                    "${kafka.topics.user-events.order-buy}",
+                    "${kafka.topics.account-events.order-buy}",
+                    "${kafka.topics.order-events}",
+                    "${kafka.topics.market-events}",
+                    "${kafka.topics.broker-events}",
+                    "${kafka.topics.portfolio-events.order-buy}"
+            },
             containerFactory = "orderBuyEventKafkaListenerContainerFactory",
-            groupId = "${spring.kafka.consumer.group-id}-order-buy-user"
+            groupId = "${spring.kafka.consumer.group-id}-order-buy"
     )
-    public void consumeUserOrderBuyEvents(@Payload EventMessage event, Acknowledgment ack) {
-        try {
-            log.debug("Received user order-buy event: {}", event.getType());
-            orderBuySagaService.handleEventMessage(event);
-            ack.acknowledge();
-            log.debug("Successfully processed and acknowledged user order-buy event: {}", event.getType());
-        } catch (Exception e) {
-            log.error("Error processing user order-buy event: {}", event.getType(), e);
-            throw new RuntimeException("Event processing failed", e);
-        }
+    public void consumeOrderBuyEvents(@Payload List<EventMessage> events,
+                                      @Header(KafkaHeaders.RECEIVED_TOPIC) List<String> topics,
+                                      @Header(KafkaHeaders.RECEIVED_PARTITION_ID) List<Integer> partitions,
+                                      Acknowledgment ack) {
+        log.debug("Received {} order-buy events", events.size());
+        dispatch(events, topics, partitions, ack, orderBuy);
     }
 
+    // ====== ORDER SELL SAGA EVENT LISTENER ======
     @KafkaListener(
-            topics = "${kafka.topics.account-events.order-buy}",
-            containerFactory = "orderBuyEventKafkaListenerContainerFactory",
-            groupId = "${spring.kafka.consumer.group-id}-order-buy-account"
+            topics = {
+                    "${kafka.topics.user-events.order-sell}",
+                    "${kafka.topics.account-events.order-sell}",
+                    "${kafka.topics.order-events.sell}",
+                    "${kafka.topics.market-events.sell}",
+                    "${kafka.topics.broker-events.sell}",
+                    "${kafka.topics.portfolio-events.order-sell}"
+            },
+            containerFactory = "orderSellEventKafkaListenerContainerFactory",
+            groupId = "${spring.kafka.consumer.group-id}-order-sell"
     )
-    public void consumeAccountOrderBuyEvents(@Payload EventMessage event, Acknowledgment ack) {
-        try {
-            log.debug("Received account order-buy event: {}", event.getType());
-            orderBuySagaService.handleEventMessage(event);
-            ack.acknowledge();
-        } catch (Exception e) {
-            log.error("Error processing account order-buy event: {}", e.getMessage(), e);
-            throw new RuntimeException("Event processing failed", e);
-        }
+    public void consumeOrderSellEvents(@Payload List<EventMessage> events,
+                                       @Header(KafkaHeaders.RECEIVED_TOPIC) List<String> topics,
+                                       @Header(KafkaHeaders.RECEIVED_PARTITION_ID) List<Integer> partitions,
+                                       Acknowledgment ack) {
+        log.debug("Received {} order-sell events", events.size());
+        dispatch(events, topics, partitions, ack, orderSell);
     }
 
+    // ====== RETRIES OF FAILED EVENTS ======
     @KafkaListener(
-            topics = "${kafka.topics.order-events}",
-            containerFactory = "orderBuyEventKafkaListenerContainerFactory",
-            groupId = "${spring.kafka.consumer.group-id}-order-buy-order"
+            topics = "${kafka.topics.saga-retry.deposit-withdrawal:saga.retry.deposit-withdrawal}",
+            containerFactory = "sagaRetryKafkaListenerContainerFactory",
+            groupId = "${spring.kafka.consumer.group-id}-deposit-withdrawal-retry"
     )
-    public void consumeOrderEvents(@Payload EventMessage event, Acknowledgment ack) {
-        try {
-            log.debug("Received order event: {}", event.getType());
-            orderBuySagaService.handleEventMessage(event);
-            ack.acknowledge();
-        } catch (Exception e) {
-            log.error("Error processing order event: {}", e.getMessage(), e);
-            throw new RuntimeException("Event processing failed", e);
-        }
+    public void retryDepositWithdrawalEvent(@Payload EventMessage event,
+                                            @Header(name = KafkaMessagePublisher.ORIGIN_PARTITION_HEADER, required = false) byte[] origin,
+                                            Acknowledgment ack) {
+        retry(event, origin, ack, depositWithdrawal);
     }
 
     @KafkaListener(
-            topics = "${kafka.topics.market-events}",
-            containerFactory = "orderBuyEventKafkaListenerContainerFactory",
-            groupId = "${spring.kafka.consumer.group-id}-order-buy-market"
+            topics = "${kafka.topics.saga-retry.order-buy:saga.retry.order-buy}",
+            containerFactory = "sagaRetryKafkaListenerContainerFactory",
+            groupId = "${spring.kafka.consumer.group-id}-order-buy-retry"
     )
-    public void consumeMarketEvents(@Payload EventMessage event, Acknowledgment ack) {
-        try {
-            log.debug("Received market event: {}", event.getType());
-            orderBuySagaService.handleEventMessage(event);
-            ack.acknowledge();
-        } catch (Exception e) {
-            log.error("Error processing market event: {}", e.getMessage(), e);
-            throw new RuntimeException("Event processing failed", e);
-        }
+    public void retryOrderBuyEvent(@Payload EventMessage event,
+                                   @Header(name = KafkaMessagePublisher.ORIGIN_PARTITION_HEADER, required = false) byte[] origin,
+                                   Acknowledgment ack) {
+        retry(event, origin, ack, orderBuy);
     }
 
     @KafkaListener(
-            topics = "${kafka.topics.broker-events}",
-            containerFactory = "orderBuyEventKafkaListenerContainerFactory",
-            groupId = "${spring.kafka.consumer.group-id}-order-buy-broker"
+            topics = "${kafka.topics.saga-retry.order-sell:saga.retry.order-sell}",
+            containerFactory = "sagaRetryKafkaListenerContainerFactory",
+            groupId = "${spring.kafka.consumer.group-id}-order-sell-retry"
     )
-    public void consumeBrokerEvents(@Payload EventMessage event, Acknowledgment ack) {
-        try {
-            log.debug("Received broker event: {}", event.getType());
-            orderBuySagaService.handleEventMessage(event);
-            ack.acknowledge();
-        } catch (Exception e) {
-            log.error("Error processing broker event: {}", e.getMessage(), e);
-            throw new RuntimeException("Event processing failed", e);
-        }
+    public void retryOrderSellEvent(@Payload EventMessage event,
+                                    @Header(name = KafkaMessagePublisher.ORIGIN_PARTITION_HEADER, required = false) byte[] origin,
+                                    Acknowledgment ack) {
+        retry(event, origin, ack, orderSell);
     }
 
+    // ====== GENERAL DLQ LISTENER ======
+
     @KafkaListener(
-            topics = "${kafka.topics.portfolio-events.order-buy}",
-            containerFactory = "orderBuyEventKafkaListenerContainerFactory",
-            groupId = "${spring.kafka.consumer.group-id}-order-buy-portfolio"
+            topics = "${kafka.topics.dlq}",
+            containerFactory = "eventKafkaListenerContainerFactory"
     )
-    public void consumePortfolioEvents(@Payload EventMessage event, Acknowledgment ack) {
+    public void consumeDlqMessages(@Payload List<Object> messagePayloads, Acknowledgment ack) {
         try {
-            log.debug("Received portfolio event: {}", event.getType());
-            orderBuySagaService.handleEventMessage(event);
+            messagePayloads.forEach(messagePayload -> log.warn("Received message in DLQ: {}", messagePayload));
             ack.acknowledge();
         } catch (Exception e) {
-            log.error("Error processing portfolio event: {}", e.getMessage(), e);
-            throw new RuntimeException("Event processing failed", e);
+            log.error("Error processing DLQ message: {}", e.getMessage(), e);
+            // Still acknowledge to prevent infinite loop in DLQ processing
+            ack.acknowledge();
         }
     }
 
-    // These methods should be added to the existing KafkaEventListener.java class
+    /**
+     * Handle a polled batch: load the referenced sagas up front, apply each saga's events in order on its lane
+     * with the saga type that owns it, then write the resulting states and processed markers in bulk
+     * before the batch offsets are committed
+     */
+    private void dispatch(List<EventMessage> events, List<String> topics, List<Integer> partitions,
+                          Acknowledgment ack, SagaFamily family) {
+        Map<String, List<EventMessage>> bySaga = new LinkedHashMap<>();
+        Map<SagaEventHandler, List<String>> toLoad = new HashMap<>();
+        Map<EventMessage, String> partitionOf = new IdentityHashMap<>();
+        for (int i = 0; i < events.size(); i++) {
+            EventMessage event = events.get(i);
+            if (event == null) {
+                // Undeserializable record, already reported by the deserializer
+                continue;
+            }
+            if (event.getSagaId() == null) {
+                log.warn("Skipping {} event {} without a sagaId: {}", family.name, event.getType(), event.getMessageId());
+                continue;
+            }
+            SagaEventHandler[] candidates = family.route(event.getType());
+            if (candidates.length == 0) {
+                log.debug("No {} saga handles event {} for saga {}", family.name, event.getType(), event.getSagaId());
+                continue;
+            }
+            List<EventMessage> sagaEvents = bySaga.computeIfAbsent(event.getSagaId(), sagaId -> new ArrayList<>());
+            if (sagaEvents.isEmpty()) {
+                for (SagaEventHandler candidate : candidates) {
+                    toLoad.computeIfAbsent(candidate, handler -> new ArrayList<>()).add(event.getSagaId());
+                }
+            }
+            sagaEvents.add(event);
+            partitionOf.put(event, topics.get(i) + "-" + partitions.get(i));
+        }
 
-// ====== ORDER SELL SAGA EVENT LISTENERS ======
+        toLoad.forEach(SagaEventHandler::preload);
 
-    @KafkaListener(
-            topics = "${kafka.topics.user-events.order-sell}",
-            containerFactory = "orderSellEventKafkaListenerContainerFactory",
-            groupId = "${spring.kafka.consumer.group-id}-order-sell-user"
-    )
-    public void consumeUserOrderSellEvents(@Payload EventMessage event, Acknowledgment ack) {
-        try {
-            log.debug("Received user order-sell event: {}", event.getType());
-            orderSellSagaService.handleEventMessage(event);
-            ack.acknowledge();
-            log.debug("Successfully processed and acknowledged user order-sell event: {}", event.getType());
-        } catch (Exception e) {
-            log.error("Error processing user order-sell event: {}", event.getType(), e);
-            throw new RuntimeException("Event processing failed", e);
+        List<CompletableFuture<Void>> results = new ArrayList<>(bySaga.size());
+        Queue<Future<?>> retrySends = new ConcurrentLinkedQueue<>();
+        bySaga.forEach((sagaId, sagaEvents) -> {
+            SagaEventHandler owner = family.ownerOf(sagaId, sagaEvents.get(0).getType());
+            if (owner == null) {
+                log.warn("Received {} events for unknown saga: {}", family.name, sagaId);
+                return;
+            }
+            results.add(sagaEventExecutor.submit(sagaId, () -> {
+                for (int i = 0; i < sagaEvents.size(); i++) {
+                    if (!handle(sagaEvents.get(i), partitionOf.get(sagaEvents.get(i)), family, owner)) {
+                        // The saga's later events follow the failed one, so the retry topic sees them in order
+                        for (EventMessage parked : sagaEvents.subList(i, sagaEvents.size())) {
+                            retrySends.add(kafkaMessagePublisher.sendEvent(parked, family.retryTopic,
+                                    partitionOf.get(parked)));
+                        }
+                        return;
+                    }
+                }
+            }));
+        });
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).join();
+
+        if (!sagaFlushService.flushAll()) {
+            // States stay buffered, the redelivered batch is skipped by the idempotency check
+            throw new IllegalStateException("Could not persist " + family.name + " batch of " + events.size() + " events");
         }
+        awaitRetrySends(retrySends, family);
+        int rejected = idempotencyService.takeFirstRejected(events);
+        if (rejected >= 0) {
+            // Offsets before it are committed, the events from there on replay against the reloaded sagas
+            throw new BatchListenerFailedException("Saga write of " + family.name + " event lost a version conflict",
+                    rejected);
+        }
+        ack.acknowledge();
     }
 
-    @KafkaListener(
-            topics = "${kafka.topics.account-events.order-sell}",
-            containerFactory = "orderSellEventKafkaListenerContainerFactory",
-            groupId = "${spring.kafka.consumer.group-id}-order-sell-account"
-    )
-    public void consumeAccountOrderSellEvents(@Payload EventMessage event, Acknowledgment ack) {
+    // Whether the event was handled; a failure is left to the caller to hand to the family's retry topic
+    private boolean handle(EventMessage event, String partition, SagaFamily family, SagaEventHandler handler) {
         try {
-            log.debug("Received account order-sell event: {}", event.getType());
-            orderSellSagaService.handleEventMessage(event);
-            ack.acknowledge();
+            idempotencyService.handle(event, partition, () -> handler.handleEventMessage(event));
+            sagaCriticalPathService.record(event);
+            return true;
         } catch (Exception e) {
-            log.error("Error processing account order-sell event: {}", e.getMessage(), e);
-            throw new RuntimeException("Event processing failed", e);
+            log.warn("Error processing {} event {} for saga {}, retrying it on {}: {}",
+                    family.name, event.getType(), event.getSagaId(), family.retryTopic, e.getMessage());
+            return false;
         }
     }
 
-    @KafkaListener(
-            topics = "${kafka.topics.order-events.sell}",
-            containerFactory = "orderSellEventKafkaListenerContainerFactory",
-            groupId = "${spring.kafka.consumer.group-id}-order-sell-order"
-    )
-    public void consumeOrderSellEvents(@Payload EventMessage event, Acknowledgment ack) {
-        try {
-            log.debug("Received order sell event: {}", event.getType());
-            orderSellSagaService.handleEventMessage(event);
-            ack.acknowledge();
-        } catch (Exception e) {
-            log.error("Error processing order sell event: {}", e.getMessage(), e);
-            throw new RuntimeException("Event processing failed", e);
+    // Events handed to the retry topic are only safe to acknowledge once the broker has them
+    private void awaitRetrySends(Collection<Future<?>> sends, SagaFamily family) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retrySendTimeoutMs);
+        for (Future<?> send : sends) {
+            try {
+                send.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted handing " + family.name + " events to " + family.retryTopic, e);
+            } catch (ExecutionException | TimeoutException e) {
+                // The failed events were not marked processed, the redelivered batch runs them again
+                throw new IllegalStateException("Could not hand " + family.name + " events to " + family.retryTopic, e);
+            }
         }
     }
 
-    @KafkaListener(
-            topics = "${kafka.topics.market-events.sell}",
-            containerFactory = "orderSellEventKafkaListenerContainerFactory",
-            groupId = "${spring.kafka.consumer.group-id}-order-sell-market"
-    )
-    public void consumeMarketSellEvents(@Payload EventMessage event, Acknowledgment ack) {
-        try {
-            log.debug("Received market sell event: {}", event.getType());
-            orderSellSagaService.handleEventMessage(event);
+    /**
+     * Handle a retried event on its saga's lane and write it before acknowledging. A failure is retried
+     * with backoff by the retry container's error handler, and sent to the DLQ once the attempts are used up.
+     * The event is recorded against the partition it was first consumed from, where a repeat would arrive.
+     */
+    private void retry(EventMessage event, byte[] origin, Acknowledgment ack, SagaFamily family) {
+        if (event == null || event.getSagaId() == null) {
+            log.warn("Dropping retried {} event without a sagaId", family.name);
             ack.acknowledge();
-        } catch (Exception e) {
-            log.error("Error processing market sell event: {}", e.getMessage(), e);
-            throw new RuntimeException("Event processing failed", e);
+            return;
         }
-    }
-
-    @KafkaListener(
-            topics = "${kafka.topics.broker-events.sell}",
-            containerFactory = "orderSellEventKafkaListenerContainerFactory",
-            groupId = "${spring.kafka.consumer.group-id}-order-sell-broker"
-    )
-    public void consumeBrokerSellEvents(@Payload EventMessage event, Acknowledgment ack) {
-        try {
-            log.debug("Received broker sell event: {}", event.getType());
-            orderSellSagaService.handleEventMessage(event);
+        String sagaId = event.getSagaId();
+        for (SagaEventHandler candidate : family.route(event.getType())) {
+            candidate.preload(Collections.singletonList(sagaId));
+        }
+        SagaEventHandler owner = family.ownerOf(sagaId, event.getType());
+        if (owner == null) {
+            log.warn("Received retried {} event for unknown saga: {}", family.name, sagaId);
             ack.acknowledge();
-        } catch (Exception e) {
-            log.error("Error processing broker sell event: {}", e.getMessage(), e);
-            throw new RuntimeException("Event processing failed", e);
+            return;
         }
-    }
 
-    @KafkaListener(
-            topics = "${kafka.topics.portfolio-events.order-sell}",
-            containerFactory = "orderSellEventKafkaListenerContainerFactory",
-            groupId = "${spring.kafka.consumer.group-id}-order-sell-portfolio"
-    )
-    public void consumePortfolioSellEvents(@Payload EventMessage event, Acknowledgment ack) {
-        try {
-            log.debug("Received portfolio sell event: {}", event.getType());
-            orderSellSagaService.handleEventMessage(event);
-            ack.acknowledge();
-        } catch (Exception e) {
-            log.error("Error processing portfolio sell event: {}", e.getMessage(), e);
-            throw new RuntimeException("Event processing failed", e);
+        String partition = origin != null ? new String(origin, StandardCharsets.UTF_8) : null;
+        sagaEventExecutor.call(sagaId, () -> {
+            idempotencyService.handle(event, partition, () -> owner.handleEventMessage(event));
+            return null;
+        });
+        if (!sagaFlushService.flushAll()) {
+            throw new IllegalStateException("Could not persist retried " + family.name + " event for saga " + sagaId);
         }
+        if (idempotencyService.takeFirstRejected(Collections.singletonList(event)) >= 0) {
+            throw new IllegalStateException("Saga write of retried " + family.name + " event lost a version conflict");
+        }
+        sagaCriticalPathService.record(event);
+        ack.acknowledge();
     }
 
+    /**
+     * Saga types consumed by one listener, with the types that react to each event type indexed on first sight
+     */
+    private static final class SagaFamily {
+        private static final SagaEventHandler[] NONE = new SagaEventHandler[0];
 
-    // ====== GENERAL DLQ LISTENER ======
+        private final String name;
+        private final String retryTopic;
+        private final SagaEventHandler[] handlers;
+        private final Map<String, SagaEventHandler[]> routes = new ConcurrentHashMap<>();
 
-    @KafkaListener(
-            topics = "${kafka.topics.dlq}",
-            containerFactory = "eventKafkaListenerContainerFactory"
-    )
-    public void consumeDlqMessages(@Payload Object messagePayload, Acknowledgment ack) {
-        try {
-            log.warn("Received message in DLQ: {}", messagePayload);
-            ack.acknowledge();
-        } catch (Exception e) {
-            log.error("Error processing DLQ message: {}", e.getMessage(), e);
-            // Still acknowledge to prevent infinite loop in DLQ processing
-            ack.acknowledge();
+        SagaFamily(String name, String retryTopic, SagaEventHandler... handlers) {
+            this.name = name;
+            this.retryTopic = retryTopic;
+            this.handlers = handlers;
+        }
+
+        SagaEventHandler[] route(String eventType) {
+            if (eventType == null) {
+                return NONE;
+            }
+            return routes.computeIfAbsent(eventType, type -> Arrays.stream(handlers)
+                    .filter(handler -> handler.handles(type))
+                    .toArray(SagaEventHandler[]::new));
+        }
+
+        // An event type only one saga type reacts to needs no lookup, a shared one goes to the type holding the saga
+        SagaEventHandler ownerOf(String sagaId, String eventType) {
+            SagaEventHandler[] candidates = route(eventType);
+            if (candidates.length == 1) {
+                return candidates[0];
+            }
+            for (SagaEventHandler candidate : candidates) {
+                if (candidate.owns(sagaId)) {
+                    return candidate;
+                }
+            }
+            return null;
         }
     }
 }
@@ -10,6 +10,8 @@ import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
+import org.springframework.data.annotation.Version;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
@@ -17,6 +19,7 @@ import java.math.BigDecimal;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -50,7 +53,13 @@ public class DepositSagaState {
     private DepositSagaStep currentStep;
     private SagaStatus status;
     private List<String> completedSteps;
-    private List<SagaEvent> sagaEvents;
+    // The audit trail lives in the saga event log, the document keeps only its size and newest entry
+    private int eventCount;
+    private SagaEvent lastEvent;
+
+    // Events added since the last save, handed to the event log when the saga is saved
+    @Transient
+    private List<SagaEvent> pendingEvents;
     private String failureReason;
     private Map<String, Object> stepData;
     
@@ -59,10 +68,18 @@ public class DepositSagaState {
     private Instant endTime;
     private Instant lastUpdatedTime;
     private Instant currentStepStartTime;
+
+    // When the current step times out, unset while the saga is not waiting on a step
+    private Instant nextDeadline;
+    private Integer timeoutShard;
     
     // Retry information
     private int retryCount;
     private int maxRetries;
+
+    // Optimistic concurrency, incremented on every persisted update
+    @Version
+    private Long version;
     
     /**
      * Initialize a new deposit saga
@@ -83,7 +100,6 @@ public class DepositSagaState {
                 .currentStep(DepositSagaStep.VERIFY_USER_IDENTITY)
                 .status(SagaStatus.STARTED)
                 .completedSteps(new ArrayList<>())
-                .sagaEvents(new ArrayList<>())
                 .stepData(new HashMap<>())
                 .startTime(Instant.now())
                 .lastUpdatedTime(Instant.now())
@@ -167,10 +183,29 @@ public class DepositSagaState {
      * Add an event to the saga history
      */
     public void addEvent(String type, String description) {
-        if (sagaEvents == null) {
-            sagaEvents = new ArrayList<>();
+        SagaEvent event = SagaEvent.of(type, description);
+        if (pendingEvents == null) {
+            pendingEvents = new ArrayList<>();
+        }
+        pendingEvents.add(event);
+        eventCount++;
+        lastEvent = event;
+    }
+
+    /**
+     * Hand over the events added since the last save, numbered in the order they were added
+     */
+    public List<SagaEventRecord> drainPendingEvents() {
+        if (pendingEvents == null || pendingEvents.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<SagaEventRecord> records = new ArrayList<>(pendingEvents.size());
+        long sequence = eventCount - pendingEvents.size();
+        for (SagaEvent event : pendingEvents) {
+            records.add(SagaEventRecord.of(sagaId, ++sequence, event));
         }
-        sagaEvents.add(SagaEvent.of(type, description));
+        pendingEvents = null;
+        return records;
     }
     
     /**
@@ -9,6 +9,8 @@ import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
+import org.springframework.data.annotation.Version;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
@@ -16,6 +18,7 @@ import java.math.BigDecimal;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -42,6 +45,7 @@ public class OrderBuySagaState {
     private String orderType; // MARKET, LIMIT, etc.
     private Integer quantity;
     private BigDecimal limitPrice; // null for market orders
+    private BigDecimal marketPrice; // Price provided by the market data service, market orders only
     private String timeInForce; // DAY, GTC, etc.
     private String orderId; // ID in OrderService
     private BigDecimal executionPrice; // Filled when executed
@@ -54,7 +58,15 @@ public class OrderBuySagaState {
     private OrderBuySagaStep currentStep;
     private SagaStatus status;
     private List<String> completedSteps;
-    private List<SagaEvent> sagaEvents;
+    // Members of the running parallel step group that have not replied yet, unset outside a group
+    private List<String> pendingGroupSteps;
+    // The audit trail lives in the saga event log, the document keeps only its size and newest entry
+    private int eventCount;
+    private SagaEvent lastEvent;
+
+    // Events added since the last save, handed to the event log when the saga is saved
+    @Transient
+    private List<SagaEvent> pendingEvents;
     private String failureReason;
     private Map<String, Object> stepData;
 
@@ -64,10 +76,18 @@ public class OrderBuySagaState {
     private Instant lastUpdatedTime;
     private Instant currentStepStartTime;
 
+    // When the current step times out, unset while the saga is not waiting on a step
+    private Instant nextDeadline;
+    private Integer timeoutShard;
+
     // Retry information
     private int retryCount;
     private int maxRetries;
 
+    // Optimistic concurrency, incremented on every persisted update
+    @Version
+    private Long version;
+
     /**
      * Initialize a new order buy saga
      */
@@ -89,7 +109,6 @@ public class OrderBuySagaState {
                 .currentStep(OrderBuySagaStep.CREATE_ORDER)
                 .status(SagaStatus.STARTED)
                 .completedSteps(new ArrayList<>())
-                .sagaEvents(new ArrayList<>())
                 .stepData(new HashMap<>())
                 .startTime(Instant.now())
                 .lastUpdatedTime(Instant.now())
@@ -103,8 +122,13 @@ public class OrderBuySagaState {
      * Move to the next step in the saga
      */
     public void moveToNextStep() {
-        // Add current step to completed steps
-        if (currentStep != null && !currentStep.isCompensationStep()) {
+        if (pendingGroupSteps != null) {
+            // Every member of the group has replied and was completed on its own, continue after the last one
+            List<OrderBuySagaStep> group = currentStep.getParallelGroup();
+            currentStep = group.get(group.size() - 1);
+            pendingGroupSteps = null;
+        } else if (currentStep != null && !currentStep.isCompensationStep()) {
+            // Add current step to completed steps
             completedSteps.add(currentStep.name());
         }
 
@@ -131,6 +155,7 @@ public class OrderBuySagaState {
     public void handleFailure(String reason, String stepName) {
         failureReason = reason;
         status = SagaStatus.FAILED;
+        pendingGroupSteps = null;
         addEvent("STEP_FAILED", "Step " + stepName + " failed: " + reason);
         lastUpdatedTime = Instant.now();
     }
@@ -141,6 +166,7 @@ public class OrderBuySagaState {
     public void startCompensation() {
         status = SagaStatus.COMPENSATING;
         addEvent("COMPENSATION_STARTED", "Starting compensation process");
+        pendingGroupSteps = null;
 
         // Check which steps have been completed to determine correct compensation chain
         boolean transactionSettled = completedSteps.contains(OrderBuySagaStep.SETTLE_TRANSACTION.name());
@@ -170,6 +196,7 @@ public class OrderBuySagaState {
     public void startCompensation(OrderBuySagaStep firstCompensationStep) {
         status = SagaStatus.COMPENSATING;
         addEvent("COMPENSATION_STARTED", "Starting compensation process");
+        pendingGroupSteps = null;
 
         currentStep = firstCompensationStep;
         currentStepStartTime = Instant.now();
@@ -193,10 +220,29 @@ public class OrderBuySagaState {
      * Add an event to the saga history
      */
     public void addEvent(String type, String description) {
-        if (sagaEvents == null) {
-            sagaEvents = new ArrayList<>();
+        SagaEvent event = SagaEvent.of(type, description);
+        if (pendingEvents == null) {
+            pendingEvents = new ArrayList<>();
+        }
+        pendingEvents.add(event);
+        eventCount++;
+        lastEvent = event;
+    }
+
+    /**
+     * Hand over the events added since the last save, numbered in the order they were added
+     */
+    public List<SagaEventRecord> drainPendingEvents() {
+        if (pendingEvents == null || pendingEvents.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<SagaEventRecord> records = new ArrayList<>(pendingEvents.size());
+        long sequence = eventCount - pendingEvents.size();
+        for (SagaEvent event : pendingEvents) {
+            records.add(SagaEventRecord.of(sagaId, ++sequence, event));
         }
-        sagaEvents.add(SagaEvent.of(type, description));
+        pendingEvents = null;
+        return records;
     }
 
     /**
@@ -252,7 +298,59 @@ public class OrderBuySagaState {
      * Create command based on current step
      */
     public CommandMessage createCommandForCurrentStep() {
-        CommandType commandType = currentStep.getCommandType();
+        return createCommandForStep(currentStep);
+    }
+
+    /**
+     * Create the commands to send for the current step.
+     * Entering a parallel group sends a command for every member at once, a retry resends
+     * only the members that have not replied yet.
+     */
+    public List<CommandMessage> createCommandsForCurrentStep() {
+        List<OrderBuySagaStep> group = currentStep.getParallelGroup();
+        if (group.isEmpty()) {
+            CommandMessage command = createCommandForCurrentStep();
+            return command != null ? Collections.singletonList(command) : Collections.emptyList();
+        }
+
+        if (pendingGroupSteps == null) {
+            pendingGroupSteps = new ArrayList<>();
+            for (OrderBuySagaStep step : group) {
+                if (!isSkipped(step)) {
+                    pendingGroupSteps.add(step.name());
+                }
+            }
+            addEvent("PARALLEL_STEPS_STARTED", "Sending steps together: " + pendingGroupSteps);
+        }
+
+        List<CommandMessage> commands = new ArrayList<>(pendingGroupSteps.size());
+        for (String stepName : pendingGroupSteps) {
+            commands.add(createCommandForStep(OrderBuySagaStep.valueOf(stepName)));
+        }
+        return commands;
+    }
+
+    /**
+     * Check if a member of the running parallel group has not replied yet
+     */
+    public boolean isPendingGroupStep(OrderBuySagaStep step) {
+        return pendingGroupSteps != null && pendingGroupSteps.contains(step.name());
+    }
+
+    /**
+     * Record the successful reply of a parallel group member, returns true once every member has replied
+     */
+    public boolean completeGroupStep(OrderBuySagaStep step) {
+        if (pendingGroupSteps.remove(step.name())) {
+            completedSteps.add(step.name());
+            addEvent("STEP_COMPLETED", step.getDescription() + " completed");
+        }
+        lastUpdatedTime = Instant.now();
+        return pendingGroupSteps.isEmpty();
+    }
+
+    private CommandMessage createCommandForStep(OrderBuySagaStep step) {
+        CommandType commandType = step.getCommandType();
         if (commandType == null) {
             return null;
         }
@@ -260,11 +358,11 @@ public class OrderBuySagaState {
         CommandMessage command = new CommandMessage();
         command.setMessageId(null); // Will be auto-generated
         command.setSagaId(sagaId);
-        command.setStepId(currentStep.getStepNumber());
+        command.setStepId(step.getStepNumber());
         command.setType(commandType.name());
         command.setSourceService("SAGA_ORCHESTRATOR");
         command.setTargetService(commandType.getTargetService());
-        command.setIsCompensation(currentStep.isCompensationStep());
+        command.setIsCompensation(step.isCompensationStep());
         command.setTimestamp(Instant.now());
 
         // Add payload based on command type
@@ -411,12 +509,18 @@ public class OrderBuySagaState {
      * Determine the next step based on order type and current step
      */
     public OrderBuySagaStep determineNextStep() {
-        // For LIMIT orders, skip GET_MARKET_PRICE step after stock validation
-        if (currentStep == OrderBuySagaStep.VALIDATE_STOCK && "LIMIT".equals(orderType)) {
-            return OrderBuySagaStep.CALCULATE_REQUIRED_FUNDS;
+        OrderBuySagaStep nextStep = currentStep.getNextStep();
+        while (nextStep != null && isSkipped(nextStep)) {
+            nextStep = nextStep.getNextStep();
         }
+        return nextStep;
+    }
 
-        // Otherwise, follow the normal flow
-        return currentStep.getNextStep();
+    /**
+     * Check if a step does not apply to this order
+     */
+    private boolean isSkipped(OrderBuySagaStep step) {
+        // LIMIT orders are calculated from the limit price, no market price is needed
+        return step == OrderBuySagaStep.GET_MARKET_PRICE && "LIMIT".equals(orderType);
     }
 }
\ No newline at end of file
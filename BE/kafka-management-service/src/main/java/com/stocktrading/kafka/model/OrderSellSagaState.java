@@ -9,6 +9,8 @@ import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
+import org.springframework.data.annotation.Version;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
@@ -16,6 +18,7 @@ import java.math.BigDecimal;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -56,7 +59,15 @@ public class OrderSellSagaState {
     private OrderSellSagaStep currentStep;
     private SagaStatus status;
     private List<String> completedSteps;
-    private List<SagaEvent> sagaEvents;
+    // Members of the running parallel step group that have not replied yet, unset outside a group
+    private List<String> pendingGroupSteps;
+    // The audit trail lives in the saga event log, the document keeps only its size and newest entry
+    private int eventCount;
+    private SagaEvent lastEvent;
+
+    // Events added since the last save, handed to the event log when the saga is saved
+    @Transient
+    private List<SagaEvent> pendingEvents;
     private String failureReason;
     private Map<String, Object> stepData;
 
@@ -66,10 +77,18 @@ public class OrderSellSagaState {
     private Instant lastUpdatedTime;
     private Instant currentStepStartTime;
 
+    // When the current step times out, unset while the saga is not waiting on a step
+    private Instant nextDeadline;
+    private Integer timeoutShard;
+
     // Retry information
     private int retryCount;
     private int maxRetries;
 
+    // Optimistic concurrency, incremented on every persisted update
+    @Version
+    private Long version;
+
     /**
      * Initialize a new order sell saga
      * This method remains unchanged but will always be called with hardcoded default values
@@ -93,7 +112,6 @@ public class OrderSellSagaState {
                 .currentStep(OrderSellSagaStep.CREATE_ORDER)
                 .status(SagaStatus.STARTED)
                 .completedSteps(new ArrayList<>())
-                .sagaEvents(new ArrayList<>())
                 .stepData(new HashMap<>())
                 .startTime(Instant.now())
                 .lastUpdatedTime(Instant.now())
@@ -109,8 +127,13 @@ public class OrderSellSagaState {
      * Move to the next step in the saga
      */
     public void moveToNextStep() {
-        // Add current step to completed steps
-        if (currentStep != null && !currentStep.isCompensationStep()) {
+        if (pendingGroupSteps != null) {
+            // Every member of the group has replied and was completed on its own, continue after the last one
+            List<OrderSellSagaStep> group = currentStep.getParallelGroup();
+            currentStep = group.get(group.size() - 1);
+            pendingGroupSteps = null;
+        } else if (currentStep != null && !currentStep.isCompensationStep()) {
+            // Add current step to completed steps
             completedSteps.add(currentStep.name());
         }
 
@@ -137,6 +160,7 @@ public class OrderSellSagaState {
     public void handleFailure(String reason, String stepName) {
         failureReason = reason;
         status = SagaStatus.FAILED;
+        pendingGroupSteps = null;
         addEvent("STEP_FAILED", "Step " + stepName + " failed: " + reason);
         lastUpdatedTime = Instant.now();
     }
@@ -147,6 +171,7 @@ public class OrderSellSagaState {
     public void startCompensation() {
         status = SagaStatus.COMPENSATING;
         addEvent("COMPENSATION_STARTED", "Starting compensation process");
+        pendingGroupSteps = null;
 
         // Check which steps have been completed to determine correct compensation chain
         boolean portfolioUpdated = completedSteps.contains(OrderSellSagaStep.UPDATE_PORTFOLIO.name());
@@ -176,6 +201,7 @@ public class OrderSellSagaState {
     public void startCompensation(OrderSellSagaStep firstCompensationStep) {
         status = SagaStatus.COMPENSATING;
         addEvent("COMPENSATION_STARTED", "Starting compensation process");
+        pendingGroupSteps = null;
 
         currentStep = firstCompensationStep;
         currentStepStartTime = Instant.now();
@@ -199,10 +225,29 @@ public class OrderSellSagaState {
      * Add an event to the saga history
      */
     public void addEvent(String type, String description) {
-        if (sagaEvents == null) {
-            sagaEvents = new ArrayList<>();
+        SagaEvent event = SagaEvent.of(type, description);
+        if (pendingEvents == null) {
+            pendingEvents = new ArrayList<>();
+        }
+        pendingEvents.add(event);
+        eventCount++;
+        lastEvent = event;
+    }
+
+    /**
+     * Hand over the events added since the last save, numbered in the order they were added
+     */
+    public List<SagaEventRecord> drainPendingEvents() {
+        if (pendingEvents == null || pendingEvents.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<SagaEventRecord> records = new ArrayList<>(pendingEvents.size());
+        long sequence = eventCount - pendingEvents.size();
+        for (SagaEvent event : pendingEvents) {
+            records.add(SagaEventRecord.of(sagaId, ++sequence, event));
         }
-        sagaEvents.add(SagaEvent.of(type, description));
+        pendingEvents = null;
+        return records;
     }
 
     /**
@@ -255,7 +300,57 @@ public class OrderSellSagaState {
      * Create command based on current step
      */
     public CommandMessage createCommandForCurrentStep() {
-        CommandType commandType = currentStep.getCommandType();
+        return createCommandForStep(currentStep);
+    }
+
+    /**
+     * Create the commands to send for the current step.
+     * Entering a parallel group sends a command for every member at once, a retry resends
+     * only the members that have not replied yet.
+     */
+    public List<CommandMessage> createCommandsForCurrentStep() {
+        List<OrderSellSagaStep> group = currentStep.getParallelGroup();
+        if (group.isEmpty()) {
+            CommandMessage command = createCommandForCurrentStep();
+            return command != null ? Collections.singletonList(command) : Collections.emptyList();
+        }
+
+        if (pendingGroupSteps == null) {
+            pendingGroupSteps = new ArrayList<>();
+            for (OrderSellSagaStep step : group) {
+                pendingGroupSteps.add(step.name());
+            }
+            addEvent("PARALLEL_STEPS_STARTED", "Sending steps together: " + pendingGroupSteps);
+        }
+
+        List<CommandMessage> commands = new ArrayList<>(pendingGroupSteps.size());
+        for (String stepName : pendingGroupSteps) {
+            commands.add(createCommandForStep(OrderSellSagaStep.valueOf(stepName)));
+        }
+        return commands;
+    }
+
+    /**
+     * Check if a member of the running parallel group has not replied yet
+     */
+    public boolean isPendingGroupStep(OrderSellSagaStep step) {
+        return pendingGroupSteps != null && pendingGroupSteps.contains(step.name());
+    }
+
+    /**
+     * Record the successful reply of a parallel group member, returns true once every member has replied
+     */
+    public boolean completeGroupStep(OrderSellSagaStep step) {
+        if (pendingGroupSteps.remove(step.name())) {
+            completedSteps.add(step.name());
+            addEvent("STEP_COMPLETED", step.getDescription() + " completed");
+        }
+        lastUpdatedTime = Instant.now();
+        return pendingGroupSteps.isEmpty();
+    }
+
+    private CommandMessage createCommandForStep(OrderSellSagaStep step) {
+        CommandType commandType = step.getCommandType();
         if (commandType == null) {
             return null;
         }
@@ -263,11 +358,11 @@ public class OrderSellSagaState {
         CommandMessage command = new CommandMessage();
         command.setMessageId(null); // Will be auto-generated
         command.setSagaId(sagaId);
-        command.setStepId(currentStep.getStepNumber());
+        command.setStepId(step.getStepNumber());
         command.setType(commandType.name());
         command.setSourceService("SAGA_ORCHESTRATOR");
         command.setTargetService(commandType.getTargetService());
-        command.setIsCompensation(currentStep.isCompensationStep());
+        command.setIsCompensation(step.isCompensationStep());
         command.setTimestamp(Instant.now());
 
         // Add payload based on command type
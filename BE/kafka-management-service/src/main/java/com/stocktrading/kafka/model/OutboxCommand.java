@@ -0,0 +1,47 @@
+package com.stocktrading.kafka.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.bson.Document;
+
+import java.time.Instant;
+import java.util.Date;
+
+/**
+ * A command waiting to be published, stored in the outbox array of its saga document
+ * so it is written atomically with the state change that produced it
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class OutboxCommand {
+    public static final String FIELD = "outbox";
+
+    private String messageId;
+    private String sagaId;
+    private String topic;
+    // The command as JSON, published as is
+    private String message;
+    private Instant createdAt;
+
+    public Document toDocument() {
+        return new Document("messageId", messageId)
+                .append("sagaId", sagaId)
+                .append("topic", topic)
+                .append("message", message)
+                .append("createdAt", Date.from(createdAt));
+    }
+
+    public static OutboxCommand fromDocument(Document document) {
+        return OutboxCommand.builder()
+                .messageId(document.getString("messageId"))
+                .sagaId(document.getString("sagaId"))
+                .topic(document.getString("topic"))
+                .message(document.getString("message"))
+                .createdAt(document.getDate("createdAt").toInstant())
+                .build();
+    }
+}
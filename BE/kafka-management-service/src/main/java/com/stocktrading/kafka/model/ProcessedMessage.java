@@ -20,7 +20,6 @@ public class ProcessedMessage {
     @Id
     private String id; // This will be stored as MongoDB's _id field
 
-    @Indexed
     private String messageId; // Separate field for messageId
 
     @Indexed
@@ -31,6 +30,9 @@ public class ProcessedMessage {
     private Instant processedAt;
     private Map<String, Object> result;
 
+    // Topic-partition the message was consumed from, so a new owner of the partition can load its markers
+    private String partition;
+
     public static ProcessedMessage create(String messageId, String sagaId, Integer stepId,
                                           String messageType, Map<String, Object> result) {
         return ProcessedMessage.builder()
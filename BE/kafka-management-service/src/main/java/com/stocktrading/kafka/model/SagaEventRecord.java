@@ -0,0 +1,46 @@
+package com.stocktrading.kafka.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * Entry of the append-only saga event log, numbered per saga from 1
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "saga_event_log")
+public class SagaEventRecord {
+    // sagaId and sequence, so a retried insert cannot duplicate an entry
+    @Id
+    private String id;
+
+    private String sagaId;
+    private String sagaType;
+    private long sequence;
+    private String type;
+    private String description;
+    private Instant timestamp;
+
+    public static SagaEventRecord of(String sagaId, long sequence, SagaEvent event) {
+        return SagaEventRecord.builder()
+                .id(sagaId + ":" + sequence)
+                .sagaId(sagaId)
+                .sequence(sequence)
+                .type(event.getType())
+                .description(event.getDescription())
+                .timestamp(event.getTimestamp())
+                .build();
+    }
+
+    public SagaEvent toSagaEvent() {
+        return new SagaEvent(type, description, timestamp);
+    }
+}
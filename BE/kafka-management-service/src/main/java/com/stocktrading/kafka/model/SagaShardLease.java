@@ -0,0 +1,29 @@
+package com.stocktrading.kafka.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * Lease of one timeout shard, held by the orchestrator instance that runs the shard's scheduled work.
+ * The token grows by one every time the lease changes hands, so a previous holder can no longer renew
+ * or release it once it has been taken over.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "saga_shard_leases")
+public class SagaShardLease {
+    @Id
+    private Integer shard;
+
+    private String owner;
+    private long token;
+    private Instant expiresAt;
+}
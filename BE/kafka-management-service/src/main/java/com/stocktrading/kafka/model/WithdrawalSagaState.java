@@ -7,12 +7,15 @@ import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
+import org.springframework.data.annotation.Version;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.math.BigDecimal;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -41,7 +44,13 @@ public class WithdrawalSagaState {
     private WithdrawalSagaStep currentStep;
     private SagaStatus status;
     private List<String> completedSteps;
-    private List<SagaEvent> sagaEvents;
+    // The audit trail lives in the saga event log, the document keeps only its size and newest entry
+    private int eventCount;
+    private SagaEvent lastEvent;
+
+    // Events added since the last save, handed to the event log when the saga is saved
+    @Transient
+    private List<SagaEvent> pendingEvents;
     private String failureReason;
     private Map<String, Object> stepData;
 
@@ -51,10 +60,18 @@ public class WithdrawalSagaState {
     private Instant lastUpdatedTime;
     private Instant currentStepStartTime;
 
+    // When the current step times out, unset while the saga is not waiting on a step
+    private Instant nextDeadline;
+    private Integer timeoutShard;
+
     // Retry information
     private int retryCount;
     private int maxRetries;
 
+    // Optimistic concurrency, incremented on every persisted update
+    @Version
+    private Long version;
+
     public static WithdrawalSagaState initiate(String sagaId, String userId, String accountId,
                                             BigDecimal amount, String currency,
                                             String paymentMethodId, int maxRetries,
@@ -64,6 +81,7 @@ public class WithdrawalSagaState {
         initialPayload.put("description", description);
 
         return WithdrawalSagaState.builder()
+                .id(sagaId)       // Set the MongoDB _id field
                 .sagaId(sagaId)   // Set the business sagaId field
                 .userId(userId)
                 .accountId(accountId)
@@ -73,7 +91,6 @@ public class WithdrawalSagaState {
                 .currentStep(WithdrawalSagaStep.START)
                 .status(SagaStatus.STARTED)
                 .completedSteps(new ArrayList<>())
-                .sagaEvents(new ArrayList<>())
                 .stepData(initialPayload)
                 .startTime(Instant.now())
                 .lastUpdatedTime(Instant.now())
@@ -82,4 +99,33 @@ public class WithdrawalSagaState {
                 .maxRetries(maxRetries)
                 .build();
     }
+
+    /**
+     * Add an event to the saga history
+     */
+    public void addEvent(String type, String description) {
+        SagaEvent event = SagaEvent.of(type, description);
+        if (pendingEvents == null) {
+            pendingEvents = new ArrayList<>();
+        }
+        pendingEvents.add(event);
+        eventCount++;
+        lastEvent = event;
+    }
+
+    /**
+     * Hand over the events added since the last save, numbered in the order they were added
+     */
+    public List<SagaEventRecord> drainPendingEvents() {
+        if (pendingEvents == null || pendingEvents.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<SagaEventRecord> records = new ArrayList<>(pendingEvents.size());
+        long sequence = eventCount - pendingEvents.size();
+        for (SagaEvent event : pendingEvents) {
+            records.add(SagaEventRecord.of(sagaId, ++sequence, event));
+        }
+        pendingEvents = null;
+        return records;
+    }
 }
@@ -3,6 +3,9 @@ package com.stocktrading.kafka.model.enums;
 import com.project.kafkamessagemodels.model.enums.CommandType;
 import lombok.Getter;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Enum defining all steps in the order buy saga
  */
@@ -31,6 +34,13 @@ public enum OrderBuySagaStep {
     REMOVE_POSITIONS(104, "Remove positions from portfolio", CommandType.PORTFOLIO_REMOVE_POSITIONS),
     REVERSE_SETTLEMENT(105, "Reverse settlement", CommandType.ACCOUNT_REVERSE_SETTLEMENT);
 
+    // Validation steps depend only on the order request, so their commands are sent together
+    private static final List<OrderBuySagaStep> VALIDATION_GROUP = List.of(
+            VERIFY_TRADING_PERMISSION,
+            VERIFY_ACCOUNT_STATUS,
+            VALIDATE_STOCK,
+            GET_MARKET_PRICE);
+
     private final int stepNumber;
     private final String description;
     private final CommandType commandType;
@@ -77,6 +87,22 @@ public enum OrderBuySagaStep {
         }
     }
 
+    /**
+     * Get the parallel group this step belongs to, empty if the step runs on its own.
+     * A group is entered at its first step and left for the step following its last one.
+     */
+    public List<OrderBuySagaStep> getParallelGroup() {
+        switch (this) {
+            case VERIFY_TRADING_PERMISSION:
+            case VERIFY_ACCOUNT_STATUS:
+            case VALIDATE_STOCK:
+            case GET_MARKET_PRICE:
+                return VALIDATION_GROUP;
+            default:
+                return Collections.emptyList();
+        }
+    }
+
     /**
      * Get next step in compensation flow
      * Modified to ensure CANCEL_BROKER_ORDER comes before RELEASE_FUNDS
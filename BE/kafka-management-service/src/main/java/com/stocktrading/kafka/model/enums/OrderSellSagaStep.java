@@ -2,6 +2,9 @@ package com.stocktrading.kafka.model.enums;
 
 import com.project.kafkamessagemodels.model.enums.CommandType;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Enum defining all steps in the order sell saga
  */
@@ -30,6 +33,14 @@ public enum OrderSellSagaStep {
     REVERSE_FUNDS_CREDIT(104, "Reverse funds credit", CommandType.ACCOUNT_REVERSE_SETTLEMENT),
     RESTORE_PORTFOLIO(105, "Restore shares to portfolio", CommandType.PORTFOLIO_RESTORE_POSITIONS);
 
+    // Validation steps depend only on the order request, so their commands are sent together
+    private static final List<OrderSellSagaStep> VALIDATION_GROUP = List.of(
+            VERIFY_TRADING_PERMISSION,
+            VERIFY_ACCOUNT_STATUS,
+            VALIDATE_STOCK,
+            VERIFY_SUFFICIENT_SHARES,
+            GET_MARKET_PRICE);
+
     private final int stepNumber;
     private final String description;
     private final CommandType commandType;
@@ -90,6 +101,23 @@ public enum OrderSellSagaStep {
         }
     }
 
+    /**
+     * Get the parallel group this step belongs to, empty if the step runs on its own.
+     * A group is entered at its first step and left for the step following its last one.
+     */
+    public List<OrderSellSagaStep> getParallelGroup() {
+        switch (this) {
+            case VERIFY_TRADING_PERMISSION:
+            case VERIFY_ACCOUNT_STATUS:
+            case VALIDATE_STOCK:
+            case VERIFY_SUFFICIENT_SHARES:
+            case GET_MARKET_PRICE:
+                return VALIDATION_GROUP;
+            default:
+                return Collections.emptyList();
+        }
+    }
+
     /**
      * Get next step in compensation flow
      */
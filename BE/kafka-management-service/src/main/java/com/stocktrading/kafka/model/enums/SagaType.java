@@ -0,0 +1,21 @@
+package com.stocktrading.kafka.model.enums;
+
+import lombok.Getter;
+
+/**
+ * Enum defining the saga types run by the orchestrator
+ */
+@Getter
+public enum SagaType {
+    DEPOSIT("deposit"),
+    WITHDRAWAL("withdrawal"),
+    ORDER_BUY("order-buy"),
+    ORDER_SELL("order-sell");
+
+    // Used in metric tags and logs
+    private final String key;
+
+    SagaType(String key) {
+        this.key = key;
+    }
+}
@@ -38,12 +38,6 @@ public interface DepositSagaRepository extends MongoRepository<DepositSagaState,
      */
     @Query("{ 'status' : { $in : ?0 }, 'lastUpdatedTime' : { $lt : ?1 } }")
     List<DepositSagaState> findStaleSagas(List<SagaStatus> statuses, Instant cutoffTime);
-    
-    /**
-     * Find sagas for timeout detection
-     */
-    @Query("{ 'status' : { $in : ?0 }, 'currentStepStartTime' : { $lt : ?1 } }")
-    List<DepositSagaState> findPotentiallyTimedOutSagas(List<SagaStatus> statuses, Instant cutoffTime);
 
     Optional<DepositSagaState> getDepositSagaStateBySagaId(String sagaId);
 }
@@ -37,10 +37,4 @@ public interface OrderBuySagaRepository extends MongoRepository<OrderBuySagaStat
      */
     @Query("{ 'status' : { $in : ?0 }, 'lastUpdatedTime' : { $lt : ?1 } }")
     List<OrderBuySagaState> findStaleSagas(List<SagaStatus> statuses, Instant cutoffTime);
-
-    /**
-     * Find sagas for timeout detection
-     */
-    @Query("{ 'status' : { $in : ?0 }, 'currentStepStartTime' : { $lt : ?1 } }")
-    List<OrderBuySagaState> findPotentiallyTimedOutSagas(List<SagaStatus> statuses, Instant cutoffTime);
 }
\ No newline at end of file
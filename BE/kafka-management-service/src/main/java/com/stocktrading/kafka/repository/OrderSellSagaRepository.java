@@ -37,10 +37,4 @@ public interface OrderSellSagaRepository extends MongoRepository<OrderSellSagaSt
      */
     @Query("{ 'status' : { $in : ?0 }, 'lastUpdatedTime' : { $lt : ?1 } }")
     List<OrderSellSagaState> findStaleSagas(List<SagaStatus> statuses, Instant cutoffTime);
-
-    /**
-     * Find sagas for timeout detection
-     */
-    @Query("{ 'status' : { $in : ?0 }, 'currentStepStartTime' : { $lt : ?1 } }")
-    List<OrderSellSagaState> findPotentiallyTimedOutSagas(List<SagaStatus> statuses, Instant cutoffTime);
 }
\ No newline at end of file
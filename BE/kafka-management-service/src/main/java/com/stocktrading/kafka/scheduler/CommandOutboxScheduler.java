@@ -0,0 +1,30 @@
+package com.stocktrading.kafka.scheduler;
+
+import com.stocktrading.kafka.service.CommandOutboxRelay;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Scheduler for recovering saga commands that were stored but never published
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class CommandOutboxScheduler {
+
+    private final CommandOutboxRelay commandOutboxRelay;
+
+    /**
+     * Re-queue outbox commands older than the stale threshold, e.g. left behind by a crash
+     */
+    @Scheduled(fixedDelayString = "${saga.outbox.scan-interval-ms:30000}", initialDelayString = "${saga.outbox.scan-initial-delay-ms:5000}")
+    public void recoverStaleCommands() {
+        try {
+            commandOutboxRelay.recoverStaleCommands();
+        } catch (Exception e) {
+            log.error("Error during outbox recovery scan", e);
+        }
+    }
+}
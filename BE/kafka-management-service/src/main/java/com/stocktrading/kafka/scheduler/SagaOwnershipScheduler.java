@@ -0,0 +1,30 @@
+package com.stocktrading.kafka.scheduler;
+
+import com.stocktrading.kafka.service.SagaOwnershipService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Scheduler for keeping this instance's timeout shard leases
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class SagaOwnershipScheduler {
+
+    private final SagaOwnershipService sagaOwnershipService;
+
+    /**
+     * Renew the held leases well within the lease period and rebalance the shards
+     */
+    @Scheduled(fixedDelayString = "${saga.ownership.renew-interval-ms:5000}")
+    public void renewLeases() {
+        try {
+            sagaOwnershipService.renewLeases();
+        } catch (Exception e) {
+            log.error("Error renewing timeout shard leases", e);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.stocktrading.kafka.scheduler;
+
+import com.stocktrading.kafka.service.SagaFlushService;
+import com.stocktrading.kafka.service.SagaOwnershipService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+
+/**
+ * Flushes the saga state caches, the saga event log and the processed message records to Mongo
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class SagaStateFlushScheduler {
+
+    private final SagaFlushService sagaFlushService;
+    private final SagaOwnershipService sagaOwnershipService;
+
+    /**
+     * Write the pending saga states in bulk every flush interval
+     */
+    @Scheduled(fixedDelayString = "${saga.cache.flush-interval-ms:100}")
+    public void flush() {
+        sagaFlushService.flushAll();
+    }
+
+    /**
+     * Persist whatever is still pending before shutdown, then hand the timeout shards to the other instances
+     */
+    @PreDestroy
+    public void flushOnShutdown() {
+        log.info("Flushing saga state caches before shutdown");
+        flush();
+        sagaOwnershipService.releaseAll();
+    }
+}
@@ -1,7 +1,6 @@
 package com.stocktrading.kafka.scheduler;
 
-import com.stocktrading.kafka.service.DepositSagaService;
-import com.stocktrading.kafka.service.WithdrawalSagaService;
+import com.stocktrading.kafka.service.SagaTimeoutService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.scheduling.annotation.EnableScheduling;
@@ -17,18 +16,17 @@ import org.springframework.stereotype.Component;
 @RequiredArgsConstructor
 public class SagaTimeoutScheduler {
     
-    private final DepositSagaService depositSagaService;
-    private final WithdrawalSagaService withdrawalSagaService;
+    private final SagaTimeoutService sagaTimeoutService;
     
     /**
-     * Check for timed-out sagas every 30 seconds
+     * Check every saga type for expired step deadlines
      */
-    @Scheduled(fixedRate = 30000)
+    @Scheduled(fixedDelayString = "${saga.timeout.scan-interval-ms:1000}")
     public void checkForTimeouts() {
         log.debug("Running scheduled timeout check");
         
         try {
-            depositSagaService.checkForTimeouts();
+            sagaTimeoutService.checkForTimeouts();
         } catch (Exception e) {
             log.error("Error during scheduled timeout check", e);
         }
@@ -0,0 +1,305 @@
+package com.stocktrading.kafka.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.project.kafkamessagemodels.model.CommandMessage;
+import com.stocktrading.kafka.model.OutboxCommand;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.BasicUpdate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Publishes the commands stored in saga outboxes.
+ * Commands reach the relay right after the saga write that stored them succeeds; the relay sends them in
+ * batches, waits for the broker acknowledgements and then pulls them from the outbox. A periodic scan picks up
+ * commands left in outboxes by a crash, so every command is published at least once. A repeat keeps its
+ * messageId: the account, portfolio and payment services skip commands they already took on
+ * (ProcessedCommandStore), the other participants answer a repeat again.
+ */
+@Slf4j
+@Service
+public class CommandOutboxRelay {
+
+    private final MongoTemplate mongoTemplate;
+    private final KafkaMessagePublisher messagePublisher;
+    private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
+    private final SagaOwnershipService sagaOwnershipService;
+
+    @Value("${saga.outbox.batch-size:500}")
+    private int batchSize;
+
+    @Value("${saga.outbox.send-timeout-ms:10000}")
+    private long sendTimeoutMs;
+
+    @Value("${saga.outbox.retry-backoff-ms:1000}")
+    private long retryBackoffMs;
+
+    // Commands older than this that are still in an outbox were lost by a previous run
+    @Value("${saga.outbox.stale-after-ms:10000}")
+    private long staleAfterMs;
+
+    @Value("${saga.outbox.scan-limit:5000}")
+    private int scanLimit;
+
+    private final BlockingDeque<PendingCommand> queue = new LinkedBlockingDeque<>();
+    // Commands queued or being sent, skipped by the recovery scan
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    // Saga collections that carry an outbox
+    private final Set<String> collections = ConcurrentHashMap.newKeySet();
+    private final Set<String> indexedCollections = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean running = true;
+    private Thread relayThread;
+
+    private Counter published;
+    private Counter failures;
+    private Counter recovered;
+    private Timer lag;
+    private DistributionSummary batchSizes;
+
+    private static class PendingCommand {
+        final String collection;
+        final Object documentId;
+        final OutboxCommand command;
+
+        PendingCommand(String collection, Object documentId, OutboxCommand command) {
+            this.collection = collection;
+            this.documentId = documentId;
+            this.command = command;
+        }
+    }
+
+    public CommandOutboxRelay(MongoTemplate mongoTemplate, KafkaMessagePublisher messagePublisher,
+                              ObjectMapper objectMapper, MeterRegistry meterRegistry,
+                              SagaOwnershipService sagaOwnershipService) {
+        this.mongoTemplate = mongoTemplate;
+        this.messagePublisher = messagePublisher;
+        this.objectMapper = objectMapper;
+        this.meterRegistry = meterRegistry;
+        this.sagaOwnershipService = sagaOwnershipService;
+    }
+
+    @PostConstruct
+    public void init() {
+        published = meterRegistry.counter("saga.outbox.published");
+        failures = meterRegistry.counter("saga.outbox.failures");
+        recovered = meterRegistry.counter("saga.outbox.recovered");
+        // Time from the command being stored to the broker acknowledging it
+        lag = Timer.builder("saga.outbox.lag").publishPercentiles(0.5, 0.99).register(meterRegistry);
+        batchSizes = DistributionSummary.builder("saga.outbox.batch.size").register(meterRegistry);
+        meterRegistry.gaugeCollectionSize("saga.outbox.pending", Collections.emptyList(), queue);
+
+        relayThread = new Thread(this::relay, "outbox-relay");
+        relayThread.setDaemon(true);
+        relayThread.start();
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        running = false;
+        relayThread.join(sendTimeoutMs);
+        if (relayThread.isAlive()) {
+            log.warn("Outbox relay stopped with {} commands unsent, they will be recovered on restart", queue.size());
+            relayThread.interrupt();
+        }
+    }
+
+    /**
+     * Outbox entry for a command about to be stored with its saga. Commands built without a message id get one
+     * here, the outbox is keyed by it.
+     */
+    public OutboxCommand entryOf(CommandMessage command, String topic) {
+        command.initialize();
+        try {
+            return OutboxCommand.builder()
+                    .messageId(command.getMessageId())
+                    .sagaId(command.getSagaId())
+                    .topic(topic)
+                    .message(objectMapper.writeValueAsString(command))
+                    .createdAt(Instant.now())
+                    .build();
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Could not serialize command " + command.getMessageId(), e);
+        }
+    }
+
+    /**
+     * Make a saga collection known to the recovery scan
+     */
+    public void register(String collection) {
+        collections.add(collection);
+    }
+
+    /**
+     * Hand over commands whose saga write has been acknowledged by Mongo
+     */
+    public void enqueue(String collection, Object documentId, List<OutboxCommand> commands) {
+        for (OutboxCommand command : commands) {
+            if (inFlight.add(command.getMessageId())) {
+                queue.add(new PendingCommand(collection, documentId, command));
+            }
+        }
+    }
+
+    /**
+     * Queue commands left in outboxes longer than the stale threshold, of the sagas in the timeout shards
+     * this instance owns
+     */
+    public int recoverStaleCommands() {
+        List<Integer> ownedShards = sagaOwnershipService.ownedShards();
+        if (ownedShards.isEmpty()) {
+            return 0;
+        }
+        Instant cutoff = Instant.now().minusMillis(staleAfterMs);
+        int found = 0;
+        for (String collection : collections) {
+            ensureIndex(collection);
+            Criteria criteria = Criteria.where(OutboxCommand.FIELD + ".createdAt").lt(cutoff);
+            if (ownedShards.size() < SagaTimeoutPolicy.SHARDS) {
+                criteria = criteria.and("timeoutShard").in(ownedShards);
+            }
+            Query query = Query.query(criteria).limit(scanLimit);
+            query.fields().include(OutboxCommand.FIELD);
+            try {
+                for (Document document : mongoTemplate.find(query, Document.class, collection)) {
+                    List<OutboxCommand> commands = new ArrayList<>();
+                    for (Document entry : document.getList(OutboxCommand.FIELD, Document.class)) {
+                        OutboxCommand command = OutboxCommand.fromDocument(entry);
+                        if (!inFlight.contains(command.getMessageId())) {
+                            commands.add(command);
+                        }
+                    }
+                    enqueue(collection, document.get("_id"), commands);
+                    found += commands.size();
+                }
+            } catch (Exception e) {
+                log.warn("Could not scan {} for unsent outbox commands: {}", collection, e.getMessage());
+            }
+        }
+        if (found > 0) {
+            recovered.increment(found);
+            log.info("Recovered {} unsent outbox commands", found);
+        }
+        return found;
+    }
+
+    private void relay() {
+        List<PendingCommand> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingCommand first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                publish(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("Outbox relay error: {}", e.getMessage(), e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    // Send a whole batch before waiting, so the producer can group records per partition
+    private void publish(List<PendingCommand> batch) throws InterruptedException {
+        batchSizes.record(batch.size());
+        List<Future<?>> sends = new ArrayList<>(batch.size());
+        for (PendingCommand pending : batch) {
+            try {
+                CommandMessage command = objectMapper.readValue(pending.command.getMessage(), CommandMessage.class);
+                sends.add(messagePublisher.sendCommand(command, pending.command.getTopic()));
+            } catch (Exception e) {
+                sends.add(CompletableFuture.failedFuture(e));
+            }
+        }
+
+        Map<String, Map<Object, List<String>>> delivered = new HashMap<>();
+        List<PendingCommand> retry = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(sendTimeoutMs);
+        for (int i = 0; i < batch.size(); i++) {
+            PendingCommand pending = batch.get(i);
+            try {
+                sends.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                delivered.computeIfAbsent(pending.collection, c -> new HashMap<>())
+                        .computeIfAbsent(pending.documentId, id -> new ArrayList<>())
+                        .add(pending.command.getMessageId());
+                published.increment();
+                lag.record(Duration.between(pending.command.getCreatedAt(), Instant.now()));
+            } catch (ExecutionException | TimeoutException e) {
+                failures.increment();
+                retry.add(pending);
+            }
+        }
+
+        markSent(delivered);
+        batch.stream()
+                .filter(pending -> !retry.contains(pending))
+                .forEach(pending -> inFlight.remove(pending.command.getMessageId()));
+
+        if (!retry.isEmpty()) {
+            log.warn("Failed to publish {} of {} outbox commands, will retry", retry.size(), batch.size());
+            // Back to the head of the queue in their original order
+            for (int i = retry.size() - 1; i >= 0; i--) {
+                queue.addFirst(retry.get(i));
+            }
+            Thread.sleep(retryBackoffMs);
+        }
+    }
+
+    // Pull delivered commands from their outboxes, one bulk write per collection
+    private void markSent(Map<String, Map<Object, List<String>>> delivered) {
+        delivered.forEach((collection, byDocument) -> {
+            BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, collection);
+            byDocument.forEach((documentId, messageIds) -> bulk.updateOne(
+                    Query.query(Criteria.where("_id").is(documentId)),
+                    new BasicUpdate(new Document("$pull", new Document(OutboxCommand.FIELD,
+                            new Document("messageId", new Document("$in", messageIds)))))));
+            try {
+                bulk.execute();
+            } catch (Exception e) {
+                // Harmless apart from a repeat publish after the stale threshold
+                log.warn("Could not clear published commands from {} outboxes: {}", collection, e.getMessage());
+            }
+        });
+    }
+
+    // Only documents with a non-empty outbox have index entries
+    private void ensureIndex(String collection) {
+        if (indexedCollections.contains(collection)) {
+            return;
+        }
+        try {
+            mongoTemplate.indexOps(collection).ensureIndex(new Index()
+                    .on(OutboxCommand.FIELD + ".createdAt", Sort.Direction.ASC)
+                    .sparse());
+            indexedCollections.add(collection);
+        } catch (Exception e) {
+            log.warn("Could not ensure outbox index on {}: {}", collection, e.getMessage());
+        }
+    }
+}
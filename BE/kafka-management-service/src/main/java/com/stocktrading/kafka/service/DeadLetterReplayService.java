@@ -0,0 +1,196 @@
+package com.stocktrading.kafka.service;
+
+import com.project.kafkamessagemodels.codec.BinaryMessageCodec;
+import com.project.kafkamessagemodels.model.CommandMessage;
+import com.stocktrading.kafka.dto.DeadLetterReplayResult;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+/**
+ * Sends the commands a participant gave up on back to their command topic, once the cause is fixed.
+ * Participants move a command that keeps failing through their retry topics to {@code <topic>-dlt};
+ * the records are copied byte for byte, whatever the message codec, without the retry and dead-letter
+ * headers so the participant treats them as new. Progress is committed under a consumer group of its own,
+ * a dead letter is replayed once.
+ * Only commands whose saga is still waiting on their step are replayed. The others are skipped, since a saga
+ * that timed out, retried or compensated since must not have a stale step run again.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class DeadLetterReplayService {
+
+    public static final String DLT_SUFFIX = "-dlt";
+
+    // Headers added by the participants' retry topics, dropped so the replayed command starts over
+    private static final String[] RETRY_HEADER_PREFIXES = {"kafka_dlt-", "retry_topic-", "kafka_backoff"};
+
+    private static final Duration POLL_TIMEOUT = Duration.ofMillis(500);
+
+    // Reads either codec, binary records by their magic bytes and JSON otherwise
+    private final BinaryMessageCodec codec = new BinaryMessageCodec();
+
+    private final List<SagaEventHandler> sagaEventHandlers;
+
+    @Value("${spring.kafka.bootstrap-servers}")
+    private String bootstrapServers;
+
+    @Value("${saga.dead-letters.replay-group:saga-dead-letter-replay}")
+    private String replayGroup;
+
+    /**
+     * Replay up to limit dead letters of a command topic, empty if the topic has no dead-letter topic
+     */
+    public synchronized Optional<DeadLetterReplayResult> replay(String topic, int limit) {
+        String targetTopic = topic.endsWith(DLT_SUFFIX) ? topic.substring(0, topic.length() - DLT_SUFFIX.length()) : topic;
+        String deadLetterTopic = targetTopic + DLT_SUFFIX;
+
+        try (KafkaConsumer<byte[], byte[]> consumer = new KafkaConsumer<>(consumerProps(limit));
+             KafkaProducer<byte[], byte[]> producer = new KafkaProducer<>(producerProps())) {
+            List<PartitionInfo> partitions = consumer.partitionsFor(deadLetterTopic);
+            if (partitions == null || partitions.isEmpty()) {
+                return Optional.empty();
+            }
+            List<TopicPartition> assigned = partitions.stream()
+                    .map(info -> new TopicPartition(info.topic(), info.partition()))
+                    .collect(Collectors.toList());
+            consumer.assign(assigned);
+            // Only what was there when the replay started, a command failing again right away is not looped
+            Map<TopicPartition, Long> endOffsets = consumer.endOffsets(assigned);
+
+            Map<TopicPartition, OffsetAndMetadata> replayedUpTo = new HashMap<>();
+            List<Future<RecordMetadata>> sends = new ArrayList<>();
+            int skipped = 0;
+            while (sends.size() + skipped < limit && !caughtUp(consumer, endOffsets)) {
+                for (ConsumerRecord<byte[], byte[]> record : consumer.poll(POLL_TIMEOUT)) {
+                    TopicPartition partition = new TopicPartition(record.topic(), record.partition());
+                    if (sends.size() + skipped >= limit || record.offset() >= endOffsets.get(partition)) {
+                        continue;
+                    }
+                    replayedUpTo.put(partition, new OffsetAndMetadata(record.offset() + 1));
+                    if (!stillAwaited(record)) {
+                        skipped++;
+                        continue;
+                    }
+                    sends.add(producer.send(new ProducerRecord<>(targetTopic, null, record.key(), record.value(),
+                            withoutRetryHeaders(record))));
+                }
+            }
+            producer.flush();
+            for (Future<RecordMetadata> send : sends) {
+                send.get();
+            }
+            if (!replayedUpTo.isEmpty()) {
+                consumer.commitSync(replayedUpTo);
+            }
+
+            long remaining = 0;
+            for (TopicPartition partition : assigned) {
+                OffsetAndMetadata done = replayedUpTo.get(partition);
+                long from = done != null ? done.offset() : consumer.position(partition);
+                remaining += Math.max(0, consumer.endOffsets(List.of(partition)).get(partition) - from);
+            }
+            log.info("Replayed {} dead letters of {} onto {}, skipped {}, {} left",
+                    sends.size(), deadLetterTopic, targetTopic, skipped, remaining);
+            return Optional.of(new DeadLetterReplayResult(deadLetterTopic, targetTopic, sends.size(), skipped, remaining));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while replaying " + deadLetterTopic, e);
+        } catch (ExecutionException e) {
+            // Offsets are not committed, the same dead letters are replayed by the next attempt
+            throw new IllegalStateException("Could not replay " + deadLetterTopic + ": " + e.getCause().getMessage(), e);
+        }
+    }
+
+    // Whether the saga of a dead command is still waiting on the step it was sent for
+    private boolean stillAwaited(ConsumerRecord<byte[], byte[]> record) {
+        CommandMessage command;
+        try {
+            command = codec.decode(record.value(), CommandMessage.class);
+        } catch (RuntimeException e) {
+            log.warn("Skipping unreadable dead letter {}-{}@{}: {}",
+                    record.topic(), record.partition(), record.offset(), e.getMessage());
+            return false;
+        }
+        if (command == null || command.getSagaId() == null) {
+            return false;
+        }
+        for (SagaEventHandler handler : sagaEventHandlers) {
+            if (handler.awaits(command.getSagaId(), command)) {
+                return true;
+            }
+        }
+        log.info("Skipping dead {} command of saga {}, the saga is no longer waiting on it",
+                command.getType(), command.getSagaId());
+        return false;
+    }
+
+    private static boolean caughtUp(KafkaConsumer<byte[], byte[]> consumer, Map<TopicPartition, Long> endOffsets) {
+        for (Map.Entry<TopicPartition, Long> end : endOffsets.entrySet()) {
+            if (consumer.position(end.getKey()) < end.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static RecordHeaders withoutRetryHeaders(ConsumerRecord<byte[], byte[]> record) {
+        RecordHeaders headers = new RecordHeaders();
+        for (Header header : record.headers()) {
+            boolean retryHeader = false;
+            for (String prefix : RETRY_HEADER_PREFIXES) {
+                retryHeader |= header.key().startsWith(prefix);
+            }
+            if (!retryHeader) {
+                headers.add(header);
+            }
+        }
+        return headers;
+    }
+
+    private Map<String, Object> consumerProps(int limit) {
+        Map<String, Object> props = new HashMap<>();
+        props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        props.put(ConsumerConfig.GROUP_ID_CONFIG, replayGroup);
+        props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class);
+        props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class);
+        props.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+        props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+        // Asking for a topic that has no dead letters must not create it
+        props.put(ConsumerConfig.ALLOW_AUTO_CREATE_TOPICS_CONFIG, false);
+        props.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, Math.min(limit, 500));
+        return props;
+    }
+
+    private Map<String, Object> producerProps() {
+        Map<String, Object> props = new HashMap<>();
+        props.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        props.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class);
+        props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class);
+        props.put(ProducerConfig.ACKS_CONFIG, "all");
+        props.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true);
+        return props;
+    }
+}
@@ -13,13 +13,15 @@ import com.stocktrading.kafka.model.enums.DepositSagaStep;
 import com.stocktrading.kafka.model.enums.SagaStatus;
 import com.stocktrading.kafka.model.enums.WithdrawalSagaStep;
 import com.stocktrading.kafka.repository.DepositSagaRepository;
+import com.stocktrading.kafka.service.SagaDefinition.Action;
+import com.stocktrading.kafka.service.SagaDefinition.Transition;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import java.math.BigDecimal;
-import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 
@@ -29,33 +31,20 @@ import java.util.*;
 @Slf4j
 @Service
 @RequiredArgsConstructor
-public class DepositSagaService {
+public class DepositSagaService implements SagaEventHandler {
     
+    // Steps whose commands only read or validate, safe to send again while the participant may still answer the
+    // first one. Recovery resends no other step, those are left to the timeout handling at their deadline.
+    private static final Set<DepositSagaStep> RESENDABLE_STEPS = EnumSet.of(DepositSagaStep.VERIFY_USER_IDENTITY,
+            DepositSagaStep.VALIDATE_ACCOUNT, DepositSagaStep.VALIDATE_PAYMENT_METHOD);
+
     private final DepositSagaRepository depositSagaRepository;
-    private final KafkaMessagePublisher messagePublisher;
+    private final SagaStateCache<DepositSagaState> depositSagaCache;
     private final IdempotencyService idempotencyService;
     
     @Value("${saga.deposit.retry.max-attempts}")
     private int maxRetries;
     
-    @Value("${saga.deposit.timeout.verify-identity}")
-    private long verifyIdentityTimeout;
-    
-    @Value("${saga.deposit.timeout.validate-payment}")
-    private long validatePaymentTimeout;
-    
-    @Value("${saga.deposit.timeout.create-transaction}")
-    private long createTransactionTimeout;
-    
-    @Value("${saga.deposit.timeout.process-payment}")
-    private long processPaymentTimeout;
-    
-    @Value("${saga.deposit.timeout.update-transaction}")
-    private long updateTransactionTimeout;
-    
-    @Value("${saga.deposit.timeout.update-balance}")
-    private long updateBalanceTimeout;
-
     @Value("${kafka.topics.user-commands.common:user.commands.common}")
     private String userCommonCommandsTopic;
 
@@ -68,6 +57,30 @@ public class DepositSagaService {
     @Value("${kafka.topics.payment-commands.deposit:payment.commands.process}")
     private String paymentDepositCommandsTopic;
 
+    private SagaDefinition<DepositSagaStep> sagaDefinition;
+
+    @PostConstruct
+    public void init() {
+        sagaDefinition = SagaDefinition.builder(DepositSagaStep.class,
+                        DepositSagaStep::getCommandType, DepositSagaStep::getStepNumber)
+                .topics(step -> getTopicForCommandType(step.getCommandType()))
+                // Validation, nothing to undo if these fail
+                .step(DepositSagaStep.VERIFY_USER_IDENTITY, DepositSagaStep.VALIDATE_ACCOUNT, Action.TERMINATE)
+                .step(DepositSagaStep.VALIDATE_ACCOUNT, DepositSagaStep.VALIDATE_PAYMENT_METHOD, Action.TERMINATE)
+                .step(DepositSagaStep.VALIDATE_PAYMENT_METHOD, DepositSagaStep.CREATE_PENDING_TRANSACTION,
+                        Action.TERMINATE)
+                .step(DepositSagaStep.CREATE_PENDING_TRANSACTION, DepositSagaStep.PROCESS_PAYMENT, Action.TERMINATE)
+                // Money movement
+                .step(DepositSagaStep.PROCESS_PAYMENT, DepositSagaStep.UPDATE_TRANSACTION_STATUS, Action.COMPENSATE)
+                .step(DepositSagaStep.UPDATE_TRANSACTION_STATUS, DepositSagaStep.UPDATE_BALANCE, Action.COMPENSATE)
+                .step(DepositSagaStep.UPDATE_BALANCE, DepositSagaStep.COMPLETE_SAGA, Action.COMPENSATE)
+                // Compensation, a failure restarts it from what is still completed
+                .compensation(DepositSagaStep.REVERSE_BALANCE_UPDATE, DepositSagaStep.REVERSE_PAYMENT, Action.COMPENSATE)
+                .compensation(DepositSagaStep.REVERSE_PAYMENT, DepositSagaStep.MARK_TRANSACTION_FAILED, Action.COMPENSATE)
+                .compensation(DepositSagaStep.MARK_TRANSACTION_FAILED, DepositSagaStep.COMPLETE_SAGA, Action.COMPENSATE)
+                .build();
+    }
+
     /**
      * Start a new deposit saga
      */
@@ -85,7 +98,7 @@ public class DepositSagaService {
         log.debug("Saga before save: sagaId={}, amount={} (type={})",
                 saga.getSagaId(), saga.getAmount(), saga.getAmount().getClass().getName());
 
-        depositSagaRepository.save(saga);
+        depositSagaCache.save(saga);
 
         // Process the first step
         processNextStep(saga);
@@ -104,7 +117,7 @@ public class DepositSagaService {
             // This can happen for the COMPLETE_SAGA step which doesn't have a command
             if (saga.getCurrentStep() == DepositSagaStep.COMPLETE_SAGA) {
                 saga.moveToNextStep(); // This will mark the saga as COMPLETED
-                depositSagaRepository.save(saga);
+                depositSagaCache.save(saga);
                 log.info("Deposit saga [{}] completed successfully", saga.getSagaId());
             } else {
                 log.warn("No command defined for step: {} in saga: {}", 
@@ -116,29 +129,42 @@ public class DepositSagaService {
         // Initialize the command
         command.initialize();
         
-        // Save the updated saga state
-        depositSagaRepository.save(saga);
-        
-        // Determine the topic based on the command type
-        String targetTopic = getTopicForCommandType(CommandType.valueOf(command.getType()));
-        
-        // Publish the command
-        messagePublisher.publishCommand(command, targetTopic);
+        // Determine the topic based on the step
+        String targetTopic = sagaDefinition.topicOf(saga.getCurrentStep());
+
+        // Save the updated saga state, the command is published from its outbox once the state is persisted
+        depositSagaCache.save(saga, command, targetTopic);
         
-        log.info("Published command [{}] for saga [{}] to topic: {}", 
+        log.info("Queued command [{}] for saga [{}] to topic: {}", 
             command.getType(), saga.getSagaId(), targetTopic);
     }
 
+    @Override
+    public void preload(Collection<String> sagaIds) {
+        depositSagaCache.loadAll(sagaIds);
+    }
+
+    @Override
+    public boolean handles(String eventType) {
+        return sagaDefinition.handles(eventType);
+    }
+
+    @Override
+    public boolean owns(String sagaId) {
+        return depositSagaCache.contains(sagaId);
+    }
+
     /**
      * Handle an event message response
      */
+    @Override
     public void handleEventMessage(EventMessage event) {
         String sagaId = event.getSagaId();
 
         log.debug("Handling event [{}] for saga: {}", event.getType(), sagaId);
 
         // Find the saga
-        Optional<DepositSagaState> optionalSaga = depositSagaRepository.getDepositSagaStateBySagaId(sagaId);
+        Optional<DepositSagaState> optionalSaga = depositSagaCache.findById(sagaId);
         if (optionalSaga.isEmpty()) {
             log.warn("Received event for unknown saga: {}", sagaId);
             return;
@@ -158,7 +184,8 @@ public class DepositSagaService {
         }
 
         // Check if this is a response to the current step
-        boolean matchesCurrentStep = isEventForCurrentStep(saga, event);
+        Transition<DepositSagaStep> transition = sagaDefinition.resolve(saga.getCurrentStep(), saga.getStatus(), event);
+        boolean matchesCurrentStep = transition != null;
         log.debug("Event matches current step: {}", matchesCurrentStep);
 
         if (!matchesCurrentStep) {
@@ -177,11 +204,11 @@ public class DepositSagaService {
         // Process the event based on success/failure
         if (Boolean.TRUE.equals(event.getSuccess())) {
             log.debug("Processing success event for step: {}", saga.getCurrentStep());
-            processSuccessEvent(saga, event);
+            processSuccessEvent(saga, event, transition);
         } else {
             try {
                 log.debug("Processing failure event for step: {}", saga.getCurrentStep());
-                processFailureEvent(saga, event);
+                processFailureEvent(saga, event, transition);
             } catch (Exception e) {
                 log.error("Error processing failure event: {}", e.getMessage(), e);
 
@@ -210,14 +237,15 @@ public class DepositSagaService {
     /**
      * Process a successful event
      */
-    private void processSuccessEvent(DepositSagaState saga, EventMessage event) {
+    private void processSuccessEvent(DepositSagaState saga, EventMessage event,
+                                     Transition<DepositSagaStep> transition) {
         log.info("Processing success event [{}] for saga [{}]", event.getType(), saga.getSagaId());
 
         // Update saga with event data based on event type
         updateSagaWithEventData(saga, event);
 
         // Check if this is a compensation event
-        if (saga.getStatus() == SagaStatus.COMPENSATING) {
+        if (transition.getAction() == Action.COMPENSATION_ADVANCE) {
             // For compensation steps, we need to handle them differently
             handleCompensationStepSuccess(saga);
         } else {
@@ -226,7 +254,7 @@ public class DepositSagaService {
         }
 
         // Save the updated saga
-        depositSagaRepository.save(saga);
+        depositSagaCache.save(saga);
 
         // Process the next step if saga is still active
         if (saga.getStatus() == SagaStatus.IN_PROGRESS ||
@@ -272,7 +300,8 @@ public class DepositSagaService {
     /**
      * Process a failure event
      */
-    private void processFailureEvent(DepositSagaState saga, EventMessage event) {
+    private void processFailureEvent(DepositSagaState saga, EventMessage event,
+                                     Transition<DepositSagaStep> transition) {
         log.warn("Processing failure event [{}] for saga [{}]: {}",
                 event.getType(), saga.getSagaId(), event.getErrorMessage());
 
@@ -285,12 +314,12 @@ public class DepositSagaService {
         saga.handleFailure(failureReason, saga.getCurrentStep().name());
 
         // Check if we need compensation
-        if (!isValidationStep(saga.getCurrentStep())) {
+        if (transition.getAction() == Action.COMPENSATE) {
             // Start compensation if it's a resource-modifying step
             saga.startCompensation();
 
             // Save the updated saga
-            depositSagaRepository.save(saga);
+            depositSagaCache.save(saga);
 
             // Start the compensation process
             processNextStep(saga);
@@ -301,19 +330,10 @@ public class DepositSagaService {
             log.info("Saga terminated due to validation failure at step: {}", saga.getCurrentStep().name());
 
             // Save the terminated saga
-            depositSagaRepository.save(saga);
+            depositSagaCache.save(saga);
         }
     }
 
-    /**
-     * Check if the current step is a validation step (no compensation needed)
-     */
-    private boolean isValidationStep(DepositSagaStep step) {
-        return step == DepositSagaStep.VERIFY_USER_IDENTITY ||
-                step == DepositSagaStep.VALIDATE_ACCOUNT ||
-                step == DepositSagaStep.VALIDATE_PAYMENT_METHOD ||
-                step == DepositSagaStep.CREATE_PENDING_TRANSACTION;
-    }
     /**
      * Update the saga state with data from the event
      */
@@ -347,79 +367,6 @@ public class DepositSagaService {
     }
     
 
-    /**
-     * Check if this event is a response to the current saga step
-     */
-    private boolean isEventForCurrentStep(DepositSagaState saga, EventMessage event) {
-        if (saga.getCurrentStep() == null) {
-            return false;
-        }
-
-        // For compensation steps, we need special handling
-        if (saga.getCurrentStep().isCompensationStep()) {
-            return isEventForCompensationStep(saga, event);
-        }
-
-        try {
-            EventType eventType = EventType.valueOf(event.getType());
-            CommandType expectedCommandType = saga.getCurrentStep().getCommandType();
-
-            // Get the command type associated with this event type
-            CommandType eventCommandType = eventType.getAssociatedCommandType();
-
-            // This is the key check - does this event correspond to the current step's command?
-            boolean matchingCommandType = eventCommandType == expectedCommandType;
-
-            // Check if the step ID matches (if provided)
-            boolean matchingStepId = event.getStepId() == null ||
-                    event.getStepId().equals(saga.getCurrentStep().getStepNumber());
-
-            // Log details in case of mismatch for debugging
-            if (!matchingCommandType) {
-                log.debug("Event command type mismatch: event={}, expected={}",
-                        eventCommandType, expectedCommandType);
-            }
-
-            if (!matchingStepId) {
-                log.debug("Event step ID mismatch: event={}, current={}",
-                        event.getStepId(), saga.getCurrentStep().getStepNumber());
-            }
-
-            return matchingCommandType && matchingStepId;
-
-        } catch (Exception e) {
-            log.error("Error checking if event matches current step: {}", e.getMessage(), e);
-            return false;
-        }
-    }
-    /**
-     * Check if this event is a response to the current compensation step
-     */
-    private boolean isEventForCompensationStep(DepositSagaState saga, EventMessage event) {
-        try {
-            EventType eventType = EventType.valueOf(event.getType());
-            CommandType expectedCommandType = saga.getCurrentStep().getCommandType();
-
-            // Log detailed matching information for debugging
-            log.debug("Compensation event matching: eventType={}, eventCommandType={}, expectedCommandType={}, stepId={}, currentStepNumber={}",
-                    eventType, eventType.getAssociatedCommandType(), expectedCommandType,
-                    event.getStepId(), saga.getCurrentStep().getStepNumber());
-
-            // For compensation steps, use more flexible matching criteria
-            // 1. The event type should match the expected command type
-            boolean commandTypeMatches = eventType.getAssociatedCommandType() == expectedCommandType;
-
-            // 2. If stepId is provided, it should match, but don't require it
-            boolean stepIdMatches = event.getStepId() == null ||
-                    event.getStepId().equals(saga.getCurrentStep().getStepNumber());
-
-            // Return true if basic command type matching passes
-            return commandTypeMatches && stepIdMatches;
-        } catch (Exception e) {
-            log.error("Error checking if event matches compensation step: {}", e.getMessage(), e);
-            return false;
-        }
-    }
     
     /**
      * Get the appropriate Kafka topic for a command type
@@ -448,32 +395,46 @@ public class DepositSagaService {
     }
     
     /**
-     * Check for timed-out steps and handle them
+     * Handle a saga whose step deadline has passed
      */
-    public void checkForTimeouts() {
-        log.debug("Checking for timed-out saga steps");
-        
-        List<SagaStatus> activeStatuses = Arrays.asList(SagaStatus.STARTED, SagaStatus.IN_PROGRESS);
-        
-        // Find sagas that might have timed out
-        Instant cutoffTime = Instant.now().minus(Duration.ofMillis(Math.max(
-            verifyIdentityTimeout, Math.max(
-                validatePaymentTimeout, Math.max(
-                    createTransactionTimeout, Math.max(
-                        processPaymentTimeout, Math.max(
-                            updateTransactionTimeout, updateBalanceTimeout
-                        )
-                    )
-                )
-            )
-        )));
-        
-        List<DepositSagaState> potentiallyTimedOutSagas = 
-            depositSagaRepository.findPotentiallyTimedOutSagas(activeStatuses, cutoffTime);
-        
-        for (DepositSagaState saga : potentiallyTimedOutSagas) {
-            handlePotentialTimeout(saga);
-        }
+    public void handleTimeout(String sagaId) {
+        depositSagaCache.findById(sagaId).ifPresent(this::handlePotentialTimeout);
+    }
+
+    @Override
+    public boolean awaits(String sagaId, CommandMessage command) {
+        return depositSagaCache.findById(sagaId)
+                .filter(saga -> saga.getStatus() == SagaStatus.STARTED || saga.getStatus() == SagaStatus.IN_PROGRESS
+                        || saga.getStatus() == SagaStatus.COMPENSATING)
+                .filter(saga -> saga.getCurrentStep() != null && saga.getCurrentStep().getCommandType() != null
+                        && saga.getCurrentStep().getCommandType().name().equals(command.getType()))
+                .isPresent();
+    }
+
+    /**
+     * Send the command of the current step again for a saga a previous run left waiting on it, as a retry of the step.
+     * Only for steps safe to repeat, and only while the saga is still in the step and step start time the recovery
+     * scan read, a saga that moved since was answered or retried by the listeners or the timeout scan meanwhile.
+     * Returns whether the step was resent.
+     */
+    public boolean resumeStuckStep(String sagaId, String scannedStep, Instant scannedStepStart) {
+        return depositSagaCache.findById(sagaId).map(saga -> {
+            if (saga.getCurrentStep() == null || !RESENDABLE_STEPS.contains(saga.getCurrentStep())
+                    || !saga.getCurrentStep().name().equals(scannedStep) || saga.getCurrentStepStartTime() == null
+                    || scannedStepStart == null
+                    || saga.getCurrentStepStartTime().toEpochMilli() != scannedStepStart.toEpochMilli()
+                    || saga.getRetryCount() >= saga.getMaxRetries()
+                    || (saga.getStatus() != SagaStatus.STARTED && saga.getStatus() != SagaStatus.IN_PROGRESS
+                    && saga.getStatus() != SagaStatus.COMPENSATING)) {
+                return false;
+            }
+            log.warn("Resending step [{}] of saga {} left waiting by a previous run", saga.getCurrentStep(), saga.getSagaId());
+            saga.incrementRetryCount();
+            saga.addEvent("RECOVERY", "Resending step " + saga.getCurrentStep() + " after restart");
+            saga.setCurrentStepStartTime(Instant.now());
+            processNextStep(saga);
+            return true;
+        }).orElse(false);
     }
     
     /**
@@ -483,10 +444,9 @@ public class DepositSagaService {
         if (saga.getCurrentStep() == null) {
             return;
         }
-        
-        Duration timeout = getTimeoutForStep(saga.getCurrentStep());
-        
-        if (saga.isCurrentStepTimedOut(timeout)) {
+
+        // The deadline may have moved since the scan read it
+        if (saga.getNextDeadline() != null && !Instant.now().isBefore(saga.getNextDeadline())) {
             log.warn("Step [{}] has timed out for saga: {}", saga.getCurrentStep(), saga.getSagaId());
             
             // Check if we can retry
@@ -494,9 +454,10 @@ public class DepositSagaService {
                 // Increment retry count
                 saga.incrementRetryCount();
                 saga.addEvent("RETRY", "Retrying step " + saga.getCurrentStep() + " after timeout");
+                saga.setCurrentStepStartTime(Instant.now());
                 
                 // Save and retry the step
-                depositSagaRepository.save(saga);
+                depositSagaCache.save(saga);
                 processNextStep(saga);
                 
             } else {
@@ -506,40 +467,17 @@ public class DepositSagaService {
                 saga.startCompensation();
                 
                 // Save and start compensation
-                depositSagaRepository.save(saga);
+                depositSagaCache.save(saga);
                 processNextStep(saga);
             }
         }
     }
     
-    /**
-     * Get the timeout duration for a specific step
-     */
-    private Duration getTimeoutForStep(DepositSagaStep step) {
-        switch (step) {
-            case VERIFY_USER_IDENTITY:
-                return Duration.ofMillis(verifyIdentityTimeout);
-            case VALIDATE_PAYMENT_METHOD:
-                return Duration.ofMillis(validatePaymentTimeout);
-            case CREATE_PENDING_TRANSACTION:
-                return Duration.ofMillis(createTransactionTimeout);
-            case PROCESS_PAYMENT:
-                return Duration.ofMillis(processPaymentTimeout);
-            case UPDATE_TRANSACTION_STATUS:
-                return Duration.ofMillis(updateTransactionTimeout);
-            case UPDATE_BALANCE:
-                return Duration.ofMillis(updateBalanceTimeout);
-            default:
-                // For compensation steps, use a generous timeout
-                return Duration.ofMillis(processPaymentTimeout); 
-        }
-    }
-    
     /**
      * Find a saga by ID
      */
     public Optional<DepositSagaState> findById(String sagaId) {
-        return depositSagaRepository.findById(sagaId);
+        return depositSagaCache.findById(sagaId);
     }
     
     /**
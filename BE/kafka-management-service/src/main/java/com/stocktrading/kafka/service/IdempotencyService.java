@@ -1,72 +1,311 @@
 package com.stocktrading.kafka.service;
 
+import com.mongodb.bulk.BulkWriteError;
 import com.project.kafkamessagemodels.model.BaseMessage;
 import com.stocktrading.kafka.model.ProcessedMessage;
 import com.stocktrading.kafka.repository.ProcessedMessageRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.scheduling.annotation.Scheduled;
+import org.apache.kafka.common.TopicPartition;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
-import java.util.Map;
-import java.util.UUID;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 /**
- * Service for ensuring idempotent message processing
+ * Service for ensuring idempotent message processing.
+ * Checks go to an in-memory filter first and only reach Mongo when the filter cannot answer on its own.
+ * Processed messages are keyed by messageId, written in batches with the saga states and expire through a TTL index.
+ * Each record carries the topic-partition its message came from. When a partition is assigned, the records of
+ * that partition are loaded into the filter. Every ID processed for the partition is then in the filter, so an
+ * ID the filter has not seen is new without asking Mongo. Only the group member owning a partition records IDs
+ * for it, and the batch that recorded them was written before its offsets were committed.
  */
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class IdempotencyService {
 
+    private static final int DUPLICATE_KEY = 11000;
+    private static final String PARTITION = "partition";
+
+    // The message being handled on this thread, so the saga writes it causes can be traced back to it
+    private static final ThreadLocal<String> CURRENT_MESSAGE = new ThreadLocal<>();
+    // Topic-partition of that message, null if unknown
+    private static final ThreadLocal<String> CURRENT_PARTITION = new ThreadLocal<>();
+
     private final ProcessedMessageRepository processedMessageRepository;
+    private final MongoTemplate mongoTemplate;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${saga.cache.write-behind:true}")
+    private boolean writeBehind;
+
+    @Value("${saga.idempotency.retention-days:14}")
+    private long retentionDays;
+
+    @Value("${saga.idempotency.recent-capacity:100000}")
+    private int recentCapacity;
+
+    @Value("${saga.idempotency.bloom.expected-insertions:2000000}")
+    private long bloomExpectedInsertions;
+
+    @Value("${saga.idempotency.bloom.false-positive-rate:0.001}")
+    private double bloomFalsePositiveRate;
+
+    // An ID unknown to the filter is treated as new without asking Mongo, once its partition is warm
+    @Value("${saga.idempotency.trust-filter-negatives:true}")
+    private boolean trustFilterNegatives;
+
+    // Records not yet inserted, by messageId
+    private final Map<String, ProcessedMessage> pendingRecords = new ConcurrentHashMap<>();
+
+    // Messages whose saga write lost a version conflict, to be redelivered rather than marked processed
+    private final Set<String> rejectedMessages = ConcurrentHashMap.newKeySet();
+
+    // Partitions assigned to this instance, flagged once their records are in the filter
+    private final Map<String, AtomicBoolean> partitions = new ConcurrentHashMap<>();
+
+    private ProcessedMessageFilter filter;
+    private ExecutorService warmUps;
+    // Set once records written before they carried a partition are in the filter
+    private volatile boolean legacyWarm;
+    private volatile boolean indexesEnsured;
+
+    private Counter memoryHits;
+    private Counter memoryMisses;
+    private Counter storeLookups;
+
+    @PostConstruct
+    public void init() {
+        filter = new ProcessedMessageFilter(recentCapacity, bloomExpectedInsertions, bloomFalsePositiveRate);
+        warmUps = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "idempotency-filter-warmup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        memoryHits = meterRegistry.counter("saga.idempotency.checks", "tier", "memory", "result", "processed");
+        memoryMisses = meterRegistry.counter("saga.idempotency.checks", "tier", "memory", "result", "new");
+        storeLookups = meterRegistry.counter("saga.idempotency.checks", "tier", "store", "result", "lookup");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        warmUps.shutdownNow();
+    }
+
+    /**
+     * Load the records written before records carried their partition, which no partition warm-up finds
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUpFilter() {
+        warmUps.execute(() -> {
+            if (load(Criteria.where(PARTITION).exists(false), "records without a partition")) {
+                legacyWarm = true;
+            }
+        });
+    }
+
+    /**
+     * Load the records of newly assigned partitions; negatives for a partition are trusted once its load is done
+     */
+    public void partitionsAssigned(Collection<TopicPartition> assigned) {
+        for (TopicPartition topicPartition : assigned) {
+            String partition = topicPartition.toString();
+            AtomicBoolean warm = new AtomicBoolean();
+            partitions.put(partition, warm);
+            warmUps.execute(() -> {
+                if (partitions.get(partition) == warm
+                        && load(Criteria.where(PARTITION).is(partition), "partition " + partition)) {
+                    warm.set(true);
+                }
+            });
+        }
+    }
+
+    /**
+     * Stop trusting negatives for partitions another member may record IDs for from now on
+     */
+    public void partitionsRevoked(Collection<TopicPartition> revoked) {
+        for (TopicPartition topicPartition : revoked) {
+            partitions.remove(topicPartition.toString());
+        }
+    }
+
+    // Add the IDs of the records matching the criteria and still within the retention to the filter
+    private boolean load(Criteria criteria, String description) {
+        ensureIndexes();
+        long start = System.currentTimeMillis();
+        long loaded = 0;
+        Query query = Query.query(criteria.and("processedAt").gte(Instant.now().minus(retentionDays, ChronoUnit.DAYS)));
+        query.fields().include("_id");
+        try (CloseableIterator<Document> ids = mongoTemplate.stream(
+                query, Document.class, mongoTemplate.getCollectionName(ProcessedMessage.class))) {
+            while (ids.hasNext()) {
+                filter.addToFilter(String.valueOf(ids.next().get("_id")));
+                loaded++;
+            }
+            log.info("Loaded {} processed message IDs of {} into the idempotency filter in {} ms",
+                    loaded, description, System.currentTimeMillis() - start);
+            return true;
+        } catch (Exception e) {
+            log.warn("Could not load {} into the idempotency filter, its misses will be checked in Mongo: {}",
+                    description, e.getMessage());
+            return false;
+        }
+    }
 
     /**
      * Check if a message has been processed before
      */
     public boolean isProcessed(BaseMessage message) {
-        String messageId = message.getMessageId();
-
-        // If messageId is null, check by sagaId and stepId combination
+        String messageId = idOf(message);
         if (messageId == null) {
-            if (message.getSagaId() == null || message.getStepId() == null) {
-                return false;
+            return false;
+        }
+
+        ProcessedMessageFilter.Result result = filter.check(messageId);
+        if (result == ProcessedMessageFilter.Result.PROCESSED) {
+            memoryHits.increment();
+            return true;
+        }
+        if (result == ProcessedMessageFilter.Result.NOT_SEEN && trustsNegatives(CURRENT_PARTITION.get())) {
+            memoryMisses.increment();
+            return false;
+        }
+
+        if (pendingRecords.containsKey(messageId)) {
+            memoryHits.increment();
+            return true;
+        }
+
+        storeLookups.increment();
+        boolean processed = processedMessageRepository.existsById(messageId);
+        if (processed) {
+            filter.add(messageId);
+        }
+        return processed;
+    }
+
+    // Whether every ID processed for the partition within the retention is in the filter
+    boolean trustsNegatives(String partition) {
+        if (!trustFilterNegatives || !legacyWarm || partition == null) {
+            return false;
+        }
+        AtomicBoolean warm = partitions.get(partition);
+        return warm != null && warm.get()
+                && filter.coversAddedSince(Instant.now().minus(retentionDays, ChronoUnit.DAYS).toEpochMilli());
+    }
+
+    /**
+     * Run the handling of a message, attributing the saga writes made meanwhile on this thread to it
+     */
+    public void handle(BaseMessage message, Runnable handler) {
+        handle(message, null, handler);
+    }
+
+    /**
+     * Run the handling of a message consumed from the given topic-partition, whose records are kept with it
+     */
+    public void handle(BaseMessage message, String partition, Runnable handler) {
+        String messageId = idOf(message);
+        String outer = CURRENT_MESSAGE.get();
+        String outerPartition = CURRENT_PARTITION.get();
+        if (messageId != null) {
+            // A new attempt starts from a clean slate
+            rejectedMessages.remove(messageId);
+        }
+        CURRENT_MESSAGE.set(messageId);
+        CURRENT_PARTITION.set(partition);
+        try {
+            handler.run();
+        } finally {
+            if (outer == null) {
+                CURRENT_MESSAGE.remove();
+            } else {
+                CURRENT_MESSAGE.set(outer);
+            }
+            if (outerPartition == null) {
+                CURRENT_PARTITION.remove();
+            } else {
+                CURRENT_PARTITION.set(outerPartition);
             }
-            return processedMessageRepository.findBySagaIdAndStepId(
-                    message.getSagaId(), message.getStepId()) != null;
         }
+    }
 
-        ProcessedMessage processedMessage = processedMessageRepository.findByMessageId(messageId);
-        return processedMessage != null;
+    /**
+     * The ID of the message being handled on this thread, null outside of {@link #handle}
+     */
+    public String currentMessageId() {
+        return CURRENT_MESSAGE.get();
+    }
+
+    /**
+     * Withdraw messages whose saga state could not be written: their markers are dropped before they reach Mongo
+     */
+    public void reject(Collection<String> messageIds) {
+        for (String messageId : messageIds) {
+            rejectedMessages.add(messageId);
+            pendingRecords.remove(messageId);
+            filter.forget(messageId);
+        }
+    }
+
+    /**
+     * Index of the first of the given messages that was rejected, -1 if none; clears them as reported
+     */
+    public int takeFirstRejected(List<? extends BaseMessage> messages) {
+        int first = -1;
+        for (int i = 0; i < messages.size(); i++) {
+            BaseMessage message = messages.get(i);
+            String messageId = message != null ? idOf(message) : null;
+            if (messageId != null && rejectedMessages.remove(messageId) && first < 0) {
+                first = i;
+            }
+        }
+        return first;
     }
 
     /**
      * Record that a message has been processed
      */
     public void recordProcessing(BaseMessage message, Map<String, Object> result) {
-        String messageId = message.getMessageId();
+        String messageId = idOf(message);
         String sagaId = message.getSagaId();
 
         // Debug logging to help diagnose the issue
         log.debug("Recording processing for message: messageId={}, sagaId={}, type={}",
                 messageId, sagaId, message.getType());
 
-        // Handle null messageId case
         if (messageId == null) {
-            // If this is the case in the Kafka UI image, generate a UUID
-            // based on sagaId and stepId to ensure uniqueness
-            if (sagaId != null && message.getStepId() != null) {
-                messageId = UUID.nameUUIDFromBytes(
-                        (sagaId + "-" + message.getStepId()).getBytes()
-                ).toString();
-                log.info("Generated messageId {} for sagaId {} and stepId {}",
-                        messageId, sagaId, message.getStepId());
-            } else {
-                messageId = UUID.randomUUID().toString();
-                log.warn("Generated random messageId {} for message with null messageId", messageId);
-            }
+            messageId = UUID.randomUUID().toString();
+            log.warn("Generated random messageId {} for message with null messageId", messageId);
+        } else if (rejectedMessages.contains(messageId)) {
+            log.debug("Not recording rejected message {}, it will be redelivered", messageId);
+            return;
         }
 
         ProcessedMessage processedMessage = ProcessedMessage.create(
@@ -76,64 +315,119 @@ public class IdempotencyService {
                 message.getType(),
                 result
         );
+        processedMessage.setPartition(CURRENT_PARTITION.get());
 
-        try {
-            processedMessageRepository.save(processedMessage);
-            log.debug("Successfully recorded message processing: {}", messageId);
-        } catch (Exception e) {
-            log.error("Failed to record message processing: {}", messageId, e);
+        filter.add(messageId);
+        pendingRecords.put(messageId, processedMessage);
+        if (!writeBehind) {
+            flush();
         }
     }
 
     /**
-     * Get previously processed result for a message
+     * Insert the pending records in one unordered bulk write, false if some are kept for the next flush
      */
-    public Map<String, Object> getProcessedResult(BaseMessage message) {
-        if (message.getMessageId() == null) {
-            if (message.getSagaId() != null && message.getStepId() != null) {
-                ProcessedMessage processedMessage = processedMessageRepository.findBySagaIdAndStepId(
-                        message.getSagaId(), message.getStepId());
-                return processedMessage != null ? processedMessage.getResult() : null;
-            }
-            return null;
-        }
+    public boolean flush() {
+        return flush(snapshotPending());
+    }
 
-        ProcessedMessage processedMessage = processedMessageRepository.findByMessageId(message.getMessageId());
-        if (processedMessage == null) {
-            return null;
+    /**
+     * The records pending right now, to be written once the saga states they depend on are
+     */
+    public List<ProcessedMessage> snapshotPending() {
+        return new ArrayList<>(pendingRecords.values());
+    }
+
+    /**
+     * Insert those records of a snapshot that are still pending, false if some are kept for the next flush
+     */
+    public boolean flush(List<ProcessedMessage> snapshot) {
+        // Rejected or already written since the snapshot was taken
+        List<ProcessedMessage> batch = snapshot.stream()
+                .filter(record -> pendingRecords.get(record.getId()) == record)
+                .collect(Collectors.toList());
+        if (batch.isEmpty()) {
+            return true;
         }
+        ensureIndexes();
 
-        return processedMessage.getResult();
+        try {
+            mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ProcessedMessage.class)
+                    .insert(batch)
+                    .execute();
+            batch.forEach(record -> pendingRecords.remove(record.getId(), record));
+            return true;
+        } catch (BulkOperationException e) {
+            // A duplicate means the message was already recorded, keep only real failures
+            Set<Integer> failed = new HashSet<>();
+            for (BulkWriteError error : e.getErrors()) {
+                if (error.getCode() != DUPLICATE_KEY) {
+                    failed.add(error.getIndex());
+                }
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                if (!failed.contains(i)) {
+                    pendingRecords.remove(batch.get(i).getId(), batch.get(i));
+                }
+            }
+            if (!failed.isEmpty()) {
+                log.error("Failed to record {} processed messages, will retry: {}", failed.size(), e.getMessage());
+            }
+            return failed.isEmpty();
+        } catch (Exception e) {
+            log.error("Failed to record {} processed messages, will retry: {}", batch.size(), e.getMessage());
+            return false;
+        }
     }
 
     /**
-     * Get previously processed result for a saga step
+     * Get previously processed result for a message
      */
-    public Map<String, Object> getProcessedResultForStep(String sagaId, Integer stepId) {
-        ProcessedMessage processedMessage = processedMessageRepository.findBySagaIdAndStepId(sagaId, stepId);
-        if (processedMessage == null) {
+    public Map<String, Object> getProcessedResult(BaseMessage message) {
+        String messageId = idOf(message);
+        if (messageId == null) {
             return null;
         }
 
-        return processedMessage.getResult();
+        ProcessedMessage pending = pendingRecords.get(messageId);
+        if (pending != null) {
+            return pending.getResult();
+        }
+        return processedMessageRepository.findById(messageId)
+                .map(ProcessedMessage::getResult)
+                .orElse(null);
     }
 
     /**
-     * Scheduled task to clean up old processed messages
-     * Runs daily at 1 AM
+     * The store key of a message: its messageId, or one derived from sagaId and stepId when it has none
      */
-    @Scheduled(cron = "0 0 1 * * ?")
-    public void cleanupOldMessages() {
-        log.info("Starting cleanup of old processed messages");
-
-        // Keep messages for 14 days
-        Instant cutoffTime = Instant.now().minus(14, ChronoUnit.DAYS);
+    private String idOf(BaseMessage message) {
+        if (message.getMessageId() != null) {
+            return message.getMessageId();
+        }
+        if (message.getSagaId() != null && message.getStepId() != null) {
+            return UUID.nameUUIDFromBytes(
+                    (message.getSagaId() + "-" + message.getStepId()).getBytes()
+            ).toString();
+        }
+        return null;
+    }
 
+    // Old processed messages expire in Mongo instead of being deleted by a scan; warm-ups read a partition's records
+    private void ensureIndexes() {
+        if (indexesEnsured) {
+            return;
+        }
         try {
-            processedMessageRepository.deleteByProcessedAtBefore(cutoffTime);
-            log.info("Completed cleanup of old processed messages");
+            mongoTemplate.indexOps(ProcessedMessage.class).ensureIndex(new Index()
+                    .on("processedAt", Sort.Direction.ASC)
+                    .expire(Duration.ofDays(retentionDays)));
+            mongoTemplate.indexOps(ProcessedMessage.class).ensureIndex(new Index()
+                    .on(PARTITION, Sort.Direction.ASC)
+                    .on("processedAt", Sort.Direction.ASC));
+            indexesEnsured = true;
         } catch (Exception e) {
-            log.error("Failed to cleanup old processed messages", e);
+            log.warn("Could not ensure processed message indexes: {}", e.getMessage());
         }
     }
-}
\ No newline at end of file
+}
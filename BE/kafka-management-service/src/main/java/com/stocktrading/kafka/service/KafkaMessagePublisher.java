@@ -5,12 +5,16 @@ import com.project.kafkamessagemodels.model.CommandMessage;
 import com.project.kafkamessagemodels.model.EventMessage;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.kafka.support.SendResult;
 import org.springframework.stereotype.Service;
 import org.springframework.util.concurrent.ListenableFuture;
 import org.springframework.util.concurrent.ListenableFutureCallback;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * Service for publishing messages to Kafka topics
  */
@@ -18,9 +22,17 @@ import org.springframework.util.concurrent.ListenableFutureCallback;
 @Service
 @RequiredArgsConstructor
 public class KafkaMessagePublisher {
-    
+
+    public static final String ACCOUNT_KEY = "account";
+    // Topic-partition an event was first consumed from, kept when it is handed to a retry topic
+    public static final String ORIGIN_PARTITION_HEADER = "saga-origin-partition";
+
     private final KafkaTemplate<String, CommandMessage> commandKafkaTemplate;
     private final KafkaTemplate<String, EventMessage> eventKafkaTemplate;
+
+    // saga or account, see keyOf
+    @Value("${saga.commands.partition-key:saga}")
+    private String commandPartitionKey;
     
     /**
      * Publish a command message to a topic
@@ -30,9 +42,7 @@ public class KafkaMessagePublisher {
             command.initialize();
         }
         
-        // Use the sagaId as the message key to ensure all messages for the same saga
-        // are routed to the same partition
-        String key = command.getSagaId();
+        String key = keyOf(command);
         
         log.debug("Publishing command [{}] to topic: {}, key: {}", command.getType(), topic, key);
         
@@ -55,6 +65,42 @@ public class KafkaMessagePublisher {
         });
     }
     
+    /**
+     * Send a command and return the broker acknowledgement
+     */
+    public ListenableFuture<SendResult<String, CommandMessage>> sendCommand(CommandMessage command, String topic) {
+        return commandKafkaTemplate.send(topic, keyOf(command), command);
+    }
+
+    /**
+     * Message key of a command. By default the sagaId, so all commands of a saga share a partition.
+     * With saga.commands.partition-key=account, commands carrying an accountId are keyed by it instead.
+     * All commands of an account then reach the participant consumer owning that account, in order.
+     */
+    String keyOf(CommandMessage command) {
+        if (ACCOUNT_KEY.equals(commandPartitionKey)) {
+            Object accountId = command.getPayloadValue("accountId");
+            if (accountId != null) {
+                return accountId.toString();
+            }
+        }
+        return command.getSagaId();
+    }
+
+    /**
+     * Send an event consumed from originPartition to a retry topic, keyed by its sagaId, and return the broker
+     * acknowledgement
+     */
+    public ListenableFuture<SendResult<String, EventMessage>> sendEvent(EventMessage event, String topic,
+                                                                        String originPartition) {
+        event.initialize();
+        ProducerRecord<String, EventMessage> record = new ProducerRecord<>(topic, event.getSagaId(), event);
+        if (originPartition != null) {
+            record.headers().add(ORIGIN_PARTITION_HEADER, originPartition.getBytes(StandardCharsets.UTF_8));
+        }
+        return eventKafkaTemplate.send(record);
+    }
+
     /**
      * Publish an event message to a topic
      */
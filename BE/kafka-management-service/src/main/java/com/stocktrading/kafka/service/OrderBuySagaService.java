@@ -4,19 +4,24 @@ import com.project.kafkamessagemodels.model.CommandMessage;
 import com.project.kafkamessagemodels.model.EventMessage;
 import com.project.kafkamessagemodels.model.enums.CommandType;
 import com.project.kafkamessagemodels.model.enums.EventType;
+import com.project.kafkamessagemodels.model.payload.BrokerExecutionPayload;
+import com.project.kafkamessagemodels.model.payload.MarketPricePayload;
+import com.stocktrading.kafka.exception.SagaExecutionException;
 import com.stocktrading.kafka.exception.SagaNotFoundException;
 import com.stocktrading.kafka.model.OrderBuySagaState;
 import com.stocktrading.kafka.model.enums.OrderBuySagaStep;
 import com.stocktrading.kafka.model.enums.SagaStatus;
 import com.stocktrading.kafka.repository.OrderBuySagaRepository;
+import com.stocktrading.kafka.service.SagaDefinition.Action;
+import com.stocktrading.kafka.service.SagaDefinition.Transition;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import java.math.BigDecimal;
-import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 
@@ -26,17 +31,57 @@ import java.util.*;
 @Slf4j
 @Service
 @RequiredArgsConstructor
-public class OrderBuySagaService {
+public class OrderBuySagaService implements SagaEventHandler {
+
+    // Tries to apply a user cancellation before giving up on a saga that keeps changing underneath
+    private static final int CANCEL_ATTEMPTS = 3;
+
+    // Steps whose commands only read or validate, safe to send again while the participant may still answer the
+    // first one. Recovery resends no other step, those are left to the timeout handling at their deadline.
+    private static final Set<OrderBuySagaStep> RESENDABLE_STEPS = EnumSet.of(OrderBuySagaStep.VERIFY_TRADING_PERMISSION,
+            OrderBuySagaStep.VERIFY_ACCOUNT_STATUS, OrderBuySagaStep.VALIDATE_STOCK, OrderBuySagaStep.GET_MARKET_PRICE);
 
     private final OrderBuySagaRepository orderBuySagaRepository;
-    private final KafkaMessagePublisher messagePublisher;
+    private final SagaStateCache<OrderBuySagaState> orderBuySagaCache;
     private final IdempotencyService idempotencyService;
+    private final SagaEventExecutor sagaEventExecutor;
+    private final SagaFlushService sagaFlushService;
 
     @Value("${saga.deposit.retry.max-attempts}")
     private int maxRetries;
 
-    @Value("${saga.timeout.default}")
-    private long defaultTimeout;
+    private SagaDefinition<OrderBuySagaStep> sagaDefinition;
+
+    @PostConstruct
+    public void init() {
+        sagaDefinition = SagaDefinition.builder(OrderBuySagaStep.class,
+                        OrderBuySagaStep::getCommandType, OrderBuySagaStep::getStepNumber)
+                .topics(this::getTopicForStep)
+                // Validation, nothing to undo if these fail
+                .step(OrderBuySagaStep.CREATE_ORDER, OrderBuySagaStep.VERIFY_TRADING_PERMISSION, Action.TERMINATE)
+                .parallel(OrderBuySagaStep.VERIFY_TRADING_PERMISSION.getParallelGroup(),
+                        OrderBuySagaStep.CALCULATE_REQUIRED_FUNDS, Action.TERMINATE)
+                .step(OrderBuySagaStep.CALCULATE_REQUIRED_FUNDS, OrderBuySagaStep.RESERVE_FUNDS, Action.TERMINATE)
+                // Execution
+                .step(OrderBuySagaStep.RESERVE_FUNDS, OrderBuySagaStep.UPDATE_ORDER_VALIDATED, Action.COMPENSATE)
+                .step(OrderBuySagaStep.UPDATE_ORDER_VALIDATED, OrderBuySagaStep.SUBMIT_ORDER, Action.COMPENSATE)
+                .step(OrderBuySagaStep.SUBMIT_ORDER, OrderBuySagaStep.UPDATE_ORDER_EXECUTED, Action.COMPENSATE)
+                .step(OrderBuySagaStep.UPDATE_ORDER_EXECUTED, OrderBuySagaStep.UPDATE_PORTFOLIO, Action.COMPENSATE)
+                .step(OrderBuySagaStep.UPDATE_PORTFOLIO, OrderBuySagaStep.SETTLE_TRANSACTION, Action.COMPENSATE)
+                .step(OrderBuySagaStep.SETTLE_TRANSACTION, OrderBuySagaStep.UPDATE_ORDER_COMPLETED, Action.COMPENSATE)
+                .step(OrderBuySagaStep.UPDATE_ORDER_COMPLETED, OrderBuySagaStep.COMPLETE_SAGA, Action.COMPENSATE)
+                // Compensation, a failure restarts it from what is still completed
+                .compensation(OrderBuySagaStep.REVERSE_SETTLEMENT, OrderBuySagaStep.REMOVE_POSITIONS, Action.COMPENSATE)
+                .compensation(OrderBuySagaStep.REMOVE_POSITIONS, OrderBuySagaStep.CANCEL_BROKER_ORDER, Action.COMPENSATE)
+                .compensation(OrderBuySagaStep.CANCEL_BROKER_ORDER, OrderBuySagaStep.RELEASE_FUNDS, Action.COMPENSATE)
+                .compensation(OrderBuySagaStep.RELEASE_FUNDS, OrderBuySagaStep.CANCEL_ORDER, Action.COMPENSATE)
+                .compensation(OrderBuySagaStep.CANCEL_ORDER, OrderBuySagaStep.COMPLETE_SAGA, Action.COMPENSATE)
+                // Limit orders resting in the broker's order book
+                .signal("LIMIT_ORDER_QUEUED", Action.PAUSE)
+                .signal("ORDER_EXPIRED", Action.EXPIRE)
+                .whileStatus(SagaStatus.LIMIT_ORDER_PENDING, EventType.ORDER_EXECUTED_BY_BROKER, Action.RESUME)
+                .build();
+    }
 
     /**
      * Start a new order buy saga
@@ -60,7 +105,7 @@ public class OrderBuySagaService {
                 sagaId, userId, accountId, stockSymbol, orderType,
                 quantity, limitPrice, timeInForce, maxRetries);
 
-        orderBuySagaRepository.save(saga);
+        orderBuySagaCache.save(saga);
 
         // Process the first step
         processNextStep(saga);
@@ -80,12 +125,12 @@ public class OrderBuySagaService {
             return;
         }
 
-        CommandMessage command = saga.createCommandForCurrentStep();
-        if (command == null) {
+        List<CommandMessage> commands = saga.createCommandsForCurrentStep();
+        if (commands.isEmpty()) {
             // This can happen for the COMPLETE_SAGA step which doesn't have a command
             if (saga.getCurrentStep() == OrderBuySagaStep.COMPLETE_SAGA) {
                 saga.moveToNextStep(); // This will mark the saga as COMPLETED
-                orderBuySagaRepository.save(saga);
+                orderBuySagaCache.save(saga);
                 log.info("Order buy saga [{}] completed successfully", saga.getSagaId());
             } else {
                 log.warn("No command defined for step: {} in saga: {}",
@@ -94,20 +139,30 @@ public class OrderBuySagaService {
             return;
         }
 
-        // Initialize the command
-        command.initialize();
+        if (commands.size() == 1) {
+            CommandMessage command = commands.get(0);
 
-        // Save the updated saga state
-        orderBuySagaRepository.save(saga);
+            // Initialize the command
+            command.initialize();
+
+            // Determine the topic based on the step
+            String targetTopic = sagaDefinition.topicOf(saga.getCurrentStep());
+
+            // Save the updated saga state, the command is published from its outbox once the state is persisted
+            orderBuySagaCache.save(saga, command, targetTopic);
 
-        // Determine the topic based on the command type
-        String targetTopic = getTopicForCommandType(CommandType.valueOf(command.getType()));
+            log.info("Queued command [{}] for saga [{}] to topic: {}",
+                    command.getType(), saga.getSagaId(), targetTopic);
+            return;
+        }
 
-        // Publish the command
-        messagePublisher.publishCommand(command, targetTopic);
+        // A parallel group, every member's command goes out with the same saved state
+        commands.forEach(CommandMessage::initialize);
+        orderBuySagaCache.save(saga, commands,
+                command -> sagaDefinition.topicOf(CommandType.valueOf(command.getType())));
 
-        log.info("Published command [{}] for saga [{}] to topic: {}",
-                command.getType(), saga.getSagaId(), targetTopic);
+        log.info("Queued {} parallel commands for saga [{}]: {}", commands.size(), saga.getSagaId(),
+                saga.getPendingGroupSteps());
     }
     /**
      * Handle the CALCULATE_REQUIRED_FUNDS step
@@ -124,26 +179,12 @@ public class OrderBuySagaService {
                 priceToUse = saga.getLimitPrice();
                 log.debug("Using limit price for calculation: {}", priceToUse);
             } else {
-                // For MARKET orders, get the price from the previous step
-                Object priceObj = saga.getStepData("PRICE_PROVIDED_currentPrice");
-                if (priceObj == null) {
+                // For MARKET orders, use the price provided by the previous step
+                priceToUse = saga.getMarketPrice();
+                if (priceToUse == null) {
                     throw new IllegalStateException("Market price not available");
                 }
 
-                // Handle different price formats
-                if (priceObj instanceof BigDecimal) {
-                    priceToUse = (BigDecimal) priceObj;
-                } else if (priceObj instanceof Double) {
-                    priceToUse = BigDecimal.valueOf((Double) priceObj);
-                } else if (priceObj instanceof Number) {
-                    priceToUse = BigDecimal.valueOf(((Number) priceObj).doubleValue());
-                } else if (priceObj instanceof String) {
-                    priceToUse = new BigDecimal((String) priceObj);
-                } else {
-                    throw new IllegalStateException("Market price is in an unsupported format: " +
-                            priceObj.getClass().getName());
-                }
-
                 log.debug("Using market price for calculation: {}", priceToUse);
             }
 
@@ -163,7 +204,7 @@ public class OrderBuySagaService {
 
             // Move to the next step
             saga.moveToNextStep();
-            orderBuySagaRepository.save(saga);
+            orderBuySagaCache.save(saga);
 
             // Process the next step (RESERVE_FUNDS)
             processNextStep(saga);
@@ -171,7 +212,7 @@ public class OrderBuySagaService {
             log.error("Error calculating required funds", e);
             saga.handleFailure("Failed to calculate required funds: " + e.getMessage(),
                     OrderBuySagaStep.CALCULATE_REQUIRED_FUNDS.name());
-            orderBuySagaRepository.save(saga);
+            orderBuySagaCache.save(saga);
 
             // Cancel the order on calculation failure
             cancelOrder(saga);
@@ -181,12 +222,15 @@ public class OrderBuySagaService {
     // Add this method to handle order cancellation
     private void cancelOrder(OrderBuySagaState saga) {
         try {
+            CommandMessage command = null;
+            String topic = null;
+
             // Only attempt cancellation if we have an order ID
             if (saga.getOrderId() != null) {
                 log.info("Cancelling order {} due to funds calculation failure", saga.getOrderId());
 
                 // Create a command to cancel the order
-                CommandMessage command = new CommandMessage();
+                command = new CommandMessage();
                 command.initialize();
                 command.setSagaId(saga.getSagaId());
                 command.setType(CommandType.ORDER_CANCEL.name());
@@ -195,31 +239,50 @@ public class OrderBuySagaService {
                 command.setPayloadValue("orderId", saga.getOrderId());
                 command.setPayloadValue("reason", saga.getFailureReason());
 
-                // Publish the command
-                String topic = getTopicForCommandType(CommandType.ORDER_CANCEL);
-                messagePublisher.publishCommand(command, topic);
+                topic = sagaDefinition.topicOf(OrderBuySagaStep.CANCEL_ORDER);
                 saga.addEvent("ORDER_CANCELLED", "Order cancelled due to funds calculation failure");
             } else {
                 log.info("No order to cancel - funds calculation failed before order creation");
             }
             saga.setStatus(SagaStatus.COMPENSATION_COMPLETED);
             saga.setEndTime(Instant.now());
-            orderBuySagaRepository.save(saga);
+            // The cancel command is published from the saga's outbox once this state is persisted
+            if (command != null) {
+                orderBuySagaCache.save(saga, command, topic);
+            } else {
+                orderBuySagaCache.save(saga);
+            }
 
         } catch (Exception e) {
             log.error("Error cancelling order after funds calculation failure", e);
         }
     }
 
+    @Override
+    public void preload(Collection<String> sagaIds) {
+        orderBuySagaCache.loadAll(sagaIds);
+    }
+
+    @Override
+    public boolean handles(String eventType) {
+        return sagaDefinition.handles(eventType);
+    }
+
+    @Override
+    public boolean owns(String sagaId) {
+        return orderBuySagaCache.contains(sagaId);
+    }
+
     /**
      * Handle an event message response
      */
+    @Override
     public void handleEventMessage(EventMessage event) {
         String sagaId = event.getSagaId();
         log.debug("Handling event [{}] for saga: {}", event.getType(), sagaId);
 
         // Find the saga
-        Optional<OrderBuySagaState> optionalSaga = orderBuySagaRepository.findById(sagaId);
+        Optional<OrderBuySagaState> optionalSaga = orderBuySagaCache.findById(sagaId);
         if (optionalSaga.isEmpty()) {
             log.warn("Received event for unknown saga: {}", sagaId);
             return;
@@ -233,28 +296,30 @@ public class OrderBuySagaService {
             return;
         }
 
-        // Special handling for LIMIT_ORDER_QUEUED event
-        if ("LIMIT_ORDER_QUEUED".equals(event.getType())) {
-            handleLimitOrderQueued(saga, event);
-            return;
-        }
-
-        // Special handling for ORDER_EXPIRED event
-        if ("ORDER_EXPIRED".equals(event.getType())) {
-            handleOrderExpired(saga, event);
-            return;
-        }
-
-        // Special handling for ORDER_EXECUTED_BY_BROKER event (for limit orders)
-        if ("ORDER_EXECUTED_BY_BROKER".equals(event.getType()) &&
-                saga.getStatus() == SagaStatus.LIMIT_ORDER_PENDING) {
-            // Resume the saga from the paused state
-            resumeLimitOrderSaga(saga, event);
-            return;
+        Transition<OrderBuySagaStep> transition = sagaDefinition.resolve(saga.getCurrentStep(), saga.getStatus(),
+                event);
+
+        // Limit order events apply whatever step the saga is in
+        if (transition != null) {
+            switch (transition.getAction()) {
+                case PAUSE:
+                    handleLimitOrderQueued(saga, event);
+                    return;
+                case EXPIRE:
+                    handleOrderExpired(saga, event);
+                    return;
+                case RESUME:
+                    // Resume the saga from the paused state
+                    resumeLimitOrderSaga(saga, event);
+                    return;
+                default:
+                    break;
+            }
         }
 
-        // Check if this is a response to the current step
-        boolean matchesCurrentStep = isEventForCurrentStep(saga, event);
+        // Check if this is a response to the current step, within a group to a member that has not replied yet
+        boolean matchesCurrentStep = transition != null
+                && (!transition.isParallel() || saga.isPendingGroupStep(transition.getStep()));
         if (!matchesCurrentStep) {
             log.warn("Received event [{}] for saga [{}] but doesn't match current step [{}]",
                     event.getType(), sagaId, saga.getCurrentStep());
@@ -270,9 +335,9 @@ public class OrderBuySagaService {
 
         // Process the event based on success/failure
         if (Boolean.TRUE.equals(event.getSuccess())) {
-            processSuccessEvent(saga, event);
+            processSuccessEvent(saga, event, transition);
         } else {
-            processFailureEvent(saga, event);
+            processFailureEvent(saga, event, transition);
         }
 
         // Record the event as processed
@@ -293,38 +358,22 @@ public class OrderBuySagaService {
         saga.setStatus(SagaStatus.LIMIT_ORDER_PENDING);
         saga.addEvent("LIMIT_ORDER_QUEUED", "Order added to broker order book for price monitoring");
 
+        BrokerExecutionPayload payload = event.getPayloadAs(BrokerExecutionPayload.class);
+
         // Store expiration time if available
-        String expiresAt = event.getPayloadValue("expiresAt");
+        String expiresAt = payload.getExpiresAt();
         if (expiresAt != null) {
             saga.storeStepData("limitOrderExpiresAt", expiresAt);
             saga.addEvent("EXPIRATION_SET", "Order will expire at " + expiresAt);
         }
 
         // Store current market price for reference
-        Object priceObj = event.getPayloadValue("currentPrice");
-        if (priceObj != null) {
-            BigDecimal currentPrice;
-            if (priceObj instanceof BigDecimal) {
-                currentPrice = (BigDecimal) priceObj;
-            } else if (priceObj instanceof Double) {
-                currentPrice = BigDecimal.valueOf((Double) priceObj);
-            } else if (priceObj instanceof Number) {
-                currentPrice = BigDecimal.valueOf(((Number) priceObj).doubleValue());
-            } else if (priceObj instanceof String) {
-                currentPrice = new BigDecimal((String) priceObj);
-            } else {
-                log.warn("Skipping currentMarketPrice storage due to unsupported format: {}",
-                        priceObj.getClass().getName());
-                currentPrice = null;
-            }
-
-            if (currentPrice != null) {
-                saga.storeStepData("currentMarketPrice", currentPrice);
-            }
+        if (payload.getCurrentPrice() != null) {
+            saga.storeStepData("currentMarketPrice", payload.getCurrentPrice());
         }
 
         saga.setLastUpdatedTime(Instant.now());
-        orderBuySagaRepository.save(saga);
+        orderBuySagaCache.save(saga);
 
         // Record the event as processed
         Map<String, Object> result = new HashMap<>();
@@ -348,7 +397,7 @@ public class OrderBuySagaService {
 
         // Save the updated state
         saga.setLastUpdatedTime(Instant.now());
-        orderBuySagaRepository.save(saga);
+        orderBuySagaCache.save(saga);
 
         // Start compensation
         startCompensation(saga);
@@ -367,28 +416,13 @@ public class OrderBuySagaService {
         log.info("Resuming saga [{}] after limit order execution", saga.getSagaId());
 
         // Update saga with execution details
-        saga.setBrokerOrderId(event.getPayloadValue("brokerOrderId"));
-
-        // Handle type conversion for executedQuantity
-        Object quantityObj = event.getPayloadValue("executedQuantity");
-        if (quantityObj instanceof Integer) {
-            saga.setExecutedQuantity((Integer) quantityObj);
-        } else if (quantityObj instanceof String) {
-            saga.setExecutedQuantity(Integer.parseInt((String) quantityObj));
-        } else if (quantityObj != null) {
-            saga.setExecutedQuantity(((Number) quantityObj).intValue());
+        BrokerExecutionPayload payload = event.getPayloadAs(BrokerExecutionPayload.class);
+        saga.setBrokerOrderId(payload.getBrokerOrderId());
+        if (payload.getExecutedQuantity() != null) {
+            saga.setExecutedQuantity(payload.getExecutedQuantity());
         }
-
-        // Handle type conversion for executionPrice
-        Object priceObj = event.getPayloadValue("executionPrice");
-        if (priceObj instanceof BigDecimal) {
-            saga.setExecutionPrice((BigDecimal) priceObj);
-        } else if (priceObj instanceof Double) {
-            saga.setExecutionPrice(BigDecimal.valueOf((Double) priceObj));
-        } else if (priceObj instanceof Number) {
-            saga.setExecutionPrice(BigDecimal.valueOf(((Number) priceObj).doubleValue()));
-        } else if (priceObj instanceof String) {
-            saga.setExecutionPrice(new BigDecimal((String) priceObj));
+        if (payload.getExecutionPrice() != null) {
+            saga.setExecutionPrice(payload.getExecutionPrice());
         }
 
         // Resume the saga at the UPDATE_ORDER_EXECUTED step
@@ -399,7 +433,7 @@ public class OrderBuySagaService {
 
         // Save the updated state
         saga.setLastUpdatedTime(Instant.now());
-        orderBuySagaRepository.save(saga);
+        orderBuySagaCache.save(saga);
 
         // Continue with next step
         processNextStep(saga);
@@ -411,42 +445,33 @@ public class OrderBuySagaService {
         idempotencyService.recordProcessing(event, result);
     }
 
-    /**
-     * Add additional method implementations for supporting LIMIT orders
-     */
-
-    /**
-     * Called to add a SagaStatus.LIMIT_ORDER_PENDING to the existing states
-     */
-    private void addLimitOrderPendingStatus(OrderBuySagaState saga) {
-        saga.getStepData().put("limitOrderPendingStep", saga.getCurrentStep().name());
-        saga.setStatus(SagaStatus.LIMIT_ORDER_PENDING);
-        saga.setLastUpdatedTime(Instant.now());
-        saga.addEvent("LIMIT_ORDER_PENDING",
-                "Saga paused while waiting for price conditions to be met");
-        orderBuySagaRepository.save(saga);
-    }
-
-
     /**
      * Process a successful event
      */
-    private void processSuccessEvent(OrderBuySagaState saga, EventMessage event) {
+    private void processSuccessEvent(OrderBuySagaState saga, EventMessage event,
+                                     Transition<OrderBuySagaStep> transition) {
         log.info("Processing success event [{}] for saga [{}]", event.getType(), saga.getSagaId());
 
         // Update saga with event data based on event type
-        updateSagaWithEventData(saga, event);
+        updateSagaWithEventData(saga, event, transition.getStep());
 
-        if (saga.getStatus() == SagaStatus.COMPENSATING) {
+        if (transition.getAction() == Action.COMPENSATION_ADVANCE) {
             // For compensation steps, handle them differently
             handleCompensationStepSuccess(saga);
+        } else if (transition.getAction() == Action.JOIN) {
+            // Advance only once every member of the group has replied
+            if (!saga.completeGroupStep(transition.getStep())) {
+                orderBuySagaCache.save(saga);
+                return;
+            }
+            saga.moveToNextStep();
         } else {
             // Normal flow - move to the next step
             saga.moveToNextStep();
         }
 
         // Save the updated saga
-        orderBuySagaRepository.save(saga);
+        orderBuySagaCache.save(saga);
 
         // Process the next step if saga is still active
         if (saga.getStatus() == SagaStatus.IN_PROGRESS ||
@@ -492,17 +517,21 @@ public class OrderBuySagaService {
     /**
      * Process a failure event
      */
-    private void processFailureEvent(OrderBuySagaState saga, EventMessage event) {
+    private void processFailureEvent(OrderBuySagaState saga, EventMessage event,
+                                     Transition<OrderBuySagaStep> transition) {
         log.warn("Processing failure event [{}] for saga [{}]: {}",
                 event.getType(), saga.getSagaId(), event.getErrorMessage());
 
+        // Within a parallel group the failing step is the member that replied, the first failure fails the group
+        String failedStep = transition.getStep().name();
+
         // Update saga with failure reason
         String failureReason = event.getErrorMessage();
         if (failureReason == null) {
-            failureReason = "Failed in step: " + saga.getCurrentStep().name();
+            failureReason = "Failed in step: " + failedStep;
         }
 
-        saga.handleFailure(failureReason, saga.getCurrentStep().name());
+        saga.handleFailure(failureReason, failedStep);
 
         // Start compensation based on the saga status
 
@@ -511,11 +540,11 @@ public class OrderBuySagaService {
             saga.setBrokerOrderId(null); // Ensure this is null since order wasn't executed
             startCompensation(saga);
         } else if (saga.getStatus() == SagaStatus.FAILED) {
-            if (isValidationStep(saga.getCurrentStep())) {
+            if (transition.getAction() == Action.TERMINATE) {
                 // For validation steps, just terminate without compensation
                 saga.setEndTime(Instant.now());
                 saga.addEvent("SAGA_TERMINATED", "Saga terminated due to validation failure");
-                orderBuySagaRepository.save(saga);
+                orderBuySagaCache.save(saga);
             } else {
                 // For other steps, start compensation
                 startCompensation(saga);
@@ -545,51 +574,42 @@ public class OrderBuySagaService {
                 )
         );
 
-        orderBuySagaRepository.save(saga);
+        orderBuySagaCache.save(saga);
         processNextStep(saga);
     }
 
-    /**
-     * Check if the current step is a validation step (no compensation needed)
-     */
-    private boolean isValidationStep(OrderBuySagaStep step) {
-        return step == OrderBuySagaStep.CREATE_ORDER ||
-                step == OrderBuySagaStep.VERIFY_TRADING_PERMISSION ||
-                step == OrderBuySagaStep.VERIFY_ACCOUNT_STATUS ||
-                step == OrderBuySagaStep.VALIDATE_STOCK ||
-                step == OrderBuySagaStep.GET_MARKET_PRICE ||
-                step == OrderBuySagaStep.CALCULATE_REQUIRED_FUNDS;
-    }
-
     /**
      * Update the saga state with data from the event
      */
-    private void updateSagaWithEventData(OrderBuySagaState saga, EventMessage event) {
+    private void updateSagaWithEventData(OrderBuySagaState saga, EventMessage event, OrderBuySagaStep step) {
         try {
-            // Store specific data based on event type
-            switch (event.getType()) {
-                case "ORDER_CREATED":
+            // Store specific data based on the step that succeeded
+            switch (step) {
+                case CREATE_ORDER:
                     saga.setOrderId(event.getPayloadValue("orderId"));
                     break;
 
-                case "PRICE_PROVIDED":
+                case GET_MARKET_PRICE:
                     // Store market price for calculation step
-                    saga.storeStepData("PRICE_PROVIDED_currentPrice", event.getPayloadValue("currentPrice"));
+                    saga.setMarketPrice(event.getPayloadAs(MarketPricePayload.class).getCurrentPrice());
                     break;
 
-                case "FUNDS_RESERVED":
+                case RESERVE_FUNDS:
                     saga.setReservationId(event.getPayloadValue("reservationId"));
                     break;
 
-                case "ORDER_EXECUTED_BY_BROKER":
-                    saga.setBrokerOrderId(event.getPayloadValue("brokerOrderId"));
-                    saga.setExecutedQuantity(event.getPayloadValue("executedQuantity"));
+                case SUBMIT_ORDER:
+                    BrokerExecutionPayload execution = event.getPayloadAs(BrokerExecutionPayload.class);
+                    saga.setBrokerOrderId(execution.getBrokerOrderId());
+                    saga.setExecutedQuantity(execution.getExecutedQuantity());
                     if (saga.getExecutionPrice() == null) {
-                        saga.setExecutionPrice(event.getPayloadValue("executionPrice"));
+                        saga.setExecutionPrice(execution.getExecutionPrice());
                     }
                     break;
 
-                // Handle other event types as needed
+                // Handle other steps as needed
+                default:
+                    break;
             }
 
             // Store any additional event payload data for future reference
@@ -603,120 +623,87 @@ public class OrderBuySagaService {
     }
 
     /**
-     * Check if this event is a response to the current saga step
+     * Topic the command of a step is sent to, null for steps performed in the orchestrator
      */
-    private boolean isEventForCurrentStep(OrderBuySagaState saga, EventMessage event) {
-        if (saga.getCurrentStep() == null) {
-            return false;
-        }
-
-        // For compensation steps, we need special handling
-        if (saga.getCurrentStep().isCompensationStep()) {
-            return isEventForCompensationStep(saga, event);
-        }
-
-        try {
-            EventType eventType = EventType.valueOf(event.getType());
-            CommandType expectedCommandType = saga.getCurrentStep().getCommandType();
-
-            // Get the command type associated with this event type
-            CommandType eventCommandType = eventType.getAssociatedCommandType();
-
-            // This is the key check - does this event correspond to the current step's command?
-            boolean matchingCommandType = eventCommandType == expectedCommandType;
-
-            // Check if the step ID matches (if provided)
-            boolean matchingStepId = event.getStepId() == null ||
-                    event.getStepId().equals(saga.getCurrentStep().getStepNumber());
-
-            // Log details in case of mismatch for debugging
-            if (!matchingCommandType) {
-                log.debug("Event command type mismatch: event={}, expected={}",
-                        eventCommandType, expectedCommandType);
-            }
-
-            if (!matchingStepId) {
-                log.debug("Event step ID mismatch: event={}, current={}",
-                        event.getStepId(), saga.getCurrentStep().getStepNumber());
-            }
-
-            return matchingCommandType && matchingStepId;
-
-        } catch (Exception e) {
-            log.error("Error checking if event matches current step: {}", e.getMessage(), e);
-            return false;
+    private String getTopicForStep(OrderBuySagaStep step) {
+        switch (step) {
+            case CREATE_ORDER:
+            case UPDATE_ORDER_VALIDATED:
+            case UPDATE_ORDER_EXECUTED:
+            case UPDATE_ORDER_COMPLETED:
+            case CANCEL_ORDER:
+                return "order.commands.order-buy";
+            case VERIFY_TRADING_PERMISSION:
+                return "user.commands.order-buy";
+            case VERIFY_ACCOUNT_STATUS:
+            case RESERVE_FUNDS:
+            case SETTLE_TRANSACTION:
+            case RELEASE_FUNDS:
+            case REVERSE_SETTLEMENT:
+                return "account.commands.order-buy";
+            case VALIDATE_STOCK:
+            case GET_MARKET_PRICE:
+                return "market.commands.order-buy";
+            case SUBMIT_ORDER:
+            case CANCEL_BROKER_ORDER:
+                return "broker.commands.order-buy";
+            case UPDATE_PORTFOLIO:
+            case REMOVE_POSITIONS:
+                return "portfolio.commands.order-buy";
+            default:
+                return null;
         }
     }
 
     /**
-     * Check if this event is a response to the current compensation step
+     * Handle a saga whose step deadline has passed
      */
-    private boolean isEventForCompensationStep(OrderBuySagaState saga, EventMessage event) {
-        try {
-            EventType eventType = EventType.valueOf(event.getType());
-            CommandType expectedCommandType = saga.getCurrentStep().getCommandType();
-
-            // Log detailed matching information for debugging
-            log.debug("Compensation event matching: eventType={}, eventCommandType={}, expectedCommandType={}, stepId={}, currentStepNumber={}",
-                    eventType, eventType.getAssociatedCommandType(), expectedCommandType,
-                    event.getStepId(), saga.getCurrentStep().getStepNumber());
-
-            // For compensation steps, use more flexible matching criteria
-            // 1. The event type should match the expected command type
-            boolean commandTypeMatches = eventType.getAssociatedCommandType() == expectedCommandType;
-
-            // 2. If stepId is provided, it should match, but don't require it
-            boolean stepIdMatches = event.getStepId() == null ||
-                    event.getStepId().equals(saga.getCurrentStep().getStepNumber());
-
-            // Return true if basic command type matching passes
-            return commandTypeMatches && stepIdMatches;
-        } catch (Exception e) {
-            log.error("Error checking if event matches compensation step: {}", e.getMessage(), e);
-            return false;
-        }
+    public void handleTimeout(String sagaId) {
+        orderBuySagaCache.findById(sagaId).ifPresent(this::handlePotentialTimeout);
     }
 
-    /**
-     * Get the appropriate Kafka topic for a command type
-     */
-    private String getTopicForCommandType(CommandType commandType) {
-        String commandName = commandType.name();
-
-        if (commandName.startsWith("USER_")) {
-            return "user.commands.order-buy";
-        } else if (commandName.startsWith("ACCOUNT_")) {
-            return "account.commands.order-buy";
-        } else if (commandName.startsWith("ORDER_")) {
-            return "order.commands.order-buy";
-        } else if (commandName.startsWith("MARKET_")) {
-            return "market.commands.order-buy";
-        } else if (commandName.startsWith("PORTFOLIO_")) {
-            return "portfolio.commands.order-buy";
-        } else if (commandName.startsWith("BROKER_")) {
-            return "broker.commands.order-buy";
-        }
-
-        return "saga.dlq"; // Default fallback
+    @Override
+    public boolean awaits(String sagaId, CommandMessage command) {
+        return orderBuySagaCache.findById(sagaId)
+                .filter(saga -> saga.getStatus() == SagaStatus.STARTED || saga.getStatus() == SagaStatus.IN_PROGRESS
+                        || saga.getStatus() == SagaStatus.COMPENSATING)
+                .filter(saga -> {
+                    // Every member of a parallel group is waited on until the group completes
+                    List<String> waitingOn = saga.getPendingGroupSteps() != null ? saga.getPendingGroupSteps()
+                            : saga.getCurrentStep() != null ? List.of(saga.getCurrentStep().name()) : List.of();
+                    return waitingOn.stream()
+                            .filter(step -> saga.getCompletedSteps() == null || !saga.getCompletedSteps().contains(step))
+                            .map(OrderBuySagaStep::valueOf)
+                            .anyMatch(step -> step.getCommandType() != null
+                                    && step.getCommandType().name().equals(command.getType()));
+                })
+                .isPresent();
     }
 
     /**
-     * Check for timed-out steps and handle them
+     * Send the command of the current step again for a saga a previous run left waiting on it, as a retry of the step.
+     * Only for steps safe to repeat, and only while the saga is still in the step and step start time the recovery
+     * scan read, a saga that moved since was answered or retried by the listeners or the timeout scan meanwhile.
+     * Returns whether the step was resent.
      */
-    public void checkForTimeouts() {
-        log.debug("Checking for timed-out saga steps");
-
-        List<SagaStatus> activeStatuses = Arrays.asList(SagaStatus.STARTED, SagaStatus.IN_PROGRESS);
-
-        // Find sagas that might have timed out
-        Instant cutoffTime = Instant.now().minus(Duration.ofMillis(defaultTimeout));
-
-        List<OrderBuySagaState> potentiallyTimedOutSagas =
-                orderBuySagaRepository.findPotentiallyTimedOutSagas(activeStatuses, cutoffTime);
-
-        for (OrderBuySagaState saga : potentiallyTimedOutSagas) {
-            handlePotentialTimeout(saga);
-        }
+    public boolean resumeStuckStep(String sagaId, String scannedStep, Instant scannedStepStart) {
+        return orderBuySagaCache.findById(sagaId).map(saga -> {
+            if (saga.getCurrentStep() == null || !RESENDABLE_STEPS.contains(saga.getCurrentStep())
+                    || !saga.getCurrentStep().name().equals(scannedStep) || saga.getCurrentStepStartTime() == null
+                    || scannedStepStart == null
+                    || saga.getCurrentStepStartTime().toEpochMilli() != scannedStepStart.toEpochMilli()
+                    || saga.getRetryCount() >= saga.getMaxRetries()
+                    || (saga.getStatus() != SagaStatus.STARTED && saga.getStatus() != SagaStatus.IN_PROGRESS
+                    && saga.getStatus() != SagaStatus.COMPENSATING)) {
+                return false;
+            }
+            log.warn("Resending step [{}] of saga {} left waiting by a previous run", saga.getCurrentStep(), saga.getSagaId());
+            saga.incrementRetryCount();
+            saga.addEvent("RECOVERY", "Resending step " + saga.getCurrentStep() + " after restart");
+            saga.setCurrentStepStartTime(Instant.now());
+            processNextStep(saga);
+            return true;
+        }).orElse(false);
     }
 
     /**
@@ -727,9 +714,8 @@ public class OrderBuySagaService {
             return;
         }
 
-        Duration timeout = Duration.ofMillis(defaultTimeout);
-
-        if (saga.isCurrentStepTimedOut(timeout)) {
+        // The deadline may have moved since the scan read it
+        if (saga.getNextDeadline() != null && !Instant.now().isBefore(saga.getNextDeadline())) {
             log.warn("Step [{}] has timed out for saga: {}", saga.getCurrentStep(), saga.getSagaId());
 
             // Check if we can retry
@@ -737,9 +723,10 @@ public class OrderBuySagaService {
                 // Increment retry count
                 saga.incrementRetryCount();
                 saga.addEvent("RETRY", "Retrying step " + saga.getCurrentStep() + " after timeout");
+                saga.setCurrentStepStartTime(Instant.now());
 
                 // Save and retry the step
-                orderBuySagaRepository.save(saga);
+                orderBuySagaCache.save(saga);
                 processNextStep(saga);
 
             } else {
@@ -755,7 +742,7 @@ public class OrderBuySagaService {
      * Repository access methods
      */
     public Optional<OrderBuySagaState> findById(String sagaId) {
-        return orderBuySagaRepository.findById(sagaId);
+        return orderBuySagaCache.findById(sagaId);
     }
 
     // Add status LIMIT_ORDER_PENDING to active statuses method
@@ -775,7 +762,10 @@ public class OrderBuySagaService {
     }
 
     /**
-     * Cancel an order by user request
+     * Cancel an order by user request.
+     * The cancellation runs on the saga's lane like its events do and is written before returning, so a
+     * concurrent update of the saga on another instance cannot silently undo it: if that update got there
+     * first, the cancellation is decided again on the reloaded saga.
      *
      * @param sagaId The ID of the saga to cancel
      * @return The updated saga state
@@ -784,10 +774,26 @@ public class OrderBuySagaService {
      */
     @Transactional
     public OrderBuySagaState cancelOrderByUser(String sagaId) {
+        for (int attempt = 1; ; attempt++) {
+            OrderBuySagaState saga = sagaEventExecutor.call(sagaId, () -> requestCancellation(sagaId));
+            if (!sagaFlushService.flushAll()) {
+                throw new SagaExecutionException("Could not persist the cancellation of saga " + sagaId);
+            }
+            if (orderBuySagaCache.isCurrent(saga)) {
+                return saga;
+            }
+            if (attempt >= CANCEL_ATTEMPTS) {
+                throw new SagaExecutionException("Saga " + sagaId + " kept changing while being cancelled");
+            }
+            log.warn("Cancellation of saga {} lost a concurrent update, retrying on the reloaded saga", sagaId);
+        }
+    }
+
+    private OrderBuySagaState requestCancellation(String sagaId) {
         log.info("Processing cancellation request for saga: {}", sagaId);
 
         // Find the saga and lock it to prevent concurrent modifications
-        Optional<OrderBuySagaState> optionalSaga = orderBuySagaRepository.findById(sagaId);
+        Optional<OrderBuySagaState> optionalSaga = orderBuySagaCache.findById(sagaId);
         if (optionalSaga.isEmpty()) {
             log.warn("Saga not found for cancellation: {}", sagaId);
             throw new SagaNotFoundException(sagaId);
@@ -828,7 +834,7 @@ public class OrderBuySagaService {
         saga.setLastUpdatedTime(Instant.now());
 
         // Save the updated saga state
-        orderBuySagaRepository.save(saga);
+        orderBuySagaCache.save(saga);
 
         log.info("Order marked as cancelled by user: {}", sagaId);
 
@@ -4,19 +4,25 @@ import com.project.kafkamessagemodels.model.CommandMessage;
 import com.project.kafkamessagemodels.model.EventMessage;
 import com.project.kafkamessagemodels.model.enums.CommandType;
 import com.project.kafkamessagemodels.model.enums.EventType;
+import com.project.kafkamessagemodels.model.payload.BrokerExecutionPayload;
+import com.project.kafkamessagemodels.model.payload.MarketPricePayload;
+import com.project.kafkamessagemodels.model.payload.SharesPayload;
+import com.stocktrading.kafka.exception.SagaExecutionException;
 import com.stocktrading.kafka.exception.SagaNotFoundException;
 import com.stocktrading.kafka.model.OrderSellSagaState;
 import com.stocktrading.kafka.model.enums.OrderSellSagaStep;
 import com.stocktrading.kafka.model.enums.SagaStatus;
 import com.stocktrading.kafka.repository.OrderSellSagaRepository;
+import com.stocktrading.kafka.service.SagaDefinition.Action;
+import com.stocktrading.kafka.service.SagaDefinition.Transition;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import java.math.BigDecimal;
-import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 
@@ -26,17 +32,63 @@ import java.util.*;
 @Slf4j
 @Service
 @RequiredArgsConstructor
-public class OrderSellSagaService {
+public class OrderSellSagaService implements SagaEventHandler {
+
+    // Tries to apply a user cancellation before giving up on a saga that keeps changing underneath
+    private static final int CANCEL_ATTEMPTS = 3;
+
+    // Steps whose commands only read or validate, safe to send again while the participant may still answer the
+    // first one. Recovery resends no other step, those are left to the timeout handling at their deadline.
+    private static final Set<OrderSellSagaStep> RESENDABLE_STEPS = EnumSet.of(
+            OrderSellSagaStep.VERIFY_TRADING_PERMISSION, OrderSellSagaStep.VERIFY_ACCOUNT_STATUS,
+            OrderSellSagaStep.VALIDATE_STOCK, OrderSellSagaStep.VERIFY_SUFFICIENT_SHARES,
+            OrderSellSagaStep.GET_MARKET_PRICE);
 
     private final OrderSellSagaRepository orderSellSagaRepository;
-    private final KafkaMessagePublisher messagePublisher;
+    private final SagaStateCache<OrderSellSagaState> orderSellSagaCache;
     private final IdempotencyService idempotencyService;
+    private final SagaEventExecutor sagaEventExecutor;
+    private final SagaFlushService sagaFlushService;
 
     @Value("${saga.order.retry.max-attempts:3}")
     private int maxRetries;
 
-    @Value("${saga.timeout.default:30000}")
-    private long defaultTimeout;
+    private SagaDefinition<OrderSellSagaStep> sagaDefinition;
+
+    @PostConstruct
+    public void init() {
+        sagaDefinition = SagaDefinition.builder(OrderSellSagaStep.class,
+                        OrderSellSagaStep::getCommandType, OrderSellSagaStep::getStepNumber)
+                .topics(this::getTopicForStep)
+                // Validation, nothing to undo if these fail
+                .step(OrderSellSagaStep.CREATE_ORDER, OrderSellSagaStep.VERIFY_TRADING_PERMISSION, Action.TERMINATE)
+                .parallel(OrderSellSagaStep.VERIFY_TRADING_PERMISSION.getParallelGroup(),
+                        OrderSellSagaStep.RESERVE_SHARES, Action.TERMINATE)
+                // Execution
+                .step(OrderSellSagaStep.RESERVE_SHARES, OrderSellSagaStep.UPDATE_ORDER_VALIDATED, Action.COMPENSATE)
+                .step(OrderSellSagaStep.UPDATE_ORDER_VALIDATED, OrderSellSagaStep.SUBMIT_ORDER, Action.COMPENSATE)
+                .step(OrderSellSagaStep.SUBMIT_ORDER, OrderSellSagaStep.UPDATE_ORDER_EXECUTED, Action.COMPENSATE)
+                .step(OrderSellSagaStep.UPDATE_ORDER_EXECUTED, OrderSellSagaStep.CALCULATE_SETTLEMENT_AMOUNT,
+                        Action.COMPENSATE)
+                .step(OrderSellSagaStep.CALCULATE_SETTLEMENT_AMOUNT, OrderSellSagaStep.SETTLE_TRANSACTION,
+                        Action.COMPENSATE)
+                .step(OrderSellSagaStep.SETTLE_TRANSACTION, OrderSellSagaStep.UPDATE_PORTFOLIO, Action.COMPENSATE)
+                .step(OrderSellSagaStep.UPDATE_PORTFOLIO, OrderSellSagaStep.UPDATE_ORDER_COMPLETED, Action.COMPENSATE)
+                .step(OrderSellSagaStep.UPDATE_ORDER_COMPLETED, OrderSellSagaStep.COMPLETE_SAGA, Action.COMPENSATE)
+                // Compensation, a failure restarts it from what is still completed
+                .compensation(OrderSellSagaStep.RESTORE_PORTFOLIO, OrderSellSagaStep.REVERSE_FUNDS_CREDIT,
+                        Action.COMPENSATE)
+                .compensation(OrderSellSagaStep.REVERSE_FUNDS_CREDIT, OrderSellSagaStep.CANCEL_BROKER_ORDER,
+                        Action.COMPENSATE)
+                .compensation(OrderSellSagaStep.CANCEL_BROKER_ORDER, OrderSellSagaStep.RELEASE_SHARES, Action.COMPENSATE)
+                .compensation(OrderSellSagaStep.RELEASE_SHARES, OrderSellSagaStep.CANCEL_ORDER, Action.COMPENSATE)
+                .compensation(OrderSellSagaStep.CANCEL_ORDER, OrderSellSagaStep.COMPLETE_SAGA, Action.COMPENSATE)
+                // Limit orders resting in the broker's order book
+                .signal("LIMIT_ORDER_QUEUED", Action.PAUSE)
+                .signal("ORDER_EXPIRED", Action.EXPIRE)
+                .whileStatus(SagaStatus.LIMIT_ORDER_PENDING, EventType.ORDER_EXECUTED_BY_BROKER, Action.RESUME)
+                .build();
+    }
 
     /**
      * Start a new order sell saga - simplified version with default values
@@ -54,7 +106,7 @@ public class OrderSellSagaService {
                 sagaId, userId, accountId, stockSymbol, orderType,
                 quantity, limitPrice, timeInForce, maxRetries);
 
-        orderSellSagaRepository.save(saga);
+        orderSellSagaCache.save(saga);
 
         // Process the first step
         processNextStep(saga);
@@ -74,12 +126,12 @@ public class OrderSellSagaService {
             return;
         }
 
-        CommandMessage command = saga.createCommandForCurrentStep();
-        if (command == null) {
+        List<CommandMessage> commands = saga.createCommandsForCurrentStep();
+        if (commands.isEmpty()) {
             // This can happen for the COMPLETE_SAGA step which doesn't have a command
             if (saga.getCurrentStep() == OrderSellSagaStep.COMPLETE_SAGA) {
                 saga.moveToNextStep(); // This will mark the saga as COMPLETED
-                orderSellSagaRepository.save(saga);
+                orderSellSagaCache.save(saga);
                 log.info("Order sell saga [{}] completed successfully", saga.getSagaId());
             } else {
                 log.warn("No command defined for step: {} in saga: {}",
@@ -88,20 +140,30 @@ public class OrderSellSagaService {
             return;
         }
 
-        // Initialize the command
-        command.initialize();
+        if (commands.size() == 1) {
+            CommandMessage command = commands.get(0);
 
-        // Save the updated saga state
-        orderSellSagaRepository.save(saga);
+            // Initialize the command
+            command.initialize();
+
+            // Determine the topic based on the step
+            String targetTopic = sagaDefinition.topicOf(saga.getCurrentStep());
 
-        // Determine the topic based on the command type
-        String targetTopic = getTopicForCommandType(CommandType.valueOf(command.getType()));
+            // Save the updated saga state, the command is published from its outbox once the state is persisted
+            orderSellSagaCache.save(saga, command, targetTopic);
 
-        // Publish the command
-        messagePublisher.publishCommand(command, targetTopic);
+            log.info("Queued command [{}] for saga [{}] to topic: {}",
+                    command.getType(), saga.getSagaId(), targetTopic);
+            return;
+        }
+
+        // A parallel group, every member's command goes out with the same saved state
+        commands.forEach(CommandMessage::initialize);
+        orderSellSagaCache.save(saga, commands,
+                command -> sagaDefinition.topicOf(CommandType.valueOf(command.getType())));
 
-        log.info("Published command [{}] for saga [{}] to topic: {}",
-                command.getType(), saga.getSagaId(), targetTopic);
+        log.info("Queued {} parallel commands for saga [{}]: {}", commands.size(), saga.getSagaId(),
+                saga.getPendingGroupSteps());
     }
     /**
      * Handle the CALCULATE_SETTLEMENT_AMOUNT step
@@ -138,7 +200,7 @@ public class OrderSellSagaService {
 
             // Move to the next step
             saga.moveToNextStep();
-            orderSellSagaRepository.save(saga);
+            orderSellSagaCache.save(saga);
 
             // Process the next step (SETTLE_TRANSACTION)
             processNextStep(saga);
@@ -146,22 +208,38 @@ public class OrderSellSagaService {
             log.error("Error calculating settlement amount", e);
             saga.handleFailure("Failed to calculate settlement amount: " + e.getMessage(),
                     OrderSellSagaStep.CALCULATE_SETTLEMENT_AMOUNT.name());
-            orderSellSagaRepository.save(saga);
+            orderSellSagaCache.save(saga);
 
             // Start compensation
             startCompensation(saga);
         }
     }
 
+    @Override
+    public void preload(Collection<String> sagaIds) {
+        orderSellSagaCache.loadAll(sagaIds);
+    }
+
+    @Override
+    public boolean handles(String eventType) {
+        return sagaDefinition.handles(eventType);
+    }
+
+    @Override
+    public boolean owns(String sagaId) {
+        return orderSellSagaCache.contains(sagaId);
+    }
+
     /**
      * Handle an event message response
      */
+    @Override
     public void handleEventMessage(EventMessage event) {
         String sagaId = event.getSagaId();
         log.debug("Handling event [{}] for saga: {}", event.getType(), sagaId);
 
         // Find the saga
-        Optional<OrderSellSagaState> optionalSaga = orderSellSagaRepository.findById(sagaId);
+        Optional<OrderSellSagaState> optionalSaga = orderSellSagaCache.findById(sagaId);
         if (optionalSaga.isEmpty()) {
             log.warn("Received event for unknown saga: {}", sagaId);
             return;
@@ -175,28 +253,30 @@ public class OrderSellSagaService {
             return;
         }
 
-        // Special handling for LIMIT_ORDER_QUEUED event
-        if ("LIMIT_ORDER_QUEUED".equals(event.getType())) {
-            handleLimitOrderQueued(saga, event);
-            return;
-        }
-
-        // Special handling for ORDER_EXPIRED event
-        if ("ORDER_EXPIRED".equals(event.getType())) {
-            handleOrderExpired(saga, event);
-            return;
-        }
-
-        // Special handling for ORDER_EXECUTED_BY_BROKER event (for limit orders)
-        if ("ORDER_EXECUTED_BY_BROKER".equals(event.getType()) &&
-                saga.getStatus() == SagaStatus.LIMIT_ORDER_PENDING) {
-            // Resume the saga from the paused state
-            resumeLimitOrderSaga(saga, event);
-            return;
+        Transition<OrderSellSagaStep> transition = sagaDefinition.resolve(saga.getCurrentStep(), saga.getStatus(),
+                event);
+
+        // Limit order events apply whatever step the saga is in
+        if (transition != null) {
+            switch (transition.getAction()) {
+                case PAUSE:
+                    handleLimitOrderQueued(saga, event);
+                    return;
+                case EXPIRE:
+                    handleOrderExpired(saga, event);
+                    return;
+                case RESUME:
+                    // Resume the saga from the paused state
+                    resumeLimitOrderSaga(saga, event);
+                    return;
+                default:
+                    break;
+            }
         }
 
-        // Check if this is a response to the current step
-        boolean matchesCurrentStep = isEventForCurrentStep(saga, event);
+        // Check if this is a response to the current step, within a group to a member that has not replied yet
+        boolean matchesCurrentStep = transition != null
+                && (!transition.isParallel() || saga.isPendingGroupStep(transition.getStep()));
         if (!matchesCurrentStep) {
             log.warn("Received event [{}] for saga [{}] but doesn't match current step [{}]",
                     event.getType(), sagaId, saga.getCurrentStep());
@@ -212,9 +292,9 @@ public class OrderSellSagaService {
 
         // Process the event based on success/failure
         if (Boolean.TRUE.equals(event.getSuccess())) {
-            processSuccessEvent(saga, event);
+            processSuccessEvent(saga, event, transition);
         } else {
-            processFailureEvent(saga, event);
+            processFailureEvent(saga, event, transition);
         }
 
         // Record the event as processed
@@ -235,38 +315,22 @@ public class OrderSellSagaService {
         saga.setStatus(SagaStatus.LIMIT_ORDER_PENDING);
         saga.addEvent("LIMIT_ORDER_QUEUED", "Order added to broker order book for price monitoring");
 
+        BrokerExecutionPayload payload = event.getPayloadAs(BrokerExecutionPayload.class);
+
         // Store expiration time if available
-        String expiresAt = event.getPayloadValue("expiresAt");
+        String expiresAt = payload.getExpiresAt();
         if (expiresAt != null) {
             saga.storeStepData("limitOrderExpiresAt", expiresAt);
             saga.addEvent("EXPIRATION_SET", "Order will expire at " + expiresAt);
         }
 
         // Store current market price for reference
-        Object priceObj = event.getPayloadValue("currentPrice");
-        if (priceObj != null) {
-            BigDecimal currentPrice;
-            if (priceObj instanceof BigDecimal) {
-                currentPrice = (BigDecimal) priceObj;
-            } else if (priceObj instanceof Double) {
-                currentPrice = BigDecimal.valueOf((Double) priceObj);
-            } else if (priceObj instanceof Number) {
-                currentPrice = BigDecimal.valueOf(((Number) priceObj).doubleValue());
-            } else if (priceObj instanceof String) {
-                currentPrice = new BigDecimal((String) priceObj);
-            } else {
-                log.warn("Skipping currentMarketPrice storage due to unsupported format: {}",
-                        priceObj.getClass().getName());
-                currentPrice = null;
-            }
-
-            if (currentPrice != null) {
-                saga.storeStepData("currentMarketPrice", currentPrice);
-            }
+        if (payload.getCurrentPrice() != null) {
+            saga.storeStepData("currentMarketPrice", payload.getCurrentPrice());
         }
 
         saga.setLastUpdatedTime(Instant.now());
-        orderSellSagaRepository.save(saga);
+        orderSellSagaCache.save(saga);
 
         // Record the event as processed
         Map<String, Object> result = new HashMap<>();
@@ -290,7 +354,7 @@ public class OrderSellSagaService {
 
         // Save the updated state
         saga.setLastUpdatedTime(Instant.now());
-        orderSellSagaRepository.save(saga);
+        orderSellSagaCache.save(saga);
 
         // Start compensation
         startCompensation(saga);
@@ -309,28 +373,13 @@ public class OrderSellSagaService {
         log.info("Resuming saga [{}] after limit order execution", saga.getSagaId());
 
         // Update saga with execution details
-        saga.setBrokerOrderId(event.getPayloadValue("brokerOrderId"));
-
-        // Handle type conversion for executedQuantity
-        Object quantityObj = event.getPayloadValue("executedQuantity");
-        if (quantityObj instanceof Integer) {
-            saga.setExecutedQuantity((Integer) quantityObj);
-        } else if (quantityObj instanceof String) {
-            saga.setExecutedQuantity(Integer.parseInt((String) quantityObj));
-        } else if (quantityObj != null) {
-            saga.setExecutedQuantity(((Number) quantityObj).intValue());
+        BrokerExecutionPayload payload = event.getPayloadAs(BrokerExecutionPayload.class);
+        saga.setBrokerOrderId(payload.getBrokerOrderId());
+        if (payload.getExecutedQuantity() != null) {
+            saga.setExecutedQuantity(payload.getExecutedQuantity());
         }
-
-        // Handle type conversion for executionPrice
-        Object priceObj = event.getPayloadValue("executionPrice");
-        if (priceObj instanceof BigDecimal) {
-            saga.setExecutionPrice((BigDecimal) priceObj);
-        } else if (priceObj instanceof Double) {
-            saga.setExecutionPrice(BigDecimal.valueOf((Double) priceObj));
-        } else if (priceObj instanceof Number) {
-            saga.setExecutionPrice(BigDecimal.valueOf(((Number) priceObj).doubleValue()));
-        } else if (priceObj instanceof String) {
-            saga.setExecutionPrice(new BigDecimal((String) priceObj));
+        if (payload.getExecutionPrice() != null) {
+            saga.setExecutionPrice(payload.getExecutionPrice());
         }
 
         // Resume the saga at the UPDATE_ORDER_EXECUTED step
@@ -341,7 +390,7 @@ public class OrderSellSagaService {
 
         // Save the updated state
         saga.setLastUpdatedTime(Instant.now());
-        orderSellSagaRepository.save(saga);
+        orderSellSagaCache.save(saga);
 
         // Continue with next step
         processNextStep(saga);
@@ -356,22 +405,30 @@ public class OrderSellSagaService {
     /**
      * Process a successful event
      */
-    private void processSuccessEvent(OrderSellSagaState saga, EventMessage event) {
+    private void processSuccessEvent(OrderSellSagaState saga, EventMessage event,
+                                     Transition<OrderSellSagaStep> transition) {
         log.info("Processing success event [{}] for saga [{}]", event.getType(), saga.getSagaId());
 
         // Update saga with event data based on event type
-        updateSagaWithEventData(saga, event);
+        updateSagaWithEventData(saga, event, transition.getStep());
 
-        if (saga.getStatus() == SagaStatus.COMPENSATING) {
+        if (transition.getAction() == Action.COMPENSATION_ADVANCE) {
             // For compensation steps, handle them differently
             handleCompensationStepSuccess(saga);
+        } else if (transition.getAction() == Action.JOIN) {
+            // Advance only once every member of the group has replied
+            if (!saga.completeGroupStep(transition.getStep())) {
+                orderSellSagaCache.save(saga);
+                return;
+            }
+            saga.moveToNextStep();
         } else {
             // Normal flow - move to the next step
             saga.moveToNextStep();
         }
 
         // Save the updated saga
-        orderSellSagaRepository.save(saga);
+        orderSellSagaCache.save(saga);
 
         // Process the next step if saga is still active
         if (saga.getStatus() == SagaStatus.IN_PROGRESS ||
@@ -417,17 +474,21 @@ public class OrderSellSagaService {
     /**
      * Process a failure event
      */
-    private void processFailureEvent(OrderSellSagaState saga, EventMessage event) {
+    private void processFailureEvent(OrderSellSagaState saga, EventMessage event,
+                                     Transition<OrderSellSagaStep> transition) {
         log.warn("Processing failure event [{}] for saga [{}]: {}",
                 event.getType(), saga.getSagaId(), event.getErrorMessage());
 
+        // Within a parallel group the failing step is the member that replied, the first failure fails the group
+        String failedStep = transition.getStep().name();
+
         // Update saga with failure reason
         String failureReason = event.getErrorMessage();
         if (failureReason == null) {
-            failureReason = "Failed in step: " + saga.getCurrentStep().name();
+            failureReason = "Failed in step: " + failedStep;
         }
 
-        saga.handleFailure(failureReason, saga.getCurrentStep().name());
+        saga.handleFailure(failureReason, failedStep);
 
         // Start compensation based on the saga status
         if (saga.getStatus() == SagaStatus.LIMIT_ORDER_PENDING) {
@@ -435,11 +496,11 @@ public class OrderSellSagaService {
             saga.setBrokerOrderId(null); // Ensure this is null since order wasn't executed
             startCompensation(saga);
         } else if (saga.getStatus() == SagaStatus.FAILED) {
-            if (isValidationStep(saga.getCurrentStep())) {
+            if (transition.getAction() == Action.TERMINATE) {
                 // For validation steps, just terminate without compensation
                 saga.setEndTime(Instant.now());
                 saga.addEvent("SAGA_TERMINATED", "Saga terminated due to validation failure");
-                orderSellSagaRepository.save(saga);
+                orderSellSagaCache.save(saga);
             } else {
                 // For other steps, start compensation
                 startCompensation(saga);
@@ -469,69 +530,52 @@ public class OrderSellSagaService {
                 )
         );
 
-        orderSellSagaRepository.save(saga);
+        orderSellSagaCache.save(saga);
         processNextStep(saga);
     }
 
-    /**
-     * Check if the current step is a validation step (no compensation needed)
-     */
-    private boolean isValidationStep(OrderSellSagaStep step) {
-        return step == OrderSellSagaStep.CREATE_ORDER ||
-                step == OrderSellSagaStep.VERIFY_TRADING_PERMISSION ||
-                step == OrderSellSagaStep.VERIFY_ACCOUNT_STATUS ||
-                step == OrderSellSagaStep.VALIDATE_STOCK ||
-                step == OrderSellSagaStep.VERIFY_SUFFICIENT_SHARES ||
-                step == OrderSellSagaStep.GET_MARKET_PRICE;
-    }
-
     /**
      * Update the saga state with data from the event
      */
-    private void updateSagaWithEventData(OrderSellSagaState saga, EventMessage event) {
+    private void updateSagaWithEventData(OrderSellSagaState saga, EventMessage event, OrderSellSagaStep step) {
         try {
-            // Store specific data based on event type
-            switch (event.getType()) {
-                case "ORDER_CREATED":
+            // Store specific data based on the step that succeeded
+            switch (step) {
+                case CREATE_ORDER:
                     saga.setOrderId(event.getPayloadValue("orderId"));
                     break;
 
-                case "SHARES_VALIDATED":
+                case VERIFY_SUFFICIENT_SHARES:
                     // Optionally store information about available shares
-                    if (event.getPayload().containsKey("availableShares")) {
-                        saga.storeStepData("availableShares", event.getPayloadValue("availableShares"));
+                    Integer availableShares = event.getPayloadAs(SharesPayload.class).getAvailableQuantity();
+                    if (availableShares != null) {
+                        saga.storeStepData("availableShares", availableShares);
                     }
                     break;
 
-                case "PRICE_PROVIDED":
+                case GET_MARKET_PRICE:
                     // Store market price for reference
-                    saga.storeStepData("marketPrice", event.getPayloadValue("currentPrice"));
+                    saga.storeStepData("marketPrice", event.getPayloadAs(MarketPricePayload.class).getCurrentPrice());
                     break;
 
-                case "SHARES_RESERVED":
-                    saga.setReservationId(event.getPayloadValue("reservationId"));
-                    saga.setReservedQuantity(event.getPayloadValue("reservedQuantity"));
+                case RESERVE_SHARES:
+                    SharesPayload reservation = event.getPayloadAs(SharesPayload.class);
+                    saga.setReservationId(reservation.getReservationId());
+                    saga.setReservedQuantity(reservation.getReservedQuantity());
                     break;
 
-                case "ORDER_EXECUTED_BY_BROKER":
-                    saga.setBrokerOrderId(event.getPayloadValue("brokerOrderId"));
-                    saga.setExecutedQuantity(event.getPayloadValue("executedQuantity"));
+                case SUBMIT_ORDER:
+                    BrokerExecutionPayload execution = event.getPayloadAs(BrokerExecutionPayload.class);
+                    saga.setBrokerOrderId(execution.getBrokerOrderId());
+                    saga.setExecutedQuantity(execution.getExecutedQuantity());
                     if (saga.getExecutionPrice() == null) {
-                        // Handle type conversion for executionPrice
-                        Object priceObj = event.getPayloadValue("executionPrice");
-                        if (priceObj instanceof BigDecimal) {
-                            saga.setExecutionPrice((BigDecimal) priceObj);
-                        } else if (priceObj instanceof Double) {
-                            saga.setExecutionPrice(BigDecimal.valueOf((Double) priceObj));
-                        } else if (priceObj instanceof Number) {
-                            saga.setExecutionPrice(BigDecimal.valueOf(((Number) priceObj).doubleValue()));
-                        } else if (priceObj instanceof String) {
-                            saga.setExecutionPrice(new BigDecimal((String) priceObj));
-                        }
+                        saga.setExecutionPrice(execution.getExecutionPrice());
                     }
                     break;
 
-                // Handle other event types as needed
+                // Handle other steps as needed
+                default:
+                    break;
             }
 
             // Store any additional event payload data for future reference
@@ -545,120 +589,88 @@ public class OrderSellSagaService {
     }
 
     /**
-     * Check if this event is a response to the current saga step
+     * Topic the command of a step is sent to, null for steps performed in the orchestrator
      */
-    private boolean isEventForCurrentStep(OrderSellSagaState saga, EventMessage event) {
-        if (saga.getCurrentStep() == null) {
-            return false;
-        }
-
-        // For compensation steps, we need special handling
-        if (saga.getCurrentStep().isCompensationStep()) {
-            return isEventForCompensationStep(saga, event);
-        }
-
-        try {
-            EventType eventType = EventType.valueOf(event.getType());
-            CommandType expectedCommandType = saga.getCurrentStep().getCommandType();
-
-            // Get the command type associated with this event type
-            CommandType eventCommandType = eventType.getAssociatedCommandType();
-
-            // This is the key check - does this event correspond to the current step's command?
-            boolean matchingCommandType = eventCommandType == expectedCommandType;
-
-            // Check if the step ID matches (if provided)
-            boolean matchingStepId = event.getStepId() == null ||
-                    event.getStepId().equals(saga.getCurrentStep().getStepNumber());
-
-            // Log details in case of mismatch for debugging
-            if (!matchingCommandType) {
-                log.debug("Event command type mismatch: event={}, expected={}",
-                        eventCommandType, expectedCommandType);
-            }
-
-            if (!matchingStepId) {
-                log.debug("Event step ID mismatch: event={}, current={}",
-                        event.getStepId(), saga.getCurrentStep().getStepNumber());
-            }
-
-            return matchingCommandType && matchingStepId;
-
-        } catch (Exception e) {
-            log.error("Error checking if event matches current step: {}", e.getMessage(), e);
-            return false;
+    private String getTopicForStep(OrderSellSagaStep step) {
+        switch (step) {
+            case CREATE_ORDER:
+            case UPDATE_ORDER_VALIDATED:
+            case UPDATE_ORDER_EXECUTED:
+            case UPDATE_ORDER_COMPLETED:
+            case CANCEL_ORDER:
+                return "order.commands.order-sell";
+            case VERIFY_TRADING_PERMISSION:
+                return "user.commands.order-sell";
+            case VERIFY_ACCOUNT_STATUS:
+            case SETTLE_TRANSACTION:
+            case REVERSE_FUNDS_CREDIT:
+                return "account.commands.order-sell";
+            case VALIDATE_STOCK:
+            case GET_MARKET_PRICE:
+                return "market.commands.order-sell";
+            case VERIFY_SUFFICIENT_SHARES:
+            case RESERVE_SHARES:
+            case UPDATE_PORTFOLIO:
+            case RELEASE_SHARES:
+            case RESTORE_PORTFOLIO:
+                return "portfolio.commands.order-sell";
+            case SUBMIT_ORDER:
+            case CANCEL_BROKER_ORDER:
+                return "broker.commands.order-sell";
+            default:
+                return null;
         }
     }
 
     /**
-     * Check if this event is a response to the current compensation step
+     * Handle a saga whose step deadline has passed
      */
-    private boolean isEventForCompensationStep(OrderSellSagaState saga, EventMessage event) {
-        try {
-            EventType eventType = EventType.valueOf(event.getType());
-            CommandType expectedCommandType = saga.getCurrentStep().getCommandType();
-
-            // Log detailed matching information for debugging
-            log.debug("Compensation event matching: eventType={}, eventCommandType={}, expectedCommandType={}, stepId={}, currentStepNumber={}",
-                    eventType, eventType.getAssociatedCommandType(), expectedCommandType,
-                    event.getStepId(), saga.getCurrentStep().getStepNumber());
-
-            // For compensation steps, use more flexible matching criteria
-            // 1. The event type should match the expected command type
-            boolean commandTypeMatches = eventType.getAssociatedCommandType() == expectedCommandType;
-
-            // 2. If stepId is provided, it should match, but don't require it
-            boolean stepIdMatches = event.getStepId() == null ||
-                    event.getStepId().equals(saga.getCurrentStep().getStepNumber());
-
-            // Return true if basic command type matching passes
-            return commandTypeMatches && stepIdMatches;
-        } catch (Exception e) {
-            log.error("Error checking if event matches compensation step: {}", e.getMessage(), e);
-            return false;
-        }
+    public void handleTimeout(String sagaId) {
+        orderSellSagaCache.findById(sagaId).ifPresent(this::handlePotentialTimeout);
     }
 
-    /**
-     * Get the appropriate Kafka topic for a command type
-     */
-    private String getTopicForCommandType(CommandType commandType) {
-        String commandName = commandType.name();
-
-        if (commandName.startsWith("USER_")) {
-            return "user.commands.order-sell";
-        } else if (commandName.startsWith("ACCOUNT_")) {
-            return "account.commands.order-sell";
-        } else if (commandName.startsWith("ORDER_")) {
-            return "order.commands.order-sell";
-        } else if (commandName.startsWith("MARKET_")) {
-            return "market.commands.order-sell";
-        } else if (commandName.startsWith("PORTFOLIO_")) {
-            return "portfolio.commands.order-sell";
-        } else if (commandName.startsWith("BROKER_")) {
-            return "broker.commands.order-sell";
-        }
-
-        return "saga.dlq"; // Default fallback
+    @Override
+    public boolean awaits(String sagaId, CommandMessage command) {
+        return orderSellSagaCache.findById(sagaId)
+                .filter(saga -> saga.getStatus() == SagaStatus.STARTED || saga.getStatus() == SagaStatus.IN_PROGRESS
+                        || saga.getStatus() == SagaStatus.COMPENSATING)
+                .filter(saga -> {
+                    // Every member of a parallel group is waited on until the group completes
+                    List<String> waitingOn = saga.getPendingGroupSteps() != null ? saga.getPendingGroupSteps()
+                            : saga.getCurrentStep() != null ? List.of(saga.getCurrentStep().name()) : List.of();
+                    return waitingOn.stream()
+                            .filter(step -> saga.getCompletedSteps() == null || !saga.getCompletedSteps().contains(step))
+                            .map(OrderSellSagaStep::valueOf)
+                            .anyMatch(step -> step.getCommandType() != null
+                                    && step.getCommandType().name().equals(command.getType()));
+                })
+                .isPresent();
     }
 
     /**
-     * Check for timed-out steps and handle them
+     * Send the command of the current step again for a saga a previous run left waiting on it, as a retry of the step.
+     * Only for steps safe to repeat, and only while the saga is still in the step and step start time the recovery
+     * scan read, a saga that moved since was answered or retried by the listeners or the timeout scan meanwhile.
+     * Returns whether the step was resent.
      */
-    public void checkForTimeouts() {
-        log.debug("Checking for timed-out saga steps");
-
-        List<SagaStatus> activeStatuses = Arrays.asList(SagaStatus.STARTED, SagaStatus.IN_PROGRESS);
-
-        // Find sagas that might have timed out
-        Instant cutoffTime = Instant.now().minus(Duration.ofMillis(defaultTimeout));
-
-        List<OrderSellSagaState> potentiallyTimedOutSagas =
-                orderSellSagaRepository.findPotentiallyTimedOutSagas(activeStatuses, cutoffTime);
-
-        for (OrderSellSagaState saga : potentiallyTimedOutSagas) {
-            handlePotentialTimeout(saga);
-        }
+    public boolean resumeStuckStep(String sagaId, String scannedStep, Instant scannedStepStart) {
+        return orderSellSagaCache.findById(sagaId).map(saga -> {
+            if (saga.getCurrentStep() == null || !RESENDABLE_STEPS.contains(saga.getCurrentStep())
+                    || !saga.getCurrentStep().name().equals(scannedStep) || saga.getCurrentStepStartTime() == null
+                    || scannedStepStart == null
+                    || saga.getCurrentStepStartTime().toEpochMilli() != scannedStepStart.toEpochMilli()
+                    || saga.getRetryCount() >= saga.getMaxRetries()
+                    || (saga.getStatus() != SagaStatus.STARTED && saga.getStatus() != SagaStatus.IN_PROGRESS
+                    && saga.getStatus() != SagaStatus.COMPENSATING)) {
+                return false;
+            }
+            log.warn("Resending step [{}] of saga {} left waiting by a previous run", saga.getCurrentStep(), saga.getSagaId());
+            saga.incrementRetryCount();
+            saga.addEvent("RECOVERY", "Resending step " + saga.getCurrentStep() + " after restart");
+            saga.setCurrentStepStartTime(Instant.now());
+            processNextStep(saga);
+            return true;
+        }).orElse(false);
     }
 
     /**
@@ -669,9 +681,8 @@ public class OrderSellSagaService {
             return;
         }
 
-        Duration timeout = Duration.ofMillis(defaultTimeout);
-
-        if (saga.isCurrentStepTimedOut(timeout)) {
+        // The deadline may have moved since the scan read it
+        if (saga.getNextDeadline() != null && !Instant.now().isBefore(saga.getNextDeadline())) {
             log.warn("Step [{}] has timed out for saga: {}", saga.getCurrentStep(), saga.getSagaId());
 
             // Check if we can retry
@@ -679,9 +690,10 @@ public class OrderSellSagaService {
                 // Increment retry count
                 saga.incrementRetryCount();
                 saga.addEvent("RETRY", "Retrying step " + saga.getCurrentStep() + " after timeout");
+                saga.setCurrentStepStartTime(Instant.now());
 
                 // Save and retry the step
-                orderSellSagaRepository.save(saga);
+                orderSellSagaCache.save(saga);
                 processNextStep(saga);
 
             } else {
@@ -697,7 +709,7 @@ public class OrderSellSagaService {
      * Repository access methods
      */
     public Optional<OrderSellSagaState> findById(String sagaId) {
-        return orderSellSagaRepository.findById(sagaId);
+        return orderSellSagaCache.findById(sagaId);
     }
 
     public List<OrderSellSagaState> findActiveSagas() {
@@ -716,14 +728,38 @@ public class OrderSellSagaService {
     }
 
     /**
-     * Cancel an order by user request
+     * Cancel an order by user request.
+     * The cancellation runs on the saga's lane like its events do and is written before returning, so a
+     * concurrent update of the saga on another instance cannot silently undo it: if that update got there
+     * first, the cancellation is decided again on the reloaded saga.
+     *
+     * @param sagaId The ID of the saga to cancel
+     * @return The updated saga state
+     * @throws SagaNotFoundException if the saga is not found
+     * @throws IllegalStateException if the saga cannot be cancelled in its current state
      */
     @Transactional
     public OrderSellSagaState cancelOrderByUser(String sagaId) {
+        for (int attempt = 1; ; attempt++) {
+            OrderSellSagaState saga = sagaEventExecutor.call(sagaId, () -> requestCancellation(sagaId));
+            if (!sagaFlushService.flushAll()) {
+                throw new SagaExecutionException("Could not persist the cancellation of saga " + sagaId);
+            }
+            if (orderSellSagaCache.isCurrent(saga)) {
+                return saga;
+            }
+            if (attempt >= CANCEL_ATTEMPTS) {
+                throw new SagaExecutionException("Saga " + sagaId + " kept changing while being cancelled");
+            }
+            log.warn("Cancellation of saga {} lost a concurrent update, retrying on the reloaded saga", sagaId);
+        }
+    }
+
+    private OrderSellSagaState requestCancellation(String sagaId) {
         log.info("Processing cancellation request for saga: {}", sagaId);
 
         // Find the saga and lock it to prevent concurrent modifications
-        Optional<OrderSellSagaState> optionalSaga = orderSellSagaRepository.findById(sagaId);
+        Optional<OrderSellSagaState> optionalSaga = orderSellSagaCache.findById(sagaId);
         if (optionalSaga.isEmpty()) {
             log.warn("Saga not found for cancellation: {}", sagaId);
             throw new SagaNotFoundException(sagaId);
@@ -764,7 +800,7 @@ public class OrderSellSagaService {
         saga.setLastUpdatedTime(Instant.now());
 
         // Save the updated saga state
-        orderSellSagaRepository.save(saga);
+        orderSellSagaCache.save(saga);
 
         log.info("Order marked as cancelled by user: {}", sagaId);
 
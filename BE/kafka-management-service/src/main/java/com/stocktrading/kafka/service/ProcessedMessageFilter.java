@@ -0,0 +1,171 @@
+package com.stocktrading.kafka.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-memory view of processed message IDs: an exact LRU of recent IDs in front of
+ * Bloom filters covering everything recorded since the filter was built.
+ * The Bloom filters rotate through two generations so they never saturate.
+ */
+public class ProcessedMessageFilter {
+
+    public enum Result {
+        // Seen recently, definitely processed
+        PROCESSED,
+        // Possibly processed, confirm with the store
+        MAYBE_PROCESSED,
+        // Never recorded through this filter
+        NOT_SEEN
+    }
+
+    private final Map<String, Boolean> recent;
+    private final long generationCapacity;
+    private final double falsePositiveRate;
+
+    private volatile BloomFilter current;
+    private volatile BloomFilter previous;
+    // Time of the last add to a dropped generation, 0 if none was dropped; IDs added until then may be unknown
+    private volatile long droppedUntil;
+
+    public ProcessedMessageFilter(int recentCapacity, long generationCapacity, double falsePositiveRate) {
+        this.recent = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > recentCapacity;
+            }
+        };
+        this.generationCapacity = generationCapacity;
+        this.falsePositiveRate = falsePositiveRate;
+        this.current = new BloomFilter(generationCapacity, falsePositiveRate);
+    }
+
+    public Result check(String messageId) {
+        synchronized (recent) {
+            if (recent.get(messageId) != null) {
+                return Result.PROCESSED;
+            }
+        }
+
+        long[] hash = hash(messageId);
+        BloomFilter older = previous;
+        if (current.mightContain(hash) || (older != null && older.mightContain(hash))) {
+            return Result.MAYBE_PROCESSED;
+        }
+        return Result.NOT_SEEN;
+    }
+
+    public void add(String messageId) {
+        synchronized (recent) {
+            recent.put(messageId, Boolean.TRUE);
+        }
+        addToFilter(messageId);
+    }
+
+    /**
+     * Take back an ID added before its processing was undone. The Bloom filters keep it, so later checks
+     * answer MAYBE_PROCESSED and go to the store.
+     */
+    public void forget(String messageId) {
+        synchronized (recent) {
+            recent.remove(messageId);
+        }
+    }
+
+    /**
+     * Add an ID known to be processed without promoting it into the recent set, used when warming up
+     */
+    public void addToFilter(String messageId) {
+        BloomFilter filter = current;
+        filter.put(hash(messageId));
+        if (filter.size() >= generationCapacity) {
+            rotate(filter);
+        }
+    }
+
+    /**
+     * Whether every ID added at or after the given time is still in the filter, i.e. NOT_SEEN really means
+     * not added since then
+     */
+    public boolean coversAddedSince(long sinceMillis) {
+        return droppedUntil < sinceMillis;
+    }
+
+    private synchronized void rotate(BloomFilter full) {
+        if (current == full) {
+            if (previous != null) {
+                droppedUntil = Math.max(droppedUntil, previous.lastAddedAt);
+            }
+            previous = full;
+            current = new BloomFilter(generationCapacity, falsePositiveRate);
+        }
+    }
+
+    // Two independent 64-bit hashes of the ID for double hashing
+    private static long[] hash(String messageId) {
+        byte[] bytes = messageId.getBytes(StandardCharsets.UTF_8);
+        long h1 = 0xcbf29ce484222325L;
+        long h2 = 0x9e3779b97f4a7c15L;
+        for (byte b : bytes) {
+            h1 = (h1 ^ (b & 0xff)) * 0x100000001b3L;
+            h2 = Long.rotateLeft(h2 ^ (b & 0xff), 27) * 0xc2b2ae3d27d4eb4fL;
+        }
+        return new long[]{mix(h1), mix(h2) | 1};
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static class BloomFilter {
+        private final AtomicLongArray bits;
+        private final long bitCount;
+        private final int hashCount;
+        private final AtomicLong size = new AtomicLong();
+        private volatile long lastAddedAt;
+
+        BloomFilter(long expectedInsertions, double falsePositiveRate) {
+            long optimalBits = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            int words = (int) Math.max(1, (optimalBits + 63) / 64);
+            this.bits = new AtomicLongArray(words);
+            this.bitCount = (long) words * 64;
+            this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedInsertions * Math.log(2)));
+        }
+
+        void put(long[] hash) {
+            for (int i = 0; i < hashCount; i++) {
+                long bit = Math.floorMod(hash[0] + i * hash[1], bitCount);
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long value;
+                do {
+                    value = bits.get(word);
+                } while ((value & mask) == 0 && !bits.compareAndSet(word, value, value | mask));
+            }
+            size.incrementAndGet();
+            lastAddedAt = System.currentTimeMillis();
+        }
+
+        boolean mightContain(long[] hash) {
+            for (int i = 0; i < hashCount; i++) {
+                long bit = Math.floorMod(hash[0] + i * hash[1], bitCount);
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        long size() {
+            return size.get();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.stocktrading.kafka.service;
+
+import com.project.kafkamessagemodels.hop.HopMetrics;
+import com.project.kafkamessagemodels.model.EventMessage;
+import com.project.kafkamessagemodels.model.Hop;
+import com.stocktrading.kafka.dto.SagaCriticalPath;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+
+/**
+ * Keeps the hop trails of the events handled for recent sagas and breaks a saga's time down along its
+ * critical path: the chain of steps, walking back from the last one, each waiting on the event handled
+ * last before its command was sent. Held in memory per orchestrator instance, the oldest sagas fall out.
+ */
+@Service
+public class SagaCriticalPathService {
+
+    private static final String[] SEGMENTS = {"wait", "commandTransit", "handling", "eventTransit", "orchestrator"};
+
+    private final HopMetrics hopMetrics;
+    private final Map<String, List<SagaCriticalPath.Step>> recent;
+
+    public SagaCriticalPathService(HopMetrics hopMetrics,
+                                   @Value("${saga.hops.recent-sagas:10000}") int capacity) {
+        this.hopMetrics = hopMetrics;
+        this.recent = new LinkedHashMap<>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<SagaCriticalPath.Step>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Stamp an event handled by the orchestrator and remember its step
+     */
+    public void record(EventMessage event) {
+        List<Hop> hops = event.getHops();
+        if (hops == null || hops.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Hop eventHop = hops.get(hops.size() - 1);
+        eventHop.setHandledAt(now);
+        if (eventHop.getDequeuedAt() != null) {
+            hopMetrics.recordHandling(event.getType(), now - eventHop.getDequeuedAt());
+        }
+        if (hops.size() < 2 || hops.get(hops.size() - 2).getEnqueuedAt() == null) {
+            // Not an answer to a command of ours, nothing to place on the saga's timeline
+            return;
+        }
+        Hop commandHop = hops.get(hops.size() - 2);
+
+        SagaCriticalPath.Step step = new SagaCriticalPath.Step();
+        step.setStepId(event.getStepId() != null ? String.valueOf(event.getStepId()) : null);
+        step.setEventType(event.getType());
+        step.setService(eventHop.getService());
+        step.setCommandSentAt(commandHop.getEnqueuedAt());
+        step.setHandledAt(now);
+        step.setCommandTransitMs(between(commandHop.getEnqueuedAt(), commandHop.getDequeuedAt()));
+        step.setHandlingMs(between(commandHop.getDequeuedAt(), commandHop.getHandledAt()));
+        step.setEventTransitMs(between(eventHop.getEnqueuedAt(), eventHop.getDequeuedAt()));
+        step.setOrchestratorMs(between(eventHop.getDequeuedAt(), now));
+
+        synchronized (recent) {
+            recent.computeIfAbsent(event.getSagaId(), id -> new ArrayList<>()).add(step);
+        }
+    }
+
+    public Optional<SagaCriticalPath> getCriticalPath(String sagaId) {
+        List<SagaCriticalPath.Step> steps;
+        synchronized (recent) {
+            List<SagaCriticalPath.Step> recorded = recent.get(sagaId);
+            if (recorded == null) {
+                return Optional.empty();
+            }
+            steps = new ArrayList<>(recorded.size());
+            for (SagaCriticalPath.Step step : recorded) {
+                SagaCriticalPath.Step copy = new SagaCriticalPath.Step();
+                copy.setStepId(step.getStepId());
+                copy.setEventType(step.getEventType());
+                copy.setService(step.getService());
+                copy.setCommandSentAt(step.getCommandSentAt());
+                copy.setHandledAt(step.getHandledAt());
+                copy.setCommandTransitMs(step.getCommandTransitMs());
+                copy.setHandlingMs(step.getHandlingMs());
+                copy.setEventTransitMs(step.getEventTransitMs());
+                copy.setOrchestratorMs(step.getOrchestratorMs());
+                steps.add(copy);
+            }
+        }
+        steps.sort(Comparator.comparingLong(SagaCriticalPath.Step::getCommandSentAt));
+
+        SagaCriticalPath.Step last = null;
+        for (SagaCriticalPath.Step step : steps) {
+            SagaCriticalPath.Step unblockedBy = unblockedBy(steps, step);
+            if (unblockedBy != null) {
+                step.setWaitMs(step.getCommandSentAt() - unblockedBy.getHandledAt());
+            }
+            if (last == null || step.getHandledAt() > last.getHandledAt()) {
+                last = step;
+            }
+        }
+
+        Map<String, Long> totals = new LinkedHashMap<>();
+        for (String segment : SEGMENTS) {
+            totals.put(segment, 0L);
+        }
+        for (SagaCriticalPath.Step step = last; step != null; step = unblockedBy(steps, step)) {
+            step.setOnCriticalPath(true);
+            totals.merge("wait", orZero(step.getWaitMs()), Long::sum);
+            totals.merge("commandTransit", orZero(step.getCommandTransitMs()), Long::sum);
+            totals.merge("handling", orZero(step.getHandlingMs()), Long::sum);
+            totals.merge("eventTransit", orZero(step.getEventTransitMs()), Long::sum);
+            totals.merge("orchestrator", orZero(step.getOrchestratorMs()), Long::sum);
+        }
+        String dominant = totals.entrySet().stream()
+                .max(Map.Entry.comparingByValue())
+                .map(Map.Entry::getKey)
+                .orElse(null);
+
+        long elapsed = last.getHandledAt() - steps.get(0).getCommandSentAt();
+        return Optional.of(new SagaCriticalPath(sagaId, elapsed, totals, dominant, steps));
+    }
+
+    // The step handled last before this step's command was sent, null for the first step
+    private SagaCriticalPath.Step unblockedBy(List<SagaCriticalPath.Step> steps, SagaCriticalPath.Step step) {
+        SagaCriticalPath.Step found = null;
+        for (SagaCriticalPath.Step other : steps) {
+            if (other != step && other.getHandledAt() <= step.getCommandSentAt()
+                    && (found == null || other.getHandledAt() > found.getHandledAt())) {
+                found = other;
+            }
+        }
+        return found;
+    }
+
+    private static Long between(Long from, Long to) {
+        return from != null && to != null ? to - from : null;
+    }
+
+    private static long orZero(Long millis) {
+        return millis != null ? millis : 0L;
+    }
+}
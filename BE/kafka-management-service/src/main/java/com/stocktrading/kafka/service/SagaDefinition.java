@@ -0,0 +1,347 @@
+package com.stocktrading.kafka.service;
+
+import com.project.kafkamessagemodels.model.EventMessage;
+import com.project.kafkamessagemodels.model.enums.CommandType;
+import com.project.kafkamessagemodels.model.enums.EventType;
+import com.stocktrading.kafka.model.enums.SagaStatus;
+import lombok.Getter;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * Transition table of one saga type.
+ * Declared once with the builder and compiled at startup into flat arrays indexed by step ordinal,
+ * event column and outcome, so matching an event to what it does is a few array reads.
+ */
+public final class SagaDefinition<S extends Enum<S>> {
+
+    /**
+     * What the owning service does with an event that matched a transition
+     */
+    public enum Action {
+        // Step succeeded, continue with the next step
+        ADVANCE,
+        // Member of a parallel group succeeded, continue once every member has
+        JOIN,
+        // Compensation step succeeded, continue with the next compensation step
+        COMPENSATION_ADVANCE,
+        // Step failed before anything needs undoing, end the saga
+        TERMINATE,
+        // Step failed, undo the completed steps
+        COMPENSATE,
+        // Compensation step failed, go back to the step before it
+        RETRY_COMPENSATION,
+        // Limit order queued at the broker, wait for execution or expiry
+        PAUSE,
+        // Queued limit order expired
+        EXPIRE,
+        // Queued limit order executed
+        RESUME
+    }
+
+    @Getter
+    public static final class Transition<S> {
+        // Step the event answers
+        private final S step;
+        private final Action action;
+        // Step to continue with, null where the saga state decides
+        private final S next;
+        // Topic of the next step's command, null if it sends none
+        private final String nextTopic;
+        // Whether the step is a member of a parallel group
+        private final boolean parallel;
+        // Step ID a reply must carry if it carries one, -1 to accept any
+        private final int stepNumber;
+
+        Transition(S step, Action action, S next, String nextTopic, boolean parallel, int stepNumber) {
+            this.step = step;
+            this.action = action;
+            this.next = next;
+            this.nextTopic = nextTopic;
+            this.parallel = parallel;
+            this.stepNumber = stepNumber;
+        }
+    }
+
+    // Columns of the declared signals outside EventType, placed after the EventType ordinals
+    private final Map<String, Integer> signalColumns;
+    private final int width;
+
+    private final Transition<S>[] byStep;
+    private final Transition<S>[] anyStep;
+    private final Transition<S>[] byStatus;
+    // Columns some transition is declared for
+    private final boolean[] handled;
+    private final Object[] nextSteps;
+    private final String[] stepTopics;
+    private final EnumMap<CommandType, String> commandTopics;
+
+    private SagaDefinition(Map<String, Integer> signalColumns, int width, Transition<S>[] byStep, Transition<S>[] anyStep,
+                           Transition<S>[] byStatus, boolean[] handled, Object[] nextSteps, String[] stepTopics,
+                           EnumMap<CommandType, String> commandTopics) {
+        this.signalColumns = signalColumns;
+        this.width = width;
+        this.byStep = byStep;
+        this.anyStep = anyStep;
+        this.byStatus = byStatus;
+        this.handled = handled;
+        this.nextSteps = nextSteps;
+        this.stepTopics = stepTopics;
+        this.commandTopics = commandTopics;
+    }
+
+    public static <S extends Enum<S>> Builder<S> builder(Class<S> stepType, Function<S, CommandType> commandOf,
+                                                         ToIntFunction<S> stepNumberOf) {
+        return new Builder<>(stepType, commandOf, stepNumberOf);
+    }
+
+    /**
+     * Find the transition an event triggers for a saga, or null if the saga is not waiting for it.
+     * Signals match in any step, then transitions bound to the saga's status, then those of its current step.
+     */
+    public Transition<S> resolve(S currentStep, SagaStatus status, EventMessage event) {
+        int column = columnOf(event.getEventType(), event.getType());
+        if (column < 0) {
+            return null;
+        }
+        int cell = column << 1 | (Boolean.TRUE.equals(event.getSuccess()) ? 1 : 0);
+        Integer stepId = event.getStepId();
+
+        Transition<S> transition = anyStep[cell];
+        if (transition != null) {
+            return transition;
+        }
+        if (status != null) {
+            transition = byStatus[status.ordinal() * width + cell];
+            if (transition != null) {
+                return transition;
+            }
+        }
+        if (currentStep == null) {
+            return null;
+        }
+        transition = byStep[currentStep.ordinal() * width + cell];
+        if (transition == null || (stepId != null && transition.stepNumber >= 0 && stepId != transition.stepNumber)) {
+            return null;
+        }
+        return transition;
+    }
+
+    /**
+     * Whether any step or status of this saga type reacts to an event type
+     */
+    public boolean handles(String eventType) {
+        int column = columnOf(EventType.fromName(eventType), eventType);
+        return column >= 0 && handled[column];
+    }
+
+    // EventType constants are their own column, only signals outside the enum are looked up by name
+    private int columnOf(EventType eventType, String name) {
+        if (eventType != null) {
+            return eventType.ordinal();
+        }
+        Integer column = name != null ? signalColumns.get(name) : null;
+        return column != null ? column : -1;
+    }
+
+    /**
+     * Declared next step of a step, null if none was declared
+     */
+    @SuppressWarnings("unchecked")
+    public S nextOf(S step) {
+        return (S) nextSteps[step.ordinal()];
+    }
+
+    /**
+     * Topic the command of a step is sent to
+     */
+    public String topicOf(S step) {
+        return stepTopics[step.ordinal()];
+    }
+
+    /**
+     * Topic a command type is sent to by this saga
+     */
+    public String topicOf(CommandType commandType) {
+        return commandTopics.get(commandType);
+    }
+
+    public static final class Builder<S extends Enum<S>> {
+        private final S[] steps;
+        private final Function<S, CommandType> commandOf;
+        private final ToIntFunction<S> stepNumberOf;
+        private Function<S, String> topicOf = step -> null;
+
+        private final Map<S, S> next = new HashMap<>();
+        private final Map<S, Action> onSuccess = new HashMap<>();
+        private final Map<S, Action> onFailure = new HashMap<>();
+        private final Map<S, S> failureNext = new HashMap<>();
+        // Parallel group by the step the saga waits in while the group runs
+        private final Map<S, List<S>> groups = new HashMap<>();
+        private final Map<String, Action> signals = new LinkedHashMap<>();
+        private final Map<SagaStatus, Map<EventType, Action>> statusSignals = new EnumMap<>(SagaStatus.class);
+
+        private Builder(Class<S> stepType, Function<S, CommandType> commandOf, ToIntFunction<S> stepNumberOf) {
+            this.steps = stepType.getEnumConstants();
+            this.commandOf = commandOf;
+            this.stepNumberOf = stepNumberOf;
+        }
+
+        /**
+         * Topic each step's command is sent to, evaluated once per step when the definition is built
+         */
+        public Builder<S> topics(Function<S, String> topicOf) {
+            this.topicOf = topicOf;
+            return this;
+        }
+
+        /**
+         * A step that continues with the next step on success
+         */
+        public Builder<S> step(S step, S nextStep, Action failure) {
+            return transition(step, nextStep, Action.ADVANCE, failure, null);
+        }
+
+        /**
+         * A step that continues with the next step on success and with another one on failure
+         */
+        public Builder<S> step(S step, S nextStep, Action failure, S failureStep) {
+            return transition(step, nextStep, Action.ADVANCE, failure, failureStep);
+        }
+
+        /**
+         * A compensation step that continues with the next compensation step on success
+         */
+        public Builder<S> compensation(S step, S nextStep, Action failure) {
+            return transition(step, nextStep, Action.COMPENSATION_ADVANCE, failure, null);
+        }
+
+        /**
+         * Steps whose commands are sent together, the saga waits in the first one until all have replied
+         */
+        public Builder<S> parallel(List<S> group, S nextStep, Action failure) {
+            S waitingStep = group.get(0);
+            groups.put(waitingStep, group);
+            for (S member : group) {
+                transition(member, nextStep, Action.JOIN, failure, null);
+            }
+            return this;
+        }
+
+        /**
+         * An event handled the same way in every step, also for event types outside EventType
+         */
+        public Builder<S> signal(String eventType, Action action) {
+            signals.put(eventType, action);
+            return this;
+        }
+
+        /**
+         * An event handled the same way in every step while the saga has the given status
+         */
+        public Builder<S> whileStatus(SagaStatus status, EventType eventType, Action action) {
+            statusSignals.computeIfAbsent(status, key -> new EnumMap<>(EventType.class)).put(eventType, action);
+            return this;
+        }
+
+        private Builder<S> transition(S step, S nextStep, Action success, Action failure, S failureStep) {
+            next.put(step, nextStep);
+            onSuccess.put(step, success);
+            onFailure.put(step, failure);
+            if (failureStep != null) {
+                failureNext.put(step, failureStep);
+            }
+            return this;
+        }
+
+        @SuppressWarnings("unchecked")
+        public SagaDefinition<S> build() {
+            EventType[] eventTypes = EventType.values();
+            Map<String, Integer> signalColumns = new HashMap<>();
+            for (String signal : signals.keySet()) {
+                if (EventType.fromName(signal) == null) {
+                    signalColumns.putIfAbsent(signal, eventTypes.length + signalColumns.size());
+                }
+            }
+            int columns = eventTypes.length + signalColumns.size();
+            int width = columns * 2;
+
+            String[] stepTopics = new String[steps.length];
+            EnumMap<CommandType, String> commandTopics = new EnumMap<>(CommandType.class);
+            for (S step : steps) {
+                CommandType commandType = commandOf.apply(step);
+                if (commandType != null) {
+                    stepTopics[step.ordinal()] = topicOf.apply(step);
+                    commandTopics.putIfAbsent(commandType, stepTopics[step.ordinal()]);
+                }
+            }
+
+            Object[] nextSteps = new Object[steps.length];
+            next.forEach((step, nextStep) -> nextSteps[step.ordinal()] = nextStep);
+
+            // Replies to a step, or to any member of the group the step waits for
+            Transition<S>[] byStep = new Transition[steps.length * width];
+            for (S row : steps) {
+                List<S> answered = groups.getOrDefault(row, onSuccess.containsKey(row)
+                        ? Collections.singletonList(row) : Collections.emptyList());
+                for (S step : answered) {
+                    CommandType commandType = commandOf.apply(step);
+                    if (commandType == null) {
+                        continue;
+                    }
+                    S nextStep = next.get(step);
+                    String nextTopic = nextStep != null ? stepTopics[nextStep.ordinal()] : null;
+                    S retryStep = failureNext.get(step);
+                    boolean parallel = groups.containsKey(row);
+                    for (EventType eventType : eventTypes) {
+                        if (eventType.getAssociatedCommandType() != commandType) {
+                            continue;
+                        }
+                        int cell = row.ordinal() * width + (eventType.ordinal() << 1);
+                        byStep[cell] = new Transition<>(step, onFailure.get(step), retryStep,
+                                retryStep != null ? stepTopics[retryStep.ordinal()] : null,
+                                parallel, stepNumberOf.applyAsInt(step));
+                        byStep[cell | 1] = new Transition<>(step, onSuccess.get(step), nextStep, nextTopic,
+                                parallel, stepNumberOf.applyAsInt(step));
+                    }
+                }
+            }
+
+            Transition<S>[] anyStep = new Transition[width];
+            signals.forEach((signal, action) -> {
+                EventType eventType = EventType.fromName(signal);
+                fill(anyStep, 0, eventType != null ? eventType.ordinal() : signalColumns.get(signal), action);
+            });
+
+            SagaStatus[] statuses = SagaStatus.values();
+            Transition<S>[] byStatus = new Transition[statuses.length * width];
+            statusSignals.forEach((status, actions) -> actions.forEach((eventType, action) ->
+                    fill(byStatus, status.ordinal() * width, eventType.ordinal(), action)));
+
+            boolean[] handled = new boolean[columns];
+            markHandled(handled, byStep, width);
+            markHandled(handled, anyStep, width);
+            markHandled(handled, byStatus, width);
+
+            return new SagaDefinition<>(signalColumns, width, byStep, anyStep, byStatus, handled, nextSteps, stepTopics,
+                    commandTopics);
+        }
+
+        private static <S> void markHandled(boolean[] handled, Transition<S>[] table, int width) {
+            for (int i = 0; i < table.length; i++) {
+                if (table[i] != null) {
+                    handled[(i % width) >> 1] = true;
+                }
+            }
+        }
+
+        // Signals are handled the same whatever their outcome
+        private static <S> void fill(Transition<S>[] table, int offset, int column, Action action) {
+            Transition<S> transition = new Transition<>(null, action, null, null, false, -1);
+            table[offset + (column << 1)] = transition;
+            table[offset + (column << 1 | 1)] = transition;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.stocktrading.kafka.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Keyed executor for saga work.
+ * Tasks for the same saga run one after another in submission order, tasks for different sagas run in
+ * parallel on a shared pool, so throughput is bounded by the pool rather than by partition count.
+ */
+@Slf4j
+@Service
+public class SagaEventExecutor {
+
+    private final MeterRegistry meterRegistry;
+
+    // Last task queued per saga, new tasks for the saga are chained behind it
+    private final Map<String, CompletableFuture<Void>> tails = new ConcurrentHashMap<>();
+
+    @Value("${saga.executor.threads:32}")
+    private int threadCount;
+
+    private ExecutorService pool;
+    private Timer queueTimer;
+
+    public SagaEventExecutor(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(Math.max(1, threadCount), runnable -> {
+            Thread thread = new Thread(runnable, "saga-executor-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        queueTimer = meterRegistry.timer("saga.executor.queue.latency");
+        meterRegistry.gaugeMapSize("saga.executor.active.sagas", Tags.empty(), tails);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warn("Saga executor did not drain within 10s, {} sagas still queued", tails.size());
+                pool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Run a task after every task previously submitted for the same saga.
+     * The returned future completes exceptionally if the task fails, later tasks for the saga still run.
+     */
+    public CompletableFuture<Void> submit(String sagaId, Runnable task) {
+        long queuedAt = System.nanoTime();
+        Runnable timed = () -> {
+            queueTimer.record(System.nanoTime() - queuedAt, TimeUnit.NANOSECONDS);
+            task.run();
+        };
+
+        if (sagaId == null) {
+            return CompletableFuture.runAsync(timed, pool);
+        }
+
+        CompletableFuture<Void> next = tails.compute(sagaId, (key, tail) -> tail == null
+                ? CompletableFuture.runAsync(timed, pool)
+                : tail.handle((result, error) -> null).thenRunAsync(timed, pool));
+        next.whenComplete((result, error) -> tails.remove(sagaId, next));
+        return next;
+    }
+
+    /**
+     * Run a task on a saga's lane and wait for its result, rethrowing what the task threw
+     */
+    public <V> V call(String sagaId, Supplier<V> task) {
+        AtomicReference<V> result = new AtomicReference<>();
+        try {
+            submit(sagaId, () -> result.set(task.get())).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+        return result.get();
+    }
+
+    public int activeSagas() {
+        return tails.size();
+    }
+}
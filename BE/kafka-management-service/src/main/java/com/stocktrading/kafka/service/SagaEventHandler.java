@@ -0,0 +1,37 @@
+package com.stocktrading.kafka.service;
+
+import com.project.kafkamessagemodels.model.CommandMessage;
+import com.project.kafkamessagemodels.model.EventMessage;
+
+import java.util.Collection;
+
+/**
+ * A saga orchestrator that consumes participant events
+ */
+public interface SagaEventHandler {
+
+    /**
+     * Whether this saga type reacts to an event type at all
+     */
+    boolean handles(String eventType);
+
+    /**
+     * Whether a saga is an in-flight saga of this type, answered from memory once its batch has been preloaded
+     */
+    boolean owns(String sagaId);
+
+    /**
+     * Bring the sagas referenced by a batch of events into memory ahead of handling them
+     */
+    void preload(Collection<String> sagaIds);
+
+    /**
+     * Apply one event to its saga
+     */
+    void handleEventMessage(EventMessage event);
+
+    /**
+     * Whether a saga of this type is still waiting on the step a command was sent for, so resending it can still matter
+     */
+    boolean awaits(String sagaId, CommandMessage command);
+}
@@ -0,0 +1,162 @@
+package com.stocktrading.kafka.service;
+
+import com.mongodb.bulk.BulkWriteError;
+import com.stocktrading.kafka.model.SagaEvent;
+import com.stocktrading.kafka.model.SagaEventRecord;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Append-only log of saga audit events, kept out of the saga documents.
+ * Events are buffered and bulk inserted by the saga state flusher, and expire after a TTL.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class SagaEventLog {
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final MongoTemplate mongoTemplate;
+
+    @Value("${saga.cache.write-behind:true}")
+    private boolean writeBehind;
+
+    @Value("${saga.events.ttl-days:90}")
+    private long ttlDays;
+
+    @Value("${saga.events.max-batch-size:1000}")
+    private int maxBatchSize;
+
+    private final Queue<SagaEventRecord> buffer = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean indexesEnsured;
+
+    /**
+     * Queue the events of a saga for the next flush
+     */
+    public void append(String sagaType, List<SagaEventRecord> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        records.forEach(record -> record.setSagaType(sagaType));
+        buffer.addAll(records);
+        if (!writeBehind) {
+            flush();
+        }
+    }
+
+    /**
+     * Bulk insert the buffered events, false if some are still buffered after a failed write
+     */
+    public boolean flush() {
+        while (!buffer.isEmpty()) {
+            List<SagaEventRecord> batch = new ArrayList<>(Math.min(maxBatchSize, buffer.size()));
+            SagaEventRecord record;
+            while (batch.size() < maxBatchSize && (record = buffer.poll()) != null) {
+                batch.add(record);
+            }
+            if (batch.isEmpty()) {
+                break;
+            }
+            if (!insert(batch)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean insert(List<SagaEventRecord> batch) {
+        ensureIndexes();
+        try {
+            mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, SagaEventRecord.class)
+                    .insert(batch)
+                    .execute();
+            return true;
+        } catch (BulkOperationException e) {
+            // Entries already written by an earlier attempt are fine, retry the rest
+            int retried = 0;
+            for (BulkWriteError error : e.getErrors()) {
+                if (error.getCode() != DUPLICATE_KEY) {
+                    buffer.add(batch.get(error.getIndex()));
+                    retried++;
+                }
+            }
+            if (retried > 0) {
+                log.error("Failed to write {} saga events, will retry: {}", retried, e.getMessage());
+            }
+            return retried == 0;
+        } catch (Exception e) {
+            log.error("Failed to write {} saga events, will retry: {}", batch.size(), e.getMessage());
+            buffer.addAll(batch);
+            return false;
+        }
+    }
+
+    private void ensureIndexes() {
+        if (indexesEnsured) {
+            return;
+        }
+        try {
+            mongoTemplate.indexOps(SagaEventRecord.class).ensureIndex(new Index()
+                    .on("sagaId", Sort.Direction.ASC)
+                    .on("sequence", Sort.Direction.ASC));
+            mongoTemplate.indexOps(SagaEventRecord.class).ensureIndex(new Index()
+                    .on("timestamp", Sort.Direction.ASC)
+                    .expire(Duration.ofDays(ttlDays)));
+            indexesEnsured = true;
+        } catch (Exception e) {
+            log.warn("Could not ensure saga event log indexes: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * One page of a saga's history, oldest first. Sequences are dense, so a page is a sequence range.
+     */
+    public List<SagaEvent> getEvents(String sagaId, long totalEvents, int page, int size) {
+        long from = (long) page * size + 1;
+        long to = Math.min(from + size - 1, totalEvents);
+        return getEvents(sagaId, from, to);
+    }
+
+    /**
+     * The newest events of a saga, oldest first
+     */
+    public List<SagaEvent> getRecentEvents(String sagaId, long totalEvents, int limit) {
+        return getEvents(sagaId, Math.max(1, totalEvents - limit + 1), totalEvents);
+    }
+
+    private List<SagaEvent> getEvents(String sagaId, long from, long to) {
+        if (from > to) {
+            return Collections.emptyList();
+        }
+
+        Map<Long, SagaEvent> events = new TreeMap<>();
+        Query query = Query.query(Criteria.where("sagaId").is(sagaId).and("sequence").gte(from).lte(to))
+                .with(Sort.by(Sort.Direction.ASC, "sequence"));
+        for (SagaEventRecord record : mongoTemplate.find(query, SagaEventRecord.class)) {
+            events.put(record.getSequence(), record.toSagaEvent());
+        }
+
+        // Events not flushed yet
+        for (SagaEventRecord record : buffer) {
+            if (sagaId.equals(record.getSagaId()) && record.getSequence() >= from && record.getSequence() <= to) {
+                events.putIfAbsent(record.getSequence(), record.toSagaEvent());
+            }
+        }
+        return new ArrayList<>(events.values());
+    }
+}
@@ -0,0 +1,51 @@
+package com.stocktrading.kafka.service;
+
+import com.stocktrading.kafka.model.ProcessedMessage;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+
+/**
+ * Writes everything buffered for Mongo: saga states, saga events and processed message records
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class SagaFlushService {
+
+    private final List<SagaStateCache<?>> sagaStateCaches;
+    private final SagaEventLog sagaEventLog;
+    private final IdempotencyService idempotencyService;
+
+    /**
+     * Flush all buffers, false if anything is still pending after a failed write
+     */
+    public boolean flushAll() {
+        // Markers recorded from here on may belong to saga saves this flush does not see, they wait for the next one
+        List<ProcessedMessage> markers = idempotencyService.snapshotPending();
+        boolean flushed = true;
+        for (SagaStateCache<?> cache : sagaStateCaches) {
+            try {
+                flushed &= cache.flush();
+            } catch (Exception e) {
+                log.error("Error flushing {} saga states", cache.getSagaType(), e);
+                flushed = false;
+            }
+        }
+        try {
+            flushed &= sagaEventLog.flush();
+        } catch (Exception e) {
+            log.error("Error flushing saga events", e);
+            flushed = false;
+        }
+        // Processed markers go last so a message is never marked done before its saga state is written.
+        // A marker is recorded after its saga save, so every save behind the snapshot was pending above, or in
+        // a concurrent flush that the synchronized cache flushes waited for.
+        if (flushed) {
+            flushed = idempotencyService.flush(markers);
+        }
+        return flushed;
+    }
+}
@@ -1,111 +1,174 @@
 package com.stocktrading.kafka.service;
 
-import com.stocktrading.kafka.model.DepositSagaState;
 import com.stocktrading.kafka.model.enums.SagaStatus;
-import com.stocktrading.kafka.repository.DepositSagaRepository;
+import com.stocktrading.kafka.model.enums.SagaType;
+import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
 import io.micrometer.core.instrument.Timer;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.Arrays;
-import java.util.List;
-import java.util.concurrent.TimeUnit;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Service for monitoring saga metrics
+ * Service for monitoring saga metrics.
+ * Every saga save passes through here, and the metrics are updated from the difference to the previous save
+ * of the same saga, so no collection is ever scanned. Step durations are tagged by saga type, step and outcome.
  */
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class SagaMonitoringService {
-    
-    private final DepositSagaRepository depositSagaRepository;
+
     private final MeterRegistry meterRegistry;
-    
-    // Metrics counters
-    private AtomicInteger activeSagasGauge;
-    private AtomicInteger completedSagasCounter;
-    private AtomicInteger failedSagasCounter;
-    private Timer sagaExecutionTimer;
-    
+
+    // Step each in-flight saga was last saved in
+    private final Map<String, Progress> progress = new ConcurrentHashMap<>();
+
+    private final Map<SagaType, AtomicInteger> activeSagas = new EnumMap<>(SagaType.class);
+    private final Map<SagaType, Counter> startedSagas = new EnumMap<>(SagaType.class);
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, Counter> finishedSagas = new ConcurrentHashMap<>();
+
+    private static class Progress {
+        final String step;
+        final SagaStatus status;
+        // Step start as stored on the saga, changes on a retry
+        final Instant stepStartTime;
+        // Start of the phase being timed, also reset when the saga fails within a step
+        final Instant measuredFrom;
+
+        Progress(String step, SagaStatus status, Instant stepStartTime, Instant measuredFrom) {
+            this.step = step;
+            this.status = status;
+            this.stepStartTime = stepStartTime;
+            this.measuredFrom = measuredFrom;
+        }
+    }
+
     @PostConstruct
     public void init() {
-        // Initialize metrics
-        activeSagasGauge = meterRegistry.gauge("saga.active.count", new AtomicInteger(0));
-        
-        completedSagasCounter = new AtomicInteger(0);
-        meterRegistry.gauge("saga.completed.count", completedSagasCounter);
-        
-        failedSagasCounter = new AtomicInteger(0);
-        meterRegistry.gauge("saga.failed.count", failedSagasCounter);
-        
-        sagaExecutionTimer = Timer.builder("saga.execution.time")
-            .description("Time taken to complete sagas")
-            .publishPercentiles(0.5, 0.95, 0.99)
-            .register(meterRegistry);
-        
-        // Initial update
-        updateMetrics();
+        for (SagaType type : SagaType.values()) {
+            // Sagas seen in flight by this instance
+            activeSagas.put(type, meterRegistry.gauge("saga.active.count",
+                    Tags.of("type", type.getKey()), new AtomicInteger()));
+            startedSagas.put(type, meterRegistry.counter("saga.started", "type", type.getKey()));
+        }
     }
-    
+
     /**
-     * Update metrics every minute
+     * Record the state a saga is being saved in
      */
-    @Scheduled(fixedRate = 60000)
-    public void updateMetrics() {
-        try {
-            log.debug("Updating saga metrics");
-            
-            // Count active sagas
-            List<SagaStatus> activeStatuses = Arrays.asList(
-                SagaStatus.STARTED, SagaStatus.IN_PROGRESS, SagaStatus.COMPENSATING);
-            
-            List<DepositSagaState> activeSagas = depositSagaRepository.findByStatusIn(activeStatuses);
-            activeSagasGauge.set(activeSagas.size());
-            
-            // Count completed and failed sagas in the last hour
-            Instant oneHourAgo = Instant.now().minus(Duration.ofHours(1));
-            
-            int completedCount = 0;
-            int failedCount = 0;
-            
-            List<DepositSagaState> recentSagas = depositSagaRepository.findAll(); // In a real app, add a date filter
-            
-            for (DepositSagaState saga : recentSagas) {
-                if (saga.getEndTime() == null) {
-                    continue;
-                }
-                
-                if (saga.getEndTime().isAfter(oneHourAgo)) {
-                    if (saga.getStatus() == SagaStatus.COMPLETED) {
-                        completedCount++;
-                        
-                        // Record execution time
-                        long executionTime = Duration.between(saga.getStartTime(), saga.getEndTime()).toMillis();
-                        sagaExecutionTimer.record(executionTime, TimeUnit.MILLISECONDS);
-                        
-                    } else if (saga.getStatus() == SagaStatus.FAILED || 
-                              saga.getStatus() == SagaStatus.COMPENSATION_COMPLETED) {
-                        failedCount++;
-                    }
+    public void recordTransition(SagaType type, String sagaId, Enum<?> currentStep, SagaStatus status,
+                                 Instant stepStartTime, Instant startTime, Instant endTime) {
+        if (sagaId == null) {
+            return;
+        }
+        String step = currentStep != null ? currentStep.name() : "NONE";
+        boolean finished = isFinished(status, endTime);
+        Instant now = Instant.now();
+
+        // Saves of one saga are serialized on its executor lane
+        Progress previous = progress.get(sagaId);
+        Instant measuredFrom = stepStartTime;
+
+        if (previous == null) {
+            if (!finished) {
+                activeSagas.get(type).incrementAndGet();
+                if (status == SagaStatus.STARTED) {
+                    startedSagas.get(type).increment();
                 }
             }
-            
-            completedSagasCounter.set(completedCount);
-            failedSagasCounter.set(failedCount);
-            
-            log.debug("Metrics updated: active={}, completed={}, failed={}", 
-                activeSagas.size(), completedCount, failedCount);
-                
-        } catch (Exception e) {
-            log.error("Error updating saga metrics", e);
+        } else {
+            String outcome = outcomeOf(previous.status, status);
+            boolean stepLeft = finished || !previous.step.equals(step) || "failure".equals(outcome);
+            boolean retried = !stepLeft && !Objects.equals(previous.stepStartTime, stepStartTime);
+            if ((stepLeft || retried) && previous.measuredFrom != null) {
+                stepTimer(type, previous.step, retried ? "retry" : outcome)
+                        .record(Duration.between(previous.measuredFrom, now));
+            }
+            if (!stepLeft && !retried) {
+                measuredFrom = previous.measuredFrom;
+            } else if (Objects.equals(previous.stepStartTime, stepStartTime)) {
+                // Left the phase without the saga resetting its step start
+                measuredFrom = now;
+            }
+            if (finished) {
+                activeSagas.get(type).decrementAndGet();
+            }
+        }
+
+        if (!finished) {
+            progress.put(sagaId, new Progress(step, status, stepStartTime, measuredFrom));
+        } else {
+            progress.remove(sagaId);
+            String finalStatus = status != null ? status.name() : "UNKNOWN";
+            finishedSagas.computeIfAbsent(type.getKey() + "|" + finalStatus, key -> meterRegistry.counter(
+                    "saga.finished", "type", type.getKey(), "status", finalStatus)).increment();
+            if (startTime != null) {
+                executionTimer(type, finalStatus).record(
+                        Duration.between(startTime, endTime != null ? endTime : now));
+            }
+        }
+    }
+
+    /**
+     * Register a saga found in flight by the startup recovery, unless a save has registered it already
+     */
+    public void restore(SagaType type, String sagaId, String step, SagaStatus status, Instant stepStartTime) {
+        if (sagaId == null || isFinished(status, null)) {
+            return;
+        }
+        Progress restored = new Progress(step != null ? step : "NONE", status, stepStartTime, stepStartTime);
+        if (progress.putIfAbsent(sagaId, restored) == null) {
+            activeSagas.get(type).incrementAndGet();
+        }
+    }
+
+    // Leaving a step into failure or the start of compensation counts against that step
+    private static String outcomeOf(SagaStatus before, SagaStatus after) {
+        if (after == SagaStatus.FAILED) {
+            return "failure";
+        }
+        if ((after == SagaStatus.COMPENSATING || after == SagaStatus.COMPENSATION_COMPLETED)
+                && before != SagaStatus.COMPENSATING) {
+            return "failure";
         }
+        return "success";
+    }
+
+    private static boolean isFinished(SagaStatus status, Instant endTime) {
+        return endTime != null
+                || status == SagaStatus.COMPLETED
+                || status == SagaStatus.FAILED
+                || status == SagaStatus.COMPENSATION_COMPLETED
+                || status == SagaStatus.CANCELLED_BY_USER;
+    }
+
+    private Timer stepTimer(SagaType type, String step, String outcome) {
+        return timers.computeIfAbsent("step|" + type.getKey() + "|" + step + "|" + outcome, key ->
+                Timer.builder("saga.step.duration")
+                        .description("Time a saga spent in a step")
+                        .tags("type", type.getKey(), "step", step, "outcome", outcome)
+                        .publishPercentileHistogram()
+                        .register(meterRegistry));
+    }
+
+    private Timer executionTimer(SagaType type, String status) {
+        return timers.computeIfAbsent("saga|" + type.getKey() + "|" + status, key ->
+                Timer.builder("saga.execution.time")
+                        .description("Time taken to complete sagas")
+                        .tags("type", type.getKey(), "status", status)
+                        .publishPercentiles(0.5, 0.95, 0.99)
+                        .register(meterRegistry));
     }
 }
@@ -0,0 +1,305 @@
+package com.stocktrading.kafka.service;
+
+import com.mongodb.client.result.UpdateResult;
+import com.stocktrading.kafka.model.SagaShardLease;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.net.InetAddress;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Which timeout shards this orchestrator instance runs the scheduled work of (timeout scans, outbox recovery).
+ * With leases enabled every shard is leased in Mongo to one live instance at a time: instances heartbeat,
+ * take free or expired shards up to their fair share and give up the surplus when others join, so the
+ * shards spread evenly and move to the survivors within a lease period when an instance dies.
+ * Renewing and releasing a lease only succeed with the token it was acquired with, and a lease is treated
+ * as lost a safety margin before it expires. Scheduled work runs fenced by the token: the saga writes it makes
+ * are stamped with it and refused once the lease is lost or a newer holder has written the saga.
+ * Without leases the static shard-count/shard-index split applies.
+ */
+@Slf4j
+@Service
+public class SagaOwnershipService {
+
+    private static final String INSTANCES = "saga_orchestrator_instances";
+
+    // Lease token the scheduled work on this thread runs under
+    private static final ThreadLocal<Long> CURRENT_FENCE = new ThreadLocal<>();
+
+    private final MongoTemplate mongoTemplate;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${saga.ownership.leases.enabled:false}")
+    private boolean leasesEnabled;
+
+    // Defaults to host name and a random suffix, so restarts never reuse an identity
+    @Value("${saga.ownership.instance-id:}")
+    private String instanceId;
+
+    @Value("${saga.ownership.lease-ms:15000}")
+    private long leaseMs;
+
+    // Leases count as lost this long before they expire, covering clock drift between instances
+    @Value("${saga.ownership.clock-skew-ms:1000}")
+    private long clockSkewMs;
+
+    // This instance handles the shards where shard % shard-count == shard-index
+    @Value("${saga.timeout.shard-count:1}")
+    private int shardCount;
+
+    @Value("${saga.timeout.shard-index:0}")
+    private int shardIndex;
+
+    private List<Integer> staticShards;
+
+    // Leases held by this instance, by shard
+    private final Map<Integer, HeldLease> held = new ConcurrentHashMap<>();
+
+    private Counter acquired;
+    private Counter lost;
+
+    private static class HeldLease {
+        final long token;
+        // Local deadline for using the lease, ahead of its expiry in Mongo
+        final long validUntil;
+
+        HeldLease(long token, long validUntil) {
+            this.token = token;
+            this.validUntil = validUntil;
+        }
+    }
+
+    public SagaOwnershipService(MongoTemplate mongoTemplate, MeterRegistry meterRegistry) {
+        this.mongoTemplate = mongoTemplate;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        staticShards = new ArrayList<>();
+        for (int shard = 0; shard < SagaTimeoutPolicy.SHARDS; shard++) {
+            if (shardCount <= 1 || shard % shardCount == shardIndex) {
+                staticShards.add(shard);
+            }
+        }
+        if (instanceId == null || instanceId.isEmpty()) {
+            instanceId = hostName() + "-" + UUID.randomUUID().toString().substring(0, 8);
+        }
+        acquired = meterRegistry.counter("saga.ownership.acquired");
+        lost = meterRegistry.counter("saga.ownership.lost");
+        meterRegistry.gaugeMapSize("saga.ownership.shards", Tags.empty(), held);
+    }
+
+    /**
+     * Shards whose scheduled work runs on this instance right now, ascending
+     */
+    public List<Integer> ownedShards() {
+        if (!leasesEnabled) {
+            return staticShards;
+        }
+        long now = System.currentTimeMillis();
+        List<Integer> shards = new ArrayList<>();
+        held.forEach((shard, lease) -> {
+            if (lease.validUntil > now) {
+                shards.add(shard);
+            }
+        });
+        Collections.sort(shards);
+        return shards;
+    }
+
+    /**
+     * Whether this instance runs the scheduled work of a saga
+     */
+    public boolean owns(String sagaId) {
+        int shard = SagaTimeoutPolicy.shardOf(sagaId);
+        if (!leasesEnabled) {
+            return shardCount <= 1 || shard % shardCount == shardIndex;
+        }
+        HeldLease lease = held.get(shard);
+        return lease != null && lease.validUntil > System.currentTimeMillis();
+    }
+
+    /**
+     * Run scheduled work for a saga if this instance runs its shard, fenced by the lease token.
+     * Returns false if the shard is not ours (any more) and the work was skipped.
+     */
+    public boolean runFenced(String sagaId, Runnable work) {
+        if (!leasesEnabled) {
+            if (!owns(sagaId)) {
+                return false;
+            }
+            work.run();
+            return true;
+        }
+        HeldLease lease = held.get(SagaTimeoutPolicy.shardOf(sagaId));
+        if (lease == null || lease.validUntil <= System.currentTimeMillis()) {
+            return false;
+        }
+        CURRENT_FENCE.set(lease.token);
+        try {
+            work.run();
+            return true;
+        } finally {
+            CURRENT_FENCE.remove();
+        }
+    }
+
+    /**
+     * Lease token of the fenced work running on this thread, null outside of {@link #runFenced}
+     */
+    public Long currentFence() {
+        return CURRENT_FENCE.get();
+    }
+
+    /**
+     * Whether this instance still holds the shard of a saga under the given lease token
+     */
+    public boolean holds(String sagaId, long token) {
+        HeldLease lease = held.get(SagaTimeoutPolicy.shardOf(sagaId));
+        return lease != null && lease.token == token && lease.validUntil > System.currentTimeMillis();
+    }
+
+    /**
+     * Heartbeat, renew the held leases and even out the shards between the live instances
+     */
+    public synchronized void renewLeases() {
+        if (!leasesEnabled) {
+            return;
+        }
+        long startedAt = System.currentTimeMillis();
+        Instant now = Instant.ofEpochMilli(startedAt);
+        Instant expiresAt = now.plusMillis(leaseMs);
+
+        mongoTemplate.upsert(Query.query(Criteria.where("_id").is(instanceId)),
+                Update.update("expiresAt", expiresAt), INSTANCES);
+
+        for (Map.Entry<Integer, HeldLease> entry : new ArrayList<>(held.entrySet())) {
+            UpdateResult result = mongoTemplate.updateFirst(leaseQuery(entry.getKey(), entry.getValue().token),
+                    Update.update("expiresAt", expiresAt), SagaShardLease.class);
+            if (result.getMatchedCount() == 0) {
+                held.remove(entry.getKey());
+                lost.increment();
+                log.warn("Lease of timeout shard {} was taken over", entry.getKey());
+            } else {
+                held.put(entry.getKey(), new HeldLease(entry.getValue().token, startedAt + leaseMs - clockSkewMs));
+            }
+        }
+
+        long liveInstances = Math.max(1, mongoTemplate.count(
+                Query.query(Criteria.where("expiresAt").gt(now)), INSTANCES));
+        int fairShare = (int) ((SagaTimeoutPolicy.SHARDS + liveInstances - 1) / liveInstances);
+
+        // Give up the surplus first, the newcomers pick it up on their next round
+        if (held.size() > fairShare) {
+            List<Integer> surplus = new ArrayList<>(held.keySet());
+            Collections.sort(surplus);
+            release(surplus.subList(fairShare, surplus.size()));
+        }
+
+        if (held.size() < fairShare) {
+            Map<Integer, SagaShardLease> leases = new HashMap<>();
+            mongoTemplate.findAll(SagaShardLease.class).forEach(lease -> leases.put(lease.getShard(), lease));
+            // Start at a random shard so instances starting together do not contend for the same ones
+            int offset = ThreadLocalRandom.current().nextInt(SagaTimeoutPolicy.SHARDS);
+            List<Integer> taken = new ArrayList<>();
+            for (int i = 0; i < SagaTimeoutPolicy.SHARDS && held.size() < fairShare; i++) {
+                int shard = (offset + i) % SagaTimeoutPolicy.SHARDS;
+                SagaShardLease lease = leases.get(shard);
+                if (held.containsKey(shard) || (lease != null && lease.getExpiresAt().isAfter(now))) {
+                    continue;
+                }
+                Long token = acquire(shard, lease, expiresAt);
+                if (token != null) {
+                    held.put(shard, new HeldLease(token, startedAt + leaseMs - clockSkewMs));
+                    acquired.increment();
+                    taken.add(shard);
+                }
+            }
+            if (!taken.isEmpty()) {
+                Collections.sort(taken);
+                log.info("Took over timeout shards {}, holding {} of {} with {} live instances",
+                        taken, held.size(), SagaTimeoutPolicy.SHARDS, liveInstances);
+            }
+        }
+    }
+
+    /**
+     * Hand back every lease and leave the instance list, after the pending saga states have been flushed
+     */
+    public synchronized void releaseAll() {
+        if (!leasesEnabled) {
+            return;
+        }
+        try {
+            release(new ArrayList<>(held.keySet()));
+            mongoTemplate.remove(Query.query(Criteria.where("_id").is(instanceId)), INSTANCES);
+        } catch (Exception e) {
+            log.warn("Could not release timeout shard leases, they expire in {} ms: {}", leaseMs, e.getMessage());
+        }
+    }
+
+    // Expire the leases now, unless they have changed hands meanwhile
+    private void release(List<Integer> shards) {
+        List<Integer> released = new ArrayList<>(shards);
+        for (Integer shard : released) {
+            HeldLease lease = held.remove(shard);
+            if (lease != null) {
+                mongoTemplate.updateFirst(leaseQuery(shard, lease.token),
+                        Update.update("expiresAt", Instant.now()), SagaShardLease.class);
+            }
+        }
+        if (!released.isEmpty()) {
+            log.info("Released timeout shards {}", released);
+        }
+    }
+
+    // Token of the acquired lease, null if another instance got there first
+    private Long acquire(int shard, SagaShardLease current, Instant expiresAt) {
+        if (current == null) {
+            try {
+                mongoTemplate.insert(new SagaShardLease(shard, instanceId, 1L, expiresAt));
+                return 1L;
+            } catch (DuplicateKeyException e) {
+                return null;
+            }
+        }
+        // Only while still expired, the holder may have renewed it since it was read
+        Query expired = leaseQuery(shard, current.getToken()).addCriteria(Criteria.where("expiresAt").lte(Instant.now()));
+        SagaShardLease taken = mongoTemplate.findAndModify(expired,
+                new Update().set("owner", instanceId).set("expiresAt", expiresAt).inc("token", 1L),
+                FindAndModifyOptions.options().returnNew(true), SagaShardLease.class);
+        return taken != null ? taken.getToken() : null;
+    }
+
+    private Query leaseQuery(int shard, long token) {
+        return Query.query(Criteria.where("_id").is(shard).and("token").is(token));
+    }
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            return "orchestrator";
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package com.stocktrading.kafka.service;
+
+import com.stocktrading.kafka.model.DepositSagaState;
+import com.stocktrading.kafka.model.OrderBuySagaState;
+import com.stocktrading.kafka.model.OrderSellSagaState;
+import com.stocktrading.kafka.model.OutboxCommand;
+import com.stocktrading.kafka.model.WithdrawalSagaState;
+import com.stocktrading.kafka.model.enums.SagaStatus;
+import com.stocktrading.kafka.model.enums.SagaType;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Startup recovery of the sagas a previous run left in flight.
+ * Every saga type is streamed with its own cursor over the active sagas only, and the documents are handled in
+ * chunks on a small pool: each saga is registered with the monitoring again, sagas missing their deadline or
+ * timeout shard are saved again so the timeout scan covers them, and sagas whose command went out long ago
+ * without an answer get it resent on their executor lane, as a retry of the step. Resends are limited to steps
+ * safe to repeat and skipped for sagas that moved since the scan read them, since the listeners run alongside.
+ * Only sagas in the timeout shards this instance owns are touched. Runs in the background once the application
+ * is ready, next to the event listeners.
+ */
+@Slf4j
+@Service
+public class SagaRecoveryService {
+
+    private static final List<String> ACTIVE_STATUSES = Arrays.asList(SagaStatus.STARTED.name(),
+            SagaStatus.IN_PROGRESS.name(), SagaStatus.COMPENSATING.name(), SagaStatus.LIMIT_ORDER_PENDING.name());
+
+    // Times a type's cursor is opened before its recovery is given up
+    private static final int MAX_CURSOR_ATTEMPTS = 3;
+
+    // Statuses in which a saga waits for the answer to its current step
+    private static final Set<SagaStatus> WAITING = EnumSet.of(SagaStatus.STARTED, SagaStatus.IN_PROGRESS,
+            SagaStatus.COMPENSATING);
+
+    private final MongoTemplate mongoTemplate;
+    private final MeterRegistry meterRegistry;
+    private final SagaEventExecutor sagaEventExecutor;
+    private final SagaOwnershipService sagaOwnershipService;
+    private final SagaMonitoringService sagaMonitoringService;
+    private final Map<SagaType, RecoveryTarget> targets = new EnumMap<>(SagaType.class);
+
+    @Value("${saga.recovery.enabled:true}")
+    private boolean enabled;
+
+    @Value("${saga.recovery.threads:4}")
+    private int threadCount;
+
+    @Value("${saga.recovery.chunk-size:1000}")
+    private int chunkSize;
+
+    // A step still unanswered this long after it started has its command resent
+    @Value("${saga.recovery.stuck-after-ms:60000}")
+    private long stuckAfterMs;
+
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong recovered = new AtomicLong();
+    private volatile boolean complete;
+
+    private Counter recoveredSagas;
+    private Counter resumed;
+    private Counter restamped;
+    private Timer duration;
+
+    // Resends the step a saga was scanned in unless the saga has moved on since the scan, whether it did
+    @FunctionalInterface
+    private interface StepResume {
+        boolean resume(String sagaId, String scannedStep, Instant scannedStepStart);
+    }
+
+    private static class RecoveryTarget {
+        final Class<?> entityClass;
+        final SagaStateCache<?> cache;
+        final StepResume resume;
+
+        RecoveryTarget(Class<?> entityClass, SagaStateCache<?> cache, StepResume resume) {
+            this.entityClass = entityClass;
+            this.cache = cache;
+            this.resume = resume;
+        }
+    }
+
+    public SagaRecoveryService(MongoTemplate mongoTemplate, MeterRegistry meterRegistry, SagaEventExecutor sagaEventExecutor,
+                               SagaOwnershipService sagaOwnershipService, SagaMonitoringService sagaMonitoringService,
+                               List<SagaStateCache<?>> sagaStateCaches,
+                               DepositSagaService depositSagaService, WithdrawalSagaService withdrawalSagaService,
+                               OrderBuySagaService orderBuySagaService, OrderSellSagaService orderSellSagaService) {
+        this.mongoTemplate = mongoTemplate;
+        this.meterRegistry = meterRegistry;
+        this.sagaEventExecutor = sagaEventExecutor;
+        this.sagaOwnershipService = sagaOwnershipService;
+        this.sagaMonitoringService = sagaMonitoringService;
+        Map<String, SagaStateCache<?>> caches = sagaStateCaches.stream()
+                .collect(Collectors.toMap(SagaStateCache::getSagaType, cache -> cache));
+        targets.put(SagaType.DEPOSIT, new RecoveryTarget(DepositSagaState.class,
+                caches.get(SagaType.DEPOSIT.getKey()), depositSagaService::resumeStuckStep));
+        targets.put(SagaType.WITHDRAWAL, new RecoveryTarget(WithdrawalSagaState.class,
+                caches.get(SagaType.WITHDRAWAL.getKey()), withdrawalSagaService::resumeStuckStep));
+        targets.put(SagaType.ORDER_BUY, new RecoveryTarget(OrderBuySagaState.class,
+                caches.get(SagaType.ORDER_BUY.getKey()), orderBuySagaService::resumeStuckStep));
+        targets.put(SagaType.ORDER_SELL, new RecoveryTarget(OrderSellSagaState.class,
+                caches.get(SagaType.ORDER_SELL.getKey()), orderSellSagaService::resumeStuckStep));
+    }
+
+    @PostConstruct
+    public void init() {
+        recoveredSagas = meterRegistry.counter("saga.recovery.sagas");
+        resumed = meterRegistry.counter("saga.recovery.resumed");
+        restamped = meterRegistry.counter("saga.recovery.restamped");
+        duration = meterRegistry.timer("saga.recovery.duration");
+        // Share of the active sagas found at startup that have been recovered, 1 once recovery is done
+        Gauge.builder("saga.recovery.progress", this, SagaRecoveryService::getProgress).register(meterRegistry);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (!enabled) {
+            complete = true;
+            return;
+        }
+        Thread thread = new Thread(this::recover, "saga-recovery");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Recover the active sagas of every type, the types in parallel
+     */
+    public void recover() {
+        long startedAt = System.nanoTime();
+        complete = false;
+        total.set(0);
+        recovered.set(0);
+        try {
+            // Take the shards this instance is due before deciding which sagas are its own
+            sagaOwnershipService.renewLeases();
+        } catch (Exception e) {
+            log.warn("Could not take timeout shard leases before recovery: {}", e.getMessage());
+        }
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threadCount), runnable -> {
+            Thread thread = new Thread(runnable, "saga-recovery-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        ExecutorService cursors = Executors.newFixedThreadPool(targets.size());
+        // Chunks read but not handled yet, so the cursors cannot run ahead of the pool
+        Semaphore permits = new Semaphore(Math.max(1, threadCount) * 2);
+        try {
+            for (RecoveryTarget target : targets.values()) {
+                ensureIndex(target);
+                total.addAndGet(mongoTemplate.count(activeQuery(), target.entityClass));
+            }
+            log.info("Recovering {} in-flight sagas", total.get());
+
+            Map<SagaType, Future<Long>> results = new EnumMap<>(SagaType.class);
+            targets.forEach((type, target) -> results.put(type, cursors.submit(() -> recover(type, target, pool, permits))));
+            for (Map.Entry<SagaType, Future<Long>> result : results.entrySet()) {
+                try {
+                    log.info("Recovered {} in-flight {} sagas", result.getValue().get(), result.getKey().getKey());
+                } catch (ExecutionException e) {
+                    log.error("Recovery of {} sagas failed: {}", result.getKey().getKey(), e.getCause().getMessage(), e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("Saga recovery failed: {}", e.getMessage(), e);
+        } finally {
+            cursors.shutdownNow();
+            pool.shutdown();
+            long elapsed = System.nanoTime() - startedAt;
+            duration.record(elapsed, TimeUnit.NANOSECONDS);
+            complete = true;
+            log.info("Saga recovery done in {} ms: {} sagas, {} steps resent, {} re-stamped",
+                    TimeUnit.NANOSECONDS.toMillis(elapsed), recovered.get(), (long) resumed.count(), (long) restamped.count());
+        }
+    }
+
+    // Stream the active sagas of one type and hand them to the pool chunk by chunk
+    private long recover(SagaType type, RecoveryTarget target, ExecutorService pool, Semaphore permits)
+            throws InterruptedException {
+        String collection = mongoTemplate.getCollectionName(target.entityClass);
+        List<Future<?>> chunks = new ArrayList<>();
+        List<Document> chunk = new ArrayList<>(chunkSize);
+        long streamed = 0;
+        Object lastId = null;
+
+        for (int attempt = 1; ; attempt++) {
+            // In _id order, so a broken cursor can be reopened after the last saga it returned
+            Query query = activeQuery().with(Sort.by(Sort.Direction.ASC, "_id")).cursorBatchSize(chunkSize);
+            if (lastId != null) {
+                query.addCriteria(Criteria.where("_id").gt(lastId));
+            }
+            query.fields().include("sagaId").include("status").include("currentStep").include("currentStepStartTime")
+                    .include("nextDeadline").include("timeoutShard").include(OutboxCommand.FIELD + ".messageId");
+            try (CloseableIterator<Document> cursor = mongoTemplate.stream(query, Document.class, collection)) {
+                while (cursor.hasNext()) {
+                    Document saga = cursor.next();
+                    lastId = saga.get("_id");
+                    chunk.add(saga);
+                    streamed++;
+                    if (chunk.size() == chunkSize) {
+                        chunks.add(submit(type, target, chunk, pool, permits));
+                        chunk = new ArrayList<>(chunkSize);
+                    }
+                }
+                break;
+            } catch (DataAccessException e) {
+                if (attempt >= MAX_CURSOR_ATTEMPTS) {
+                    throw e;
+                }
+                log.warn("Recovery cursor of {} sagas broke after {} sagas, reopening: {}",
+                        type.getKey(), streamed, e.getMessage());
+            }
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(submit(type, target, chunk, pool, permits));
+        }
+
+        for (Future<?> result : chunks) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                log.error("Recovery chunk of {} sagas failed: {}", type.getKey(), e.getCause().getMessage());
+            }
+        }
+        return streamed;
+    }
+
+    private Future<?> submit(SagaType type, RecoveryTarget target, List<Document> chunk, ExecutorService pool,
+                             Semaphore permits) throws InterruptedException {
+        permits.acquire();
+        try {
+            return pool.submit(() -> {
+                try {
+                    recoverChunk(type, target, chunk);
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void recoverChunk(SagaType type, RecoveryTarget target, List<Document> chunk) {
+        long stuckBefore = System.currentTimeMillis() - stuckAfterMs;
+        Date now = new Date();
+        Map<String, Runnable> work = new LinkedHashMap<>();
+
+        for (Document saga : chunk) {
+            String sagaId = saga.getString("sagaId");
+            if (sagaId == null || !sagaOwnershipService.owns(sagaId)) {
+                continue;
+            }
+            SagaStatus status = statusOf(saga);
+            String step = saga.getString("currentStep");
+            Date stepStartTime = saga.getDate("currentStepStartTime");
+            Instant stepStart = stepStartTime != null ? stepStartTime.toInstant() : null;
+            sagaMonitoringService.restore(type, sagaId, step, status, stepStart);
+            if (step == null || !WAITING.contains(status)) {
+                continue;
+            }
+
+            Date deadline = saga.getDate("nextDeadline");
+            if (deadline == null || saga.get("timeoutShard") == null) {
+                // Saved before deadlines were stamped, invisible to the timeout scan until saved again
+                restamped.increment();
+                work.put(sagaId, () -> target.cache.resave(sagaId));
+            } else if (deadline.after(now) && stepStartTime != null && stepStartTime.getTime() < stuckBefore
+                    && !hasOutbox(saga)) {
+                // Expired steps are left to the timeout scan, unsent commands to the outbox recovery
+                work.put(sagaId, () -> {
+                    if (target.resume.resume(sagaId, step, stepStart)) {
+                        resumed.increment();
+                    }
+                });
+            }
+        }
+
+        // One query for the sagas of the chunk that need work, each is then handled on its lane
+        List<CompletableFuture<Void>> lanes = new ArrayList<>(work.size());
+        if (!work.isEmpty()) {
+            try {
+                target.cache.loadAll(work.keySet());
+            } catch (DataAccessException e) {
+                // Each saga is then read on its own
+                log.warn("Could not load {} {} sagas to recover: {}", work.size(), type.getKey(), e.getMessage());
+            }
+            work.forEach((sagaId, task) -> lanes.add(sagaEventExecutor.submit(sagaId,
+                    () -> sagaOwnershipService.runFenced(sagaId, task))));
+        }
+
+        // Done once the sagas touched here are handled, failures are already logged per saga
+        CompletableFuture.allOf(lanes.toArray(new CompletableFuture[0])).exceptionally(e -> null).join();
+
+        long before = recovered.getAndAdd(chunk.size());
+        recoveredSagas.increment(chunk.size());
+        long tenth = Math.max(1, total.get() / 10);
+        if ((before + chunk.size()) / tenth > before / tenth) {
+            log.info("Saga recovery at {}%: {} of {} sagas", (int) (getProgress() * 100), before + chunk.size(), total.get());
+        }
+    }
+
+    private static Query activeQuery() {
+        return Query.query(Criteria.where("status").in(ACTIVE_STATUSES).and("endTime").exists(false));
+    }
+
+    private static SagaStatus statusOf(Document saga) {
+        try {
+            return SagaStatus.valueOf(saga.getString("status"));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static boolean hasOutbox(Document saga) {
+        Object outbox = saga.get(OutboxCommand.FIELD);
+        return outbox instanceof List && !((List<?>) outbox).isEmpty();
+    }
+
+    // Finished sagas make up most of a collection. With _id after status, each active status is a range in _id
+    // order and Mongo merges the ranges for the $in, so the scan reads only active sagas and sorts nothing.
+    private void ensureIndex(RecoveryTarget target) {
+        try {
+            mongoTemplate.indexOps(target.entityClass).ensureIndex(new Index()
+                    .on("status", Sort.Direction.ASC)
+                    .on("_id", Sort.Direction.ASC));
+        } catch (Exception e) {
+            log.warn("Could not ensure status index for {}: {}", target.entityClass.getSimpleName(), e.getMessage());
+        }
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public double getProgress() {
+        if (complete) {
+            return 1.0;
+        }
+        long expected = total.get();
+        return expected == 0 ? 0.0 : Math.min(1.0, (double) recovered.get() / expected);
+    }
+}
@@ -0,0 +1,744 @@
+package com.stocktrading.kafka.service;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.project.kafkamessagemodels.model.CommandMessage;
+import com.stocktrading.kafka.model.OutboxCommand;
+import com.stocktrading.kafka.model.SagaEventRecord;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentProperty;
+import org.springframework.data.mongodb.core.query.BasicUpdate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory working set of in-flight sagas of one type, persisted write-behind.
+ * Every save is snapshotted to a BSON document right away so later mutations of the live object
+ * cannot leak into the pending write, and repeated saves of the same saga coalesce into one.
+ * The flusher diffs each snapshot against the last persisted one and sends only the changed fields
+ * ($set, $push for appended list items) guarded by the document version, all in a single bulk write.
+ * Commands emitted with a save are pushed to the saga's outbox in that same update and handed to the
+ * outbox relay once it is acknowledged, and so are the audit events drained with a save to the event log.
+ * A saga this cache never wrote is inserted, never upserted. When another writer got there first the saga is
+ * reloaded from Mongo and the messages behind the lost write are rejected, so they are redelivered against
+ * the reloaded state instead of being marked processed.
+ * Saves made by fenced scheduled work carry the shard lease token; their write requires the saga's stored token
+ * to be no newer, and is dropped without being sent once this instance no longer holds that lease.
+ */
+@Slf4j
+public class SagaStateCache<T> {
+
+    private static final String VERSION = "version";
+    // Tags each document with the flush that last wrote it, to tell our updates from a competing writer's
+    private static final String WRITE_ID = "writeId";
+    // Newest shard lease token the saga was written under
+    private static final String FENCE = "fence";
+    // Sagas are stored under their sagaId as _id, so lookups by sagaId go through the primary index: the unique
+    // sagaId index the models declare is never created, since index auto-creation is off
+    private static final String ID = "_id";
+    // Maintained by the store itself, never part of a diff
+    private static final Set<String> STORE_FIELDS = Set.of(ID, VERSION, WRITE_ID, FENCE, OutboxCommand.FIELD);
+    private static final int DUPLICATE_KEY = 11000;
+    private static final Codec<Document> DOCUMENT_CODEC =
+            MongoClientSettings.getDefaultCodecRegistry().get(Document.class);
+
+    private final String sagaType;
+    private final Class<T> entityClass;
+    private final MongoTemplate mongoTemplate;
+    private final Function<T, String> sagaIdOf;
+    private final Function<String, Optional<T>> loader;
+    private final Predicate<T> terminal;
+    private final Function<T, List<SagaEventRecord>> eventDrainer;
+    private final Consumer<T> beforeSave;
+    private final SagaEventLog eventLog;
+    private final CommandOutboxRelay outbox;
+    private final IdempotencyService idempotencyService;
+    private final SagaOwnershipService ownershipService;
+    private final String collection;
+    private final MongoPersistentEntity<?> persistentEntity;
+    private final boolean writeBehind;
+    private final long idleEvictMs;
+
+    // Live saga objects by sagaId
+    private final Map<String, CachedSaga<T>> entries = new ConcurrentHashMap<>();
+
+    // Latest unflushed snapshot by sagaId
+    private final Map<String, PendingWrite> pendingWrites = new ConcurrentHashMap<>();
+
+    // Last persisted document by sagaId, the base of the next delta
+    private final Map<String, Document> persistedDocuments = new ConcurrentHashMap<>();
+
+    // Sagas whose snapshot a flush is writing right now, guarded by its own monitor
+    private final Set<String> writing = new HashSet<>();
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter batchLoads;
+    private final Counter flushedWrites;
+    private final Counter failedFlushes;
+    private final Counter versionConflicts;
+    private final DistributionSummary writtenBytes;
+    private final DistributionSummary fullDocumentBytes;
+
+    private static class CachedSaga<T> {
+        final T state;
+        volatile long lastAccess;
+
+        CachedSaga(T state) {
+            this.state = state;
+            this.lastAccess = System.currentTimeMillis();
+        }
+    }
+
+    private static class PendingWrite {
+        final Document document;
+        final boolean terminal;
+        // Commands emitted since the last flush, oldest first
+        final List<OutboxCommand> commands;
+        // Messages whose handling produced this state, rejected if it cannot be written
+        final Set<String> messageIds;
+        // Lease token of the fenced work that saved it, null if none did
+        final Long fence;
+        // Audit events added since the last flush, logged once this state is written
+        final List<SagaEventRecord> events;
+
+        PendingWrite(Document document, boolean terminal, List<OutboxCommand> commands, Set<String> messageIds,
+                     Long fence, List<SagaEventRecord> events) {
+            this.document = document;
+            this.terminal = terminal;
+            this.commands = commands;
+            this.messageIds = messageIds;
+            this.fence = fence;
+            this.events = events;
+        }
+
+        // A later snapshot replaces this one, but the commands, messages, fence and events of both must still be accounted for
+        PendingWrite followedBy(PendingWrite next) {
+            if (commands.isEmpty() && messageIds.isEmpty() && fence == null && events.isEmpty()) {
+                return next;
+            }
+            List<OutboxCommand> allCommands = new ArrayList<>(commands);
+            allCommands.addAll(next.commands);
+            Set<String> allMessageIds = new HashSet<>(messageIds);
+            allMessageIds.addAll(next.messageIds);
+            Long newestFence = fence == null ? next.fence
+                    : next.fence == null ? fence : Math.max(fence, next.fence);
+            List<SagaEventRecord> allEvents = new ArrayList<>(events);
+            allEvents.addAll(next.events);
+            return new PendingWrite(next.document, next.terminal, allCommands, allMessageIds, newestFence, allEvents);
+        }
+
+        List<Document> outboxDocuments() {
+            List<Document> documents = new ArrayList<>(commands.size());
+            commands.forEach(command -> documents.add(command.toDocument()));
+            return documents;
+        }
+    }
+
+    public SagaStateCache(String sagaType, Class<T> entityClass, MongoTemplate mongoTemplate, MeterRegistry meterRegistry,
+                          Function<T, String> sagaIdOf, Function<String, Optional<T>> loader, Predicate<T> terminal,
+                          Function<T, List<SagaEventRecord>> eventDrainer, SagaEventLog eventLog, CommandOutboxRelay outbox,
+                          IdempotencyService idempotencyService, SagaOwnershipService ownershipService,
+                          Consumer<T> beforeSave, boolean writeBehind, long idleEvictMs) {
+        this.sagaType = sagaType;
+        this.entityClass = entityClass;
+        this.mongoTemplate = mongoTemplate;
+        this.sagaIdOf = sagaIdOf;
+        this.loader = loader;
+        this.terminal = terminal;
+        this.eventDrainer = eventDrainer;
+        this.eventLog = eventLog;
+        this.outbox = outbox;
+        this.idempotencyService = idempotencyService;
+        this.ownershipService = ownershipService;
+        this.collection = mongoTemplate.getCollectionName(entityClass);
+        this.persistentEntity = mongoTemplate.getConverter().getMappingContext().getRequiredPersistentEntity(entityClass);
+        outbox.register(collection);
+        this.beforeSave = beforeSave;
+        this.writeBehind = writeBehind;
+        this.idleEvictMs = idleEvictMs;
+
+        this.hits = meterRegistry.counter("saga.cache.hits", "type", sagaType);
+        this.misses = meterRegistry.counter("saga.cache.misses", "type", sagaType);
+        this.batchLoads = meterRegistry.counter("saga.cache.batch.loads", "type", sagaType);
+        this.flushedWrites = meterRegistry.counter("saga.cache.flushed", "type", sagaType);
+        this.failedFlushes = meterRegistry.counter("saga.cache.flush.failures", "type", sagaType);
+        this.versionConflicts = meterRegistry.counter("saga.cache.version.conflicts", "type", sagaType);
+        // Bytes actually sent per saga write, next to the size a full document rewrite would have been
+        this.writtenBytes = DistributionSummary.builder("saga.persist.bytes")
+                .tag("type", sagaType).tag("mode", "delta").baseUnit("bytes").register(meterRegistry);
+        this.fullDocumentBytes = DistributionSummary.builder("saga.persist.bytes")
+                .tag("type", sagaType).tag("mode", "full").baseUnit("bytes").register(meterRegistry);
+        meterRegistry.gaugeMapSize("saga.cache.size", Tags.of("type", sagaType), entries);
+        meterRegistry.gaugeMapSize("saga.cache.pending", Tags.of("type", sagaType), pendingWrites);
+    }
+
+    /**
+     * Find a saga, reading through to Mongo on a miss
+     */
+    public Optional<T> findById(String sagaId) {
+        CachedSaga<T> cached = entries.get(sagaId);
+        if (cached != null) {
+            hits.increment();
+            cached.lastAccess = System.currentTimeMillis();
+            return Optional.of(cached.state);
+        }
+
+        misses.increment();
+        Optional<T> loaded = loader.apply(sagaId);
+        if (loaded.isPresent() && !terminal.test(loaded.get())) {
+            return Optional.of(adopt(sagaId, loaded.get()));
+        }
+        return loaded;
+    }
+
+    /**
+     * Bring the sagas of a batch into memory with one $in query on _id for those not cached yet
+     */
+    public void loadAll(Collection<String> sagaIds) {
+        List<String> missing = sagaIds.stream()
+                .filter(sagaId -> sagaId != null && !entries.containsKey(sagaId))
+                .distinct()
+                .collect(Collectors.toList());
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        batchLoads.increment();
+        for (T saga : mongoTemplate.find(Query.query(Criteria.where(ID).in(missing)), entityClass)) {
+            if (!terminal.test(saga)) {
+                adopt(sagaIdOf.apply(saga), saga);
+            }
+        }
+    }
+
+    /**
+     * Whether a saga is held in memory, without reading through to Mongo
+     */
+    public boolean contains(String sagaId) {
+        return entries.containsKey(sagaId);
+    }
+
+    /**
+     * The live instance of a saga that was read straight from the repository, e.g. by a timeout scan
+     */
+    public T resolve(T saga) {
+        String sagaId = sagaIdOf.apply(saga);
+        CachedSaga<T> cached = entries.get(sagaId);
+        if (cached != null) {
+            return cached.state;
+        }
+        return terminal.test(saga) ? saga : adopt(sagaId, saga);
+    }
+
+    // Cache a saga as read from Mongo, keeping a single live instance if another thread loaded it first
+    private T adopt(String sagaId, T loaded) {
+        CachedSaga<T> existing = entries.putIfAbsent(sagaId, new CachedSaga<>(loaded));
+        if (existing != null) {
+            return existing.state;
+        }
+        persistedDocuments.put(sagaId, toDocument(loaded));
+        return loaded;
+    }
+
+    /**
+     * Record the new state of a saga, persisted by the next flush
+     */
+    public T save(T saga) {
+        return save(saga, Collections.emptyList());
+    }
+
+    /**
+     * Record the new state of a saga and a command it emits, published once that state is persisted
+     */
+    public T save(T saga, CommandMessage command, String topic) {
+        return save(saga, Collections.singletonList(outbox.entryOf(command, topic)));
+    }
+
+    /**
+     * Record the new state of a saga and several commands it emits at once, published once that state is persisted
+     */
+    public T save(T saga, List<CommandMessage> commands, Function<CommandMessage, String> topicOf) {
+        List<OutboxCommand> entries = new ArrayList<>(commands.size());
+        for (CommandMessage command : commands) {
+            entries.add(outbox.entryOf(command, topicOf.apply(command)));
+        }
+        return save(saga, entries);
+    }
+
+    private T save(T saga, List<OutboxCommand> commands) {
+        String sagaId = sagaIdOf.apply(saga);
+        String messageId = idempotencyService.currentMessageId();
+        Set<String> messageIds = messageId != null ? Collections.singleton(messageId) : Collections.emptySet();
+        Long fence = ownershipService.currentFence();
+        boolean[] stale = new boolean[1];
+
+        // Atomic with a conflict reload, so a write of the replaced instance cannot slip in after it
+        entries.compute(sagaId, (id, cached) -> {
+            if (cached != null && cached.state != saga) {
+                stale[0] = true;
+                return cached;
+            }
+            beforeSave.accept(saga);
+            List<SagaEventRecord> events = eventDrainer.apply(saga);
+            pendingWrites.merge(sagaId,
+                    new PendingWrite(toDocument(saga), terminal.test(saga), commands, messageIds, fence, events),
+                    PendingWrite::followedBy);
+            if (cached == null) {
+                return new CachedSaga<>(saga);
+            }
+            cached.lastAccess = System.currentTimeMillis();
+            return cached;
+        });
+
+        if (stale[0]) {
+            // The saga was reloaded since this copy was read, whatever was derived from it is dropped
+            versionConflicts.increment();
+            log.warn("Dropped save of a stale copy of {} saga {}", sagaType, sagaId);
+            idempotencyService.reject(messageIds);
+            return saga;
+        }
+        if (!writeBehind) {
+            // Write-through still goes through the delta path so the outbox rides along
+            flush(sagaId);
+        }
+        return saga;
+    }
+
+    /**
+     * Whether a saga instance is still the one held for its ID, false once a conflicting write made the cache reload it
+     */
+    public boolean isCurrent(T saga) {
+        CachedSaga<T> cached = entries.get(sagaIdOf.apply(saga));
+        return cached == null || cached.state == saga;
+    }
+
+    /**
+     * Save a saga again as it is, so the save hook re-stamps what it derives from the state
+     */
+    public void resave(String sagaId) {
+        findById(sagaId).filter(saga -> !terminal.test(saga)).ifPresent(this::save);
+    }
+
+    /**
+     * Write all pending snapshots in one bulk write and drop finished or idle sagas from memory.
+     * Writes beaten by another writer reload their saga and reject the messages behind them.
+     * Returns false if the write failed and the snapshots were kept for the next flush.
+     */
+    public synchronized boolean flush() {
+        boolean flushed = true;
+        if (!pendingWrites.isEmpty()) {
+            Map<String, PendingWrite> batch = new HashMap<>();
+            synchronized (writing) {
+                for (String sagaId : new ArrayList<>(pendingWrites.keySet())) {
+                    // A saga written through on its own right now is left for the next flush
+                    if (!writing.contains(sagaId)) {
+                        PendingWrite write = pendingWrites.remove(sagaId);
+                        if (write != null) {
+                            writing.add(sagaId);
+                            batch.put(sagaId, write);
+                        }
+                    }
+                }
+            }
+            try {
+                flushed = write(batch);
+            } finally {
+                doneWriting(batch.keySet());
+            }
+
+            batch.forEach((sagaId, write) -> {
+                if (write.terminal) {
+                    evictUnlessPending(sagaId, Long.MAX_VALUE);
+                }
+            });
+        }
+
+        if (idleEvictMs > 0) {
+            long cutoff = System.currentTimeMillis() - idleEvictMs;
+            for (String sagaId : new ArrayList<>(entries.keySet())) {
+                evictUnlessPending(sagaId, cutoff);
+            }
+        }
+        return flushed;
+    }
+
+    // Write-through: write one saga on its own, after any flush already writing an earlier snapshot of it
+    private boolean flush(String sagaId) {
+        PendingWrite write;
+        synchronized (writing) {
+            while (writing.contains(sagaId)) {
+                try {
+                    writing.wait();
+                } catch (InterruptedException e) {
+                    // Left pending for the next flush
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            write = pendingWrites.remove(sagaId);
+            if (write == null) {
+                return true;
+            }
+            writing.add(sagaId);
+        }
+
+        boolean flushed;
+        try {
+            flushed = write(Collections.singletonMap(sagaId, write));
+        } finally {
+            doneWriting(Collections.singleton(sagaId));
+        }
+        if (write.terminal) {
+            evictUnlessPending(sagaId, Long.MAX_VALUE);
+        }
+        return flushed;
+    }
+
+    private void doneWriting(Set<String> sagaIds) {
+        synchronized (writing) {
+            writing.removeAll(sagaIds);
+            writing.notifyAll();
+        }
+    }
+
+    private boolean write(Map<String, PendingWrite> batch) {
+        String writeId = new ObjectId().toHexString();
+        Set<String> conflicts = new HashSet<>(loadMissingBases(batch));
+        List<String> operations = new ArrayList<>();
+        Set<String> updates = new HashSet<>();
+        Map<String, Document> written = new HashMap<>();
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, entityClass);
+
+        batch.forEach((sagaId, write) -> {
+            if (write.fence != null && !ownershipService.holds(sagaId, write.fence)) {
+                // The lease ran out since the work was done, the new holder decides for itself
+                conflicts.add(sagaId);
+            }
+            if (conflicts.contains(sagaId)) {
+                return;
+            }
+            Object id = write.document.get(ID);
+            Document persisted = persistedDocuments.get(sagaId);
+            fullDocumentBytes.record(bsonSize(write.document));
+
+            if (persisted == null) {
+                // Never persisted: insert only, so an existing document is never overwritten
+                Document document = new Document(write.document);
+                document.put(VERSION, 0L);
+                Document insert = new Document(document);
+                insert.put(WRITE_ID, writeId);
+                if (write.fence != null) {
+                    insert.put(FENCE, write.fence);
+                }
+                if (!write.commands.isEmpty()) {
+                    insert.put(OutboxCommand.FIELD, write.outboxDocuments());
+                }
+                bulk.insert(insert);
+                writtenBytes.record(bsonSize(insert));
+                operations.add(sagaId);
+                written.put(sagaId, document);
+                return;
+            }
+
+            Document delta = diff(persisted, write.document);
+            if (delta.isEmpty() && write.commands.isEmpty()) {
+                return;
+            }
+            if (!write.commands.isEmpty()) {
+                ((Document) delta.computeIfAbsent("$push", key -> new Document()))
+                        .put(OutboxCommand.FIELD, new Document("$each", write.outboxDocuments()));
+            }
+            Document set = (Document) delta.computeIfAbsent("$set", key -> new Document());
+            set.put(WRITE_ID, writeId);
+            Long version = versionOf(persisted);
+            delta.put("$inc", new Document(VERSION, 1L));
+            Query query = Query.query(Criteria.where(ID).is(id).and(VERSION).is(version));
+            if (write.fence != null) {
+                // Refused once a newer lease holder has written the saga
+                set.put(FENCE, write.fence);
+                query.addCriteria(new Criteria().orOperator(
+                        Criteria.where(FENCE).exists(false), Criteria.where(FENCE).lte(write.fence)));
+            }
+            bulk.updateOne(query, new BasicUpdate(delta));
+            writtenBytes.record(bsonSize(delta));
+            operations.add(sagaId);
+            updates.add(sagaId);
+
+            Document next = new Document(write.document);
+            next.put(VERSION, version == null ? 1L : version + 1);
+            written.put(sagaId, next);
+        });
+
+        Set<String> failed = new HashSet<>();
+        if (!operations.isEmpty()) {
+            BulkWriteResult result;
+            try {
+                result = bulk.execute();
+            } catch (BulkOperationException e) {
+                // Unordered, so everything without an error was applied
+                result = e.getResult();
+                for (BulkWriteError error : e.getErrors()) {
+                    String sagaId = operations.get(error.getIndex());
+                    if (error.getCode() == DUPLICATE_KEY && !updates.contains(sagaId)) {
+                        // Inserted by someone else since we read it
+                        conflicts.add(sagaId);
+                    } else {
+                        failed.add(sagaId);
+                    }
+                    updates.remove(sagaId);
+                }
+            } catch (Exception e) {
+                failedFlushes.increment();
+                log.error("Failed to flush {} {} saga states, will retry: {}", operations.size(), sagaType, e.getMessage());
+                requeue(batch);
+                return false;
+            }
+            if (result.getMatchedCount() < updates.size()) {
+                conflicts.addAll(notWrittenBy(writeId, updates));
+            }
+        }
+
+        Map<String, PendingWrite> retry = new HashMap<>();
+        batch.forEach((sagaId, write) -> {
+            if (conflicts.contains(sagaId)) {
+                reload(sagaId, write);
+            } else if (failed.contains(sagaId)) {
+                retry.put(sagaId, write);
+            } else {
+                if (written.containsKey(sagaId)) {
+                    Document next = written.get(sagaId);
+                    persistedDocuments.put(sagaId, next);
+                    CachedSaga<T> cached = entries.get(sagaId);
+                    if (cached != null) {
+                        setVersion(cached.state, versionOf(next));
+                    }
+                    flushedWrites.increment();
+                    if (!write.commands.isEmpty()) {
+                        outbox.enqueue(collection, write.document.get(ID), write.commands);
+                    }
+                }
+                // Logged only once the state they belong to is stored, a conflict drops them with the write
+                eventLog.append(sagaType, write.events);
+            }
+        });
+
+        if (!retry.isEmpty()) {
+            failedFlushes.increment();
+            log.error("Failed to flush {} of {} {} saga states, will retry", retry.size(), operations.size(), sagaType);
+            requeue(retry);
+            return false;
+        }
+        return true;
+    }
+
+    // Sagas saved without a base, e.g. after eviction, are diffed against the stored document if it is the version they were read at
+    private Set<String> loadMissingBases(Map<String, PendingWrite> batch) {
+        Map<String, Long> readVersions = new HashMap<>();
+        batch.forEach((sagaId, write) -> {
+            Long version = versionOf(write.document);
+            if (version != null && !persistedDocuments.containsKey(sagaId)) {
+                readVersions.put(sagaId, version);
+            }
+        });
+        if (readVersions.isEmpty()) {
+            return Collections.emptySet();
+        }
+
+        Map<String, Document> stored = new HashMap<>();
+        for (Document document : mongoTemplate.find(Query.query(Criteria.where(ID).in(readVersions.keySet())),
+                Document.class, collection)) {
+            stored.put(document.getString(ID), document);
+        }
+        Set<String> conflicts = new HashSet<>();
+        readVersions.forEach((sagaId, version) -> {
+            Document document = stored.get(sagaId);
+            if (document != null && version.equals(versionOf(document))) {
+                persistedDocuments.put(sagaId, document);
+            } else {
+                conflicts.add(sagaId);
+            }
+        });
+        return conflicts;
+    }
+
+    // Updates that matched nothing were beaten by another writer
+    private Set<String> notWrittenBy(String writeId, Set<String> sagaIds) {
+        Query query = Query.query(Criteria.where(ID).in(sagaIds));
+        query.fields().include(WRITE_ID);
+        Set<String> conflicts = new HashSet<>(sagaIds);
+        for (Document document : mongoTemplate.find(query, Document.class, collection)) {
+            if (writeId.equals(document.get(WRITE_ID))) {
+                conflicts.remove(document.getString(ID));
+            }
+        }
+        return conflicts;
+    }
+
+    // Replace our copy with the stored saga; the lost write and any later one derived from it are rejected, events included
+    private void reload(String sagaId, PendingWrite write) {
+        versionConflicts.increment();
+        log.warn("Version conflict persisting {} saga {}, reloading it and rejecting {} messages",
+                sagaType, sagaId, write.messageIds.size());
+        Optional<T> stored = loader.apply(sagaId);
+        entries.compute(sagaId, (id, cached) -> {
+            Set<String> rejected = new HashSet<>(write.messageIds);
+            PendingWrite later = pendingWrites.remove(sagaId);
+            if (later != null) {
+                rejected.addAll(later.messageIds);
+            }
+            idempotencyService.reject(rejected);
+            if (stored.isEmpty()) {
+                persistedDocuments.remove(sagaId);
+                return null;
+            }
+            persistedDocuments.put(sagaId, toDocument(stored.get()));
+            return new CachedSaga<>(stored.get());
+        });
+    }
+
+    // Keep newer snapshots taken while the flush was running, after the commands of this one
+    private void requeue(Map<String, PendingWrite> writes) {
+        writes.forEach((sagaId, write) -> pendingWrites.merge(sagaId, write,
+                (current, restored) -> restored.followedBy(current)));
+    }
+
+    /**
+     * Changed top-level fields as $set, items appended to a list as $push, removed fields as $unset.
+     * Embedded documents such as stepData are diffed one level down.
+     */
+    static Document diff(Document before, Document after) {
+        Document set = new Document();
+        Document push = new Document();
+        Document unset = new Document();
+
+        for (Map.Entry<String, Object> field : after.entrySet()) {
+            String key = field.getKey();
+            if (STORE_FIELDS.contains(key)) {
+                continue;
+            }
+            Object oldValue = before.get(key);
+            Object newValue = field.getValue();
+            if (Objects.equals(oldValue, newValue)) {
+                continue;
+            }
+
+            if (oldValue instanceof List && newValue instanceof List) {
+                List<?> oldList = (List<?>) oldValue;
+                List<?> newList = (List<?>) newValue;
+                if (newList.size() > oldList.size() && newList.subList(0, oldList.size()).equals(oldList)) {
+                    push.put(key, new Document("$each", new ArrayList<>(newList.subList(oldList.size(), newList.size()))));
+                    continue;
+                }
+            } else if (oldValue instanceof Document && newValue instanceof Document
+                    && plainKeys((Document) oldValue) && plainKeys((Document) newValue)) {
+                Document oldEmbedded = (Document) oldValue;
+                Document newEmbedded = (Document) newValue;
+                newEmbedded.forEach((subKey, subValue) -> {
+                    if (!Objects.equals(oldEmbedded.get(subKey), subValue)) {
+                        set.put(key + "." + subKey, subValue);
+                    }
+                });
+                oldEmbedded.keySet().stream()
+                        .filter(subKey -> !newEmbedded.containsKey(subKey))
+                        .forEach(subKey -> unset.put(key + "." + subKey, ""));
+                continue;
+            }
+            set.put(key, newValue);
+        }
+
+        for (String key : before.keySet()) {
+            if (!after.containsKey(key) && !STORE_FIELDS.contains(key)) {
+                unset.put(key, "");
+            }
+        }
+
+        Document update = new Document();
+        if (!set.isEmpty()) {
+            update.put("$set", set);
+        }
+        if (!push.isEmpty()) {
+            update.put("$push", push);
+        }
+        if (!unset.isEmpty()) {
+            update.put("$unset", unset);
+        }
+        return update;
+    }
+
+    // Keys that can be addressed with dot notation
+    private static boolean plainKeys(Document document) {
+        for (String key : document.keySet()) {
+            if (key.isEmpty() || key.indexOf('.') >= 0 || key.startsWith("$")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Drop a saga idle since the cutoff from memory, unless a save is waiting to be written
+    private void evictUnlessPending(String sagaId, long cutoff) {
+        entries.computeIfPresent(sagaId, (id, cached) -> {
+            if (cached.lastAccess >= cutoff || pendingWrites.containsKey(id)) {
+                return cached;
+            }
+            persistedDocuments.remove(id);
+            return null;
+        });
+    }
+
+    private static Long versionOf(Document document) {
+        Object version = document.get(VERSION);
+        return version instanceof Number ? ((Number) version).longValue() : null;
+    }
+
+    // Keep the live object at the stored version, so a later save without a base still matches it
+    private void setVersion(T saga, Long version) {
+        MongoPersistentProperty property = persistentEntity.getVersionProperty();
+        if (property != null) {
+            persistentEntity.getPropertyAccessor(saga).setProperty(property, version);
+        }
+    }
+
+    private Document toDocument(T saga) {
+        Document document = new Document();
+        mongoTemplate.getConverter().write(saga, document);
+        return document;
+    }
+
+    private static int bsonSize(Document document) {
+        return new RawBsonDocument(document, DOCUMENT_CODEC).getByteBuffer().remaining();
+    }
+
+    public String getSagaType() {
+        return sagaType;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int pendingSize() {
+        return pendingWrites.size();
+    }
+}
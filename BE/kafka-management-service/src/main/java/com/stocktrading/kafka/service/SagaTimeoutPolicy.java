@@ -0,0 +1,124 @@
+package com.stocktrading.kafka.service;
+
+import com.stocktrading.kafka.model.enums.DepositSagaStep;
+import com.stocktrading.kafka.model.enums.SagaStatus;
+import com.stocktrading.kafka.model.enums.WithdrawalSagaStep;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Step timeouts of every saga type, and the deadline they put on a saga's current step
+ */
+@Component
+public class SagaTimeoutPolicy {
+
+    // Number of buckets sagas are spread over for sharded timeout scans
+    public static final int SHARDS = 64;
+
+    @Value("${saga.deposit.timeout.verify-identity}")
+    private long depositVerifyIdentityTimeout;
+
+    @Value("${saga.deposit.timeout.validate-payment}")
+    private long depositValidatePaymentTimeout;
+
+    @Value("${saga.deposit.timeout.create-transaction}")
+    private long depositCreateTransactionTimeout;
+
+    @Value("${saga.deposit.timeout.process-payment}")
+    private long depositProcessPaymentTimeout;
+
+    @Value("${saga.deposit.timeout.update-transaction}")
+    private long depositUpdateTransactionTimeout;
+
+    @Value("${saga.deposit.timeout.update-balance}")
+    private long depositUpdateBalanceTimeout;
+
+    @Value("${saga.withdrawal.timeout.verify-identity:${saga.deposit.timeout.verify-identity}}")
+    private long withdrawalVerifyIdentityTimeout;
+
+    @Value("${saga.withdrawal.timeout.validate-payment:${saga.deposit.timeout.validate-payment}}")
+    private long withdrawalValidatePaymentTimeout;
+
+    @Value("${saga.withdrawal.timeout.create-transaction:${saga.deposit.timeout.create-transaction}}")
+    private long withdrawalCreateTransactionTimeout;
+
+    @Value("${saga.withdrawal.timeout.process-payment:${saga.deposit.timeout.process-payment}}")
+    private long withdrawalProcessPaymentTimeout;
+
+    @Value("${saga.withdrawal.timeout.update-transaction:${saga.deposit.timeout.update-transaction}}")
+    private long withdrawalUpdateTransactionTimeout;
+
+    @Value("${saga.withdrawal.timeout.update-balance:${saga.deposit.timeout.update-balance}}")
+    private long withdrawalUpdateBalanceTimeout;
+
+    // Buy and sell steps share one timeout
+    @Value("${saga.timeout.default:30000}")
+    private long orderStepTimeout;
+
+    public Duration forStep(DepositSagaStep step) {
+        switch (step) {
+            case VERIFY_USER_IDENTITY:
+                return Duration.ofMillis(depositVerifyIdentityTimeout);
+            case VALIDATE_PAYMENT_METHOD:
+                return Duration.ofMillis(depositValidatePaymentTimeout);
+            case CREATE_PENDING_TRANSACTION:
+                return Duration.ofMillis(depositCreateTransactionTimeout);
+            case PROCESS_PAYMENT:
+                return Duration.ofMillis(depositProcessPaymentTimeout);
+            case UPDATE_TRANSACTION_STATUS:
+                return Duration.ofMillis(depositUpdateTransactionTimeout);
+            case UPDATE_BALANCE:
+                return Duration.ofMillis(depositUpdateBalanceTimeout);
+            default:
+                // For compensation steps, use a generous timeout
+                return Duration.ofMillis(depositProcessPaymentTimeout);
+        }
+    }
+
+    public Duration forStep(WithdrawalSagaStep step) {
+        switch (step) {
+            case USER_VERIFY_IDENTITY:
+                return Duration.ofMillis(withdrawalVerifyIdentityTimeout);
+            case PAYMENT_METHOD_VALIDATE:
+                return Duration.ofMillis(withdrawalValidatePaymentTimeout);
+            case ACCOUNT_CREATE_WITHDRAWAL_PENDING_TRANSACTION:
+                return Duration.ofMillis(withdrawalCreateTransactionTimeout);
+            case PAYMENT_PROCESS_WITHDRAWAL:
+                return Duration.ofMillis(withdrawalProcessPaymentTimeout);
+            case ACCOUNT_UPDATE_TRANSACTION_STATUS:
+                return Duration.ofMillis(withdrawalUpdateTransactionTimeout);
+            case ACCOUNT_WITHDRAWAL_UPDATE_BALANCE:
+                return Duration.ofMillis(withdrawalUpdateBalanceTimeout);
+            default:
+                // For compensation steps, use a generous timeout
+                return Duration.ofMillis(withdrawalProcessPaymentTimeout);
+        }
+    }
+
+    public Duration forOrderStep() {
+        return Duration.ofMillis(orderStepTimeout);
+    }
+
+    /**
+     * When the current step times out, or null if the saga is not waiting on a step that can time out
+     */
+    public Instant deadline(SagaStatus status, Object currentStep, Instant stepStartTime, Duration timeout) {
+        if (currentStep == null || stepStartTime == null || timeout == null) {
+            return null;
+        }
+        if (status != SagaStatus.STARTED && status != SagaStatus.IN_PROGRESS) {
+            return null;
+        }
+        return stepStartTime.plus(timeout);
+    }
+
+    /**
+     * Timeout shard of a saga
+     */
+    public static int shardOf(String sagaId) {
+        return Math.floorMod(sagaId.hashCode(), SHARDS);
+    }
+}
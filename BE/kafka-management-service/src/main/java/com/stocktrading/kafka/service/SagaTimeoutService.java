@@ -0,0 +1,191 @@
+package com.stocktrading.kafka.service;
+
+import com.stocktrading.kafka.model.DepositSagaState;
+import com.stocktrading.kafka.model.OrderBuySagaState;
+import com.stocktrading.kafka.model.OrderSellSagaState;
+import com.stocktrading.kafka.model.WithdrawalSagaState;
+import com.stocktrading.kafka.model.enums.SagaType;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.PartialIndexFilter;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Timeout detection for all saga types.
+ * Every saga carries the deadline of its current step, so a scan is an indexed range query over expired
+ * deadlines only. Expired sagas are handled in batches on the saga executor, so a timeout never runs
+ * concurrently with an event of the same saga, and each instance only scans the timeout shards it owns.
+ */
+@Slf4j
+@Service
+public class SagaTimeoutService {
+
+    private final MongoTemplate mongoTemplate;
+    private final SagaEventExecutor sagaEventExecutor;
+    private final SagaOwnershipService sagaOwnershipService;
+    private final Map<SagaType, TimeoutTarget> targets = new EnumMap<>(SagaType.class);
+    private final Map<SagaType, Counter> expiredCounters = new EnumMap<>(SagaType.class);
+    private final Set<SagaType> indexedTypes = ConcurrentHashMap.newKeySet();
+
+    @Value("${saga.timeout.batch-size:500}")
+    private int batchSize;
+
+    @Value("${saga.timeout.max-batches-per-scan:20}")
+    private int maxBatchesPerScan;
+
+    private static class TimeoutTarget {
+        final Class<?> entityClass;
+        final Consumer<String> handler;
+
+        TimeoutTarget(Class<?> entityClass, Consumer<String> handler) {
+            this.entityClass = entityClass;
+            this.handler = handler;
+        }
+    }
+
+    public SagaTimeoutService(MongoTemplate mongoTemplate, MeterRegistry meterRegistry, SagaEventExecutor sagaEventExecutor,
+                              SagaOwnershipService sagaOwnershipService,
+                              DepositSagaService depositSagaService, WithdrawalSagaService withdrawalSagaService,
+                              OrderBuySagaService orderBuySagaService, OrderSellSagaService orderSellSagaService) {
+        this.mongoTemplate = mongoTemplate;
+        this.sagaEventExecutor = sagaEventExecutor;
+        this.sagaOwnershipService = sagaOwnershipService;
+        targets.put(SagaType.DEPOSIT, new TimeoutTarget(DepositSagaState.class, depositSagaService::handleTimeout));
+        targets.put(SagaType.WITHDRAWAL, new TimeoutTarget(WithdrawalSagaState.class, withdrawalSagaService::handleTimeout));
+        targets.put(SagaType.ORDER_BUY, new TimeoutTarget(OrderBuySagaState.class, orderBuySagaService::handleTimeout));
+        targets.put(SagaType.ORDER_SELL, new TimeoutTarget(OrderSellSagaState.class, orderSellSagaService::handleTimeout));
+        for (SagaType type : targets.keySet()) {
+            expiredCounters.put(type, meterRegistry.counter("saga.timeout.expired", "type", type.getKey()));
+        }
+    }
+
+    /**
+     * Handle the expired sagas of every type
+     */
+    public int checkForTimeouts() {
+        int handled = 0;
+        for (SagaType type : targets.keySet()) {
+            try {
+                handled += checkForTimeouts(type);
+            } catch (Exception e) {
+                log.error("Error checking {} saga timeouts: {}", type.getKey(), e.getMessage());
+            }
+        }
+        return handled;
+    }
+
+    /**
+     * Handle the expired sagas of one type, oldest deadline first
+     */
+    public int checkForTimeouts(SagaType type) {
+        List<Integer> ownedShards = sagaOwnershipService.ownedShards();
+        if (ownedShards.isEmpty()) {
+            return 0;
+        }
+        TimeoutTarget target = targets.get(type);
+        ensureIndex(type, target);
+
+        String collection = mongoTemplate.getCollectionName(target.entityClass);
+        Instant now = Instant.now();
+        Instant lastDeadline = null;
+        Object lastId = null;
+        int handled = 0;
+
+        for (int batch = 0; batch < maxBatchesPerScan; batch++) {
+            // Keyset pagination, sagas handled in this scan may not be flushed yet
+            Criteria criteria = Criteria.where("nextDeadline").lte(now);
+            if (lastDeadline != null) {
+                criteria = new Criteria().andOperator(criteria, new Criteria().orOperator(
+                        Criteria.where("nextDeadline").gt(lastDeadline),
+                        Criteria.where("nextDeadline").is(lastDeadline).and("_id").gt(lastId)));
+            }
+            if (ownedShards.size() < SagaTimeoutPolicy.SHARDS) {
+                criteria = new Criteria().andOperator(criteria, Criteria.where("timeoutShard").in(ownedShards));
+            }
+
+            Query query = Query.query(criteria)
+                    .with(Sort.by(Sort.Direction.ASC, "nextDeadline", "_id"))
+                    .limit(batchSize);
+            query.fields().include("sagaId").include("nextDeadline");
+
+            List<Document> expired = mongoTemplate.find(query, Document.class, collection);
+            if (expired.isEmpty()) {
+                break;
+            }
+
+            handleBatch(type, target, expired);
+            handled += expired.size();
+
+            Document last = expired.get(expired.size() - 1);
+            lastDeadline = last.getDate("nextDeadline").toInstant();
+            lastId = last.get("_id");
+            if (expired.size() < batchSize) {
+                break;
+            }
+        }
+
+        if (handled > 0) {
+            log.info("Handled {} expired {} sagas", handled, type.getKey());
+        }
+        return handled;
+    }
+
+    private void handleBatch(SagaType type, TimeoutTarget target, List<Document> expired) {
+        List<Future<?>> results = new ArrayList<>(expired.size());
+        for (Document document : expired) {
+            String sagaId = document.getString("sagaId");
+            if (sagaId == null) {
+                continue;
+            }
+            // Skipped if the shard moved to another instance since the scan, fenced by our lease otherwise
+            results.add(sagaEventExecutor.submit(sagaId, () -> sagaOwnershipService.runFenced(sagaId, () -> {
+                try {
+                    target.handler.accept(sagaId);
+                    expiredCounters.get(type).increment();
+                } catch (Exception e) {
+                    log.error("Error handling timeout of {} saga {}: {}", type.getKey(), sagaId, e.getMessage(), e);
+                }
+            })));
+        }
+
+        for (Future<?> result : results) {
+            try {
+                result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                log.error("Timeout handler failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    // Only sagas waiting on a step are indexed, so the index grows with in-flight sagas
+    private void ensureIndex(SagaType type, TimeoutTarget target) {
+        if (indexedTypes.contains(type)) {
+            return;
+        }
+        try {
+            mongoTemplate.indexOps(target.entityClass).ensureIndex(new Index()
+                    .on("nextDeadline", Sort.Direction.ASC)
+                    .on("_id", Sort.Direction.ASC)
+                    .partial(PartialIndexFilter.of(Criteria.where("nextDeadline").exists(true))));
+            indexedTypes.add(type);
+        } catch (Exception e) {
+            log.warn("Could not ensure deadline index for {} sagas: {}", type.getKey(), e.getMessage());
+        }
+    }
+}
@@ -2,54 +2,42 @@ package com.stocktrading.kafka.service;
 
 import com.project.kafkamessagemodels.model.CommandMessage;
 import com.project.kafkamessagemodels.model.EventMessage;
-import com.project.kafkamessagemodels.model.enums.CommandType;
-import com.project.kafkamessagemodels.model.enums.EventType;
-import com.stocktrading.kafka.model.SagaEvent;
 import com.stocktrading.kafka.model.WithdrawalSagaState;
 import com.stocktrading.kafka.model.enums.SagaStatus;
 import com.stocktrading.kafka.model.enums.WithdrawalSagaStep;
 import com.stocktrading.kafka.repository.WithdrawalSagaRepository;
+import com.stocktrading.kafka.service.SagaDefinition.Action;
+import com.stocktrading.kafka.service.SagaDefinition.Transition;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import java.math.BigDecimal;
-import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 
 @Slf4j
 @Service
 @RequiredArgsConstructor
-public class WithdrawalSagaService {
-    private final WithdrawalSagaRepository withdrawalSagaRepository;
+public class WithdrawalSagaService implements SagaEventHandler {
+    // Steps whose commands only read or validate, safe to send again while the participant may still answer the
+    // first one. Recovery resends no other step, those are left to the timeout handling at their deadline.
+    // START and START_COMPENSATION send nothing, resuming them sends the step after them for the first time.
+    private static final Set<WithdrawalSagaStep> RESENDABLE_STEPS = EnumSet.of(WithdrawalSagaStep.START,
+            WithdrawalSagaStep.USER_VERIFY_IDENTITY, WithdrawalSagaStep.ACCOUNT_VALIDATE,
+            WithdrawalSagaStep.ACCOUNT_CHECK_BALANCE, WithdrawalSagaStep.PAYMENT_METHOD_VALIDATE,
+            WithdrawalSagaStep.START_COMPENSATION);
 
-    private final KafkaMessagePublisher kafkaMessagePublisher;
+    private final WithdrawalSagaRepository withdrawalSagaRepository;
+    private final SagaStateCache<WithdrawalSagaState> withdrawalSagaCache;
 
     private final IdempotencyService idempotencyService;
 
     @Value("${saga.withdrawal.retry.max-attempts}")
     private int maxRetries;
 
-    @Value("${saga.deposit.timeout.verify-identity}")
-    private long verifyIdentityTimeout;
-
-    @Value("${saga.deposit.timeout.validate-payment}")
-    private long validatePaymentTimeout;
-
-    @Value("${saga.deposit.timeout.create-transaction}")
-    private long createTransactionTimeout;
-
-    @Value("${saga.deposit.timeout.process-payment}")
-    private long processPaymentTimeout;
-
-    @Value("${saga.deposit.timeout.update-transaction}")
-    private long updateTransactionTimeout;
-
-    @Value("${saga.deposit.timeout.update-balance}")
-    private long updateBalanceTimeout;
-
     @Value("${kafka.topics.user-commands.common:user.commands.common}")
     private String userCommonCommandsTopic;
 
@@ -62,6 +50,43 @@ public class WithdrawalSagaService {
     @Value("${kafka.topics.payment-commands.withdrawal:payment.commands.withdrawal}")
     private String paymentWithdrawalCommandsTopic;
 
+    private SagaDefinition<WithdrawalSagaStep> sagaDefinition;
+
+    @PostConstruct
+    public void init() {
+        sagaDefinition = SagaDefinition.builder(WithdrawalSagaStep.class,
+                        WithdrawalSagaStep::getCommandType, WithdrawalSagaStep::getStepNumber)
+                .topics(this::getTopicForStep)
+                .step(WithdrawalSagaStep.START, WithdrawalSagaStep.USER_VERIFY_IDENTITY, Action.TERMINATE)
+                // Validation, nothing to undo if these fail
+                .step(WithdrawalSagaStep.USER_VERIFY_IDENTITY, WithdrawalSagaStep.ACCOUNT_VALIDATE, Action.TERMINATE)
+                .step(WithdrawalSagaStep.ACCOUNT_VALIDATE, WithdrawalSagaStep.ACCOUNT_CHECK_BALANCE, Action.TERMINATE)
+                .step(WithdrawalSagaStep.ACCOUNT_CHECK_BALANCE, WithdrawalSagaStep.PAYMENT_METHOD_VALIDATE,
+                        Action.TERMINATE)
+                .step(WithdrawalSagaStep.PAYMENT_METHOD_VALIDATE,
+                        WithdrawalSagaStep.ACCOUNT_CREATE_WITHDRAWAL_PENDING_TRANSACTION, Action.TERMINATE)
+                .step(WithdrawalSagaStep.ACCOUNT_CREATE_WITHDRAWAL_PENDING_TRANSACTION,
+                        WithdrawalSagaStep.PAYMENT_PROCESS_WITHDRAWAL, Action.TERMINATE)
+                // Money movement
+                .step(WithdrawalSagaStep.PAYMENT_PROCESS_WITHDRAWAL, WithdrawalSagaStep.ACCOUNT_UPDATE_TRANSACTION_STATUS,
+                        Action.COMPENSATE)
+                .step(WithdrawalSagaStep.ACCOUNT_UPDATE_TRANSACTION_STATUS,
+                        WithdrawalSagaStep.ACCOUNT_WITHDRAWAL_UPDATE_BALANCE, Action.COMPENSATE)
+                .step(WithdrawalSagaStep.ACCOUNT_WITHDRAWAL_UPDATE_BALANCE, WithdrawalSagaStep.COMPLETE_SAGA,
+                        Action.COMPENSATE)
+                // Compensation, a failed step is sent again from the step before it
+                .step(WithdrawalSagaStep.START_COMPENSATION, WithdrawalSagaStep.ACCOUNT_WITHDRAWAL_REVERSE_BALANCE_UPDATE,
+                        Action.COMPENSATE)
+                .step(WithdrawalSagaStep.ACCOUNT_WITHDRAWAL_REVERSE_BALANCE_UPDATE,
+                        WithdrawalSagaStep.PAYMENT_REVERSE_WITHDRAWAL,
+                        Action.RETRY_COMPENSATION, WithdrawalSagaStep.START_COMPENSATION)
+                .step(WithdrawalSagaStep.PAYMENT_REVERSE_WITHDRAWAL, WithdrawalSagaStep.ACCOUNT_MARK_TRANSACTION_FAILED,
+                        Action.RETRY_COMPENSATION, WithdrawalSagaStep.ACCOUNT_WITHDRAWAL_REVERSE_BALANCE_UPDATE)
+                .step(WithdrawalSagaStep.ACCOUNT_MARK_TRANSACTION_FAILED, WithdrawalSagaStep.COMPLETE_COMPENSATION,
+                        Action.RETRY_COMPENSATION, WithdrawalSagaStep.PAYMENT_REVERSE_WITHDRAWAL)
+                .build();
+    }
+
     public WithdrawalSagaState startWithdrawalSaga(String userId, String accountId, BigDecimal amount, String currency,
                                                    String paymentMethodId, String description) {
         String sagaId = UUID.randomUUID().toString();
@@ -75,7 +100,7 @@ public class WithdrawalSagaService {
         log.debug("Saga before save: id={}, amount={} (type={})",
             saga.getSagaId(), saga.getAmount(), saga.getAmount().getClass().getName()
         );
-        withdrawalSagaRepository.save(saga);
+        withdrawalSagaCache.save(saga);
         nextSagaStep(saga);
 
         return saga;
@@ -83,91 +108,7 @@ public class WithdrawalSagaService {
 
     public void nextSagaStep(WithdrawalSagaState saga) {
         WithdrawalSagaStep nextStep = getNextStep(saga.getCurrentStep());
-        CommandMessage command = new CommandMessage();
-        command.setSagaId(saga.getSagaId());
-        command.setStepId(nextStep.getStepNumber());
-        command.setSourceService("SAGA_ORCHESTRATOR");
-        command.setTimestamp(Instant.now());
-        command.setType(nextStep.name());
-
-        if (nextStep.equals(WithdrawalSagaStep.USER_VERIFY_IDENTITY)) {
-            command.setTargetService("USER_SERVICE");
-            command.setPayloadValue("userId", saga.getUserId());
-            command.setPayloadValue("verificationType", "BASIC");
-        }
-        if (nextStep.equals(WithdrawalSagaStep.ACCOUNT_VALIDATE)) {
-            command.setTargetService("ACCOUNT_SERVICE");
-            command.setPayloadValue("accountId", saga.getAccountId());
-            command.setPayloadValue("userId", saga.getUserId());
-        }
-        if (nextStep.equals(WithdrawalSagaStep.ACCOUNT_CHECK_BALANCE)) {
-            command.setTargetService("ACCOUNT_SERVICE");
-            command.setPayloadValue("accountId", saga.getAccountId());
-            command.setPayloadValue("userId", saga.getUserId());
-            command.setPayloadValue("amount", saga.getAmount());
-            command.setPayloadValue("currency", saga.getCurrency());
-            command.setPayloadValue("paymentMethodId", saga.getPaymentMethodId());
-        }
-        if (nextStep.equals(WithdrawalSagaStep.PAYMENT_METHOD_VALIDATE)) {
-            command.setTargetService("ACCOUNT_SERVICE");
-            command.setPayloadValue("paymentMethodId", saga.getPaymentMethodId());
-            command.setPayloadValue("accountId", saga.getAccountId());
-            command.setPayloadValue("userId", saga.getUserId());
-        }
-        if (nextStep.equals(WithdrawalSagaStep.ACCOUNT_CREATE_WITHDRAWAL_PENDING_TRANSACTION)) {
-            command.setTargetService("ACCOUNT_SERVICE");
-            command.setPayloadValue("accountId", saga.getAccountId());
-            command.setPayloadValue("userId", saga.getUserId());
-            command.setPayloadValue("paymentMethodId", saga.getPaymentMethodId());
-            command.setPayloadValue("amount", saga.getAmount());
-            command.setPayloadValue("currency", saga.getCurrency());
-            command.setPayloadValue("description", saga.getStepData().get("description"));
-        }
-        if (nextStep.equals(WithdrawalSagaStep.PAYMENT_PROCESS_WITHDRAWAL)) {
-            command.setTargetService("PAYMENT_SERVICE");
-            command.setPayloadValue("paymentMethodId", saga.getPaymentMethodId());
-            command.setPayloadValue("amount", saga.getAmount());
-            command.setPayloadValue("currency", saga.getCurrency());
-            command.setPayloadValue("accountId", saga.getAccountId());
-            command.setPayloadValue("transactionId", saga.getTransactionId());
-        }
-        if (nextStep.equals(WithdrawalSagaStep.ACCOUNT_UPDATE_TRANSACTION_STATUS)) {
-            command.setTargetService("ACCOUNT_SERVICE");
-            command.setPayloadValue("transactionId", saga.getTransactionId());
-            command.setPayloadValue("status", "COMPLETED");
-            command.setPayloadValue("paymentReference", saga.getPaymentProcessorTransactionId());
-        }
-        if (nextStep.equals(WithdrawalSagaStep.ACCOUNT_WITHDRAWAL_UPDATE_BALANCE)) {
-            command.setTargetService("ACCOUNT_SERVICE");
-            command.setPayloadValue("accountId", saga.getAccountId());
-            command.setPayloadValue("amount", saga.getAmount());
-            command.setPayloadValue("transactionId", saga.getTransactionId());
-        }
-
-        if (nextStep.equals(WithdrawalSagaStep.ACCOUNT_WITHDRAWAL_REVERSE_BALANCE_UPDATE)) {
-            command.setIsCompensation(true);
-            command.setTargetService("ACCOUNT_SERVICE");
-            command.setPayloadValue("accountId", saga.getAccountId());
-            command.setPayloadValue("amount", saga.getAmount());
-            command.setPayloadValue("transactionId", saga.getTransactionId());
-            command.setPayloadValue("reason", saga.getFailureReason());
-        }
-        if (nextStep.equals(WithdrawalSagaStep.PAYMENT_REVERSE_WITHDRAWAL)) {
-            command.setIsCompensation(true);
-            command.setTargetService("PAYMENT_SERVICE");
-            command.setPayloadValue("paymentReference", saga.getPaymentProcessorTransactionId());
-            command.setPayloadValue("amount", saga.getAmount());
-            command.setPayloadValue("reason", saga.getFailureReason());
-            command.setPayloadValue("transactionId", saga.getTransactionId());
-        }
-        if (nextStep.equals(WithdrawalSagaStep.ACCOUNT_MARK_TRANSACTION_FAILED)) {
-            command.setIsCompensation(true);
-            command.setTargetService("ACCOUNT_SERVICE");
-            command.setPayloadValue("transactionId", saga.getTransactionId());
-            command.setPayloadValue("failureReason", saga.getFailureReason());
-            command.setPayloadValue("errorCode", "SAGA_FAILURE");
-        }
-        command.setMetadataValue("retryCount", String.valueOf(saga.getRetryCount()));
+        CommandMessage command = commandFor(saga, nextStep);
 
         saga.getCompletedSteps().add(command.getIsCompensation() || nextStep.equals(WithdrawalSagaStep.COMPLETE_COMPENSATION) ? (saga.getStepData().get("isFirstCompensationStep") == Boolean.TRUE ? WithdrawalSagaStep.START_COMPENSATION.name() : "COMP_" + saga.getCurrentStep().name())
                 : saga.getCurrentStep().name());
@@ -179,7 +120,7 @@ public class WithdrawalSagaService {
 
             saga.setEndTime(Instant.now());
             saga.setStatus(SagaStatus.COMPLETED);
-            saga.getSagaEvents().add(SagaEvent.of("SAGA_COMPLETED","Withdrawal saga completed successfully"));
+            saga.addEvent("SAGA_COMPLETED","Withdrawal saga completed successfully");
             log.info("Saga {} COMPLETED", saga.getSagaId());
         }
         else if (nextStep == WithdrawalSagaStep.COMPLETE_COMPENSATION) {
@@ -187,12 +128,12 @@ public class WithdrawalSagaService {
 
             saga.setEndTime(Instant.now());
             saga.setStatus(SagaStatus.COMPENSATION_COMPLETED);
-            saga.getSagaEvents().add(SagaEvent.of("COMPENSATION_COMPLETED", "Compensation process completed"));
+            saga.addEvent("COMPENSATION_COMPLETED", "Compensation process completed");
             log.info("Saga {} COMPENSATION_COMPLETED", saga.getSagaId());
         }
         else {
             saga.setStatus(!command.getIsCompensation() ? SagaStatus.IN_PROGRESS : SagaStatus.COMPENSATING);
-            saga.getSagaEvents().add(SagaEvent.of("STEP_CHANGED", "Moving to step: " + nextStep.name()));
+            saga.addEvent("STEP_CHANGED", "Moving to step: " + nextStep.name());
         }
 
         saga.setCurrentStep(nextStep);
@@ -201,26 +142,41 @@ public class WithdrawalSagaService {
 
         if (nextStep.equals(WithdrawalSagaStep.COMPLETE_SAGA) || nextStep.equals(WithdrawalSagaStep.COMPLETE_COMPENSATION)) {
             saga.getCompletedSteps().add(nextStep.equals(WithdrawalSagaStep.COMPLETE_SAGA) ? WithdrawalSagaStep.COMPLETE_SAGA.name() : WithdrawalSagaStep.COMPLETE_COMPENSATION.name());
-            withdrawalSagaRepository.save(saga);
+            withdrawalSagaCache.save(saga);
             return;
         }
 
-        withdrawalSagaRepository.save(saga);
-
-        String targetTopic = getTopicForCommandType(command);
-        kafkaMessagePublisher.publishCommand(command, targetTopic);
+        String targetTopic = sagaDefinition.topicOf(nextStep);
+        // The command is published from the saga's outbox once this state is persisted
+        withdrawalSagaCache.save(saga, command, targetTopic);
 
-        log.info("Published command [{}] for saga [{}] to topic: {}",
+        log.info("Queued command [{}] for saga [{}] to topic: {}",
                 command.getType(), saga.getSagaId(), targetTopic);
     }
 
+    @Override
+    public void preload(Collection<String> sagaIds) {
+        withdrawalSagaCache.loadAll(sagaIds);
+    }
+
+    @Override
+    public boolean handles(String eventType) {
+        return sagaDefinition.handles(eventType);
+    }
+
+    @Override
+    public boolean owns(String sagaId) {
+        return withdrawalSagaCache.contains(sagaId);
+    }
+
+    @Override
     public void handleEventMessage(EventMessage event) {
         String sagaId = event.getSagaId();
 
         log.debug("Handling event [{}] for saga: {}", event.getType(), sagaId);
 
         // Find the saga
-        Optional<WithdrawalSagaState> optionalSaga = withdrawalSagaRepository.getWithdrawalSagaStateBySagaId(sagaId);
+        Optional<WithdrawalSagaState> optionalSaga = withdrawalSagaCache.findById(sagaId);
         if (optionalSaga.isEmpty()) {
             log.warn("Received event for unknown saga: {}", sagaId);
             return;
@@ -240,7 +196,9 @@ public class WithdrawalSagaService {
         }
 
         // Check if this is a response to the current step
-        boolean matchesCurrentStep = isEventForCurrentStep(saga, event);
+        Transition<WithdrawalSagaStep> transition = sagaDefinition.resolve(saga.getCurrentStep(), saga.getStatus(),
+                event);
+        boolean matchesCurrentStep = transition != null;
         log.debug("Event matches current step: {}", matchesCurrentStep);
 
         if (!matchesCurrentStep) {
@@ -259,16 +217,16 @@ public class WithdrawalSagaService {
         // Process the event based on success/failure
         if (Boolean.TRUE.equals(event.getSuccess())) {
             log.debug("Processing success event for step: {}", saga.getCurrentStep());
-            if (event.getType().equals(EventType.WITHDRAWAL_TRANSACTION_CREATED.name())) {
+            if (transition.getStep() == WithdrawalSagaStep.ACCOUNT_CREATE_WITHDRAWAL_PENDING_TRANSACTION) {
                 saga.setTransactionId(event.getPayloadValue("transactionId"));
             }
-            if (event.getType().equals(EventType.WITHDRAWAL_PAYMENT_PROCESSED.name())) {
+            if (transition.getStep() == WithdrawalSagaStep.PAYMENT_PROCESS_WITHDRAWAL) {
                 saga.setPaymentProcessorTransactionId(event.getPayloadValue("paymentReference"));
             }
 
             saga.getStepData().put("isFirstCompensationStep", Boolean.FALSE);
 
-            withdrawalSagaRepository.save(saga);
+            withdrawalSagaCache.save(saga);
 
             nextSagaStep(saga);
         } else {
@@ -278,33 +236,24 @@ public class WithdrawalSagaService {
                         event.getType(), saga.getSagaId(), event.getErrorMessage());
 
                 WithdrawalSagaStep currentStep = saga.getCurrentStep();
-                saga.getSagaEvents().add(SagaEvent.of("STEP_FAILED", "Step " +currentStep.name() + " failed: " + event.getErrorMessage()));
+                saga.addEvent("STEP_FAILED", "Step " +currentStep.name() + " failed: " + event.getErrorMessage());
 
-                if (currentStep.equals(WithdrawalSagaStep.ACCOUNT_VALIDATE)
-                    || currentStep.equals(WithdrawalSagaStep.ACCOUNT_CHECK_BALANCE)
-                    || currentStep.equals(WithdrawalSagaStep.PAYMENT_METHOD_VALIDATE)
-                    || currentStep.equals(WithdrawalSagaStep.ACCOUNT_CREATE_WITHDRAWAL_PENDING_TRANSACTION)
-                    || currentStep.equals(WithdrawalSagaStep.USER_VERIFY_IDENTITY)) {
+                if (transition.getAction() == Action.TERMINATE) {
 
                     saga.setEndTime(Instant.now());
-                    saga.getSagaEvents().add(SagaEvent.of("SAGA_TERMINATED", "Saga terminated due to validation failure"));
+                    saga.addEvent("SAGA_TERMINATED", "Saga terminated due to validation failure");
 
-                    withdrawalSagaRepository.save(saga);
+                    withdrawalSagaCache.save(saga);
 
                     log.error("Saga terminated with error code: {}, error message: {}", event.getErrorCode(), event.getErrorMessage());
                 }
-                else if (saga.getCurrentStep().equals(WithdrawalSagaStep.ACCOUNT_WITHDRAWAL_REVERSE_BALANCE_UPDATE)
-                        || saga.getCurrentStep().equals(WithdrawalSagaStep.PAYMENT_REVERSE_WITHDRAWAL)
-                        || saga.getCurrentStep().equals(WithdrawalSagaStep.ACCOUNT_MARK_TRANSACTION_FAILED)) {
+                else if (transition.getAction() == Action.RETRY_COMPENSATION) {
                     // If reversal saga steps failed
-                    saga.setCurrentStep(saga.getCurrentStep().equals(WithdrawalSagaStep.ACCOUNT_WITHDRAWAL_REVERSE_BALANCE_UPDATE)
-                            ? WithdrawalSagaStep.START_COMPENSATION
-                            : (saga.getCurrentStep().equals(WithdrawalSagaStep.PAYMENT_REVERSE_WITHDRAWAL)
-                                ? WithdrawalSagaStep.ACCOUNT_WITHDRAWAL_REVERSE_BALANCE_UPDATE : WithdrawalSagaStep.PAYMENT_REVERSE_WITHDRAWAL));
+                    saga.setCurrentStep(transition.getNext());
 
                     saga.getStepData().put("isFirstCompensationStep", Boolean.TRUE);
 
-                    withdrawalSagaRepository.save(saga);
+                    withdrawalSagaCache.save(saga);
                 }
                 else {
                     startCompensation(saga);
@@ -335,42 +284,53 @@ public class WithdrawalSagaService {
     }
 
     /**
-     * Check for timed-out steps and handle them
+     * Handle a saga whose step deadline has passed
      */
-    public void checkForTimeouts() {
-        log.debug("Checking for timed-out saga steps");
-
-        List<SagaStatus> activeStatuses = Arrays.asList(SagaStatus.STARTED, SagaStatus.IN_PROGRESS);
-
-        // Find sagas that might have timed out
-        Instant cutoffTime = Instant.now().minus(Duration.ofMillis(Math.max(
-                verifyIdentityTimeout, Math.max(
-                        validatePaymentTimeout, Math.max(
-                                createTransactionTimeout, Math.max(
-                                        processPaymentTimeout, Math.max(
-                                                updateTransactionTimeout, updateBalanceTimeout
-                                        )
-                                )
-                        )
-                )
-        )));
-
-        List<WithdrawalSagaState> potentiallyTimedOutSagas =
-                withdrawalSagaRepository.findPotentiallyTimedOutSagas(activeStatuses, cutoffTime);
-
-        for (WithdrawalSagaState saga : potentiallyTimedOutSagas) {
-            handlePotentialTimeout(saga);
-        }
+    public void handleTimeout(String sagaId) {
+        withdrawalSagaCache.findById(sagaId).ifPresent(this::handlePotentialTimeout);
+    }
+
+    @Override
+    public boolean awaits(String sagaId, CommandMessage command) {
+        return withdrawalSagaCache.findById(sagaId)
+                .filter(saga -> saga.getStatus() == SagaStatus.STARTED || saga.getStatus() == SagaStatus.IN_PROGRESS
+                        || saga.getStatus() == SagaStatus.COMPENSATING)
+                .filter(saga -> saga.getCurrentStep() != null && saga.getCurrentStep().getCommandType() != null
+                        && saga.getCurrentStep().getCommandType().name().equals(command.getType()))
+                .isPresent();
     }
 
     /**
-     * Check if the current step has timed out
+     * Send the command of the current step again for a saga a previous run left waiting on it, as a retry of the step.
+     * Only for steps safe to repeat, and only while the saga is still in the step and step start time the recovery
+     * scan read, a saga that moved since was answered or retried by the listeners or the timeout scan meanwhile.
+     * Returns whether the step was resent.
      */
-    public boolean isCurrentStepTimedOut(WithdrawalSagaState saga, Duration timeout) {
-        if (saga.getCurrentStepStartTime() == null) {
-            return false;
-        }
-        return Duration.between(saga.getCurrentStepStartTime(), Instant.now()).compareTo(timeout) > 0;
+    public boolean resumeStuckStep(String sagaId, String scannedStep, Instant scannedStepStart) {
+        return withdrawalSagaCache.findById(sagaId).map(saga -> {
+            if (saga.getCurrentStep() == null || !RESENDABLE_STEPS.contains(saga.getCurrentStep())
+                    || !saga.getCurrentStep().name().equals(scannedStep) || saga.getCurrentStepStartTime() == null
+                    || scannedStepStart == null
+                    || saga.getCurrentStepStartTime().toEpochMilli() != scannedStepStart.toEpochMilli()
+                    || saga.getRetryCount() >= saga.getMaxRetries()
+                    || (saga.getStatus() != SagaStatus.STARTED && saga.getStatus() != SagaStatus.IN_PROGRESS
+                    && saga.getStatus() != SagaStatus.COMPENSATING)) {
+                return false;
+            }
+            WithdrawalSagaStep step = saga.getCurrentStep();
+            log.warn("Resending step [{}] of saga {} left waiting by a previous run", step, saga.getSagaId());
+            saga.setRetryCount(saga.getRetryCount() + 1);
+            saga.addEvent("RECOVERY", "Resending step " + step + " after restart");
+            if (step == WithdrawalSagaStep.START || step == WithdrawalSagaStep.START_COMPENSATION) {
+                // Stopped before the command of the step after it was stored
+                nextSagaStep(saga);
+                return true;
+            }
+            saga.setCurrentStepStartTime(Instant.now());
+            saga.setLastUpdatedTime(Instant.now());
+            withdrawalSagaCache.save(saga, commandFor(saga, step), sagaDefinition.topicOf(step));
+            return true;
+        }).orElse(false);
     }
 
     /**
@@ -381,19 +341,19 @@ public class WithdrawalSagaService {
             return;
         }
 
-        Duration timeout = getTimeoutForStep(saga.getCurrentStep());
-
-        if (isCurrentStepTimedOut(saga, timeout)) {
+        // The deadline may have moved since the scan read it
+        if (saga.getNextDeadline() != null && !Instant.now().isBefore(saga.getNextDeadline())) {
             log.warn("Step [{}] has timed out for saga: {}", saga.getCurrentStep(), saga.getSagaId());
 
             // Check if we can retry
             if (saga.getRetryCount() < saga.getMaxRetries()) {
                 // Increment retry count
                 saga.setRetryCount(saga.getRetryCount() + 1);
-                saga.getSagaEvents().add(SagaEvent.of("RETRY", "Retrying step " + saga.getCurrentStep() + " after timeout"));
+                saga.addEvent("RETRY", "Retrying step " + saga.getCurrentStep() + " after timeout");
+                saga.setCurrentStepStartTime(Instant.now());
 
                 // Save and retry the step
-                withdrawalSagaRepository.save(saga);
+                withdrawalSagaCache.save(saga);
 
                 nextSagaStep(saga);
 
@@ -401,78 +361,111 @@ public class WithdrawalSagaService {
                 // We've exceeded retries, start compensation
                 saga.setFailureReason("Step timed out after " + saga.getMaxRetries() + " retries");
                 saga.setStatus(SagaStatus.FAILED);
-                saga.getSagaEvents().add(SagaEvent.of("STEP_FAILED", "Step " + saga.getCurrentStep().name() + " failed: " + "Step timed out after " + saga.getMaxRetries() + " retries"));
+                saga.addEvent("STEP_FAILED", "Step " + saga.getCurrentStep().name() + " failed: " + "Step timed out after " + saga.getMaxRetries() + " retries");
                 saga.setLastUpdatedTime(Instant.now());
 
-                withdrawalSagaRepository.save(saga);
+                withdrawalSagaCache.save(saga);
 
                 startCompensation(saga);
             }
         }
     }
 
-    /**
-     * Get the timeout duration for a specific step
-     */
-    private Duration getTimeoutForStep(WithdrawalSagaStep step) {
-        switch (step) {
-            case USER_VERIFY_IDENTITY:
-                return Duration.ofMillis(verifyIdentityTimeout);
-            case PAYMENT_METHOD_VALIDATE:
-                return Duration.ofMillis(validatePaymentTimeout);
-            case ACCOUNT_CREATE_WITHDRAWAL_PENDING_TRANSACTION:
-                return Duration.ofMillis(createTransactionTimeout);
-            case PAYMENT_PROCESS_WITHDRAWAL:
-                return Duration.ofMillis(processPaymentTimeout);
-            case ACCOUNT_UPDATE_TRANSACTION_STATUS:
-                return Duration.ofMillis(updateTransactionTimeout);
-            case ACCOUNT_WITHDRAWAL_UPDATE_BALANCE:
-                return Duration.ofMillis(updateBalanceTimeout);
-            default:
-                // For compensation steps, use a generous timeout
-                return Duration.ofMillis(processPaymentTimeout);
-        }
-    }
-
 /*===================================================== PRIVATE FUNCTIONS =============================================================================*/
-    private WithdrawalSagaStep getNextStep(WithdrawalSagaStep currentStep) {
-        if (currentStep == WithdrawalSagaStep.START) {
-            return WithdrawalSagaStep.USER_VERIFY_IDENTITY;
-        }
-        if (currentStep.equals(WithdrawalSagaStep.USER_VERIFY_IDENTITY)) {
-            return WithdrawalSagaStep.ACCOUNT_VALIDATE;
+    // Command of a step, with the saga's current retry count
+    private CommandMessage commandFor(WithdrawalSagaState saga, WithdrawalSagaStep step) {
+        CommandMessage command = new CommandMessage();
+        command.initialize();
+        command.setSagaId(saga.getSagaId());
+        command.setStepId(step.getStepNumber());
+        command.setSourceService("SAGA_ORCHESTRATOR");
+        command.setTimestamp(Instant.now());
+        command.setType(step.name());
+
+        if (step.equals(WithdrawalSagaStep.USER_VERIFY_IDENTITY)) {
+            command.setTargetService("USER_SERVICE");
+            command.setPayloadValue("userId", saga.getUserId());
+            command.setPayloadValue("verificationType", "BASIC");
         }
-        if (currentStep.equals(WithdrawalSagaStep.ACCOUNT_VALIDATE)) {
-            return WithdrawalSagaStep.ACCOUNT_CHECK_BALANCE;
+        if (step.equals(WithdrawalSagaStep.ACCOUNT_VALIDATE)) {
+            command.setTargetService("ACCOUNT_SERVICE");
+            command.setPayloadValue("accountId", saga.getAccountId());
+            command.setPayloadValue("userId", saga.getUserId());
         }
-        if (currentStep.equals(WithdrawalSagaStep.ACCOUNT_CHECK_BALANCE)) {
-            return WithdrawalSagaStep.PAYMENT_METHOD_VALIDATE;
+        if (step.equals(WithdrawalSagaStep.ACCOUNT_CHECK_BALANCE)) {
+            command.setTargetService("ACCOUNT_SERVICE");
+            command.setPayloadValue("accountId", saga.getAccountId());
+            command.setPayloadValue("userId", saga.getUserId());
+            command.setPayloadValue("amount", saga.getAmount());
+            command.setPayloadValue("currency", saga.getCurrency());
+            command.setPayloadValue("paymentMethodId", saga.getPaymentMethodId());
         }
-        if (currentStep.equals(WithdrawalSagaStep.PAYMENT_METHOD_VALIDATE)) {
-            return WithdrawalSagaStep.ACCOUNT_CREATE_WITHDRAWAL_PENDING_TRANSACTION;
+        if (step.equals(WithdrawalSagaStep.PAYMENT_METHOD_VALIDATE)) {
+            command.setTargetService("ACCOUNT_SERVICE");
+            command.setPayloadValue("paymentMethodId", saga.getPaymentMethodId());
+            command.setPayloadValue("accountId", saga.getAccountId());
+            command.setPayloadValue("userId", saga.getUserId());
         }
-        if (currentStep.equals(WithdrawalSagaStep.ACCOUNT_CREATE_WITHDRAWAL_PENDING_TRANSACTION)) {
-            return WithdrawalSagaStep.PAYMENT_PROCESS_WITHDRAWAL;
+        if (step.equals(WithdrawalSagaStep.ACCOUNT_CREATE_WITHDRAWAL_PENDING_TRANSACTION)) {
+            command.setTargetService("ACCOUNT_SERVICE");
+            command.setPayloadValue("accountId", saga.getAccountId());
+            command.setPayloadValue("userId", saga.getUserId());
+            command.setPayloadValue("paymentMethodId", saga.getPaymentMethodId());
+            command.setPayloadValue("amount", saga.getAmount());
+            command.setPayloadValue("currency", saga.getCurrency());
+            command.setPayloadValue("description", saga.getStepData().get("description"));
         }
-        if (currentStep.equals(WithdrawalSagaStep.PAYMENT_PROCESS_WITHDRAWAL)) {
-            return WithdrawalSagaStep.ACCOUNT_UPDATE_TRANSACTION_STATUS;
+        if (step.equals(WithdrawalSagaStep.PAYMENT_PROCESS_WITHDRAWAL)) {
+            command.setTargetService("PAYMENT_SERVICE");
+            command.setPayloadValue("paymentMethodId", saga.getPaymentMethodId());
+            command.setPayloadValue("amount", saga.getAmount());
+            command.setPayloadValue("currency", saga.getCurrency());
+            command.setPayloadValue("accountId", saga.getAccountId());
+            command.setPayloadValue("transactionId", saga.getTransactionId());
         }
-        if (currentStep.equals(WithdrawalSagaStep.ACCOUNT_UPDATE_TRANSACTION_STATUS)) {
-            return WithdrawalSagaStep.ACCOUNT_WITHDRAWAL_UPDATE_BALANCE;
+        if (step.equals(WithdrawalSagaStep.ACCOUNT_UPDATE_TRANSACTION_STATUS)) {
+            command.setTargetService("ACCOUNT_SERVICE");
+            command.setPayloadValue("transactionId", saga.getTransactionId());
+            command.setPayloadValue("status", "COMPLETED");
+            command.setPayloadValue("paymentReference", saga.getPaymentProcessorTransactionId());
         }
-        if (currentStep.equals(WithdrawalSagaStep.ACCOUNT_WITHDRAWAL_UPDATE_BALANCE)) {
-            return WithdrawalSagaStep.COMPLETE_SAGA;
+        if (step.equals(WithdrawalSagaStep.ACCOUNT_WITHDRAWAL_UPDATE_BALANCE)) {
+            command.setTargetService("ACCOUNT_SERVICE");
+            command.setPayloadValue("accountId", saga.getAccountId());
+            command.setPayloadValue("amount", saga.getAmount());
+            command.setPayloadValue("transactionId", saga.getTransactionId());
         }
-        if (currentStep.equals(WithdrawalSagaStep.START_COMPENSATION)) {
-            return WithdrawalSagaStep.ACCOUNT_WITHDRAWAL_REVERSE_BALANCE_UPDATE;
+
+        if (step.equals(WithdrawalSagaStep.ACCOUNT_WITHDRAWAL_REVERSE_BALANCE_UPDATE)) {
+            command.setIsCompensation(true);
+            command.setTargetService("ACCOUNT_SERVICE");
+            command.setPayloadValue("accountId", saga.getAccountId());
+            command.setPayloadValue("amount", saga.getAmount());
+            command.setPayloadValue("transactionId", saga.getTransactionId());
+            command.setPayloadValue("reason", saga.getFailureReason());
         }
-        if (currentStep.equals(WithdrawalSagaStep.ACCOUNT_WITHDRAWAL_REVERSE_BALANCE_UPDATE)) {
-            return WithdrawalSagaStep.PAYMENT_REVERSE_WITHDRAWAL;
+        if (step.equals(WithdrawalSagaStep.PAYMENT_REVERSE_WITHDRAWAL)) {
+            command.setIsCompensation(true);
+            command.setTargetService("PAYMENT_SERVICE");
+            command.setPayloadValue("paymentReference", saga.getPaymentProcessorTransactionId());
+            command.setPayloadValue("amount", saga.getAmount());
+            command.setPayloadValue("reason", saga.getFailureReason());
+            command.setPayloadValue("transactionId", saga.getTransactionId());
         }
-        if (currentStep.equals(WithdrawalSagaStep.PAYMENT_REVERSE_WITHDRAWAL)) {
-            return WithdrawalSagaStep.ACCOUNT_MARK_TRANSACTION_FAILED;
+        if (step.equals(WithdrawalSagaStep.ACCOUNT_MARK_TRANSACTION_FAILED)) {
+            command.setIsCompensation(true);
+            command.setTargetService("ACCOUNT_SERVICE");
+            command.setPayloadValue("transactionId", saga.getTransactionId());
+            command.setPayloadValue("failureReason", saga.getFailureReason());
+            command.setPayloadValue("errorCode", "SAGA_FAILURE");
         }
-        return WithdrawalSagaStep.COMPLETE_COMPENSATION;
+        command.setMetadataValue("retryCount", String.valueOf(saga.getRetryCount()));
+        return command;
+    }
+
+    private WithdrawalSagaStep getNextStep(WithdrawalSagaStep currentStep) {
+        WithdrawalSagaStep nextStep = sagaDefinition.nextOf(currentStep);
+        return nextStep != null ? nextStep : WithdrawalSagaStep.COMPLETE_COMPENSATION;
     }
 
     private void startCompensation(WithdrawalSagaState saga) {
@@ -481,78 +474,38 @@ public class WithdrawalSagaService {
                 : WithdrawalSagaStep.ACCOUNT_WITHDRAWAL_REVERSE_BALANCE_UPDATE;
 
         saga.setCurrentStep(nextStep);
-        saga.getSagaEvents().add(SagaEvent.of("COMPENSATION_STARTED", "Starting compensation process"));
-        saga.getSagaEvents().add(SagaEvent.of("COMPENSATION_STEP", "Starting compensation with step: " + nextStep));
+        saga.addEvent("COMPENSATION_STARTED", "Starting compensation process");
+        saga.addEvent("COMPENSATION_STEP", "Starting compensation with step: " + nextStep);
 
         saga.getStepData().put("isFirstCompensationStep", Boolean.TRUE);
 
-        withdrawalSagaRepository.save(saga);
+        withdrawalSagaCache.save(saga);
 
         nextSagaStep(saga);
     }
 
-    private String getTopicForCommandType(CommandMessage command) {
-        String targetService = command.getTargetService();
-        CommandType commandType = CommandType.valueOf(command.getType());
-
-        switch (targetService) {
-            case "USER_SERVICE":
+    private String getTopicForStep(WithdrawalSagaStep step) {
+        switch (step) {
+            case USER_VERIFY_IDENTITY:
                 return userCommonCommandsTopic;
-            case "ACCOUNT_SERVICE":
-                if (commandType.equals(WithdrawalSagaStep.ACCOUNT_VALIDATE.getCommandType())
-                    || commandType.equals(WithdrawalSagaStep.ACCOUNT_CHECK_BALANCE.getCommandType())
-                    || commandType.equals(WithdrawalSagaStep.PAYMENT_METHOD_VALIDATE.getCommandType())
-                    || commandType.equals(WithdrawalSagaStep.ACCOUNT_UPDATE_TRANSACTION_STATUS.getCommandType())
-                    || commandType.equals(WithdrawalSagaStep.ACCOUNT_MARK_TRANSACTION_FAILED.getCommandType())) {
-
-                    return accountCommonCommandsTopic;
-                }
-                return accountWithdrawalCommandsTopic;
-            case "PAYMENT_SERVICE":
+            case ACCOUNT_VALIDATE:
+            case ACCOUNT_CHECK_BALANCE:
+            case PAYMENT_METHOD_VALIDATE:
+            case ACCOUNT_UPDATE_TRANSACTION_STATUS:
+            case ACCOUNT_MARK_TRANSACTION_FAILED:
+                return accountCommonCommandsTopic;
+            case PAYMENT_PROCESS_WITHDRAWAL:
+            case PAYMENT_REVERSE_WITHDRAWAL:
                 return paymentWithdrawalCommandsTopic;
+            default:
+                return accountWithdrawalCommandsTopic;
         }
-        log.warn("Unsupported command type: {}", commandType);
-        return accountWithdrawalCommandsTopic;
     }
 
     /**
-     * Check if this event is a response to the current saga step
+     * Find a saga by ID
      */
-    private boolean isEventForCurrentStep(WithdrawalSagaState saga, EventMessage event) {
-        if (saga.getCurrentStep() == null) {
-            return false;
-        }
-
-        try {
-            EventType eventType = EventType.valueOf(event.getType());
-            CommandType expectedCommandType = saga.getCurrentStep().getCommandType();
-
-            // Get the command type associated with this event type
-            CommandType eventCommandType = eventType.getAssociatedCommandType();
-
-            // This is the key check - does this event correspond to the current step's command?
-            boolean matchingCommandType = eventCommandType == expectedCommandType;
-
-            // Check if the step ID matches (if provided)
-            boolean matchingStepId = event.getStepId() == null ||
-                    event.getStepId().equals(saga.getCurrentStep().getStepNumber());
-
-            // Log details in case of mismatch for debugging
-            if (!matchingCommandType) {
-                log.debug("Event command type mismatch: event={}, expected={}",
-                        eventCommandType, expectedCommandType);
-            }
-
-            if (!matchingStepId) {
-                log.debug("Event step ID mismatch: event={}, current={}",
-                        event.getStepId(), saga.getCurrentStep().getStepNumber());
-            }
-
-            return matchingCommandType && matchingStepId;
-
-        } catch (Exception e) {
-            log.error("Error checking if event matches current step: {}", e.getMessage(), e);
-            return false;
-        }
+    public Optional<WithdrawalSagaState> findById(String sagaId) {
+        return withdrawalSagaCache.findById(sagaId);
     }
 }
@@ -0,0 +1,36 @@
+package com.stocktrading.kafka.benchmark;
+
+import java.util.Arrays;
+
+/**
+ * Every latency of one series in nanoseconds, kept whole so the tail percentiles are exact
+ */
+final class LatencySamples {
+
+    private long[] values = new long[1024];
+    private int size;
+
+    synchronized void add(long nanos) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = nanos;
+    }
+
+    synchronized long[] sorted() {
+        long[] copy = Arrays.copyOf(values, size);
+        Arrays.sort(copy);
+        return copy;
+    }
+
+    /**
+     * Nearest-rank percentile of sorted samples in milliseconds
+     */
+    static double percentileMillis(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(quantile * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)] / 1_000_000.0;
+    }
+}
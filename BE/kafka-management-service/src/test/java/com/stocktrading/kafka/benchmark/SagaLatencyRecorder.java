@@ -0,0 +1,97 @@
+package com.stocktrading.kafka.benchmark;
+
+import com.stocktrading.kafka.model.enums.SagaStatus;
+import com.stocktrading.kafka.model.enums.SagaType;
+import com.stocktrading.kafka.service.SagaMonitoringService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Monitoring service of the benchmark context. Besides the metrics it keeps every step and whole-saga latency
+ * of the run, timed from the saves of each saga the same way the step timers are.
+ */
+class SagaLatencyRecorder extends SagaMonitoringService {
+
+    private static final class Position {
+        final String step;
+        final long since;
+        final long startedAt;
+
+        Position(String step, long since, long startedAt) {
+            this.step = step;
+            this.since = since;
+            this.startedAt = startedAt;
+        }
+    }
+
+    private final Map<String, Position> inFlight = new ConcurrentHashMap<>();
+    // Keyed by saga type and step or final status, sorted for the report
+    private final Map<String, LatencySamples> stepLatencies = new ConcurrentSkipListMap<>();
+    private final Map<String, LatencySamples> sagaLatencies = new ConcurrentSkipListMap<>();
+
+    private volatile Runnable onFinished = () -> { };
+
+    SagaLatencyRecorder() {
+        super(new SimpleMeterRegistry());
+    }
+
+    void onFinished(Runnable onFinished) {
+        this.onFinished = onFinished;
+    }
+
+    void reset() {
+        stepLatencies.clear();
+        sagaLatencies.clear();
+    }
+
+    Map<String, LatencySamples> getStepLatencies() {
+        return stepLatencies;
+    }
+
+    Map<String, LatencySamples> getSagaLatencies() {
+        return sagaLatencies;
+    }
+
+    @Override
+    public void recordTransition(SagaType type, String sagaId, Enum<?> currentStep, SagaStatus status,
+                                 Instant stepStartTime, Instant startTime, Instant endTime) {
+        super.recordTransition(type, sagaId, currentStep, status, stepStartTime, startTime, endTime);
+        if (sagaId == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        String step = currentStep != null ? currentStep.name() : "NONE";
+        boolean finished = endTime != null
+                || status == SagaStatus.COMPLETED
+                || status == SagaStatus.FAILED
+                || status == SagaStatus.COMPENSATION_COMPLETED
+                || status == SagaStatus.CANCELLED_BY_USER;
+
+        Position previous = inFlight.get(sagaId);
+        if (previous == null) {
+            if (!finished) {
+                inFlight.put(sagaId, new Position(step, now, now));
+            }
+            return;
+        }
+        boolean stepLeft = !previous.step.equals(step);
+        if (stepLeft || finished) {
+            samples(stepLatencies, type.getKey() + " " + previous.step).add(now - previous.since);
+        }
+        if (finished) {
+            inFlight.remove(sagaId);
+            samples(sagaLatencies, type.getKey() + " " + status).add(now - previous.startedAt);
+            onFinished.run();
+        } else if (stepLeft) {
+            inFlight.put(sagaId, new Position(step, now, previous.startedAt));
+        }
+    }
+
+    private static LatencySamples samples(Map<String, LatencySamples> series, String key) {
+        return series.computeIfAbsent(key, k -> new LatencySamples());
+    }
+}
@@ -0,0 +1,256 @@
+package com.stocktrading.kafka.benchmark;
+
+import com.stocktrading.kafka.KafkaManagementServiceApplication;
+import com.stocktrading.kafka.model.enums.SagaType;
+import com.stocktrading.kafka.service.DepositSagaService;
+import com.stocktrading.kafka.service.OrderBuySagaService;
+import com.stocktrading.kafka.service.OrderSellSagaService;
+import com.stocktrading.kafka.service.WithdrawalSagaService;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ApplicationContextInitializer;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throughput benchmark of the orchestrator with simulated participants, run with main on a single box:
+ * <pre>
+ * mvn -pl kafka-management-service test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.stocktrading.kafka.benchmark.SagaLoadBenchmark -Dbench.sagas=5000
+ * </pre>
+ * Boots the orchestrator against an embedded Kafka broker and an in-memory Mongo, answers its commands with
+ * {@link SimulatedParticipants} and keeps a fixed number of sagas of a weighted mix in flight.
+ * The participants answer every command with its success event and run no handlers or stores of their own, so the figures
+ * measure the orchestrator, Kafka and Mongo, not a saga across the real services.
+ * Reports sagas per second, p50/p99/p999 saga and per-step latency and the mean of every hop timer.
+ * Options are system properties:
+ * <ul>
+ *     <li>bench.sagas, bench.warmup: measured sagas and warmup sagas run before them</li>
+ *     <li>bench.in-flight: sagas running at once</li>
+ *     <li>bench.mix: weights per saga type, e.g. order-buy:60,order-sell:20,deposit:10,withdrawal:10</li>
+ *     <li>bench.service-time-ms: time the participants take per command</li>
+ *     <li>bench.codec: json or binary, used by the orchestrator and the participants</li>
+ *     <li>bench.partitions, bench.participants: partitions per topic and participant consumers</li>
+ *     <li>bench.timeout-s: give up waiting for the sagas of a phase after this long</li>
+ * </ul>
+ */
+public class SagaLoadBenchmark {
+
+    private static final int SAGAS = Integer.getInteger("bench.sagas", 2000);
+    private static final int WARMUP = Integer.getInteger("bench.warmup", 500);
+    private static final int IN_FLIGHT = Integer.getInteger("bench.in-flight", 100);
+    private static final String MIX = System.getProperty("bench.mix", "order-buy:60,order-sell:20,deposit:10,withdrawal:10");
+    private static final long SERVICE_TIME_MS = Long.getLong("bench.service-time-ms", 0L);
+    private static final String CODEC = System.getProperty("bench.codec", "json");
+    private static final int PARTITIONS = Integer.getInteger("bench.partitions", 3);
+    private static final int PARTICIPANTS = Integer.getInteger("bench.participants", 3);
+    private static final long TIMEOUT_S = Long.getLong("bench.timeout-s", 300L);
+
+    private final ConfigurableApplicationContext context;
+    private final SagaLatencyRecorder recorder;
+    private final SagaType[] mix;
+    private final Random random = new Random(42);
+
+    private SagaLoadBenchmark(ConfigurableApplicationContext context, SagaLatencyRecorder recorder, SagaType[] mix) {
+        this.context = context;
+        this.recorder = recorder;
+        this.mix = mix;
+    }
+
+    public static void main(String[] args) throws Exception {
+        SagaType[] mix = parseMix(MIX);
+
+        EmbeddedKafkaBroker broker = new EmbeddedKafkaBroker(1, false, PARTITIONS)
+                .brokerProperty("auto.create.topics.enable", "true")
+                .brokerProperty("num.partitions", String.valueOf(PARTITIONS));
+        broker.afterPropertiesSet();
+
+        MongoServer mongo = new MongoServer(new MemoryBackend());
+        InetSocketAddress mongoAddress = mongo.bind();
+
+        SagaLatencyRecorder recorder = new SagaLatencyRecorder();
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(KafkaManagementServiceApplication.class)
+                .web(WebApplicationType.NONE)
+                .initializers((ApplicationContextInitializer<GenericApplicationContext>) ctx -> ctx.registerBean(
+                        "sagaLatencyRecorder", SagaLatencyRecorder.class, () -> recorder,
+                        definition -> definition.setPrimary(true)))
+                .run("--spring.kafka.bootstrap-servers=" + broker.getBrokersAsString(),
+                        "--spring.kafka.consumer.group-id=saga-orch-benchmark",
+                        "--spring.data.mongodb.uri=mongodb://" + mongoAddress.getHostString() + ":"
+                                + mongoAddress.getPort() + "/OrchestratorServiceDB",
+                        "--kafka.message-codec=" + CODEC,
+                        "--logging.level.root=WARN",
+                        "--logging.level.com.stocktrading.kafka=WARN");
+
+        SimulatedParticipants participants = new SimulatedParticipants(broker.getBrokersAsString(), CODEC,
+                PARTICIPANTS, SERVICE_TIME_MS);
+        participants.start();
+
+        try {
+            SagaLoadBenchmark benchmark = new SagaLoadBenchmark(context, recorder, mix);
+            System.out.printf("warmup: %d sagas%n", WARMUP);
+            benchmark.run(WARMUP);
+            recorder.reset();
+
+            System.out.printf("measuring: %d sagas, %d in flight, mix %s, service time %d ms, %s codec%n",
+                    SAGAS, IN_FLIGHT, MIX, SERVICE_TIME_MS, CODEC);
+            benchmark.report(benchmark.run(SAGAS));
+            printHops(context.getBean(MeterRegistry.class), participants.getMeterRegistry());
+        } finally {
+            participants.close();
+            context.close();
+            broker.destroy();
+            mongo.shutdownNow();
+        }
+        System.exit(0);
+    }
+
+    private static final class Result {
+        final int started;
+        final int unfinished;
+        final long elapsedNanos;
+
+        Result(int started, int unfinished, long elapsedNanos) {
+            this.started = started;
+            this.unfinished = unfinished;
+            this.elapsedNanos = elapsedNanos;
+        }
+    }
+
+    private Result run(int count) throws InterruptedException {
+        Semaphore permits = new Semaphore(IN_FLIGHT);
+        AtomicInteger finished = new AtomicInteger();
+        recorder.onFinished(() -> {
+            finished.incrementAndGet();
+            permits.release();
+        });
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_S);
+        long start = System.nanoTime();
+        int started = 0;
+        for (int i = 0; i < count; i++) {
+            if (!permits.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                break;
+            }
+            try {
+                startSaga(mix[random.nextInt(mix.length)]);
+                started++;
+            } catch (RuntimeException e) {
+                permits.release();
+                System.out.printf("could not start saga: %s%n", e);
+            }
+        }
+        // The last sagas are done once every permit is back
+        permits.tryAcquire(IN_FLIGHT, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        long elapsed = System.nanoTime() - start;
+        recorder.onFinished(() -> { });
+        return new Result(started, started - finished.get(), elapsed);
+    }
+
+    private void startSaga(SagaType type) {
+        String userId = "bench-user-" + random.nextInt(1000);
+        String accountId = "bench-account-" + random.nextInt(1000);
+        switch (type) {
+            case ORDER_BUY:
+                context.getBean(OrderBuySagaService.class).startSaga(userId, accountId, "AAPL", "MARKET",
+                        1 + random.nextInt(100), null, "DAY");
+                break;
+            case ORDER_SELL:
+                context.getBean(OrderSellSagaService.class).startSaga(userId, accountId, "AAPL",
+                        1 + random.nextInt(100));
+                break;
+            case DEPOSIT:
+                context.getBean(DepositSagaService.class).startSaga(userId, accountId, amount(), "USD",
+                        UUID.randomUUID().toString());
+                break;
+            case WITHDRAWAL:
+                context.getBean(WithdrawalSagaService.class).startWithdrawalSaga(userId, accountId, amount(), "USD",
+                        UUID.randomUUID().toString(), "Benchmark withdrawal");
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported saga type " + type);
+        }
+    }
+
+    private BigDecimal amount() {
+        return BigDecimal.valueOf(10 + random.nextInt(10_000), 2);
+    }
+
+    private void report(Result result) {
+        double seconds = result.elapsedNanos / 1e9;
+        System.out.printf("%n%d sagas in %.2f s: %.1f sagas/s, %d unfinished%n",
+                result.started, seconds, (result.started - result.unfinished) / seconds, result.unfinished);
+
+        System.out.printf("%nsaga latency (ms), started to finished with simulated participants%n");
+        printTable(recorder.getSagaLatencies());
+        System.out.printf("%nper-step latency (ms), command sent to the saga moving on%n");
+        printTable(recorder.getStepLatencies());
+    }
+
+    // Hop timers are not reset after the warmup, the means include it
+    private static void printHops(MeterRegistry... registries) {
+        System.out.printf("%nhops (ms)%n%-60s %8s %9s %9s%n", "", "count", "mean", "max");
+        for (MeterRegistry registry : registries) {
+            for (String name : new String[]{"saga.hop.transit", "saga.hop.handling"}) {
+                for (Timer timer : registry.find(name).timers()) {
+                    System.out.printf("%-60s %8d %9.2f %9.2f%n",
+                            name.substring("saga.hop.".length()) + " " + timer.getId().getTag("service")
+                                    + " " + timer.getId().getTag("type"),
+                            timer.count(), timer.mean(TimeUnit.MILLISECONDS), timer.max(TimeUnit.MILLISECONDS));
+                }
+            }
+        }
+    }
+
+    private static void printTable(Map<String, LatencySamples> series) {
+        System.out.printf("%-50s %8s %9s %9s %9s %9s%n", "", "count", "p50", "p99", "p999", "max");
+        series.forEach((name, samples) -> {
+            long[] sorted = samples.sorted();
+            System.out.printf("%-50s %8d %9.2f %9.2f %9.2f %9.2f%n", name, sorted.length,
+                    LatencySamples.percentileMillis(sorted, 0.50),
+                    LatencySamples.percentileMillis(sorted, 0.99),
+                    LatencySamples.percentileMillis(sorted, 0.999),
+                    LatencySamples.percentileMillis(sorted, 1.0));
+        });
+    }
+
+    // One entry per unit of weight, so a uniform pick follows the mix
+    private static SagaType[] parseMix(String mix) {
+        List<SagaType> picks = new ArrayList<>();
+        for (String part : mix.split(",")) {
+            String[] keyAndWeight = part.trim().split(":");
+            SagaType type = null;
+            for (SagaType candidate : SagaType.values()) {
+                if (candidate.getKey().equals(keyAndWeight[0].trim())) {
+                    type = candidate;
+                }
+            }
+            if (type == null || keyAndWeight.length != 2) {
+                throw new IllegalArgumentException("Invalid bench.mix entry " + part);
+            }
+            for (int i = Integer.parseInt(keyAndWeight[1].trim()); i > 0; i--) {
+                picks.add(type);
+            }
+        }
+        if (picks.isEmpty()) {
+            throw new IllegalArgumentException("bench.mix has no weight");
+        }
+        return picks.toArray(new SagaType[0]);
+    }
+}
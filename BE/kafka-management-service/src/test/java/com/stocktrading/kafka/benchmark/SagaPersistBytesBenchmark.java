@@ -0,0 +1,95 @@
+package com.stocktrading.kafka.benchmark;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.stocktrading.kafka.model.OrderBuySagaState;
+import com.stocktrading.kafka.model.enums.SagaStatus;
+import com.stocktrading.kafka.service.*;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.mockito.Mockito;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.time.Instant;
+import java.util.Optional;
+
+/**
+ * Bytes a saga write sends to Mongo per step, as partial updates and as full document rewrites, run with main:
+ * <pre>
+ * mvn -pl kafka-management-service test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.stocktrading.kafka.benchmark.SagaPersistBytesBenchmark
+ * </pre>
+ * Drives a simulated order buy saga through the saga state cache against an in-memory Mongo. Every step adds
+ * two events, one completed step and one stepData key, and is flushed on its own. The sizes are the cache's
+ * saga.persist.bytes summaries: mode=delta for what was sent, mode=full for what a rewrite would have sent.
+ * Options are system properties:
+ * <ul>
+ *     <li>bench.steps: steps of the simulated saga</li>
+ * </ul>
+ */
+public class SagaPersistBytesBenchmark {
+
+    private static final int STEPS = Integer.getInteger("bench.steps", 16);
+
+    public static void main(String[] args) {
+        MongoServer server = new MongoServer(new MemoryBackend());
+        InetSocketAddress address = server.bind();
+        MongoClient client = MongoClients.create("mongodb://" + address.getHostString() + ":" + address.getPort());
+        try {
+            MongoTemplate mongoTemplate = new MongoTemplate(client, "SagaPersistBytesBenchmark");
+            MeterRegistry registry = new SimpleMeterRegistry();
+            // Saves made outside fenced scheduled work
+            SagaOwnershipService ownershipService = Mockito.mock(SagaOwnershipService.class);
+            Mockito.when(ownershipService.currentFence()).thenReturn(null);
+            SagaStateCache<OrderBuySagaState> cache = new SagaStateCache<>("ORDER_BUY", OrderBuySagaState.class,
+                    mongoTemplate, registry, OrderBuySagaState::getSagaId,
+                    sagaId -> Optional.ofNullable(mongoTemplate.findById(sagaId, OrderBuySagaState.class)),
+                    saga -> saga.getStatus() == SagaStatus.COMPLETED, OrderBuySagaState::drainPendingEvents,
+                    Mockito.mock(SagaEventLog.class), Mockito.mock(CommandOutboxRelay.class),
+                    Mockito.mock(IdempotencyService.class), ownershipService,
+                    saga -> { }, true, 0);
+            DistributionSummary delta = registry.get("saga.persist.bytes").tag("mode", "delta").summary();
+            DistributionSummary full = registry.get("saga.persist.bytes").tag("mode", "full").summary();
+
+            OrderBuySagaState saga = OrderBuySagaState.initiate("bench-saga", "bench-user", "bench-account", "AAPL",
+                    "LIMIT", 10, new BigDecimal("187.25"), "DAY", 3);
+            cache.save(saga);
+            cache.flush();
+            System.out.printf("insert: %.0f bytes%n", delta.totalAmount());
+
+            double deltaTotal = 0;
+            double fullTotal = 0;
+            System.out.printf("%4s %10s %10s%n", "step", "delta", "full");
+            for (int step = 1; step <= STEPS; step++) {
+                double deltaBefore = delta.totalAmount();
+                double fullBefore = full.totalAmount();
+                saga.getCompletedSteps().add("STEP_" + step);
+                saga.addEvent("STEP_CHANGED", "Moving to step " + (step + 1));
+                saga.addEvent("STEP_COMPLETED", "Step " + step + " completed");
+                saga.storeStepData("step" + step + "Result", "result of step " + step);
+                saga.setStatus(SagaStatus.IN_PROGRESS);
+                saga.setCurrentStepStartTime(Instant.now());
+                saga.setLastUpdatedTime(Instant.now());
+                cache.save(saga);
+                cache.flush();
+
+                double stepDelta = delta.totalAmount() - deltaBefore;
+                double stepFull = full.totalAmount() - fullBefore;
+                deltaTotal += stepDelta;
+                fullTotal += stepFull;
+                System.out.printf("%4d %10.0f %10.0f%n", step, stepDelta, stepFull);
+            }
+            System.out.printf("%ntotal over %d steps: delta %.1f KB, full %.1f KB%n", STEPS,
+                    deltaTotal / 1024, fullTotal / 1024);
+        } finally {
+            client.close();
+            server.shutdownNow();
+        }
+    }
+
+}
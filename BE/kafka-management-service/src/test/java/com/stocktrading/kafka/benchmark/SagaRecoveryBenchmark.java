@@ -0,0 +1,212 @@
+package com.stocktrading.kafka.benchmark;
+
+import com.stocktrading.kafka.KafkaManagementServiceApplication;
+import com.stocktrading.kafka.model.DepositSagaState;
+import com.stocktrading.kafka.model.OrderBuySagaState;
+import com.stocktrading.kafka.model.OrderSellSagaState;
+import com.stocktrading.kafka.model.WithdrawalSagaState;
+import com.stocktrading.kafka.model.enums.SagaStatus;
+import com.stocktrading.kafka.service.SagaFlushService;
+import com.stocktrading.kafka.service.SagaRecoveryService;
+import com.stocktrading.kafka.service.SagaTimeoutPolicy;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.Document;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Startup recovery benchmark of the orchestrator, run with main on a single box:
+ * <pre>
+ * MAVEN_OPTS=-Xmx4g mvn -pl kafka-management-service test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.stocktrading.kafka.benchmark.SagaRecoveryBenchmark -Dbench.sagas=1000000
+ * </pre>
+ * Fills an in-memory Mongo, or a real one given by bench.mongo-uri, with active sagas spread evenly over the
+ * four saga types, as a crashed run would have left them, boots the orchestrator against it and an embedded
+ * Kafka broker and times the recovery pass, printing the progress metric while it runs.
+ * The in-memory Mongo serves a query from an index only when its keys are exactly the index keys, so the versioned
+ * saves of the recovery scan the whole collection there; past a few hundred thousand sagas its times measure that
+ * scan rather than the recovery, and a real mongod is needed for figures at that size.
+ * Options are system properties:
+ * <ul>
+ *     <li>bench.sagas: active sagas in Mongo</li>
+ *     <li>bench.finished-sagas: completed sagas next to them, which the recovery scan must not read</li>
+ *     <li>bench.mongo-uri: a mongod to use instead of the in-memory one, with a database of the benchmark's own:
+ *     its saga collections are dropped before seeding</li>
+ *     <li>bench.stuck-ratio: share of sagas whose step went unanswered long ago, resent by the recovery where the
+ *     step is safe to repeat</li>
+ *     <li>bench.unstamped-ratio: share of sagas saved without a deadline, saved again by the recovery</li>
+ *     <li>bench.threads, bench.chunk-size: recovery pool threads and sagas per chunk</li>
+ *     <li>bench.lean: seed the sagas the recovery only scans with just the fields it reads, so a million of them
+ *     fit the in-memory Mongo on a small box, on by default</li>
+ * </ul>
+ */
+public class SagaRecoveryBenchmark {
+
+    private static final int SAGAS = Integer.getInteger("bench.sagas", 100_000);
+    private static final int FINISHED_SAGAS = Integer.getInteger("bench.finished-sagas", 0);
+    private static final String MONGO_URI = System.getProperty("bench.mongo-uri");
+    private static final double STUCK_RATIO = Double.parseDouble(System.getProperty("bench.stuck-ratio", "0.01"));
+    private static final double UNSTAMPED_RATIO = Double.parseDouble(System.getProperty("bench.unstamped-ratio", "0.01"));
+    private static final int THREADS = Integer.getInteger("bench.threads", 4);
+    private static final int CHUNK_SIZE = Integer.getInteger("bench.chunk-size", 1000);
+    private static final boolean LEAN = Boolean.parseBoolean(System.getProperty("bench.lean", "true"));
+    private static final int INSERT_BATCH = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        EmbeddedKafkaBroker broker = new EmbeddedKafkaBroker(1, false, 3)
+                .brokerProperty("auto.create.topics.enable", "true");
+        broker.afterPropertiesSet();
+
+        MongoServer mongo = null;
+        String mongoUri = MONGO_URI;
+        if (mongoUri == null) {
+            mongo = new MongoServer(new MemoryBackend());
+            InetSocketAddress mongoAddress = mongo.bind();
+            mongoUri = "mongodb://" + mongoAddress.getHostString() + ":" + mongoAddress.getPort()
+                    + "/OrchestratorServiceDB";
+        }
+
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(KafkaManagementServiceApplication.class)
+                .web(WebApplicationType.NONE)
+                .run("--spring.kafka.bootstrap-servers=" + broker.getBrokersAsString(),
+                        "--spring.kafka.consumer.group-id=saga-orch-recovery-benchmark",
+                        "--spring.data.mongodb.uri=" + mongoUri,
+                        // Started by hand once the sagas are in place
+                        "--saga.recovery.enabled=false",
+                        "--saga.recovery.threads=" + THREADS,
+                        "--saga.recovery.chunk-size=" + CHUNK_SIZE,
+                        // Long enough that the sagas seeded as fresh do not age into stuck ones during a long run
+                        "--saga.recovery.stuck-after-ms=1800000",
+                        // The in-memory Mongo scans whole collections for these, a real one uses their indexes
+                        "--saga.timeout.scan-interval-ms=3600000",
+                        "--saga.outbox.scan-initial-delay-ms=3600000",
+                        "--logging.level.root=WARN",
+                        "--logging.level.com.stocktrading.kafka=WARN",
+                        "--logging.level.com.stocktrading.kafka.service.SagaRecoveryService=INFO");
+
+        try {
+            MongoTemplate mongoTemplate = context.getBean(MongoTemplate.class);
+            long seedStart = System.nanoTime();
+            seed(mongoTemplate);
+            System.out.printf("seeded %d active and %d finished sagas in %.1f s%n", SAGAS, FINISHED_SAGAS,
+                    (System.nanoTime() - seedStart) / 1e9);
+
+            SagaRecoveryService recovery = context.getBean(SagaRecoveryService.class);
+            Thread thread = new Thread(recovery::recover, "saga-recovery");
+            long start = System.nanoTime();
+            thread.start();
+            while (thread.isAlive()) {
+                thread.join(1000);
+                System.out.printf("  progress %5.1f%% after %.1f s%n", recovery.getProgress() * 100,
+                        (System.nanoTime() - start) / 1e9);
+            }
+            long elapsed = System.nanoTime() - start;
+
+            MeterRegistry registry = context.getBean(MeterRegistry.class);
+            double seconds = elapsed / 1e9;
+            System.out.printf("%nrecovered %.0f sagas in %.2f s: %.0f sagas/s, %d threads, chunks of %d%n",
+                    registry.counter("saga.recovery.sagas").count(), seconds,
+                    registry.counter("saga.recovery.sagas").count() / seconds, THREADS, CHUNK_SIZE);
+            System.out.printf("steps resent: %.0f, sagas re-stamped: %.0f, recovery timer: %.0f ms%n",
+                    registry.counter("saga.recovery.resumed").count(),
+                    registry.counter("saga.recovery.restamped").count(),
+                    registry.timer("saga.recovery.duration").totalTime(TimeUnit.MILLISECONDS));
+            context.getBean(SagaFlushService.class).flushAll();
+        } finally {
+            context.close();
+            broker.destroy();
+            if (mongo != null) {
+                mongo.shutdownNow();
+            }
+        }
+        System.exit(0);
+    }
+
+    // Sagas of all four types, each made from a converted template with its own ID, timing and deadline, and
+    // inserted in bulk straight into the collections, finished ones interleaved with the active ones by _id
+    private static void seed(MongoTemplate mongoTemplate) {
+        List<Function<String, Object>> factories = new ArrayList<>();
+        factories.add(sagaId -> DepositSagaState.initiate(sagaId, "bench-user", "bench-account",
+                new BigDecimal("100.00"), "USD", "bench-method", 3));
+        factories.add(sagaId -> WithdrawalSagaState.initiate(sagaId, "bench-user", "bench-account",
+                new BigDecimal("100.00"), "USD", "bench-method", 3, "Benchmark withdrawal"));
+        factories.add(sagaId -> OrderBuySagaState.initiate(sagaId, "bench-user", "bench-account", "AAPL",
+                "MARKET", 10, null, "DAY", 3));
+        factories.add(sagaId -> OrderSellSagaState.initiate(sagaId, "bench-user", "bench-account", "AAPL",
+                "MARKET", 10, null, "DAY", 3));
+
+        Random random = new Random(42);
+        Instant now = Instant.now();
+        for (int type = 0; type < factories.size(); type++) {
+            Object template = factories.get(type).apply("template");
+            Document templateDocument = new Document();
+            mongoTemplate.getConverter().write(template, templateDocument);
+            String collection = mongoTemplate.getCollectionName(template.getClass());
+            mongoTemplate.dropCollection(collection);
+
+            int count = SAGAS / factories.size() + (type < SAGAS % factories.size() ? 1 : 0);
+            int finished = FINISHED_SAGAS / factories.size() + (type < FINISHED_SAGAS % factories.size() ? 1 : 0);
+            List<Document> batch = new ArrayList<>(INSERT_BATCH);
+            for (int i = 0; i < finished; i++) {
+                String sagaId = UUID.randomUUID().toString();
+                batch.add(new Document("_id", sagaId)
+                        .append("sagaId", sagaId)
+                        .append("status", SagaStatus.COMPLETED.name())
+                        .append("endTime", Date.from(now.minus(1, ChronoUnit.DAYS)))
+                        .append("version", 0L));
+                if (batch.size() == INSERT_BATCH) {
+                    mongoTemplate.getCollection(collection).insertMany(batch);
+                    batch = new ArrayList<>(INSERT_BATCH);
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                String sagaId = UUID.randomUUID().toString();
+                double kind = random.nextDouble();
+                // Only the stuck and unstamped sagas are loaded as a whole by the recovery
+                Document saga = LEAN && kind >= STUCK_RATIO + UNSTAMPED_RATIO
+                        ? new Document("currentStep", templateDocument.get("currentStep"))
+                        : new Document(templateDocument);
+                saga.put("_id", sagaId);
+                saga.put("sagaId", sagaId);
+                saga.put("status", SagaStatus.IN_PROGRESS.name());
+                saga.put("version", 0L);
+
+                Instant stepStart = kind < STUCK_RATIO ? now.minus(1, ChronoUnit.HOURS) : now;
+                saga.put("currentStepStartTime", Date.from(stepStart));
+                if (kind >= STUCK_RATIO && kind < STUCK_RATIO + UNSTAMPED_RATIO) {
+                    saga.remove("nextDeadline");
+                    saga.remove("timeoutShard");
+                } else {
+                    saga.put("nextDeadline", Date.from(now.plus(1, ChronoUnit.DAYS)));
+                    saga.put("timeoutShard", SagaTimeoutPolicy.shardOf(sagaId));
+                }
+
+                batch.add(saga);
+                if (batch.size() == INSERT_BATCH) {
+                    mongoTemplate.getCollection(collection).insertMany(batch);
+                    batch = new ArrayList<>(INSERT_BATCH);
+                }
+            }
+            if (!batch.isEmpty()) {
+                mongoTemplate.getCollection(collection).insertMany(batch);
+            }
+        }
+    }
+}
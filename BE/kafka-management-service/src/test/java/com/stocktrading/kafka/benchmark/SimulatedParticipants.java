@@ -0,0 +1,230 @@
+package com.stocktrading.kafka.benchmark;
+
+import com.project.kafkamessagemodels.codec.BinaryMessageDeserializer;
+import com.project.kafkamessagemodels.codec.BinaryMessageSerializer;
+import com.project.kafkamessagemodels.codec.MessageCodec;
+import com.project.kafkamessagemodels.hop.HopInterceptors;
+import com.project.kafkamessagemodels.hop.HopMetrics;
+import com.project.kafkamessagemodels.model.CommandMessage;
+import com.project.kafkamessagemodels.model.EventMessage;
+import com.project.kafkamessagemodels.model.enums.CommandType;
+import com.project.kafkamessagemodels.model.enums.EventType;
+import com.project.kafkamessagemodels.model.payload.PositionPayload;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.springframework.kafka.support.serializer.JsonDeserializer;
+import org.springframework.kafka.support.serializer.JsonSerializer;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Stands in for the user, account, payment, order, market-data, portfolio and brokerage services.
+ * Every saga command is answered with the success event the real handler sends, carrying the fields the
+ * orchestrator reads from it, on the events topic paired with the command topic.
+ */
+class SimulatedParticipants implements AutoCloseable {
+
+    private static final Pattern COMMAND_TOPICS = Pattern.compile(".*\\.commands\\..*");
+    private static final BigDecimal MARKET_PRICE = new BigDecimal("150.00");
+
+    // Success reply of every command, the first event type declared for it
+    private static final Map<CommandType, String> SUCCESS_EVENTS = successEvents();
+
+    private final KafkaProducer<String, Object> producer;
+    private final List<KafkaConsumer<String, CommandMessage>> consumers = new ArrayList<>();
+    private final List<Thread> pollers = new ArrayList<>();
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ScheduledExecutorService serviceTime;
+    private final long serviceTimeMs;
+    private volatile boolean running = true;
+
+    SimulatedParticipants(String bootstrapServers, String codec, int consumerCount, long serviceTimeMs) {
+        boolean binary = MessageCodec.BINARY.equals(codec);
+        this.serviceTimeMs = serviceTimeMs;
+        this.serviceTime = serviceTimeMs > 0 ? Executors.newScheduledThreadPool(4) : null;
+        HopMetrics hopMetrics = new HopMetrics(meterRegistry, "SIMULATED_PARTICIPANTS");
+
+        Map<String, Object> producerProps = new HashMap<>();
+        producerProps.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        producerProps.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
+        producerProps.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG,
+                binary ? BinaryMessageSerializer.class : JsonSerializer.class);
+        producerProps.put(JsonSerializer.ADD_TYPE_INFO_HEADERS, true);
+        producerProps.put(ProducerConfig.LINGER_MS_CONFIG, 1);
+        producerProps.putAll(HopInterceptors.producerProps(hopMetrics));
+        producer = new KafkaProducer<>(producerProps);
+
+        for (int i = 0; i < consumerCount; i++) {
+            Map<String, Object> consumerProps = new HashMap<>();
+            consumerProps.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+            consumerProps.put(ConsumerConfig.GROUP_ID_CONFIG, "saga-benchmark-participants");
+            consumerProps.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+            consumerProps.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, 500);
+            // Command topics the orchestrator creates lazily are picked up by the pattern within a second
+            consumerProps.put(ConsumerConfig.METADATA_MAX_AGE_CONFIG, 1000);
+            consumerProps.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
+            consumerProps.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG,
+                    binary ? BinaryMessageDeserializer.class : JsonDeserializer.class);
+            consumerProps.put(JsonDeserializer.VALUE_DEFAULT_TYPE, CommandMessage.class.getName());
+            consumerProps.put(JsonDeserializer.USE_TYPE_INFO_HEADERS, false);
+            consumerProps.put(JsonDeserializer.TRUSTED_PACKAGES, "*");
+            consumerProps.putAll(HopInterceptors.consumerProps(hopMetrics));
+            consumers.add(new KafkaConsumer<>(consumerProps));
+        }
+    }
+
+    // Hop timers of the commands the participants polled and answered
+    MeterRegistry getMeterRegistry() {
+        return meterRegistry;
+    }
+
+    void start() {
+        for (KafkaConsumer<String, CommandMessage> consumer : consumers) {
+            consumer.subscribe(COMMAND_TOPICS);
+            Thread poller = new Thread(() -> poll(consumer), "participant-" + pollers.size());
+            poller.setDaemon(true);
+            pollers.add(poller);
+            poller.start();
+        }
+    }
+
+    private void poll(KafkaConsumer<String, CommandMessage> consumer) {
+        try {
+            while (running) {
+                for (ConsumerRecord<String, CommandMessage> record : consumer.poll(Duration.ofMillis(100))) {
+                    if (record.value() == null) {
+                        continue;
+                    }
+                    String eventsTopic = record.topic().replace(".commands.", ".events.");
+                    if (serviceTime != null) {
+                        serviceTime.schedule(() -> reply(eventsTopic, record.value()), serviceTimeMs, TimeUnit.MILLISECONDS);
+                    } else {
+                        reply(eventsTopic, record.value());
+                    }
+                }
+            }
+        } catch (WakeupException e) {
+            // Closing
+        } finally {
+            consumer.close();
+        }
+    }
+
+    private void reply(String topic, CommandMessage command) {
+        try {
+            EventMessage event = answer(command);
+            if (event != null) {
+                producer.send(new ProducerRecord<>(topic, command.getSagaId(), event));
+            }
+        } catch (RuntimeException e) {
+            // Left unanswered, the saga shows up as unfinished
+            System.out.printf("could not answer %s for saga %s: %s%n", command.getType(), command.getSagaId(), e);
+        }
+    }
+
+    private static EventMessage answer(CommandMessage command) {
+        CommandType commandType;
+        try {
+            commandType = CommandType.valueOf(command.getType());
+        } catch (IllegalArgumentException | NullPointerException e) {
+            return null;
+        }
+        String eventType = SUCCESS_EVENTS.get(commandType);
+        if (eventType == null) {
+            return null;
+        }
+
+        EventMessage event = EventMessage.createSuccessEvent(command.getSagaId(), command.getStepId(), eventType,
+                commandType.getTargetService());
+        event.initialize();
+        if (command.getPayload() != null) {
+            command.getPayload().forEach(event::setPayloadValue);
+        }
+
+        Integer quantity = command.getPayloadAs(PositionPayload.class).getQuantity();
+        switch (commandType) {
+            case ORDER_CREATE:
+                event.setPayloadValue("orderId", UUID.randomUUID().toString());
+                break;
+            case MARKET_GET_PRICE:
+                event.setPayloadValue("currentPrice", MARKET_PRICE);
+                break;
+            case ACCOUNT_RESERVE_FUNDS:
+                event.setPayloadValue("reservationId", UUID.randomUUID().toString());
+                break;
+            case PORTFOLIO_VERIFY_SHARES:
+                event.setPayloadValue("availableQuantity", quantity != null ? quantity * 10 : 1000);
+                break;
+            case PORTFOLIO_RESERVE_SHARES:
+                event.setPayloadValue("reservationId", UUID.randomUUID().toString());
+                event.setPayloadValue("reservedQuantity", quantity);
+                break;
+            case BROKER_EXECUTE_ORDER:
+                event.setPayloadValue("brokerOrderId", UUID.randomUUID().toString());
+                event.setPayloadValue("executedQuantity", quantity);
+                event.setPayloadValue("executionPrice", MARKET_PRICE);
+                event.setPayloadValue("executedAt", Instant.now().toString());
+                break;
+            case ACCOUNT_CREATE_DEPOSIT_PENDING_TRANSACTION:
+            case ACCOUNT_CREATE_WITHDRAWAL_PENDING_TRANSACTION:
+                event.setPayloadValue("transactionId", UUID.randomUUID().toString());
+                break;
+            case PAYMENT_PROCESS_DEPOSIT:
+            case PAYMENT_PROCESS_WITHDRAWAL:
+                event.setPayloadValue("paymentReference", UUID.randomUUID().toString());
+                break;
+            default:
+                break;
+        }
+        return event;
+    }
+
+    private static Map<CommandType, String> successEvents() {
+        Map<CommandType, String> events = new EnumMap<>(CommandType.class);
+        for (EventType eventType : EventType.values()) {
+            CommandType commandType = eventType.getAssociatedCommandType();
+            if (commandType != null) {
+                events.putIfAbsent(commandType, eventType.name());
+            }
+        }
+        return events;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        consumers.forEach(KafkaConsumer::wakeup);
+        for (Thread poller : pollers) {
+            try {
+                poller.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (serviceTime != null) {
+            serviceTime.shutdownNow();
+        }
+        producer.close(Duration.ofSeconds(5));
+    }
+}
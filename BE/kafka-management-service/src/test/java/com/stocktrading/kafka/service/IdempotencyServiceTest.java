@@ -0,0 +1,168 @@
+package com.stocktrading.kafka.service;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.project.kafkamessagemodels.model.EventMessage;
+import com.stocktrading.kafka.model.ProcessedMessage;
+import com.stocktrading.kafka.repository.ProcessedMessageRepository;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class IdempotencyServiceTest {
+
+    private static final TopicPartition PARTITION = new TopicPartition("order.events", 0);
+
+    private MongoServer server;
+    private MongoClient client;
+    private MongoTemplate mongoTemplate;
+    private ProcessedMessageRepository repository;
+    private IdempotencyService service;
+
+    @BeforeEach
+    void setUp() {
+        server = new MongoServer(new MemoryBackend());
+        InetSocketAddress address = server.bind();
+        client = MongoClients.create("mongodb://" + address.getHostString() + ":" + address.getPort());
+        mongoTemplate = new MongoTemplate(client, "IdempotencyServiceTest");
+        repository = mock(ProcessedMessageRepository.class);
+        service = new IdempotencyService(repository, mongoTemplate, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(service, "writeBehind", true);
+        ReflectionTestUtils.setField(service, "retentionDays", 14L);
+        ReflectionTestUtils.setField(service, "recentCapacity", 1_000);
+        ReflectionTestUtils.setField(service, "bloomExpectedInsertions", 10_000L);
+        ReflectionTestUtils.setField(service, "bloomFalsePositiveRate", 0.001);
+        ReflectionTestUtils.setField(service, "trustFilterNegatives", true);
+        service.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.shutdown();
+        client.close();
+        server.shutdownNow();
+    }
+
+    @Test
+    void newMessagesOfAWarmPartitionSkipTheStore() throws InterruptedException {
+        warmUp();
+
+        assertTrue(service.trustsNegatives(PARTITION.toString()));
+        assertFalse(isProcessed(event("new-message"), PARTITION.toString()));
+        verify(repository, never()).existsById(anyString());
+    }
+
+    @Test
+    void messagesOfPartitionsNotAssignedHereAreCheckedInTheStore() throws InterruptedException {
+        warmUp();
+
+        assertFalse(isProcessed(event("new-message"), "order.events-1"));
+        assertFalse(isProcessed(event("other-message"), null));
+
+        verify(repository).existsById("new-message");
+        verify(repository).existsById("other-message");
+    }
+
+    @Test
+    void messagesRecordedByThePreviousOwnerAreFoundAfterTheAssignment() throws InterruptedException {
+        mongoTemplate.insert(record("theirs", PARTITION.toString()));
+        when(repository.existsById("theirs")).thenReturn(true);
+        warmUp();
+
+        assertTrue(isProcessed(event("theirs"), PARTITION.toString()));
+        verify(repository).existsById("theirs");
+    }
+
+    @Test
+    void recordsWithoutAPartitionAreLoadedAtStartup() throws InterruptedException {
+        ProcessedMessage legacy = record("legacy", null);
+        mongoTemplate.insert(legacy);
+        when(repository.existsById("legacy")).thenReturn(true);
+        warmUp();
+
+        assertTrue(isProcessed(event("legacy"), PARTITION.toString()));
+        verify(repository).existsById("legacy");
+    }
+
+    @Test
+    void revokedPartitionsAreCheckedInTheStore() throws InterruptedException {
+        warmUp();
+        service.partitionsRevoked(Collections.singletonList(PARTITION));
+
+        assertFalse(service.trustsNegatives(PARTITION.toString()));
+        assertFalse(isProcessed(event("new-message"), PARTITION.toString()));
+        verify(repository).existsById("new-message");
+    }
+
+    @Test
+    void negativesAreNotTrustedWhenDisabled() throws InterruptedException {
+        ReflectionTestUtils.setField(service, "trustFilterNegatives", false);
+        warmUp();
+
+        assertFalse(isProcessed(event("new-message"), PARTITION.toString()));
+        verify(repository).existsById("new-message");
+    }
+
+    @Test
+    void recordsKeepThePartitionTheirMessageCameFrom() throws InterruptedException {
+        warmUp();
+        EventMessage event = event("handled");
+
+        service.handle(event, PARTITION.toString(), () -> service.recordProcessing(event, Collections.emptyMap()));
+        assertTrue(service.flush());
+
+        ProcessedMessage stored = mongoTemplate.findById("handled", ProcessedMessage.class);
+        assertNotNull(stored);
+        assertEquals(PARTITION.toString(), stored.getPartition());
+        assertTrue(isProcessed(event, PARTITION.toString()));
+        verify(repository, never()).existsById(anyString());
+    }
+
+    // Warm-ups run in order on one thread, so a task queued behind them runs once they are done
+    private void warmUp() throws InterruptedException {
+        service.warmUpFilter();
+        service.partitionsAssigned(Collections.singletonList(PARTITION));
+        CountDownLatch done = new CountDownLatch(1);
+        ((ExecutorService) ReflectionTestUtils.getField(service, "warmUps")).execute(done::countDown);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    private boolean isProcessed(EventMessage event, String partition) {
+        AtomicBoolean processed = new AtomicBoolean();
+        service.handle(event, partition, () -> processed.set(service.isProcessed(event)));
+        return processed.get();
+    }
+
+    private static EventMessage event(String messageId) {
+        EventMessage event = new EventMessage();
+        event.setMessageId(messageId);
+        event.setSagaId("saga-1");
+        event.setStepId(1);
+        event.setType("ORDER_CREATED");
+        return event;
+    }
+
+    private static ProcessedMessage record(String messageId, String partition) {
+        ProcessedMessage record = ProcessedMessage.create(messageId, "saga-1", 1, "ORDER_CREATED",
+                Collections.emptyMap());
+        record.setPartition(partition);
+        return record;
+    }
+}
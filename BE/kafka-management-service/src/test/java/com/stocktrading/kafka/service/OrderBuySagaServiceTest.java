@@ -0,0 +1,153 @@
+package com.stocktrading.kafka.service;
+
+import com.project.kafkamessagemodels.model.CommandMessage;
+import com.project.kafkamessagemodels.model.EventMessage;
+import com.stocktrading.kafka.model.OrderBuySagaState;
+import com.stocktrading.kafka.model.enums.OrderBuySagaStep;
+import com.stocktrading.kafka.model.enums.SagaStatus;
+import com.stocktrading.kafka.repository.OrderBuySagaRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class OrderBuySagaServiceTest {
+
+    private static final String SAGA_ID = "saga-1";
+
+    private SagaStateCache<OrderBuySagaState> cache;
+    private OrderBuySagaService service;
+    private OrderBuySagaState saga;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        cache = mock(SagaStateCache.class);
+        service = new OrderBuySagaService(mock(OrderBuySagaRepository.class), cache, mock(IdempotencyService.class),
+                mock(SagaEventExecutor.class), mock(SagaFlushService.class));
+        service.init();
+
+        // Order created, the saga enters the validation group
+        saga = OrderBuySagaState.initiate(SAGA_ID, "user-1", "account-1", "AAPL", "MARKET", 10, null, "DAY", 3);
+        saga.moveToNextStep();
+        when(cache.findById(SAGA_ID)).thenReturn(Optional.of(saga));
+
+        service.processNextStep(saga);
+    }
+
+    @Test
+    void enteringTheGroupSendsEveryMemberAtOnce() {
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Function<CommandMessage, String>> topics = ArgumentCaptor.forClass(Function.class);
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<CommandMessage>> commands = ArgumentCaptor.forClass(List.class);
+        verify(cache).save(eq(saga), commands.capture(), topics.capture());
+
+        assertEquals(List.of("USER_VERIFY_TRADING_PERMISSIONS", "ACCOUNT_VERIFY_STATUS", "MARKET_VALIDATE_STOCK",
+                "MARKET_GET_PRICE"), commands.getValue().stream().map(CommandMessage::getType).collect(Collectors.toList()));
+        assertEquals(List.of("user.commands.order-buy", "account.commands.order-buy", "market.commands.order-buy",
+                "market.commands.order-buy"), commands.getValue().stream().map(topics.getValue()).collect(Collectors.toList()));
+        assertEquals(OrderBuySagaStep.VERIFY_TRADING_PERMISSION, saga.getCurrentStep());
+    }
+
+    @Test
+    void repliesInAnyOrderAdvanceOnceTheLastMemberReplies() {
+        reply("PRICE_PROVIDED", true, OrderBuySagaStep.GET_MARKET_PRICE);
+        reply("STOCK_VALIDATED", true, OrderBuySagaStep.VALIDATE_STOCK);
+        reply("ACCOUNT_STATUS_VERIFIED", true, OrderBuySagaStep.VERIFY_ACCOUNT_STATUS);
+
+        assertEquals(OrderBuySagaStep.VERIFY_TRADING_PERMISSION, saga.getCurrentStep());
+        assertEquals(List.of(OrderBuySagaStep.VERIFY_TRADING_PERMISSION.name()), saga.getPendingGroupSteps());
+        verify(cache, never()).save(any(OrderBuySagaState.class), any(CommandMessage.class), anyString());
+
+        reply("USER_TRADING_PERMISSIONS_VERIFIED", true, OrderBuySagaStep.VERIFY_TRADING_PERMISSION);
+
+        // Funds are calculated in the orchestrator from the price reply, then reserved
+        assertNull(saga.getPendingGroupSteps());
+        assertEquals(OrderBuySagaStep.RESERVE_FUNDS, saga.getCurrentStep());
+        assertTrue(saga.getCompletedSteps().containsAll(List.of("VERIFY_TRADING_PERMISSION", "VERIFY_ACCOUNT_STATUS",
+                "VALIDATE_STOCK", "GET_MARKET_PRICE", "CALCULATE_REQUIRED_FUNDS")));
+        assertEquals(0, new BigDecimal("1995.00").compareTo(saga.getReservedAmount()));
+        ArgumentCaptor<CommandMessage> reserve = ArgumentCaptor.forClass(CommandMessage.class);
+        verify(cache).save(eq(saga), reserve.capture(), eq("account.commands.order-buy"));
+        assertEquals("ACCOUNT_RESERVE_FUNDS", reserve.getValue().getType());
+    }
+
+    @Test
+    void aSecondReplyFromAMemberIsIgnored() {
+        reply("STOCK_VALIDATED", true, OrderBuySagaStep.VALIDATE_STOCK);
+        reply("STOCK_VALIDATED", true, OrderBuySagaStep.VALIDATE_STOCK);
+        reply("STOCK_VALIDATED", false, OrderBuySagaStep.VALIDATE_STOCK);
+
+        assertEquals(SagaStatus.IN_PROGRESS, saga.getStatus());
+        assertEquals(1, Collections.frequency(saga.getCompletedSteps(), OrderBuySagaStep.VALIDATE_STOCK.name()));
+        assertEquals(List.of("VERIFY_TRADING_PERMISSION", "VERIFY_ACCOUNT_STATUS", "GET_MARKET_PRICE"),
+                saga.getPendingGroupSteps());
+        assertEquals(OrderBuySagaStep.VERIFY_TRADING_PERMISSION, saga.getCurrentStep());
+    }
+
+    @Test
+    void aMemberFailingAfterAnotherSucceededEndsTheGroupWithoutUndoingValidation() {
+        reply("STOCK_VALIDATED", true, OrderBuySagaStep.VALIDATE_STOCK);
+        reply("ACCOUNT_STATUS_INVALID", false, OrderBuySagaStep.VERIFY_ACCOUNT_STATUS);
+
+        assertEquals(SagaStatus.FAILED, saga.getStatus());
+        assertNull(saga.getPendingGroupSteps());
+        assertTrue(saga.getCompletedSteps().contains(OrderBuySagaStep.VALIDATE_STOCK.name()));
+        assertFalse(saga.getCompletedSteps().contains(OrderBuySagaStep.VERIFY_ACCOUNT_STATUS.name()));
+        // Validation reserved nothing, so no compensation command is sent for the member that completed
+        verify(cache, never()).save(any(OrderBuySagaState.class), any(CommandMessage.class), anyString());
+        verify(cache, times(1)).save(any(OrderBuySagaState.class), anyList(), any());
+
+        // Members still running when the group failed are not waited on
+        reply("PRICE_PROVIDED", true, OrderBuySagaStep.GET_MARKET_PRICE);
+        assertEquals(SagaStatus.FAILED, saga.getStatus());
+        assertFalse(saga.getCompletedSteps().contains(OrderBuySagaStep.GET_MARKET_PRICE.name()));
+    }
+
+    @Test
+    void aFailedExecutionStepCompensatesOnlyTheStepsThatCompleted() {
+        reply("PRICE_PROVIDED", true, OrderBuySagaStep.GET_MARKET_PRICE);
+        reply("STOCK_VALIDATED", true, OrderBuySagaStep.VALIDATE_STOCK);
+        reply("ACCOUNT_STATUS_VERIFIED", true, OrderBuySagaStep.VERIFY_ACCOUNT_STATUS);
+        reply("USER_TRADING_PERMISSIONS_VERIFIED", true, OrderBuySagaStep.VERIFY_TRADING_PERMISSION);
+        reply("FUNDS_RESERVED", true, OrderBuySagaStep.RESERVE_FUNDS);
+        reply("ORDER_VALIDATION_FAILED", false, OrderBuySagaStep.UPDATE_ORDER_VALIDATED);
+
+        // Funds were reserved, the order was never validated: compensation starts by releasing the funds
+        assertEquals(SagaStatus.COMPENSATING, saga.getStatus());
+        assertEquals(OrderBuySagaStep.RELEASE_FUNDS, saga.getCurrentStep());
+        verify(cache).save(eq(saga), argThatHasType("ACCOUNT_RELEASE_FUNDS"), eq("account.commands.order-buy"));
+    }
+
+    private static CommandMessage argThatHasType(String type) {
+        return argThat(command -> command != null && type.equals(command.getType()));
+    }
+
+    private void reply(String type, boolean success, OrderBuySagaStep step) {
+        EventMessage event = new EventMessage();
+        event.setMessageId(UUID.randomUUID().toString());
+        event.setSagaId(SAGA_ID);
+        event.setStepId(step.getStepNumber());
+        event.setType(type);
+        event.setSuccess(success);
+        if ("PRICE_PROVIDED".equals(type)) {
+            event.setPayloadValue("currentPrice", new BigDecimal("190.00"));
+        }
+        service.handleEventMessage(event);
+    }
+}
@@ -0,0 +1,114 @@
+package com.stocktrading.kafka.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProcessedMessageFilterTest {
+
+    @Test
+    void addedIdsAreNeverReportedNotSeen() {
+        ProcessedMessageFilter filter = new ProcessedMessageFilter(100, 10_000, 0.01);
+        List<String> ids = ids("added-", 5_000);
+        ids.forEach(filter::add);
+
+        for (String id : ids) {
+            assertNotEquals(ProcessedMessageFilter.Result.NOT_SEEN, filter.check(id), id);
+        }
+    }
+
+    @Test
+    void idsLoadedWithoutPromotionAreMaybeProcessed() {
+        ProcessedMessageFilter filter = new ProcessedMessageFilter(100, 10_000, 0.01);
+        filter.addToFilter("warmed");
+
+        assertEquals(ProcessedMessageFilter.Result.MAYBE_PROCESSED, filter.check("warmed"));
+    }
+
+    @Test
+    void idsEvictedFromTheRecentSetFallBackToTheBloomFilter() {
+        ProcessedMessageFilter filter = new ProcessedMessageFilter(2, 10_000, 0.01);
+        filter.add("first");
+        filter.add("second");
+        filter.add("third");
+
+        assertEquals(ProcessedMessageFilter.Result.MAYBE_PROCESSED, filter.check("first"));
+        assertEquals(ProcessedMessageFilter.Result.PROCESSED, filter.check("third"));
+    }
+
+    @Test
+    void forgottenIdsAreConfirmedWithTheStore() {
+        ProcessedMessageFilter filter = new ProcessedMessageFilter(100, 10_000, 0.01);
+        filter.add("rejected");
+        filter.forget("rejected");
+
+        assertEquals(ProcessedMessageFilter.Result.MAYBE_PROCESSED, filter.check("rejected"));
+    }
+
+    @Test
+    void falsePositivesAreOnlyEverMaybeProcessed() {
+        // Far more IDs than the filter is sized for, so unknown IDs collide
+        ProcessedMessageFilter filter = new ProcessedMessageFilter(10, 1_000_000, 0.5);
+        ids("added-", 20_000).forEach(filter::addToFilter);
+
+        int maybe = 0;
+        for (String id : ids("unknown-", 10_000)) {
+            ProcessedMessageFilter.Result result = filter.check(id);
+            assertNotEquals(ProcessedMessageFilter.Result.PROCESSED, result, id);
+            if (result == ProcessedMessageFilter.Result.MAYBE_PROCESSED) {
+                maybe++;
+            }
+        }
+        assertTrue(maybe > 0, "expected some false positives");
+        assertTrue(maybe < 10_000, "expected some negatives");
+    }
+
+    @Test
+    void falsePositiveRateStaysNearTheConfiguredOne() {
+        ProcessedMessageFilter filter = new ProcessedMessageFilter(10, 100_000, 0.01);
+        ids("added-", 100_000).forEach(filter::addToFilter);
+
+        int maybe = 0;
+        for (String id : ids("unknown-", 100_000)) {
+            if (filter.check(id) != ProcessedMessageFilter.Result.NOT_SEEN) {
+                maybe++;
+            }
+        }
+        assertTrue(maybe < 2_000, "false positives: " + maybe);
+    }
+
+    @Test
+    void rotationKeepsThePreviousGenerationAndReportsTheDroppedOne() {
+        ProcessedMessageFilter filter = new ProcessedMessageFilter(10, 1_000, 0.01);
+        long start = System.currentTimeMillis();
+        List<String> first = ids("first-", 1_000);
+        first.forEach(filter::addToFilter);
+
+        // Full once: the generation moves to previous and is still checked
+        assertTrue(filter.coversAddedSince(start));
+        for (String id : first) {
+            assertNotEquals(ProcessedMessageFilter.Result.NOT_SEEN, filter.check(id), id);
+        }
+
+        List<String> second = ids("second-", 1_000);
+        second.forEach(filter::addToFilter);
+
+        // The first generation is gone, negatives only hold for IDs added after it
+        assertFalse(filter.coversAddedSince(start));
+        assertTrue(filter.coversAddedSince(System.currentTimeMillis() + 1));
+        for (String id : second) {
+            assertNotEquals(ProcessedMessageFilter.Result.NOT_SEEN, filter.check(id), id);
+        }
+    }
+
+    private static List<String> ids(String prefix, int count) {
+        List<String> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(prefix + i);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,97 @@
+package com.stocktrading.kafka.service;
+
+import com.project.kafkamessagemodels.model.EventMessage;
+import com.project.kafkamessagemodels.model.enums.CommandType;
+import com.project.kafkamessagemodels.model.enums.EventType;
+import com.stocktrading.kafka.model.enums.OrderBuySagaStep;
+import com.stocktrading.kafka.model.enums.SagaStatus;
+import com.stocktrading.kafka.service.SagaDefinition.Action;
+
+/**
+ * Microbenchmark of saga transition dispatch, run with main.
+ * Compares the compiled transition table with the string and valueOf matching the saga services used before.
+ */
+public class SagaDefinitionBenchmark {
+
+    private static final int ROUNDS = 5;
+    private static final int ITERATIONS = 5_000_000;
+
+    // Replies the order buy saga receives in one run, with a few that do not match the step
+    private static final OrderBuySagaStep[] STEPS = {
+            OrderBuySagaStep.CREATE_ORDER, OrderBuySagaStep.RESERVE_FUNDS, OrderBuySagaStep.UPDATE_ORDER_VALIDATED,
+            OrderBuySagaStep.SUBMIT_ORDER, OrderBuySagaStep.SUBMIT_ORDER, OrderBuySagaStep.UPDATE_ORDER_EXECUTED,
+            OrderBuySagaStep.UPDATE_PORTFOLIO, OrderBuySagaStep.SETTLE_TRANSACTION, OrderBuySagaStep.CANCEL_ORDER
+    };
+    private static final String[] EVENTS = {
+            "ORDER_CREATED", "FUNDS_RESERVED", "ORDER_VALIDATED", "LIMIT_ORDER_QUEUED", "ORDER_EXECUTED_BY_BROKER",
+            "ORDER_EXECUTED", "POSITIONS_UPDATED", "TRANSACTION_SETTLED", "FUNDS_RELEASED"
+    };
+
+    public static void main(String[] args) {
+        SagaDefinition<OrderBuySagaStep> definition = orderBuyDefinition();
+        EventMessage[] messages = new EventMessage[EVENTS.length];
+        for (int i = 0; i < EVENTS.length; i++) {
+            messages[i] = new EventMessage();
+            messages[i].setType(EVENTS[i]);
+        }
+
+        for (int round = 1; round <= ROUNDS; round++) {
+            long start = System.nanoTime();
+            long tableHits = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                int n = i % STEPS.length;
+                if (definition.resolve(STEPS[n], SagaStatus.IN_PROGRESS, messages[n]) != null) {
+                    tableHits++;
+                }
+            }
+            long tableNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long matchHits = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                int n = i % STEPS.length;
+                if (matchByName(STEPS[n], SagaStatus.IN_PROGRESS, EVENTS[n], null)) {
+                    matchHits++;
+                }
+            }
+            long matchNanos = System.nanoTime() - start;
+
+            System.out.printf("round %d: table %.1f ns/op (%d hits), string matching %.1f ns/op (%d hits)%n", round,
+                    (double) tableNanos / ITERATIONS, tableHits, (double) matchNanos / ITERATIONS, matchHits);
+        }
+    }
+
+    private static SagaDefinition<OrderBuySagaStep> orderBuyDefinition() {
+        SagaDefinition.Builder<OrderBuySagaStep> builder = SagaDefinition.builder(OrderBuySagaStep.class,
+                OrderBuySagaStep::getCommandType, OrderBuySagaStep::getStepNumber);
+        for (OrderBuySagaStep step : OrderBuySagaStep.values()) {
+            if (step.isCompensationStep()) {
+                builder.compensation(step, step.getNextCompensationStep(), Action.COMPENSATE);
+            } else if (step.getNextStep() != null) {
+                builder.step(step, step.getNextStep(), Action.COMPENSATE);
+            }
+        }
+        return builder.topics(step -> step.getCommandType().name())
+                .signal("LIMIT_ORDER_QUEUED", Action.PAUSE)
+                .signal("ORDER_EXPIRED", Action.EXPIRE)
+                .whileStatus(SagaStatus.LIMIT_ORDER_PENDING, EventType.ORDER_EXECUTED_BY_BROKER, Action.RESUME)
+                .build();
+    }
+
+    // The matching the services did per event before the table
+    private static boolean matchByName(OrderBuySagaStep step, SagaStatus status, String eventType, Integer stepId) {
+        if ("LIMIT_ORDER_QUEUED".equals(eventType) || "ORDER_EXPIRED".equals(eventType)) {
+            return true;
+        }
+        if ("ORDER_EXECUTED_BY_BROKER".equals(eventType) && status == SagaStatus.LIMIT_ORDER_PENDING) {
+            return true;
+        }
+        try {
+            CommandType eventCommandType = EventType.valueOf(eventType).getAssociatedCommandType();
+            return eventCommandType == step.getCommandType()
+                    && (stepId == null || stepId.equals(step.getStepNumber()));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
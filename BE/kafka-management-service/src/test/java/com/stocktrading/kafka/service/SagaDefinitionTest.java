@@ -0,0 +1,289 @@
+package com.stocktrading.kafka.service;
+
+import com.project.kafkamessagemodels.model.EventMessage;
+import com.project.kafkamessagemodels.model.enums.CommandType;
+import com.stocktrading.kafka.model.enums.DepositSagaStep;
+import com.stocktrading.kafka.model.enums.OrderBuySagaStep;
+import com.stocktrading.kafka.model.enums.OrderSellSagaStep;
+import com.stocktrading.kafka.model.enums.SagaStatus;
+import com.stocktrading.kafka.model.enums.WithdrawalSagaStep;
+import com.stocktrading.kafka.repository.DepositSagaRepository;
+import com.stocktrading.kafka.repository.OrderBuySagaRepository;
+import com.stocktrading.kafka.repository.OrderSellSagaRepository;
+import com.stocktrading.kafka.repository.WithdrawalSagaRepository;
+import com.stocktrading.kafka.service.SagaDefinition.Action;
+import com.stocktrading.kafka.service.SagaDefinition.Transition;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+class SagaDefinitionTest {
+
+    @Test
+    void orderBuyAdvancesOnSuccessAndTerminatesOnAValidationFailure() {
+        SagaDefinition<OrderBuySagaStep> definition = orderBuy();
+
+        Transition<OrderBuySagaStep> success = definition.resolve(OrderBuySagaStep.CREATE_ORDER, SagaStatus.STARTED,
+                event("ORDER_CREATED", true, 1));
+        assertEquals(Action.ADVANCE, success.getAction());
+        assertEquals(OrderBuySagaStep.CREATE_ORDER, success.getStep());
+        assertEquals(OrderBuySagaStep.VERIFY_TRADING_PERMISSION, success.getNext());
+        assertEquals("user.commands.order-buy", success.getNextTopic());
+        assertFalse(success.isParallel());
+
+        Transition<OrderBuySagaStep> failure = definition.resolve(OrderBuySagaStep.CREATE_ORDER, SagaStatus.STARTED,
+                event("ORDER_CREATION_FAILED", false, 1));
+        assertEquals(Action.TERMINATE, failure.getAction());
+    }
+
+    @Test
+    void orderBuyCompensatesExecutionFailuresAndAdvancesCompensation() {
+        SagaDefinition<OrderBuySagaStep> definition = orderBuy();
+
+        assertEquals(Action.COMPENSATE, definition.resolve(OrderBuySagaStep.RESERVE_FUNDS, SagaStatus.IN_PROGRESS,
+                event("FUNDS_RESERVATION_FAILED", false, 7)).getAction());
+
+        Transition<OrderBuySagaStep> compensation = definition.resolve(OrderBuySagaStep.RELEASE_FUNDS,
+                SagaStatus.COMPENSATING, event("FUNDS_RELEASED", true, 102));
+        assertEquals(Action.COMPENSATION_ADVANCE, compensation.getAction());
+        assertEquals(OrderBuySagaStep.CANCEL_ORDER, compensation.getNext());
+        assertEquals("order.commands.order-buy", compensation.getNextTopic());
+    }
+
+    @Test
+    void orderBuyIgnoresRepliesToAnotherStep() {
+        SagaDefinition<OrderBuySagaStep> definition = orderBuy();
+
+        // Right event type, but the step ID of another step
+        assertNull(definition.resolve(OrderBuySagaStep.CREATE_ORDER, SagaStatus.STARTED, event("ORDER_CREATED", true, 8)));
+        // Event of a step the saga is not in
+        assertNull(definition.resolve(OrderBuySagaStep.CREATE_ORDER, SagaStatus.STARTED, event("FUNDS_RESERVED", true, 7)));
+        // Replies without a step ID are matched on their type alone
+        assertNotNull(definition.resolve(OrderBuySagaStep.CREATE_ORDER, SagaStatus.STARTED,
+                event("ORDER_CREATED", true, null)));
+    }
+
+    @Test
+    void orderBuyJoinsRepliesOfEveryValidationGroupMember() {
+        SagaDefinition<OrderBuySagaStep> definition = orderBuy();
+
+        for (OrderBuySagaStep member : OrderBuySagaStep.VERIFY_TRADING_PERMISSION.getParallelGroup()) {
+            String eventType = replyTo(member.getCommandType());
+            Transition<OrderBuySagaStep> join = definition.resolve(OrderBuySagaStep.VERIFY_TRADING_PERMISSION,
+                    SagaStatus.IN_PROGRESS, event(eventType, true, member.getStepNumber()));
+            assertEquals(Action.JOIN, join.getAction(), eventType);
+            assertEquals(member, join.getStep());
+            assertEquals(OrderBuySagaStep.CALCULATE_REQUIRED_FUNDS, join.getNext());
+            assertTrue(join.isParallel());
+
+            Transition<OrderBuySagaStep> failure = definition.resolve(OrderBuySagaStep.VERIFY_TRADING_PERMISSION,
+                    SagaStatus.IN_PROGRESS, event(eventType, false, member.getStepNumber()));
+            assertEquals(Action.TERMINATE, failure.getAction(), eventType);
+            assertTrue(failure.isParallel());
+        }
+    }
+
+    @Test
+    void orderBuyStatusSignalsTakePrecedenceOverTheStep() {
+        SagaDefinition<OrderBuySagaStep> definition = orderBuy();
+        EventMessage executed = event("ORDER_EXECUTED_BY_BROKER", true, 9);
+
+        assertEquals(Action.RESUME,
+                definition.resolve(OrderBuySagaStep.SUBMIT_ORDER, SagaStatus.LIMIT_ORDER_PENDING, executed).getAction());
+        assertEquals(Action.ADVANCE,
+                definition.resolve(OrderBuySagaStep.SUBMIT_ORDER, SagaStatus.IN_PROGRESS, executed).getAction());
+    }
+
+    @Test
+    void orderBuySignalsOutsideEventTypeMatchInAnyStep() {
+        SagaDefinition<OrderBuySagaStep> definition = orderBuy();
+
+        for (OrderBuySagaStep step : new OrderBuySagaStep[]{OrderBuySagaStep.SUBMIT_ORDER, OrderBuySagaStep.CREATE_ORDER}) {
+            assertEquals(Action.PAUSE, definition.resolve(step, SagaStatus.IN_PROGRESS,
+                    event("LIMIT_ORDER_QUEUED", true, 9)).getAction());
+            assertEquals(Action.EXPIRE, definition.resolve(step, SagaStatus.LIMIT_ORDER_PENDING,
+                    event("ORDER_EXPIRED", false, null)).getAction());
+        }
+        assertNull(definition.resolve(OrderBuySagaStep.SUBMIT_ORDER, SagaStatus.IN_PROGRESS,
+                event("NOT_A_SIGNAL", true, 9)));
+    }
+
+    @Test
+    void orderBuyHandlesItsOwnEventsAndSignalsOnly() {
+        SagaDefinition<OrderBuySagaStep> definition = orderBuy();
+
+        assertTrue(definition.handles("ORDER_CREATED"));
+        assertTrue(definition.handles("LIMIT_ORDER_QUEUED"));
+        assertTrue(definition.handles("ORDER_EXECUTED_BY_BROKER"));
+        assertFalse(definition.handles("DEPOSIT_PAYMENT_PROCESSED"));
+        assertFalse(definition.handles("NOT_A_SIGNAL"));
+        assertFalse(definition.handles(null));
+    }
+
+    @Test
+    void orderBuyTopicsFollowTheServiceOfEachStep() {
+        SagaDefinition<OrderBuySagaStep> definition = orderBuy();
+
+        assertEquals("account.commands.order-buy", definition.topicOf(OrderBuySagaStep.RESERVE_FUNDS));
+        assertEquals("broker.commands.order-buy", definition.topicOf(OrderBuySagaStep.CANCEL_BROKER_ORDER));
+        assertEquals("portfolio.commands.order-buy", definition.topicOf(CommandType.PORTFOLIO_REMOVE_POSITIONS));
+        assertNull(definition.topicOf(OrderBuySagaStep.CALCULATE_REQUIRED_FUNDS));
+        assertNull(definition.topicOf(CommandType.PAYMENT_PROCESS_DEPOSIT));
+    }
+
+    @Test
+    void orderSellJoinsTheValidationGroupAndCompensatesExecution() {
+        SagaDefinition<OrderSellSagaStep> definition = orderSell();
+
+        Transition<OrderSellSagaStep> success = definition.resolve(OrderSellSagaStep.CREATE_ORDER, SagaStatus.STARTED,
+                event("ORDER_CREATED", true, 1));
+        assertEquals(Action.ADVANCE, success.getAction());
+        assertEquals("user.commands.order-sell", success.getNextTopic());
+
+        for (OrderSellSagaStep member : OrderSellSagaStep.VERIFY_TRADING_PERMISSION.getParallelGroup()) {
+            Transition<OrderSellSagaStep> join = definition.resolve(OrderSellSagaStep.VERIFY_TRADING_PERMISSION,
+                    SagaStatus.IN_PROGRESS, event(replyTo(member.getCommandType()), true, member.getStepNumber()));
+            assertEquals(Action.JOIN, join.getAction(), member.name());
+            assertEquals(OrderSellSagaStep.RESERVE_SHARES, join.getNext());
+            assertEquals("portfolio.commands.order-sell", join.getNextTopic());
+        }
+
+        assertEquals(Action.COMPENSATE, definition.resolve(OrderSellSagaStep.SUBMIT_ORDER, SagaStatus.IN_PROGRESS,
+                event("ORDER_EXECUTION_FAILED", false, 9)).getAction());
+        assertNull(definition.resolve(OrderSellSagaStep.SUBMIT_ORDER, SagaStatus.IN_PROGRESS,
+                event("ORDER_EXECUTED_BY_BROKER", true, 3)));
+    }
+
+    @Test
+    void orderSellStatusSignalsAndSignalsOutsideEventType() {
+        SagaDefinition<OrderSellSagaStep> definition = orderSell();
+        EventMessage executed = event("ORDER_EXECUTED_BY_BROKER", true, 9);
+
+        assertEquals(Action.RESUME,
+                definition.resolve(OrderSellSagaStep.SUBMIT_ORDER, SagaStatus.LIMIT_ORDER_PENDING, executed).getAction());
+        assertEquals(Action.ADVANCE,
+                definition.resolve(OrderSellSagaStep.SUBMIT_ORDER, SagaStatus.IN_PROGRESS, executed).getAction());
+        assertEquals(Action.PAUSE, definition.resolve(OrderSellSagaStep.SUBMIT_ORDER, SagaStatus.IN_PROGRESS,
+                event("LIMIT_ORDER_QUEUED", true, 9)).getAction());
+        assertTrue(definition.handles("ORDER_EXPIRED"));
+        assertTrue(definition.handles("SHARES_RESERVED"));
+        assertFalse(definition.handles("FUNDS_RESERVED"));
+    }
+
+    @Test
+    void depositRunsStepByStepAndHasNoSignals() {
+        SagaDefinition<DepositSagaStep> definition = deposit();
+
+        Transition<DepositSagaStep> success = definition.resolve(DepositSagaStep.VERIFY_USER_IDENTITY,
+                SagaStatus.STARTED, event("USER_IDENTITY_VERIFIED", true, 1));
+        assertEquals(Action.ADVANCE, success.getAction());
+        assertEquals(DepositSagaStep.VALIDATE_ACCOUNT, success.getNext());
+
+        assertEquals(Action.TERMINATE, definition.resolve(DepositSagaStep.VALIDATE_ACCOUNT, SagaStatus.IN_PROGRESS,
+                event("ACCOUNT_VALIDATION_FAILED", false, 2)).getAction());
+        assertEquals(Action.COMPENSATE, definition.resolve(DepositSagaStep.PROCESS_PAYMENT, SagaStatus.IN_PROGRESS,
+                event("DEPOSIT_PAYMENT_FAILED", false, 5)).getAction());
+
+        Transition<DepositSagaStep> compensation = definition.resolve(DepositSagaStep.REVERSE_PAYMENT,
+                SagaStatus.COMPENSATING, event("DEPOSIT_PAYMENT_REVERSAL_COMPLETED", true, 102));
+        assertEquals(Action.COMPENSATION_ADVANCE, compensation.getAction());
+        assertEquals(DepositSagaStep.MARK_TRANSACTION_FAILED, compensation.getNext());
+
+        assertNull(definition.resolve(DepositSagaStep.PROCESS_PAYMENT, SagaStatus.IN_PROGRESS,
+                event("DEPOSIT_PAYMENT_PROCESSED", true, 4)));
+        assertNull(definition.resolve(DepositSagaStep.PROCESS_PAYMENT, SagaStatus.IN_PROGRESS,
+                event("LIMIT_ORDER_QUEUED", true, 5)));
+        assertTrue(definition.handles("DEPOSIT_BALANCE_UPDATED"));
+        assertFalse(definition.handles("WITHDRAWAL_BALANCE_UPDATED"));
+        assertFalse(definition.handles("LIMIT_ORDER_QUEUED"));
+    }
+
+    @Test
+    void withdrawalRetriesAFailedCompensationFromTheStepBeforeIt() {
+        SagaDefinition<WithdrawalSagaStep> definition = withdrawal();
+
+        assertEquals(Action.ADVANCE, definition.resolve(WithdrawalSagaStep.ACCOUNT_CHECK_BALANCE, SagaStatus.IN_PROGRESS,
+                event("BALANCE_VALID", true, 3)).getAction());
+        assertEquals(Action.TERMINATE, definition.resolve(WithdrawalSagaStep.ACCOUNT_CHECK_BALANCE,
+                SagaStatus.IN_PROGRESS, event("BALANCE_VALIDATION_ERROR", false, 3)).getAction());
+        assertEquals(Action.COMPENSATE, definition.resolve(WithdrawalSagaStep.PAYMENT_PROCESS_WITHDRAWAL,
+                SagaStatus.IN_PROGRESS, event("WITHDRAWAL_PAYMENT_FAILED", false, 6)).getAction());
+
+        Transition<WithdrawalSagaStep> retry = definition.resolve(WithdrawalSagaStep.PAYMENT_REVERSE_WITHDRAWAL,
+                SagaStatus.COMPENSATING, event("WITHDRAWAL_PAYMENT_REVERSAL_FAILED", false, 102));
+        assertEquals(Action.RETRY_COMPENSATION, retry.getAction());
+        assertEquals(WithdrawalSagaStep.ACCOUNT_WITHDRAWAL_REVERSE_BALANCE_UPDATE, retry.getNext());
+
+        Transition<WithdrawalSagaStep> next = definition.resolve(WithdrawalSagaStep.PAYMENT_REVERSE_WITHDRAWAL,
+                SagaStatus.COMPENSATING, event("WITHDRAWAL_PAYMENT_REVERSAL_COMPLETED", true, 102));
+        assertEquals(Action.ADVANCE, next.getAction());
+        assertEquals(WithdrawalSagaStep.ACCOUNT_MARK_TRANSACTION_FAILED, next.getNext());
+
+        assertNull(definition.resolve(WithdrawalSagaStep.PAYMENT_REVERSE_WITHDRAWAL, SagaStatus.COMPENSATING,
+                event("WITHDRAWAL_PAYMENT_REVERSAL_COMPLETED", true, 101)));
+        assertTrue(definition.handles("WITHDRAWAL_PAYMENT_PROCESSED"));
+        assertFalse(definition.handles("DEPOSIT_PAYMENT_PROCESSED"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SagaDefinition<OrderBuySagaStep> orderBuy() {
+        OrderBuySagaService service = new OrderBuySagaService(mock(OrderBuySagaRepository.class),
+                mock(SagaStateCache.class), mock(IdempotencyService.class), mock(SagaEventExecutor.class),
+                mock(SagaFlushService.class));
+        service.init();
+        return (SagaDefinition<OrderBuySagaStep>) ReflectionTestUtils.getField(service, "sagaDefinition");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SagaDefinition<OrderSellSagaStep> orderSell() {
+        OrderSellSagaService service = new OrderSellSagaService(mock(OrderSellSagaRepository.class),
+                mock(SagaStateCache.class), mock(IdempotencyService.class), mock(SagaEventExecutor.class),
+                mock(SagaFlushService.class));
+        service.init();
+        return (SagaDefinition<OrderSellSagaStep>) ReflectionTestUtils.getField(service, "sagaDefinition");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SagaDefinition<DepositSagaStep> deposit() {
+        DepositSagaService service = new DepositSagaService(mock(DepositSagaRepository.class),
+                mock(SagaStateCache.class), mock(IdempotencyService.class));
+        service.init();
+        return (SagaDefinition<DepositSagaStep>) ReflectionTestUtils.getField(service, "sagaDefinition");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SagaDefinition<WithdrawalSagaStep> withdrawal() {
+        WithdrawalSagaService service = new WithdrawalSagaService(mock(WithdrawalSagaRepository.class),
+                mock(SagaStateCache.class), mock(IdempotencyService.class));
+        service.init();
+        return (SagaDefinition<WithdrawalSagaStep>) ReflectionTestUtils.getField(service, "sagaDefinition");
+    }
+
+    // The success reply to a command; failures of the same command share its column
+    private static String replyTo(CommandType commandType) {
+        switch (commandType) {
+            case USER_VERIFY_TRADING_PERMISSIONS:
+                return "USER_TRADING_PERMISSIONS_VERIFIED";
+            case ACCOUNT_VERIFY_STATUS:
+                return "ACCOUNT_STATUS_VERIFIED";
+            case MARKET_VALIDATE_STOCK:
+                return "STOCK_VALIDATED";
+            case MARKET_GET_PRICE:
+                return "PRICE_PROVIDED";
+            case PORTFOLIO_VERIFY_SHARES:
+                return "SHARES_VALIDATED";
+            default:
+                throw new IllegalArgumentException(commandType.name());
+        }
+    }
+
+    private static EventMessage event(String type, boolean success, Integer stepId) {
+        EventMessage event = new EventMessage();
+        event.setType(type);
+        event.setSuccess(success);
+        event.setStepId(stepId);
+        return event;
+    }
+}
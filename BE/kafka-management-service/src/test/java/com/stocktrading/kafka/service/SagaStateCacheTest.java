@@ -0,0 +1,331 @@
+package com.stocktrading.kafka.service;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.stocktrading.kafka.model.OrderBuySagaState;
+import com.stocktrading.kafka.model.enums.SagaStatus;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class SagaStateCacheTest {
+
+    private static final String MESSAGE_ID = "message-1";
+
+    private MongoServer server;
+    private MongoClient client;
+    private MongoTemplate mongoTemplate;
+    private IdempotencyService idempotencyService;
+    private SagaOwnershipService ownershipService;
+    private SagaEventLog eventLog;
+
+    @BeforeEach
+    void setUp() {
+        server = new MongoServer(new MemoryBackend());
+        InetSocketAddress address = server.bind();
+        client = MongoClients.create("mongodb://" + address.getHostString() + ":" + address.getPort());
+        mongoTemplate = new MongoTemplate(client, "SagaStateCacheTest");
+        idempotencyService = mock(IdempotencyService.class);
+        ownershipService = mock(SagaOwnershipService.class);
+        eventLog = mock(SagaEventLog.class);
+        when(idempotencyService.currentMessageId()).thenReturn(MESSAGE_ID);
+        // Saves made outside fenced scheduled work
+        when(ownershipService.currentFence()).thenReturn(null);
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.close();
+        server.shutdownNow();
+    }
+
+    @Test
+    void diffSetsChangedFieldsAndChangedKeysOfEmbeddedDocuments() {
+        Document before = new Document("status", "STARTED").append("quantity", 10)
+                .append("stepData", new Document("price", 100));
+        Document after = new Document("status", "IN_PROGRESS").append("quantity", 10)
+                .append("stepData", new Document("price", 100).append("orderId", "o-1"));
+
+        Document update = SagaStateCache.diff(before, after);
+
+        assertEquals(new Document("$set", new Document("status", "IN_PROGRESS").append("stepData.orderId", "o-1")),
+                update);
+    }
+
+    @Test
+    void diffPushesItemsAppendedToAList() {
+        Document before = new Document("completedSteps", Arrays.asList("CREATE_ORDER"));
+        Document after = new Document("completedSteps", Arrays.asList("CREATE_ORDER", "RESERVE_FUNDS", "SUBMIT_ORDER"));
+
+        Document update = SagaStateCache.diff(before, after);
+
+        assertEquals(new Document("$push", new Document("completedSteps",
+                new Document("$each", Arrays.asList("RESERVE_FUNDS", "SUBMIT_ORDER")))), update);
+    }
+
+    @Test
+    void diffSetsAListThatWasNotOnlyAppendedTo() {
+        Document before = new Document("completedSteps", Arrays.asList("CREATE_ORDER", "RESERVE_FUNDS"));
+        Document after = new Document("completedSteps", Arrays.asList("CREATE_ORDER", "RELEASE_FUNDS"));
+
+        Document update = SagaStateCache.diff(before, after);
+
+        assertEquals(new Document("$set", new Document("completedSteps",
+                Arrays.asList("CREATE_ORDER", "RELEASE_FUNDS"))), update);
+    }
+
+    @Test
+    void diffUnsetsRemovedFieldsAndRemovedKeysOfEmbeddedDocuments() {
+        Document before = new Document("failureReason", "timeout").append("quantity", 10)
+                .append("stepData", new Document("price", 100).append("orderId", "o-1"));
+        Document after = new Document("quantity", 10).append("stepData", new Document("price", 100));
+
+        Document update = SagaStateCache.diff(before, after);
+
+        assertEquals(new Document("$unset", new Document("failureReason", "").append("stepData.orderId", "")), update);
+    }
+
+    @Test
+    void diffLeavesFieldsMaintainedByTheStoreAlone() {
+        Document before = new Document("_id", "s-1").append("version", 1L).append("writeId", "w-1")
+                .append("outbox", Arrays.asList(new Document("messageId", "c-1")));
+        Document after = new Document("_id", "s-1").append("version", 2L);
+
+        assertTrue(SagaStateCache.diff(before, after).isEmpty());
+    }
+
+    @Test
+    void flushInsertsANewSagaAndThenWritesOnlyItsChanges() {
+        SagaStateCache<OrderBuySagaState> cache = cache(0);
+        OrderBuySagaState saga = newSaga("saga-1");
+
+        cache.save(saga);
+        assertTrue(cache.flush());
+        assertEquals(0L, stored("saga-1").get("version"));
+
+        saga.setFailureReason("rejected by the broker");
+        cache.save(saga);
+        assertTrue(cache.flush());
+
+        Document stored = stored("saga-1");
+        assertEquals(1L, stored.get("version"));
+        assertEquals("rejected by the broker", stored.getString("failureReason"));
+        verify(idempotencyService, never()).reject(any());
+    }
+
+    @Test
+    void versionConflictReloadsTheSagaAndRejectsTheMessage() {
+        SagaStateCache<OrderBuySagaState> cache = cache(0);
+        OrderBuySagaState saga = newSaga("saga-1");
+        cache.save(saga);
+        cache.flush();
+
+        // Another instance writes the saga meanwhile
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is("saga-1")),
+                new Update().set("failureReason", "theirs").inc("version", 1L), OrderBuySagaState.class);
+
+        saga.setFailureReason("ours");
+        cache.save(saga);
+        cache.flush();
+
+        verify(idempotencyService).reject(argThat(ids -> ids.contains(MESSAGE_ID)));
+        assertEquals("theirs", stored("saga-1").getString("failureReason"));
+        OrderBuySagaState reloaded = cache.findById("saga-1").orElseThrow();
+        assertNotSame(saga, reloaded);
+        assertEquals("theirs", reloaded.getFailureReason());
+        assertFalse(cache.isCurrent(saga));
+    }
+
+    @Test
+    void evictedSagaIsNeverUpsertedOnceItsDocumentIsGone() throws InterruptedException {
+        SagaStateCache<OrderBuySagaState> cache = cache(1);
+        OrderBuySagaState saga = newSaga("saga-1");
+        cache.save(saga);
+        cache.flush();
+        Thread.sleep(10);
+        cache.flush();
+        assertFalse(cache.contains("saga-1"));
+
+        mongoTemplate.remove(Query.query(Criteria.where("_id").is("saga-1")), OrderBuySagaState.class);
+
+        saga.setFailureReason("late");
+        cache.save(saga);
+        cache.flush();
+
+        assertEquals(0, mongoTemplate.count(new Query(), OrderBuySagaState.class));
+        verify(idempotencyService).reject(argThat(ids -> ids.contains(MESSAGE_ID)));
+        assertFalse(cache.contains("saga-1"));
+    }
+
+    @Test
+    void evictedSagaIsWrittenAsADeltaWhenItsDocumentIsUnchanged() throws InterruptedException {
+        SagaStateCache<OrderBuySagaState> cache = cache(1);
+        OrderBuySagaState saga = newSaga("saga-1");
+        cache.save(saga);
+        cache.flush();
+        Thread.sleep(10);
+        cache.flush();
+        assertFalse(cache.contains("saga-1"));
+
+        saga.setFailureReason("late");
+        cache.save(saga);
+        cache.flush();
+
+        Document stored = stored("saga-1");
+        assertEquals(1L, stored.get("version"));
+        assertEquals("late", stored.getString("failureReason"));
+        verify(idempotencyService, never()).reject(any());
+    }
+
+    @Test
+    void newSagaDoesNotOverwriteADocumentAnotherWriterInserted() {
+        SagaStateCache<OrderBuySagaState> cache = cache(0);
+        mongoTemplate.insert(new Document("_id", "saga-1").append("sagaId", "saga-1")
+                .append("status", SagaStatus.IN_PROGRESS.name()).append("failureReason", "theirs")
+                .append("version", 3L), mongoTemplate.getCollectionName(OrderBuySagaState.class));
+
+        OrderBuySagaState saga = newSaga("saga-1");
+        saga.setFailureReason("ours");
+        cache.save(saga);
+        cache.flush();
+
+        assertEquals("theirs", stored("saga-1").getString("failureReason"));
+        verify(idempotencyService).reject(argThat(ids -> ids.contains(MESSAGE_ID)));
+        assertEquals("theirs", cache.findById("saga-1").orElseThrow().getFailureReason());
+    }
+
+    @Test
+    void eventsAreLoggedOnlyOnceTheirStateIsWritten() {
+        SagaStateCache<OrderBuySagaState> cache = cache(0);
+        OrderBuySagaState saga = newSaga("saga-1");
+        saga.addEvent("ORDER_CREATED", "created");
+
+        cache.save(saga);
+        verify(eventLog, never()).append(anyString(), anyList());
+
+        assertTrue(cache.flush());
+        verify(eventLog).append(eq("ORDER_BUY"), argThat(events -> events.stream()
+                .anyMatch(event -> "ORDER_CREATED".equals(event.getType()))));
+    }
+
+    @Test
+    void eventsOfALostWriteAreNotLogged() {
+        SagaStateCache<OrderBuySagaState> cache = cache(0);
+        OrderBuySagaState saga = newSaga("saga-1");
+        cache.save(saga);
+        cache.flush();
+        clearInvocations(eventLog);
+
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is("saga-1")),
+                new Update().set("failureReason", "theirs").inc("version", 1L), OrderBuySagaState.class);
+
+        saga.addEvent("ORDER_REJECTED", "ours");
+        cache.save(saga);
+        cache.flush();
+
+        verify(idempotencyService).reject(argThat(ids -> ids.contains(MESSAGE_ID)));
+        verify(eventLog, never()).append(anyString(), anyList());
+    }
+
+    @Test
+    void writeThroughSaveDoesNotWaitForAFlushOfTheWholeCache() throws InterruptedException {
+        SagaStateCache<OrderBuySagaState> cache = cache(0, false);
+        CountDownLatch flushing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        // Holds the monitor a cache-wide flush runs under
+        Thread flush = new Thread(() -> {
+            synchronized (cache) {
+                flushing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        flush.start();
+        assertTrue(flushing.await(10, TimeUnit.SECONDS));
+
+        try {
+            assertTimeoutPreemptively(Duration.ofSeconds(10), () -> cache.save(newSaga("saga-1")));
+            assertEquals(0L, stored("saga-1").get("version"));
+        } finally {
+            release.countDown();
+            flush.join();
+        }
+    }
+
+    @Test
+    void batchLoadsReadSagasByTheirPrimaryKey() {
+        SagaStateCache<OrderBuySagaState> writer = cache(0);
+        for (String sagaId : List.of("saga-1", "saga-2", "saga-3")) {
+            writer.save(newSaga(sagaId));
+        }
+        assertTrue(writer.flush());
+        MongoTemplate template = spy(mongoTemplate);
+        SagaStateCache<OrderBuySagaState> cache = cache(template, 0, true);
+
+        cache.loadAll(List.of("saga-1", "saga-2", "missing"));
+
+        assertTrue(cache.contains("saga-1"));
+        assertTrue(cache.contains("saga-2"));
+        assertFalse(cache.contains("saga-3"));
+        // The sagaId index the model declares does not exist in Mongo, _id is the sagaId
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        verify(template).find(query.capture(), eq(OrderBuySagaState.class));
+        assertEquals(Set.of("_id"), query.getValue().getQueryObject().keySet());
+    }
+
+    private SagaStateCache<OrderBuySagaState> cache(long idleEvictMs) {
+        return cache(idleEvictMs, true);
+    }
+
+    private SagaStateCache<OrderBuySagaState> cache(long idleEvictMs, boolean writeBehind) {
+        return cache(mongoTemplate, idleEvictMs, writeBehind);
+    }
+
+    private SagaStateCache<OrderBuySagaState> cache(MongoTemplate mongoTemplate, long idleEvictMs, boolean writeBehind) {
+        return new SagaStateCache<>("ORDER_BUY", OrderBuySagaState.class, mongoTemplate, new SimpleMeterRegistry(),
+                OrderBuySagaState::getSagaId,
+                sagaId -> Optional.ofNullable(mongoTemplate.findById(sagaId, OrderBuySagaState.class)),
+                saga -> saga.getStatus() == SagaStatus.COMPLETED, OrderBuySagaState::drainPendingEvents,
+                eventLog, mock(CommandOutboxRelay.class), idempotencyService, ownershipService,
+                saga -> { }, writeBehind, idleEvictMs);
+    }
+
+    private static OrderBuySagaState newSaga(String sagaId) {
+        return OrderBuySagaState.initiate(sagaId, "user-1", "account-1", "AAPL", "MARKET", 10, null, "DAY", 3);
+    }
+
+    private Document stored(String sagaId) {
+        List<Document> documents = mongoTemplate.find(Query.query(Criteria.where("_id").is(sagaId)), Document.class,
+                mongoTemplate.getCollectionName(OrderBuySagaState.class));
+        assertEquals(1, documents.size());
+        return documents.get(0);
+    }
+}
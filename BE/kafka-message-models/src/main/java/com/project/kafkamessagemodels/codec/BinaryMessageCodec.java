@@ -0,0 +1,622 @@
+package com.project.kafkamessagemodels.codec;
+
+import com.project.kafkamessagemodels.model.BaseMessage;
+import com.project.kafkamessagemodels.model.CommandMessage;
+import com.project.kafkamessagemodels.model.EventMessage;
+import com.project.kafkamessagemodels.model.Hop;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Schema-tagged binary format of CommandMessage and EventMessage.
+ * <p>
+ * A message is the magic byte, the varint schema ID, a varint mask of the fields that are not null and then
+ * those fields in declaration order. Strings listed in the schema are written as their index, UUIDs as 16 bytes
+ * and anything else as UTF-8. Schema version 2 adds the hop trail, with the timestamps of each hop written as
+ * deltas from the one before. Payload values carry a type tag, so an Integer, Long, Double or BigDecimal
+ * put into a payload comes out as the same type instead of whatever JSON makes of it.
+ * <p>
+ * Objects without a schema are written as JSON, and data that does not start with the magic byte is read
+ * as JSON, so topics can be switched over while they still hold JSON records.
+ */
+public class BinaryMessageCodec implements MessageCodec {
+
+    static final byte MAGIC = (byte) 0xB1;
+
+    // Payload value tags
+    private static final int NULL = 0;
+    private static final int TRUE = 1;
+    private static final int FALSE = 2;
+    private static final int INT = 3;
+    private static final int LONG = 4;
+    private static final int DOUBLE = 5;
+    private static final int FLOAT = 6;
+    private static final int DECIMAL = 7;
+    private static final int STRING = 8;
+    private static final int LIST = 9;
+    private static final int MAP = 10;
+
+    // Low two bits of a string header, the rest is the symbol index or the UTF-8 length
+    private static final int SYMBOL = 1;
+    private static final int INLINE = 2;
+    private static final int UUID_STRING = 3;
+
+    // Field positions in the presence mask
+    private static final int MESSAGE_ID = 0;
+    private static final int SAGA_ID = 1;
+    private static final int STEP_ID = 2;
+    private static final int TYPE = 3;
+    private static final int TIMESTAMP = 4;
+    private static final int SOURCE_SERVICE = 5;
+    private static final int VERSION = 6;
+    private static final int PAYLOAD = 7;
+    // CommandMessage
+    private static final int METADATA = 8;
+    private static final int IS_COMPENSATION = 9;
+    private static final int TARGET_SERVICE = 10;
+    // EventMessage
+    private static final int SUCCESS = 8;
+    private static final int ERROR_CODE = 9;
+    private static final int ERROR_MESSAGE = 10;
+    // Both, from schema version 2
+    private static final int HOPS = 11;
+
+    // Hop timestamps in the presence byte of a hop
+    private static final int ENQUEUED = 0;
+    private static final int DEQUEUED = 1;
+    private static final int HANDLED = 2;
+
+    private final MessageSchemaRegistry registry;
+    private final JsonMessageCodec json = new JsonMessageCodec();
+
+    public BinaryMessageCodec() {
+        this(MessageSchemaRegistry.local());
+    }
+
+    public BinaryMessageCodec(MessageSchemaRegistry registry) {
+        this.registry = registry;
+    }
+
+    public static boolean isBinary(byte[] data) {
+        return data != null && data.length > 0 && data[0] == MAGIC;
+    }
+
+    @Override
+    public byte[] encode(Object message) {
+        MessageSchema schema = message != null ? registry.latest(message.getClass()) : null;
+        if (schema == null) {
+            return json.encode(message);
+        }
+
+        Writer out = new Writer(schema);
+        out.writeByte(MAGIC);
+        out.writeVarInt(schema.getId());
+        if (message instanceof CommandMessage) {
+            writeCommand(out, (CommandMessage) message);
+        } else {
+            writeEvent(out, (EventMessage) message);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public <T> T decode(byte[] data, Class<T> type) {
+        if (!isBinary(data)) {
+            return json.decode(data, type);
+        }
+
+        Reader in = new Reader(data);
+        MessageSchema schema = registry.byId(in.readVarInt());
+        if (!type.isAssignableFrom(schema.getMessageType())) {
+            throw new IllegalArgumentException("Schema " + schema.getId() + " holds "
+                    + schema.getMessageType().getSimpleName() + ", not " + type.getSimpleName());
+        }
+        in.schema = schema;
+        try {
+            BaseMessage message = schema.getMessageType() == CommandMessage.class ? readCommand(in) : readEvent(in);
+            return type.cast(message);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated message of schema " + schema.getId(), e);
+        }
+    }
+
+    private void writeCommand(Writer out, CommandMessage message) {
+        int present = presence(message)
+                | bit(PAYLOAD, message.getPayload())
+                | bit(METADATA, message.getMetadata())
+                | bit(IS_COMPENSATION, message.getIsCompensation())
+                | bit(TARGET_SERVICE, message.getTargetService())
+                | hopsBit(out, message);
+        out.writeVarInt(present);
+        writeBase(out, message, present);
+        if (has(present, PAYLOAD)) {
+            writeMap(out, message.getPayload());
+        }
+        if (has(present, METADATA)) {
+            writeMap(out, message.getMetadata());
+        }
+        if (has(present, IS_COMPENSATION)) {
+            out.writeByte(message.getIsCompensation() ? TRUE : FALSE);
+        }
+        if (has(present, TARGET_SERVICE)) {
+            out.writeString(message.getTargetService());
+        }
+        if (has(present, HOPS)) {
+            writeHops(out, message.getHops());
+        }
+    }
+
+    private void writeEvent(Writer out, EventMessage message) {
+        int present = presence(message)
+                | bit(PAYLOAD, message.getPayload())
+                | bit(SUCCESS, message.getSuccess())
+                | bit(ERROR_CODE, message.getErrorCode())
+                | bit(ERROR_MESSAGE, message.getErrorMessage())
+                | hopsBit(out, message);
+        out.writeVarInt(present);
+        writeBase(out, message, present);
+        if (has(present, PAYLOAD)) {
+            writeMap(out, message.getPayload());
+        }
+        if (has(present, SUCCESS)) {
+            out.writeByte(message.getSuccess() ? TRUE : FALSE);
+        }
+        if (has(present, ERROR_CODE)) {
+            out.writeString(message.getErrorCode());
+        }
+        if (has(present, ERROR_MESSAGE)) {
+            out.writeString(message.getErrorMessage());
+        }
+        if (has(present, HOPS)) {
+            writeHops(out, message.getHops());
+        }
+    }
+
+    // Schemas before version 2 have no place for hops, they are left out rather than failing the message
+    private static int hopsBit(Writer out, BaseMessage message) {
+        List<Hop> hops = message.getHops();
+        return hops != null && !hops.isEmpty() && out.schema.getVersion() >= 2 ? 1 << HOPS : 0;
+    }
+
+    private static void writeHops(Writer out, List<Hop> hops) {
+        out.writeVarInt(hops.size());
+        for (Hop hop : hops) {
+            out.writeString(hop.getService());
+            int present = bit(ENQUEUED, hop.getEnqueuedAt())
+                    | bit(DEQUEUED, hop.getDequeuedAt())
+                    | bit(HANDLED, hop.getHandledAt());
+            out.writeByte(present);
+            long previous = 0;
+            for (Long at : new Long[]{hop.getEnqueuedAt(), hop.getDequeuedAt(), hop.getHandledAt()}) {
+                if (at != null) {
+                    out.writeSignedVarLong(at - previous);
+                    previous = at;
+                }
+            }
+        }
+    }
+
+    private static int presence(BaseMessage message) {
+        return bit(MESSAGE_ID, message.getMessageId())
+                | bit(SAGA_ID, message.getSagaId())
+                | bit(STEP_ID, message.getStepId())
+                | bit(TYPE, message.getType())
+                | bit(TIMESTAMP, message.getTimestamp())
+                | bit(SOURCE_SERVICE, message.getSourceService())
+                | bit(VERSION, message.getVersion());
+    }
+
+    private void writeBase(Writer out, BaseMessage message, int present) {
+        if (has(present, MESSAGE_ID)) {
+            out.writeString(message.getMessageId());
+        }
+        if (has(present, SAGA_ID)) {
+            out.writeString(message.getSagaId());
+        }
+        if (has(present, STEP_ID)) {
+            out.writeSignedVarLong(message.getStepId());
+        }
+        if (has(present, TYPE)) {
+            out.writeString(message.getType());
+        }
+        if (has(present, TIMESTAMP)) {
+            out.writeSignedVarLong(message.getTimestamp().getEpochSecond());
+            out.writeVarInt(message.getTimestamp().getNano());
+        }
+        if (has(present, SOURCE_SERVICE)) {
+            out.writeString(message.getSourceService());
+        }
+        if (has(present, VERSION)) {
+            out.writeSignedVarLong(message.getVersion());
+        }
+    }
+
+    private CommandMessage readCommand(Reader in) {
+        CommandMessage message = new CommandMessage();
+        int present = in.readVarInt();
+        readBase(in, message, present);
+        message.setPayload(has(present, PAYLOAD) ? readMap(in) : null);
+        message.setMetadata(has(present, METADATA) ? readStringMap(in) : null);
+        message.setIsCompensation(has(present, IS_COMPENSATION) ? in.readByte() == TRUE : null);
+        message.setTargetService(has(present, TARGET_SERVICE) ? in.readString() : null);
+        message.setHops(has(present, HOPS) ? readHops(in) : null);
+        return message;
+    }
+
+    private EventMessage readEvent(Reader in) {
+        EventMessage message = new EventMessage();
+        int present = in.readVarInt();
+        readBase(in, message, present);
+        message.setPayload(has(present, PAYLOAD) ? readMap(in) : null);
+        message.setSuccess(has(present, SUCCESS) ? in.readByte() == TRUE : null);
+        message.setErrorCode(has(present, ERROR_CODE) ? in.readString() : null);
+        message.setErrorMessage(has(present, ERROR_MESSAGE) ? in.readString() : null);
+        message.setHops(has(present, HOPS) ? readHops(in) : null);
+        return message;
+    }
+
+    private static List<Hop> readHops(Reader in) {
+        int size = in.readVarInt();
+        List<Hop> hops = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            Hop hop = new Hop();
+            hop.setService(in.readString());
+            int present = in.readByte();
+            long previous = 0;
+            Long[] at = new Long[3];
+            for (int field = ENQUEUED; field <= HANDLED; field++) {
+                if (has(present, field)) {
+                    previous += in.readSignedVarLong();
+                    at[field] = previous;
+                }
+            }
+            hop.setEnqueuedAt(at[ENQUEUED]);
+            hop.setDequeuedAt(at[DEQUEUED]);
+            hop.setHandledAt(at[HANDLED]);
+            hops.add(hop);
+        }
+        return hops;
+    }
+
+    private static void readBase(Reader in, BaseMessage message, int present) {
+        if (has(present, MESSAGE_ID)) {
+            message.setMessageId(in.readString());
+        }
+        if (has(present, SAGA_ID)) {
+            message.setSagaId(in.readString());
+        }
+        if (has(present, STEP_ID)) {
+            message.setStepId((int) in.readSignedVarLong());
+        }
+        if (has(present, TYPE)) {
+            message.setType(in.readString());
+        }
+        if (has(present, TIMESTAMP)) {
+            long seconds = in.readSignedVarLong();
+            message.setTimestamp(Instant.ofEpochSecond(seconds, in.readVarInt()));
+        }
+        if (has(present, SOURCE_SERVICE)) {
+            message.setSourceService(in.readString());
+        }
+        if (has(present, VERSION)) {
+            message.setVersion((int) in.readSignedVarLong());
+        }
+    }
+
+    private void writeMap(Writer out, Map<?, ?> map) {
+        out.writeVarInt(map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            out.writeString(String.valueOf(entry.getKey()));
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    private void writeValue(Writer out, Object value) {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            out.writeString((String) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.writeByte(INT);
+            out.writeSignedVarLong(((Number) value).intValue());
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeSignedVarLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeFixedLong(Double.doubleToRawLongBits((Double) value));
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFixedInt(Float.floatToRawIntBits((Float) value));
+        } else if (value instanceof BigDecimal) {
+            writeDecimal(out, (BigDecimal) value);
+        } else if (value instanceof BigInteger) {
+            writeDecimal(out, new BigDecimal((BigInteger) value));
+        } else if (value instanceof Map) {
+            out.writeByte(MAP);
+            writeMap(out, (Map<?, ?>) value);
+        } else if (value instanceof Collection) {
+            Collection<?> items = (Collection<?>) value;
+            out.writeByte(LIST);
+            out.writeVarInt(items.size());
+            for (Object item : items) {
+                writeValue(out, item);
+            }
+        } else if (value instanceof Enum) {
+            out.writeByte(STRING);
+            out.writeString(((Enum<?>) value).name());
+        } else if (value instanceof CharSequence || value instanceof Character) {
+            out.writeByte(STRING);
+            out.writeString(value.toString());
+        } else {
+            // Arrays, dates and nested objects travel the way JSON represents them
+            Object converted = json.toJsonValue(value);
+            if (converted == null || converted.getClass() == value.getClass()) {
+                out.writeByte(STRING);
+                out.writeString(value.toString());
+            } else {
+                writeValue(out, converted);
+            }
+        }
+    }
+
+    private static void writeDecimal(Writer out, BigDecimal value) {
+        byte[] unscaled = value.unscaledValue().toByteArray();
+        out.writeByte(DECIMAL);
+        out.writeSignedVarLong(value.scale());
+        out.writeVarInt(unscaled.length);
+        out.writeBytes(unscaled);
+    }
+
+    private static Object readValue(Reader in) {
+        int tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case INT:
+                return (int) in.readSignedVarLong();
+            case LONG:
+                return in.readSignedVarLong();
+            case DOUBLE:
+                return Double.longBitsToDouble(in.readFixedLong());
+            case FLOAT:
+                return Float.intBitsToFloat(in.readFixedInt());
+            case DECIMAL:
+                int scale = (int) in.readSignedVarLong();
+                return new BigDecimal(new BigInteger(in.readBytes(in.readVarInt())), scale);
+            case STRING:
+                return in.readString();
+            case LIST:
+                int size = in.readVarInt();
+                List<Object> items = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    items.add(readValue(in));
+                }
+                return items;
+            case MAP:
+                return readMap(in);
+            default:
+                throw new IllegalArgumentException("Unknown value tag " + tag + " in schema " + in.schema.getId());
+        }
+    }
+
+    private static Map<String, Object> readMap(Reader in) {
+        int size = in.readVarInt();
+        Map<String, Object> map = new LinkedHashMap<>(size * 4 / 3 + 1);
+        for (int i = 0; i < size; i++) {
+            String key = in.readString();
+            map.put(key, readValue(in));
+        }
+        return map;
+    }
+
+    private static Map<String, String> readStringMap(Reader in) {
+        Map<String, String> map = new LinkedHashMap<>();
+        readMap(in).forEach((key, value) -> map.put(key, value != null ? value.toString() : null));
+        return map;
+    }
+
+    private static int bit(int field, Object value) {
+        return value != null ? 1 << field : 0;
+    }
+
+    private static boolean has(int present, int field) {
+        return (present & 1 << field) != 0;
+    }
+
+    // Canonical lower case form only, so the string reads back unchanged
+    private static boolean isUuid(String value) {
+        if (value.length() != 36) {
+            return false;
+        }
+        for (int i = 0; i < 36; i++) {
+            char c = value.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class Writer {
+        private final MessageSchema schema;
+        private byte[] buffer = new byte[256];
+        private int size;
+
+        Writer(MessageSchema schema) {
+            this.schema = schema;
+        }
+
+        void writeByte(int value) {
+            ensure(1);
+            buffer[size++] = (byte) value;
+        }
+
+        void writeVarInt(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        void writeSignedVarLong(long value) {
+            ensure(10);
+            long zigzag = (value << 1) ^ (value >> 63);
+            while ((zigzag & ~0x7FL) != 0) {
+                buffer[size++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            buffer[size++] = (byte) zigzag;
+        }
+
+        void writeFixedInt(int value) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                buffer[size++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeFixedLong(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[size++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+            int symbol = schema.indexOf(value);
+            if (symbol >= 0) {
+                writeVarInt(symbol << 2 | SYMBOL);
+            } else if (isUuid(value)) {
+                UUID uuid = UUID.fromString(value);
+                writeVarInt(UUID_STRING);
+                writeFixedLong(uuid.getMostSignificantBits());
+                writeFixedLong(uuid.getLeastSignificantBits());
+            } else {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                writeVarInt(bytes.length << 2 | INLINE);
+                writeBytes(bytes);
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+
+        private void ensure(int bytes) {
+            if (size + bytes > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + bytes));
+            }
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] data;
+        private int position = 1;
+        private MessageSchema schema;
+
+        Reader(byte[] data) {
+            this.data = data;
+        }
+
+        int readByte() {
+            return data[position++] & 0xFF;
+        }
+
+        int readVarInt() {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = data[position++];
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint at " + (position - 1));
+        }
+
+        long readSignedVarLong() {
+            long zigzag = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = data[position++];
+                zigzag |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return (zigzag >>> 1) ^ -(zigzag & 1);
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint at " + (position - 1));
+        }
+
+        int readFixedInt() {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                value = value << 8 | (data[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        long readFixedLong() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = value << 8 | (data[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        byte[] readBytes(int length) {
+            if (position + length > data.length) {
+                throw new IndexOutOfBoundsException("Need " + length + " bytes at " + position);
+            }
+            byte[] bytes = Arrays.copyOfRange(data, position, position + length);
+            position += length;
+            return bytes;
+        }
+
+        String readString() {
+            int header = readVarInt();
+            switch (header & 3) {
+                case SYMBOL:
+                    return schema.symbol(header >>> 2);
+                case INLINE:
+                    int length = header >>> 2;
+                    if (position + length > data.length) {
+                        throw new IndexOutOfBoundsException("Need " + length + " bytes at " + position);
+                    }
+                    String value = new String(data, position, length, StandardCharsets.UTF_8);
+                    position += length;
+                    return value;
+                case UUID_STRING:
+                    return new UUID(readFixedLong(), readFixedLong()).toString();
+                default:
+                    return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.project.kafkamessagemodels.codec;
+
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Deserializer;
+
+import java.util.Map;
+
+/**
+ * Kafka deserializer reading saga messages written with the binary codec, and JSON records as the given default type
+ */
+public class BinaryMessageDeserializer implements Deserializer<Object> {
+
+    // Same keys as the JsonDeserializer, so consumer configs keep the default type they already set
+    public static final String KEY_DEFAULT_TYPE = "spring.json.key.default.type";
+    public static final String VALUE_DEFAULT_TYPE = "spring.json.value.default.type";
+
+    private final BinaryMessageCodec codec = new BinaryMessageCodec();
+    private Class<?> defaultType = Object.class;
+
+    @Override
+    public void configure(Map<String, ?> configs, boolean isKey) {
+        Object type = configs.get(isKey ? KEY_DEFAULT_TYPE : VALUE_DEFAULT_TYPE);
+        if (type instanceof Class) {
+            defaultType = (Class<?>) type;
+        } else if (type != null) {
+            try {
+                defaultType = Class.forName(type.toString(), true, getClass().getClassLoader());
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException("Unknown default type " + type, e);
+            }
+        }
+    }
+
+    @Override
+    public Object deserialize(String topic, byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        try {
+            return codec.decode(data, defaultType);
+        } catch (RuntimeException e) {
+            throw new SerializationException("Could not decode message from topic " + topic, e);
+        }
+    }
+}
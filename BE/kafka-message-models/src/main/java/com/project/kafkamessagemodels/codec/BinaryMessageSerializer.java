@@ -0,0 +1,25 @@
+package com.project.kafkamessagemodels.codec;
+
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Serializer;
+
+/**
+ * Kafka serializer writing saga messages with the binary codec
+ */
+public class BinaryMessageSerializer implements Serializer<Object> {
+
+    private final BinaryMessageCodec codec = new BinaryMessageCodec();
+
+    @Override
+    public byte[] serialize(String topic, Object data) {
+        if (data == null) {
+            return null;
+        }
+        try {
+            return codec.encode(data);
+        } catch (RuntimeException e) {
+            throw new SerializationException("Could not encode " + data.getClass().getSimpleName()
+                    + " for topic " + topic, e);
+        }
+    }
+}
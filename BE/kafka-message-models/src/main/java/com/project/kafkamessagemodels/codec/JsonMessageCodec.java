@@ -0,0 +1,42 @@
+package com.project.kafkamessagemodels.codec;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Plain Jackson JSON, read the same way the JsonDeserializer of the services reads it
+ */
+public class JsonMessageCodec implements MessageCodec {
+
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .findAndRegisterModules()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    @Override
+    public byte[] encode(Object message) {
+        try {
+            return objectMapper.writeValueAsBytes(message);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write " + message.getClass().getSimpleName() + " as JSON", e);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] data, Class<T> type) {
+        try {
+            return objectMapper.readValue(data, type);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read " + type.getSimpleName() + " from JSON", e);
+        }
+    }
+
+    /**
+     * A value as it would come back from a JSON round trip, i.e. maps, lists, strings, numbers and booleans
+     */
+    public Object toJsonValue(Object value) {
+        return objectMapper.convertValue(value, Object.class);
+    }
+}
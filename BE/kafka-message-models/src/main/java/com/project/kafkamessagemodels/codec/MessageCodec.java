@@ -0,0 +1,17 @@
+package com.project.kafkamessagemodels.codec;
+
+/**
+ * Wire format of saga messages, selected per service with the kafka.message-codec property
+ */
+public interface MessageCodec {
+
+    // Jackson JSON with type info headers, what every service has used so far
+    String JSON = "json";
+
+    // Schema-tagged binary format, see BinaryMessageCodec
+    String BINARY = "binary";
+
+    byte[] encode(Object message);
+
+    <T> T decode(byte[] data, Class<T> type);
+}
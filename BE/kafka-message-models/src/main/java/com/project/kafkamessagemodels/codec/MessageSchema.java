@@ -0,0 +1,49 @@
+package com.project.kafkamessagemodels.codec;
+
+import com.project.kafkamessagemodels.model.BaseMessage;
+import lombok.Getter;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One registered version of a message layout. The ID is written in front of every encoded message,
+ * the symbols are the strings written as an index instead of their characters.
+ */
+@Getter
+public final class MessageSchema {
+    private final int id;
+    private final Class<? extends BaseMessage> messageType;
+    private final int version;
+    private final String[] symbols;
+    private final Map<String, Integer> symbolIndex;
+
+    MessageSchema(int id, Class<? extends BaseMessage> messageType, int version, List<String> symbols) {
+        this.id = id;
+        this.messageType = messageType;
+        this.version = version;
+        this.symbols = symbols.toArray(new String[0]);
+        this.symbolIndex = new HashMap<>(symbols.size() * 2);
+        for (int i = 0; i < this.symbols.length; i++) {
+            if (symbolIndex.putIfAbsent(this.symbols[i], i) != null) {
+                throw new IllegalArgumentException("Duplicate symbol " + this.symbols[i] + " in schema " + id);
+            }
+        }
+    }
+
+    /**
+     * Index of a symbol, -1 if the string has to be written out
+     */
+    int indexOf(String value) {
+        Integer index = symbolIndex.get(value);
+        return index != null ? index : -1;
+    }
+
+    String symbol(int index) {
+        if (index >= symbols.length) {
+            throw new IllegalArgumentException("Symbol " + index + " is not defined in schema " + id);
+        }
+        return symbols[index];
+    }
+}
@@ -0,0 +1,80 @@
+package com.project.kafkamessagemodels.codec;
+
+import com.project.kafkamessagemodels.model.BaseMessage;
+import com.project.kafkamessagemodels.model.CommandMessage;
+import com.project.kafkamessagemodels.model.EventMessage;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Schemas known to this build, a local stand-in for a schema registry.
+ * Schema IDs are permanent: a changed layout or symbol list is registered under a new ID, and old IDs stay
+ * registered so messages written by services that have not been upgraded yet can still be read.
+ */
+public final class MessageSchemaRegistry {
+
+    private static final MessageSchemaRegistry LOCAL = new MessageSchemaRegistry()
+            .register(1, CommandMessage.class, 1, "message-schemas/symbols-v1.txt")
+            .register(2, EventMessage.class, 1, "message-schemas/symbols-v1.txt")
+            // Version 2 adds the hop trail, same symbols
+            .register(3, CommandMessage.class, 2, "message-schemas/symbols-v1.txt")
+            .register(4, EventMessage.class, 2, "message-schemas/symbols-v1.txt");
+
+    private final Map<Integer, MessageSchema> byId = new HashMap<>();
+    // Schema new messages of a type are written with
+    private final Map<Class<?>, MessageSchema> latest = new HashMap<>();
+
+    public static MessageSchemaRegistry local() {
+        return LOCAL;
+    }
+
+    MessageSchemaRegistry register(int id, Class<? extends BaseMessage> messageType, int version, String symbolsResource) {
+        MessageSchema schema = new MessageSchema(id, messageType, version, readSymbols(symbolsResource));
+        if (byId.putIfAbsent(id, schema) != null) {
+            throw new IllegalArgumentException("Schema " + id + " is already registered");
+        }
+        latest.merge(messageType, schema, (current, added) -> added.getVersion() > current.getVersion() ? added : current);
+        return this;
+    }
+
+    public MessageSchema byId(int id) {
+        MessageSchema schema = byId.get(id);
+        if (schema == null) {
+            throw new IllegalArgumentException("Unknown message schema " + id);
+        }
+        return schema;
+    }
+
+    /**
+     * Schema to write a message of the given type with, null if the type has none
+     */
+    public MessageSchema latest(Class<?> messageType) {
+        return latest.get(messageType);
+    }
+
+    public Collection<MessageSchema> all() {
+        return Collections.unmodifiableCollection(byId.values());
+    }
+
+    private static List<String> readSymbols(String resource) {
+        InputStream in = MessageSchemaRegistry.class.getClassLoader().getResourceAsStream(resource);
+        if (in == null) {
+            throw new IllegalStateException("Missing schema resource " + resource);
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            return reader.lines()
+                    .map(String::trim)
+                    .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read schema resource " + resource, e);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.project.kafkamessagemodels.dedupe;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Claims held in memory, the most recent ones up to a capacity.
+ * For participants without a store of their own: repeats are only caught while the same instance keeps
+ * the partition and has not restarted.
+ */
+public class InMemoryProcessedCommandStore implements ProcessedCommandStore {
+
+    private final Map<String, Boolean> claimed;
+
+    public InMemoryProcessedCommandStore(int capacity) {
+        this.claimed = new LinkedHashMap<>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    @Override
+    public synchronized boolean claim(String messageId) {
+        return claimed.putIfAbsent(messageId, Boolean.TRUE) == null;
+    }
+
+    @Override
+    public synchronized void release(String messageId) {
+        claimed.remove(messageId);
+    }
+}
@@ -0,0 +1,38 @@
+package com.project.kafkamessagemodels.dedupe;
+
+import com.project.kafkamessagemodels.model.CommandMessage;
+
+/**
+ * Commands a participant has taken on, by messageId, so a command delivered again is not applied twice.
+ * The orchestrator publishes commands at least once: a command whose broker acknowledgement arrived but
+ * whose outbox entry was not cleared goes out again with the same messageId. A participant claims each command
+ * before handling it and skips commands it cannot claim; a failed handling releases its claim so the retry
+ * topics, the error handler or a dead letter replay run it again.
+ * A command claimed by a handling that never finished (the service died) is not run again. Its saga step
+ * times out and the orchestrator retries it with a new command.
+ */
+public interface ProcessedCommandStore {
+
+    /**
+     * Take on a command, false if it was taken on before
+     */
+    boolean claim(String messageId);
+
+    /**
+     * Forget a command whose handling failed, so its next delivery runs it
+     */
+    void release(String messageId);
+
+    /**
+     * Take on a command, commands without a messageId are always taken on
+     */
+    default boolean claim(CommandMessage command) {
+        return command.getMessageId() == null || claim(command.getMessageId());
+    }
+
+    default void release(CommandMessage command) {
+        if (command.getMessageId() != null) {
+            release(command.getMessageId());
+        }
+    }
+}
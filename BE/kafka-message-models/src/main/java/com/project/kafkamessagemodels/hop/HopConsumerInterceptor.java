@@ -0,0 +1,64 @@
+package com.project.kafkamessagemodels.hop;
+
+import com.project.kafkamessagemodels.model.BaseMessage;
+import com.project.kafkamessagemodels.model.CommandMessage;
+import com.project.kafkamessagemodels.model.Hop;
+import org.apache.kafka.clients.consumer.ConsumerInterceptor;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Marks the latest hop of every polled saga message as dequeued and remembers the trails of polled commands,
+ * for the event answering them to carry on
+ */
+public class HopConsumerInterceptor implements ConsumerInterceptor<Object, Object> {
+
+    private String service;
+    private HopMetrics metrics;
+
+    @Override
+    public void configure(Map<String, ?> configs) {
+        metrics = (HopMetrics) configs.get(HopInterceptors.METRICS_CONFIG);
+        service = metrics != null ? metrics.getService() : (String) configs.get(HopInterceptors.SERVICE_CONFIG);
+    }
+
+    @Override
+    public ConsumerRecords<Object, Object> onConsume(ConsumerRecords<Object, Object> records) {
+        long now = System.currentTimeMillis();
+        for (ConsumerRecord<Object, Object> record : records) {
+            if (!(record.value() instanceof BaseMessage)) {
+                continue;
+            }
+            BaseMessage message = (BaseMessage) record.value();
+            List<Hop> hops = message.getHops();
+            if (hops == null || hops.isEmpty()) {
+                // Sent by a service without the hop interceptors
+                continue;
+            }
+            Hop hop = hops.get(hops.size() - 1);
+            if (hop.getDequeuedAt() == null) {
+                hop.setDequeuedAt(now);
+                if (metrics != null && hop.getEnqueuedAt() != null) {
+                    metrics.recordTransit(message.getType(), now - hop.getEnqueuedAt());
+                }
+            }
+            if (message instanceof CommandMessage) {
+                HopTrails.remember(service, message);
+            }
+        }
+        return records;
+    }
+
+    @Override
+    public void onCommit(Map<TopicPartition, OffsetAndMetadata> offsets) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
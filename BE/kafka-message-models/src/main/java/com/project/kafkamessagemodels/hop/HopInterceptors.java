@@ -0,0 +1,38 @@
+package com.project.kafkamessagemodels.hop;
+
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.producer.ProducerConfig;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Client properties installing the hop interceptors, added to the producer and consumer factories of a service
+ */
+public final class HopInterceptors {
+
+    // Name the service signs its hops with, taken from the metrics when they are given
+    public static final String SERVICE_CONFIG = "saga.hops.service";
+
+    // HopMetrics instance the interceptors record into
+    public static final String METRICS_CONFIG = "saga.hops.metrics";
+
+    private HopInterceptors() {
+    }
+
+    public static Map<String, Object> producerProps(HopMetrics metrics) {
+        return props(ProducerConfig.INTERCEPTOR_CLASSES_CONFIG, HopProducerInterceptor.class.getName(), metrics);
+    }
+
+    public static Map<String, Object> consumerProps(HopMetrics metrics) {
+        return props(ConsumerConfig.INTERCEPTOR_CLASSES_CONFIG, HopConsumerInterceptor.class.getName(), metrics);
+    }
+
+    private static Map<String, Object> props(String key, String interceptor, HopMetrics metrics) {
+        Map<String, Object> props = new HashMap<>();
+        props.put(key, interceptor);
+        props.put(SERVICE_CONFIG, metrics.getService());
+        props.put(METRICS_CONFIG, metrics);
+        return props;
+    }
+}
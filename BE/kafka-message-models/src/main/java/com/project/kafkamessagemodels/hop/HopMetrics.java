@@ -0,0 +1,53 @@
+package com.project.kafkamessagemodels.hop;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Histograms of the hops a service sees, per message type:
+ * saga.hop.transit from the sender handing a message to Kafka until this service polled it,
+ * saga.hop.handling from the poll until this service's handler was done with it
+ */
+public class HopMetrics {
+
+    private final MeterRegistry registry;
+    private final String service;
+    private final Map<String, Timer> transit = new ConcurrentHashMap<>();
+    private final Map<String, Timer> handling = new ConcurrentHashMap<>();
+
+    public HopMetrics(MeterRegistry registry, String service) {
+        this.registry = registry;
+        this.service = service;
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    public void recordTransit(String messageType, long millis) {
+        record(transit, "saga.hop.transit", "Kafka time of a saga message, sent until polled", messageType, millis);
+    }
+
+    public void recordHandling(String messageType, long millis) {
+        record(handling, "saga.hop.handling", "Handling time of a saga message, polled until handled", messageType, millis);
+    }
+
+    private void record(Map<String, Timer> timers, String name, String description, String messageType, long millis) {
+        if (millis < 0) {
+            // Clocks of the two services disagree, a negative time would only skew the histogram
+            return;
+        }
+        String type = messageType != null ? messageType : "UNKNOWN";
+        timers.computeIfAbsent(type, t -> Timer.builder(name)
+                        .description(description)
+                        .tag("service", service)
+                        .tag("type", t)
+                        .publishPercentileHistogram()
+                        .register(registry))
+                .record(millis, TimeUnit.MILLISECONDS);
+    }
+}
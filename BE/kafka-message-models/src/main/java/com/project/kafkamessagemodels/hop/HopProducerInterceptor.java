@@ -0,0 +1,69 @@
+package com.project.kafkamessagemodels.hop;
+
+import com.project.kafkamessagemodels.model.BaseMessage;
+import com.project.kafkamessagemodels.model.EventMessage;
+import com.project.kafkamessagemodels.model.Hop;
+import org.apache.kafka.clients.producer.ProducerInterceptor;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Appends a hop to every saga message sent. An event answering a command this service polled takes over
+ * the command's trail, with the command's hop marked handled, so the receiver sees both legs of the step.
+ */
+public class HopProducerInterceptor implements ProducerInterceptor<Object, Object> {
+
+    // Enough for a command and its event, a message sent on again keeps its latest hops
+    static final int MAX_HOPS = 8;
+
+    private String service;
+    private HopMetrics metrics;
+
+    @Override
+    public void configure(Map<String, ?> configs) {
+        metrics = (HopMetrics) configs.get(HopInterceptors.METRICS_CONFIG);
+        service = metrics != null ? metrics.getService() : (String) configs.get(HopInterceptors.SERVICE_CONFIG);
+    }
+
+    @Override
+    public ProducerRecord<Object, Object> onSend(ProducerRecord<Object, Object> record) {
+        if (record.value() instanceof BaseMessage) {
+            stamp((BaseMessage) record.value(), System.currentTimeMillis());
+        }
+        return record;
+    }
+
+    private void stamp(BaseMessage message, long now) {
+        List<Hop> trail = new ArrayList<>(4);
+        if (message.getHops() != null) {
+            trail.addAll(message.getHops());
+        } else if (message instanceof EventMessage) {
+            HopTrails.Pending answered = HopTrails.take(service, message);
+            if (answered != null && answered.hops != null && !answered.hops.isEmpty()) {
+                Hop command = answered.hops.get(answered.hops.size() - 1);
+                command.setHandledAt(now);
+                if (metrics != null && command.getDequeuedAt() != null) {
+                    metrics.recordHandling(answered.commandType, now - command.getDequeuedAt());
+                }
+                trail.addAll(answered.hops);
+            }
+        }
+        trail.add(Hop.sentBy(service, now));
+        if (trail.size() > MAX_HOPS) {
+            trail = new ArrayList<>(trail.subList(trail.size() - MAX_HOPS, trail.size()));
+        }
+        message.setHops(trail);
+    }
+
+    @Override
+    public void onAcknowledgement(RecordMetadata metadata, Exception exception) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,59 @@
+package com.project.kafkamessagemodels.hop;
+
+import com.project.kafkamessagemodels.model.BaseMessage;
+import com.project.kafkamessagemodels.model.Hop;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Trails of the commands a service has polled, until its handler sends the event answering them.
+ * The event carries the saga ID and step of its command, so that is what a trail is found by.
+ * Shared by the interceptors of all clients in the JVM; commands that are never answered fall out
+ * once the oldest entries exceed the capacity.
+ */
+final class HopTrails {
+
+    private static final int CAPACITY = 10_000;
+
+    private static final Map<String, Pending> PENDING = new LinkedHashMap<>(1024, 0.75f) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Pending> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    private HopTrails() {
+    }
+
+    static final class Pending {
+        final String commandType;
+        final List<Hop> hops;
+
+        Pending(String commandType, List<Hop> hops) {
+            this.commandType = commandType;
+            this.hops = hops;
+        }
+    }
+
+    static void remember(String service, BaseMessage command) {
+        Pending pending = new Pending(command.getType(), command.getHops());
+        synchronized (PENDING) {
+            PENDING.put(key(service, command), pending);
+        }
+    }
+
+    /**
+     * Trail of the command an event answers, null if this service did not poll it
+     */
+    static Pending take(String service, BaseMessage event) {
+        synchronized (PENDING) {
+            return PENDING.remove(key(service, event));
+        }
+    }
+
+    private static String key(String service, BaseMessage message) {
+        return service + '|' + message.getSagaId() + '|' + message.getStepId();
+    }
+}
@@ -6,6 +6,7 @@ import lombok.NoArgsConstructor;
 import lombok.experimental.SuperBuilder;
 
 import java.time.Instant;
+import java.util.List;
 import java.util.UUID;
 
 @Data
@@ -20,6 +21,8 @@ public abstract class BaseMessage {
     private Instant timestamp;
     private String sourceService;
     private Integer version;
+    // Kafka trips of this message and of the command it answers, oldest first
+    private List<Hop> hops;
 
     /**
      * Initialize a message with defaults
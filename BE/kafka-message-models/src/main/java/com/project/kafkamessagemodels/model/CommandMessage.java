@@ -1,9 +1,13 @@
 package com.project.kafkamessagemodels.model;
 
+import com.project.kafkamessagemodels.model.payload.Payloads;
+import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import lombok.NoArgsConstructor;
+import lombok.ToString;
 import lombok.experimental.SuperBuilder;
 
 import java.util.HashMap;
@@ -20,6 +24,16 @@ public class CommandMessage extends BaseMessage {
     private Boolean isCompensation = false;
     private String targetService;
 
+    @Getter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private final transient Payloads.Binding binding = new Payloads.Binding();
+
+    public void setPayload(Map<String, Object> payload) {
+        this.payload = payload;
+        binding.clear();
+    }
+
     /**
      * Helper method to set payload value
      */
@@ -28,6 +42,7 @@ public class CommandMessage extends BaseMessage {
             payload = new HashMap<>();
         }
         payload.put(key, value);
+        binding.clear();
     }
 
     /**
@@ -41,6 +56,14 @@ public class CommandMessage extends BaseMessage {
         return (T) payload.get(key);
     }
 
+    /**
+     * Bind the whole payload to one of the typed payload classes, see {@link Payloads}.
+     * Bound once per message and type, repeated calls return the same object.
+     */
+    public <T> T getPayloadAs(Class<T> type) {
+        return binding.bind(payload, type);
+    }
+
     /**
      * Helper method to set metadata value
      */
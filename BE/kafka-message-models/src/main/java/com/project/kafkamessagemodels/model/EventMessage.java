@@ -1,9 +1,15 @@
 package com.project.kafkamessagemodels.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.project.kafkamessagemodels.model.enums.EventType;
+import com.project.kafkamessagemodels.model.payload.Payloads;
+import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import lombok.NoArgsConstructor;
+import lombok.ToString;
 import lombok.experimental.SuperBuilder;
 
 import java.util.HashMap;
@@ -20,6 +26,40 @@ public class EventMessage extends BaseMessage {
     private String errorCode;
     private String errorMessage;
 
+    // Values derived from the fields above, kept out of the builder, equality and serialization
+    @Getter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private final transient Derived derived = new Derived();
+    @Getter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private final transient Payloads.Binding binding = new Payloads.Binding();
+
+    public void setPayload(Map<String, Object> payload) {
+        this.payload = payload;
+        binding.clear();
+    }
+
+    @Override
+    public void setType(String type) {
+        super.setType(type);
+        derived.resolve(type);
+    }
+
+    /**
+     * EventType of this event, resolved once when the type is set, null if the type is outside the enum
+     * such as a saga signal
+     */
+    @JsonIgnore
+    public EventType getEventType() {
+        String type = getType();
+        if (type != derived.eventTypeOf) {
+            derived.resolve(type);
+        }
+        return derived.eventType;
+    }
+
     /**
      * Helper method to set payload value
      */
@@ -28,6 +68,7 @@ public class EventMessage extends BaseMessage {
             payload = new HashMap<>();
         }
         payload.put(key, value);
+        binding.clear();
     }
 
     /**
@@ -41,6 +82,14 @@ public class EventMessage extends BaseMessage {
         return (T) payload.get(key);
     }
 
+    /**
+     * Bind the whole payload to one of the typed payload classes, see {@link Payloads}.
+     * Bound once per message and type, repeated calls return the same object.
+     */
+    public <T> T getPayloadAs(Class<T> type) {
+        return binding.bind(payload, type);
+    }
+
     /**
      * Helper method to create a success event
      */
@@ -69,4 +118,15 @@ public class EventMessage extends BaseMessage {
                 .errorMessage(errorMessage)
                 .build();
     }
-}
\ No newline at end of file
+
+    private static final class Derived {
+        // Type name the event type was resolved from
+        private String eventTypeOf;
+        private EventType eventType;
+
+        private void resolve(String type) {
+            eventType = EventType.fromName(type);
+            eventTypeOf = type;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.project.kafkamessagemodels.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * One trip of a saga message through Kafka, stamped by the hop interceptors in epoch milliseconds:
+ * sent by the service, taken off the topic by the consumer, and done with by the consumer's handler
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class Hop {
+    private String service;
+    private Long enqueuedAt;
+    private Long dequeuedAt;
+    private Long handledAt;
+
+    public static Hop sentBy(String service, long now) {
+        return new Hop(service, now, null, null);
+    }
+}
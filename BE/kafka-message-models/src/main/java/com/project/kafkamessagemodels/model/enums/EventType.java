@@ -2,6 +2,9 @@ package com.project.kafkamessagemodels.model.enums;
 
 import lombok.Getter;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Enum defining all event types used in the system
  */
@@ -112,6 +115,21 @@ public enum EventType {
         return this.name();
     }
 
+    private static final Map<String, EventType> BY_NAME = new HashMap<>();
+
+    static {
+        for (EventType eventType : values()) {
+            BY_NAME.put(eventType.name(), eventType);
+        }
+    }
+
+    /**
+     * Event type of a name, null for names outside this enum such as saga signals
+     */
+    public static EventType fromName(String name) {
+        return name != null ? BY_NAME.get(name) : null;
+    }
+
     /**
      * Get the associated command type for this event (if applicable)
      */
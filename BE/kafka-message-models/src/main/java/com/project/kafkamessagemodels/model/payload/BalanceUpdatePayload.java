@@ -0,0 +1,35 @@
+package com.project.kafkamessagemodels.model.payload;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+/**
+ * Payload of ACCOUNT_DEPOSIT_UPDATE_BALANCE, ACCOUNT_WITHDRAWAL_UPDATE_BALANCE and their
+ * REVERSE_BALANCE_UPDATE compensations, which also carry a reason
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class BalanceUpdatePayload {
+    private String accountId;
+    private BigDecimal amount;
+    private String transactionId;
+    private String reason;
+
+    public static BalanceUpdatePayload from(Map<String, Object> payload) {
+        return BalanceUpdatePayload.builder()
+                .accountId(Payloads.asString(payload, "accountId"))
+                .amount(Payloads.asDecimal(payload, "amount"))
+                .transactionId(Payloads.asString(payload, "transactionId"))
+                .reason(Payloads.asString(payload, "reason"))
+                .build();
+    }
+}
@@ -0,0 +1,40 @@
+package com.project.kafkamessagemodels.model.payload;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+/**
+ * Payload of the broker events ORDER_EXECUTED_BY_BROKER and LIMIT_ORDER_QUEUED
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class BrokerExecutionPayload {
+    private String orderId;
+    private String brokerOrderId;
+    private Integer executedQuantity;
+    private BigDecimal executionPrice;
+    private BigDecimal currentPrice;
+    private String executedAt;
+    private String expiresAt;
+
+    public static BrokerExecutionPayload from(Map<String, Object> payload) {
+        return BrokerExecutionPayload.builder()
+                .orderId(Payloads.asString(payload, "orderId"))
+                .brokerOrderId(Payloads.asString(payload, "brokerOrderId"))
+                .executedQuantity(Payloads.asInteger(payload, "executedQuantity"))
+                .executionPrice(Payloads.asDecimal(payload, "executionPrice"))
+                .currentPrice(Payloads.asDecimal(payload, "currentPrice"))
+                .executedAt(Payloads.asString(payload, "executedAt"))
+                .expiresAt(Payloads.asString(payload, "expiresAt"))
+                .build();
+    }
+}
@@ -0,0 +1,42 @@
+package com.project.kafkamessagemodels.model.payload;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+/**
+ * Payload of BROKER_EXECUTE_ORDER and BROKER_CANCEL_ORDER
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class BrokerOrderPayload {
+    private String orderId;
+    private String brokerOrderId;
+    private String stockSymbol;
+    private String orderType;
+    private String side;
+    private Integer quantity;
+    private BigDecimal limitPrice;
+    private String timeInForce;
+
+    public static BrokerOrderPayload from(Map<String, Object> payload) {
+        return BrokerOrderPayload.builder()
+                .orderId(Payloads.asString(payload, "orderId"))
+                .brokerOrderId(Payloads.asString(payload, "brokerOrderId"))
+                .stockSymbol(Payloads.asString(payload, "stockSymbol"))
+                .orderType(Payloads.asString(payload, "orderType"))
+                .side(Payloads.asString(payload, "side"))
+                .quantity(Payloads.asInteger(payload, "quantity"))
+                .limitPrice(Payloads.asDecimal(payload, "limitPrice"))
+                .timeInForce(Payloads.asString(payload, "timeInForce"))
+                .build();
+    }
+}
@@ -0,0 +1,30 @@
+package com.project.kafkamessagemodels.model.payload;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+/**
+ * Payload of ACCOUNT_CHECK_BALANCE
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class CheckBalancePayload {
+    private String accountId;
+    private BigDecimal amount;
+
+    public static CheckBalancePayload from(Map<String, Object> payload) {
+        return CheckBalancePayload.builder()
+                .accountId(Payloads.asString(payload, "accountId"))
+                .amount(Payloads.asDecimal(payload, "amount"))
+                .build();
+    }
+}
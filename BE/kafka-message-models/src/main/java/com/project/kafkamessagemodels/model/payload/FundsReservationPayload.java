@@ -0,0 +1,36 @@
+package com.project.kafkamessagemodels.model.payload;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+/**
+ * Payload of ACCOUNT_RESERVE_FUNDS and ACCOUNT_RELEASE_FUNDS
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class FundsReservationPayload {
+    private String accountId;
+    private String orderId;
+    private String stockSymbol;
+    private BigDecimal amount;
+    private String reservationId;
+
+    public static FundsReservationPayload from(Map<String, Object> payload) {
+        return FundsReservationPayload.builder()
+                .accountId(Payloads.asString(payload, "accountId"))
+                .orderId(Payloads.asString(payload, "orderId"))
+                .stockSymbol(Payloads.asString(payload, "stockSymbol"))
+                .amount(Payloads.asDecimal(payload, "amount"))
+                .reservationId(Payloads.asString(payload, "reservationId"))
+                .build();
+    }
+}
@@ -0,0 +1,32 @@
+package com.project.kafkamessagemodels.model.payload;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+/**
+ * Payload of MARKET_VALIDATE_STOCK and MARKET_GET_PRICE, and of the PRICE_PROVIDED reply which adds the price
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class MarketPricePayload {
+    private String stockSymbol;
+    private BigDecimal currentPrice;
+    private String timestamp;
+
+    public static MarketPricePayload from(Map<String, Object> payload) {
+        return MarketPricePayload.builder()
+                .stockSymbol(Payloads.asString(payload, "stockSymbol"))
+                .currentPrice(Payloads.asDecimal(payload, "currentPrice"))
+                .timestamp(Payloads.asString(payload, "timestamp"))
+                .build();
+    }
+}
@@ -0,0 +1,58 @@
+package com.project.kafkamessagemodels.model.payload;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+/**
+ * Payload of ORDER_CREATE, ORDER_UPDATE_VALIDATED, ORDER_UPDATE_EXECUTED, ORDER_UPDATE_COMPLETED and
+ * ORDER_CANCEL for both order sagas. Validation carries the price funds were reserved at, execution the
+ * broker fill
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class OrderPayload {
+    private String orderId;
+    private String userId;
+    private String accountId;
+    private String stockSymbol;
+    private String orderType;
+    private String side;
+    private Integer quantity;
+    private BigDecimal limitPrice;
+    private String timeInForce;
+    private String reservationId;
+    private BigDecimal price;
+    private BigDecimal executionPrice;
+    private Integer executedQuantity;
+    private String brokerOrderId;
+    private String reason;
+
+    public static OrderPayload from(Map<String, Object> payload) {
+        return OrderPayload.builder()
+                .orderId(Payloads.asString(payload, "orderId"))
+                .userId(Payloads.asString(payload, "userId"))
+                .accountId(Payloads.asString(payload, "accountId"))
+                .stockSymbol(Payloads.asString(payload, "stockSymbol"))
+                .orderType(Payloads.asString(payload, "orderType"))
+                .side(Payloads.asString(payload, "side"))
+                .quantity(Payloads.asInteger(payload, "quantity"))
+                .limitPrice(Payloads.asDecimal(payload, "limitPrice"))
+                .timeInForce(Payloads.asString(payload, "timeInForce"))
+                .reservationId(Payloads.asString(payload, "reservationId"))
+                .price(Payloads.asDecimal(payload, "price"))
+                .executionPrice(Payloads.asDecimal(payload, "executionPrice"))
+                .executedQuantity(Payloads.asInteger(payload, "executedQuantity"))
+                .brokerOrderId(Payloads.asString(payload, "brokerOrderId"))
+                .reason(Payloads.asString(payload, "reason"))
+                .build();
+    }
+}
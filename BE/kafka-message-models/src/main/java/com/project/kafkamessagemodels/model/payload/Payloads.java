@@ -0,0 +1,124 @@
+package com.project.kafkamessagemodels.model.payload;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Binds the payload map of a message to one of the typed payload classes.
+ * Every payload class reads its own fields from the map (its static from method), so a binding is a handful of
+ * map lookups instead of a Jackson round trip. Numbers arrive as whatever the codec produced (Integer, Long,
+ * Double, BigDecimal or a String); the coercions below turn them into the declared field type, so handlers no
+ * longer convert them one by one.
+ */
+public final class Payloads {
+
+    private static final Map<Class<?>, Function<Map<String, Object>, ?>> BINDERS = Map.ofEntries(
+            Map.entry(BalanceUpdatePayload.class, BalanceUpdatePayload::from),
+            Map.entry(BrokerExecutionPayload.class, BrokerExecutionPayload::from),
+            Map.entry(BrokerOrderPayload.class, BrokerOrderPayload::from),
+            Map.entry(CheckBalancePayload.class, CheckBalancePayload::from),
+            Map.entry(FundsReservationPayload.class, FundsReservationPayload::from),
+            Map.entry(MarketPricePayload.class, MarketPricePayload::from),
+            Map.entry(OrderPayload.class, OrderPayload::from),
+            Map.entry(PaymentPayload.class, PaymentPayload::from),
+            Map.entry(PendingTransactionPayload.class, PendingTransactionPayload::from),
+            Map.entry(PositionPayload.class, PositionPayload::from),
+            Map.entry(PriceUpdatePayload.class, PriceUpdatePayload::from),
+            Map.entry(SettlementPayload.class, SettlementPayload::from),
+            Map.entry(SharesPayload.class, SharesPayload::from));
+
+    private Payloads() {
+    }
+
+    public static <T> T bind(Map<String, Object> payload, Class<T> type) {
+        Function<Map<String, Object>, ?> binder = BINDERS.get(type);
+        if (binder == null) {
+            throw new IllegalArgumentException("No payload binder for " + type.getName());
+        }
+        return type.cast(binder.apply(payload != null ? payload : Collections.emptyMap()));
+    }
+
+    static String asString(Map<String, Object> payload, String key) {
+        Object value = payload.get(key);
+        return value != null ? value.toString() : null;
+    }
+
+    static BigDecimal asDecimal(Map<String, Object> payload, String key) {
+        Object value = payload.get(key);
+        if (value == null || value instanceof BigDecimal) {
+            return (BigDecimal) value;
+        }
+        if (value instanceof Double || value instanceof Float) {
+            return BigDecimal.valueOf(((Number) value).doubleValue());
+        }
+        if (value instanceof BigInteger) {
+            return new BigDecimal((BigInteger) value);
+        }
+        if (value instanceof Number) {
+            return BigDecimal.valueOf(((Number) value).longValue());
+        }
+        if (value instanceof String) {
+            return new BigDecimal((String) value);
+        }
+        throw new IllegalArgumentException("Payload value " + key + " is not a number: " + value);
+    }
+
+    static Integer asInteger(Map<String, Object> payload, String key) {
+        Object value = payload.get(key);
+        if (value == null || value instanceof Integer) {
+            return (Integer) value;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        if (value instanceof String) {
+            return Integer.valueOf((String) value);
+        }
+        throw new IllegalArgumentException("Payload value " + key + " is not a number: " + value);
+    }
+
+    static Long asLong(Map<String, Object> payload, String key) {
+        Object value = payload.get(key);
+        if (value == null || value instanceof Long) {
+            return (Long) value;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof String) {
+            return Long.valueOf((String) value);
+        }
+        throw new IllegalArgumentException("Payload value " + key + " is not a number: " + value);
+    }
+
+    /**
+     * Last binding of a message's payload, so handlers and the saga services reading the same payload
+     * convert it once per message. Changes made through the message's payload setters drop it, the
+     * bound object is shared and read-only by convention.
+     */
+    public static final class Binding {
+        private Map<String, Object> payload;
+        private Class<?> type;
+        private Object value;
+
+        public <T> T bind(Map<String, Object> payload, Class<T> type) {
+            if (payload == null || payload != this.payload || type != this.type) {
+                T bound = Payloads.bind(payload, type);
+                this.payload = payload;
+                this.type = type;
+                this.value = bound;
+                return bound;
+            }
+            return type.cast(value);
+        }
+
+        public void clear() {
+            payload = null;
+            type = null;
+            value = null;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.project.kafkamessagemodels.model.payload;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+/**
+ * Payload of PAYMENT_PROCESS_DEPOSIT, PAYMENT_PROCESS_WITHDRAWAL and their PAYMENT_REVERSE_* compensations,
+ * which carry the reference of the payment to reverse and a reason
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class PaymentPayload {
+    private String accountId;
+    private String transactionId;
+    private String paymentMethodId;
+    private BigDecimal amount;
+    private String currency;
+    private String paymentReference;
+    private String reason;
+
+    public static PaymentPayload from(Map<String, Object> payload) {
+        return PaymentPayload.builder()
+                .accountId(Payloads.asString(payload, "accountId"))
+                .transactionId(Payloads.asString(payload, "transactionId"))
+                .paymentMethodId(Payloads.asString(payload, "paymentMethodId"))
+                .amount(Payloads.asDecimal(payload, "amount"))
+                .currency(Payloads.asString(payload, "currency"))
+                .paymentReference(Payloads.asString(payload, "paymentReference"))
+                .reason(Payloads.asString(payload, "reason"))
+                .build();
+    }
+}
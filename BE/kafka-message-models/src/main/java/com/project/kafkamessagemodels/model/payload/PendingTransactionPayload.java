@@ -0,0 +1,36 @@
+package com.project.kafkamessagemodels.model.payload;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+/**
+ * Payload of ACCOUNT_CREATE_DEPOSIT_PENDING_TRANSACTION and ACCOUNT_CREATE_WITHDRAWAL_PENDING_TRANSACTION
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class PendingTransactionPayload {
+    private String accountId;
+    private BigDecimal amount;
+    private String currency;
+    private String description;
+    private String paymentMethodId;
+
+    public static PendingTransactionPayload from(Map<String, Object> payload) {
+        return PendingTransactionPayload.builder()
+                .accountId(Payloads.asString(payload, "accountId"))
+                .amount(Payloads.asDecimal(payload, "amount"))
+                .currency(Payloads.asString(payload, "currency"))
+                .description(Payloads.asString(payload, "description"))
+                .paymentMethodId(Payloads.asString(payload, "paymentMethodId"))
+                .build();
+    }
+}
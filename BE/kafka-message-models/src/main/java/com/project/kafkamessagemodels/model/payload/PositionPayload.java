@@ -0,0 +1,40 @@
+package com.project.kafkamessagemodels.model.payload;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+/**
+ * Payload of the PORTFOLIO_* commands
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class PositionPayload {
+    private String userId;
+    private String accountId;
+    private String stockSymbol;
+    private Integer quantity;
+    private BigDecimal price;
+    private String orderId;
+    private String reservationId;
+
+    public static PositionPayload from(Map<String, Object> payload) {
+        return PositionPayload.builder()
+                .userId(Payloads.asString(payload, "userId"))
+                .accountId(Payloads.asString(payload, "accountId"))
+                .stockSymbol(Payloads.asString(payload, "stockSymbol"))
+                .quantity(Payloads.asInteger(payload, "quantity"))
+                .price(Payloads.asDecimal(payload, "price"))
+                .orderId(Payloads.asString(payload, "orderId"))
+                .reservationId(Payloads.asString(payload, "reservationId"))
+                .build();
+    }
+}
@@ -0,0 +1,48 @@
+package com.project.kafkamessagemodels.model.payload;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+/**
+ * Payload of the MARKET_PRICES_UPDATED ticks the market data service publishes
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class PriceUpdatePayload {
+    private String symbol;
+    private BigDecimal price;
+    private BigDecimal bidPrice;
+    private BigDecimal askPrice;
+    private Long volume;
+    private String timestamp;
+    private BigDecimal change;
+    private BigDecimal changePercent;
+    private BigDecimal dayChangePercent;
+    private BigDecimal weekChangePercent;
+    private BigDecimal monthChangePercent;
+
+    public static PriceUpdatePayload from(Map<String, Object> payload) {
+        return PriceUpdatePayload.builder()
+                .symbol(Payloads.asString(payload, "symbol"))
+                .price(Payloads.asDecimal(payload, "price"))
+                .bidPrice(Payloads.asDecimal(payload, "bidPrice"))
+                .askPrice(Payloads.asDecimal(payload, "askPrice"))
+                .volume(Payloads.asLong(payload, "volume"))
+                .timestamp(Payloads.asString(payload, "timestamp"))
+                .change(Payloads.asDecimal(payload, "change"))
+                .changePercent(Payloads.asDecimal(payload, "changePercent"))
+                .dayChangePercent(Payloads.asDecimal(payload, "dayChangePercent"))
+                .weekChangePercent(Payloads.asDecimal(payload, "weekChangePercent"))
+                .monthChangePercent(Payloads.asDecimal(payload, "monthChangePercent"))
+                .build();
+    }
+}
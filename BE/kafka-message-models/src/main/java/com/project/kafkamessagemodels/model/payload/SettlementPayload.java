@@ -0,0 +1,39 @@
+package com.project.kafkamessagemodels.model.payload;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+/**
+ * Payload of ACCOUNT_SETTLE_TRANSACTION and ACCOUNT_REVERSE_SETTLEMENT for both order sagas.
+ * Buy settlements carry the reservation and a finalAmount, sell settlements the credited amount
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class SettlementPayload {
+    private String accountId;
+    private String orderId;
+    private String reservationId;
+    private String transactionType;
+    private BigDecimal amount;
+    private BigDecimal finalAmount;
+
+    public static SettlementPayload from(Map<String, Object> payload) {
+        return SettlementPayload.builder()
+                .accountId(Payloads.asString(payload, "accountId"))
+                .orderId(Payloads.asString(payload, "orderId"))
+                .reservationId(Payloads.asString(payload, "reservationId"))
+                .transactionType(Payloads.asString(payload, "transactionType"))
+                .amount(Payloads.asDecimal(payload, "amount"))
+                .finalAmount(Payloads.asDecimal(payload, "finalAmount"))
+                .build();
+    }
+}
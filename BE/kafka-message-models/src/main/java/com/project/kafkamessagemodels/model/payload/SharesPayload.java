@@ -0,0 +1,44 @@
+package com.project.kafkamessagemodels.model.payload;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+/**
+ * Payload of the portfolio replies SHARES_VALIDATED and SHARES_RESERVED of the sell saga
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class SharesPayload {
+    private String userId;
+    private String accountId;
+    private String stockSymbol;
+    private String orderId;
+    private String reservationId;
+    private Integer requestedQuantity;
+    private Integer availableQuantity;
+    private Integer reservedQuantity;
+    private BigDecimal currentPrice;
+
+    public static SharesPayload from(Map<String, Object> payload) {
+        return SharesPayload.builder()
+                .userId(Payloads.asString(payload, "userId"))
+                .accountId(Payloads.asString(payload, "accountId"))
+                .stockSymbol(Payloads.asString(payload, "stockSymbol"))
+                .orderId(Payloads.asString(payload, "orderId"))
+                .reservationId(Payloads.asString(payload, "reservationId"))
+                .requestedQuantity(Payloads.asInteger(payload, "requestedQuantity"))
+                .availableQuantity(Payloads.asInteger(payload, "availableQuantity"))
+                .reservedQuantity(Payloads.asInteger(payload, "reservedQuantity"))
+                .currentPrice(Payloads.asDecimal(payload, "currentPrice"))
+                .build();
+    }
+}
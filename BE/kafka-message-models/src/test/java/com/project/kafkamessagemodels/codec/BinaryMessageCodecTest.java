@@ -0,0 +1,196 @@
+package com.project.kafkamessagemodels.codec;
+
+import com.project.kafkamessagemodels.model.CommandMessage;
+import com.project.kafkamessagemodels.model.EventMessage;
+import com.project.kafkamessagemodels.model.Hop;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.support.serializer.ErrorHandlingDeserializer;
+import org.springframework.kafka.support.serializer.SerializationUtils;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryMessageCodecTest {
+
+    private static final String TOPIC = "account.commands.order-buy";
+
+    private final BinaryMessageCodec codec = new BinaryMessageCodec();
+
+    @Test
+    void commandRoundTripsEveryField() {
+        CommandMessage command = command();
+
+        byte[] data = codec.encode(command);
+
+        assertTrue(BinaryMessageCodec.isBinary(data));
+        assertEquals(command, codec.decode(data, CommandMessage.class));
+    }
+
+    @Test
+    void eventRoundTripsEveryField() {
+        EventMessage event = event();
+
+        assertEquals(event, codec.decode(codec.encode(event), EventMessage.class));
+    }
+
+    @Test
+    void nullFieldsStayNull() {
+        CommandMessage command = new CommandMessage();
+        command.setType("ACCOUNT_RESERVE_FUNDS");
+        command.setPayload(null);
+        command.setMetadata(null);
+        command.setIsCompensation(null);
+
+        CommandMessage decoded = codec.decode(codec.encode(command), CommandMessage.class);
+
+        assertEquals(command, decoded);
+        assertNull(decoded.getMessageId());
+        assertNull(decoded.getTimestamp());
+        assertNull(decoded.getPayload());
+        assertNull(decoded.getHops());
+
+        EventMessage event = new EventMessage();
+        event.setPayload(null);
+        assertEquals(event, codec.decode(codec.encode(event), EventMessage.class));
+    }
+
+    @Test
+    void payloadValuesKeepTheirTypes() {
+        EventMessage event = event();
+        Map<String, Object> nested = new LinkedHashMap<>();
+        nested.put("price", new BigDecimal("187.4200"));
+        nested.put("fills", Arrays.asList(10, 15L, null, new BigDecimal("-0.5"),
+                Collections.singletonMap("venue", "XNAS")));
+        nested.put("note", null);
+        event.setPayloadValue("execution", nested);
+        event.setPayloadValue("huge", new BigDecimal("12345678901234567890.123456789"));
+        event.setPayloadValue("ratio", 0.25);
+        event.setPayloadValue("partial", 1.5f);
+
+        Map<String, Object> payload = codec.decode(codec.encode(event), EventMessage.class).getPayload();
+
+        assertEquals(event.getPayload(), payload);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> execution = (Map<String, Object>) payload.get("execution");
+        assertEquals(new BigDecimal("187.4200"), execution.get("price"));
+        assertEquals(4, ((BigDecimal) execution.get("price")).scale());
+        List<?> fills = (List<?>) execution.get("fills");
+        assertEquals(Integer.class, fills.get(0).getClass());
+        assertEquals(Long.class, fills.get(1).getClass());
+        assertNull(fills.get(2));
+        assertTrue(execution.containsKey("note"));
+        assertEquals(Float.class, payload.get("partial").getClass());
+    }
+
+    @Test
+    void timestampsKeepTheirNanosecondsAndPayloadInstantsTravelAsJsonDoes() {
+        Instant at = Instant.parse("2026-03-02T14:30:15.123456789Z");
+        EventMessage event = event();
+        event.setTimestamp(at);
+        event.setPayloadValue("executedAt", at);
+
+        EventMessage decoded = codec.decode(codec.encode(event), EventMessage.class);
+
+        assertEquals(at, decoded.getTimestamp());
+        assertEquals(new JsonMessageCodec().toJsonValue(at), decoded.getPayloadValue("executedAt"));
+    }
+
+    @Test
+    void jsonRecordsAreStillRead() {
+        EventMessage event = event();
+        event.setHops(null);
+
+        byte[] json = new JsonMessageCodec().encode(event);
+
+        assertFalse(BinaryMessageCodec.isBinary(json));
+        assertEquals(event.getSagaId(), codec.decode(json, EventMessage.class).getSagaId());
+    }
+
+    @Test
+    void aCommandIsNotReadAsAnEvent() {
+        byte[] data = codec.encode(command());
+
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(data, EventMessage.class));
+    }
+
+    @Test
+    void truncatedMessagesFailToDecode() {
+        byte[] data = codec.encode(command());
+
+        for (int length = 2; length < data.length; length++) {
+            byte[] truncated = Arrays.copyOf(data, length);
+            assertThrows(RuntimeException.class, () -> codec.decode(truncated, CommandMessage.class),
+                    "truncated to " + length);
+        }
+    }
+
+    @Test
+    void corruptRecordsReachTheListenerAsDeserializationFailures() {
+        byte[] truncated = Arrays.copyOf(codec.encode(command()), 20);
+        byte[] unknownSchema = {BinaryMessageCodec.MAGIC, 0x7F, 0x00};
+        byte[] garbage = "{not json".getBytes(StandardCharsets.UTF_8);
+
+        try (ErrorHandlingDeserializer<Object> deserializer = new ErrorHandlingDeserializer<>(deserializer())) {
+            for (byte[] data : new byte[][]{truncated, unknownSchema, garbage}) {
+                RecordHeaders headers = new RecordHeaders();
+
+                assertNull(deserializer.deserialize(TOPIC, headers, data));
+                assertNotNull(headers.lastHeader(SerializationUtils.VALUE_DESERIALIZER_EXCEPTION_HEADER));
+            }
+
+            RecordHeaders headers = new RecordHeaders();
+            assertEquals(command(), deserializer.deserialize(TOPIC, headers, codec.encode(command())));
+            assertNull(headers.lastHeader(SerializationUtils.VALUE_DESERIALIZER_EXCEPTION_HEADER));
+        }
+    }
+
+    private static BinaryMessageDeserializer deserializer() {
+        BinaryMessageDeserializer deserializer = new BinaryMessageDeserializer();
+        deserializer.configure(Map.of(BinaryMessageDeserializer.VALUE_DEFAULT_TYPE, CommandMessage.class), false);
+        return deserializer;
+    }
+
+    private static CommandMessage command() {
+        CommandMessage command = new CommandMessage();
+        command.setMessageId("6f1c2b4e-3a5d-4e7f-8a9b-0c1d2e3f4a5b");
+        command.setSagaId("saga-with-a-non-uuid-id");
+        command.setStepId(7);
+        command.setType("ACCOUNT_RESERVE_FUNDS");
+        command.setTimestamp(Instant.ofEpochSecond(1_772_000_000L, 5));
+        command.setSourceService("SAGA_ORCHESTRATOR");
+        command.setVersion(1);
+        command.setTargetService("ACCOUNT_SERVICE");
+        command.setIsCompensation(true);
+        command.setPayloadValue("accountId", "acc-1");
+        command.setPayloadValue("quantity", 25);
+        command.setPayloadValue("reservedAt", 1_772_000_000_123L);
+        command.setPayloadValue("amount", new BigDecimal("4685.50"));
+        command.setPayloadValue("limitOrder", false);
+        command.setPayloadValue("symbols", Arrays.asList("AAPL", "MSFT"));
+        command.setMetadataValue("retryCount", "2");
+        command.setHops(new ArrayList<>(List.of(new Hop("SAGA_ORCHESTRATOR", 1_772_000_000_000L, 1_772_000_000_004L,
+                1_772_000_000_009L), new Hop("ACCOUNT_SERVICE", 1_772_000_000_010L, null, null))));
+        return command;
+    }
+
+    private static EventMessage event() {
+        EventMessage event = new EventMessage();
+        event.initialize();
+        event.setSagaId(UUID.randomUUID().toString());
+        event.setStepId(7);
+        event.setType("FUNDS_RESERVATION_FAILED");
+        event.setSourceService("ACCOUNT_SERVICE");
+        event.setSuccess(false);
+        event.setErrorCode("INSUFFICIENT_FUNDS");
+        event.setErrorMessage("Available balance 12.00 is below 4685.50 — ünïcode kept");
+        event.setPayloadValue("reservationId", null);
+        event.setPayloadValue("available", new BigDecimal("12.00"));
+        event.setHops(new ArrayList<>(List.of(Hop.sentBy("ACCOUNT_SERVICE", 1_772_000_000_000L))));
+        return event;
+    }
+}
@@ -0,0 +1,162 @@
+package com.project.kafkamessagemodels.codec;
+
+import com.project.kafkamessagemodels.model.CommandMessage;
+import com.project.kafkamessagemodels.model.EventMessage;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.kafka.support.serializer.JsonDeserializer;
+import org.springframework.kafka.support.serializer.JsonSerializer;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of the binary codec against the JsonSerializer the services use, run with main.
+ * Encodes and decodes a typical order command and the account event answering it, and prints their sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    private static final String TOPIC = "account.commands.order-buy";
+
+    private CommandMessage command;
+    private EventMessage event;
+
+    private JsonSerializer<Object> jsonSerializer;
+    private JsonDeserializer<Object> jsonCommandDeserializer;
+    private JsonDeserializer<Object> jsonEventDeserializer;
+    private BinaryMessageSerializer binarySerializer;
+    private BinaryMessageDeserializer binaryCommandDeserializer;
+    private BinaryMessageDeserializer binaryEventDeserializer;
+
+    private RecordHeaders commandHeaders;
+    private RecordHeaders eventHeaders;
+    private byte[] jsonCommand;
+    private byte[] jsonEvent;
+    private byte[] binaryCommand;
+    private byte[] binaryEvent;
+
+    public static void main(String[] args) throws RunnerException {
+        MessageCodecBenchmark sizes = new MessageCodecBenchmark();
+        sizes.setUp();
+        System.out.printf("command: json %d bytes, binary %d bytes%n", sizes.jsonCommand.length, sizes.binaryCommand.length);
+        System.out.printf("event: json %d bytes, binary %d bytes%n", sizes.jsonEvent.length, sizes.binaryEvent.length);
+
+        new Runner(new OptionsBuilder().include(MessageCodecBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    @Setup
+    public void setUp() {
+        String sagaId = UUID.randomUUID().toString();
+
+        command = new CommandMessage();
+        command.initialize();
+        command.setSagaId(sagaId);
+        command.setStepId(6);
+        command.setType("ACCOUNT_RESERVE_FUNDS");
+        command.setSourceService("SAGA_ORCHESTRATOR");
+        command.setTargetService("ACCOUNT_SERVICE");
+        command.setIsCompensation(false);
+        command.setPayloadValue("accountId", "acc-" + UUID.randomUUID());
+        command.setPayloadValue("userId", "usr-" + UUID.randomUUID());
+        command.setPayloadValue("orderId", UUID.randomUUID().toString());
+        command.setPayloadValue("stockSymbol", "AAPL");
+        command.setPayloadValue("orderType", "LIMIT");
+        command.setPayloadValue("quantity", 25);
+        command.setPayloadValue("limitPrice", 187.42);
+        command.setPayloadValue("amount", new BigDecimal("4685.50"));
+        command.setPayloadValue("timeInForce", "DAY");
+        command.setMetadataValue("retryCount", "0");
+
+        event = EventMessage.createSuccessEvent(sagaId, 6, "FUNDS_RESERVED", "ACCOUNT_SERVICE");
+        event.initialize();
+        event.setPayloadValue("accountId", command.getPayloadValue("accountId"));
+        event.setPayloadValue("orderId", command.getPayloadValue("orderId"));
+        event.setPayloadValue("reservationId", UUID.randomUUID().toString());
+        event.setPayloadValue("amount", new BigDecimal("4685.50"));
+        event.setPayloadValue("newAvailableBalance", new BigDecimal("15314.50"));
+        event.setPayloadValue("currency", "USD");
+        event.setPayloadValue("reservedAt", Instant.now().toString());
+
+        jsonSerializer = new JsonSerializer<>();
+        jsonSerializer.configure(Map.of(JsonSerializer.ADD_TYPE_INFO_HEADERS, true), false);
+        jsonCommandDeserializer = jsonDeserializer(CommandMessage.class);
+        jsonEventDeserializer = jsonDeserializer(EventMessage.class);
+        binarySerializer = new BinaryMessageSerializer();
+        binaryCommandDeserializer = binaryDeserializer(CommandMessage.class);
+        binaryEventDeserializer = binaryDeserializer(EventMessage.class);
+
+        commandHeaders = new RecordHeaders();
+        eventHeaders = new RecordHeaders();
+        jsonCommand = jsonSerializer.serialize(TOPIC, commandHeaders, command);
+        jsonEvent = jsonSerializer.serialize(TOPIC, eventHeaders, event);
+        binaryCommand = binarySerializer.serialize(TOPIC, command);
+        binaryEvent = binarySerializer.serialize(TOPIC, event);
+    }
+
+    private static JsonDeserializer<Object> jsonDeserializer(Class<?> defaultType) {
+        JsonDeserializer<Object> deserializer = new JsonDeserializer<>();
+        deserializer.configure(Map.of(
+                JsonDeserializer.TRUSTED_PACKAGES, "*",
+                JsonDeserializer.VALUE_DEFAULT_TYPE, defaultType.getName(),
+                JsonDeserializer.USE_TYPE_INFO_HEADERS, true), false);
+        return deserializer;
+    }
+
+    private static BinaryMessageDeserializer binaryDeserializer(Class<?> defaultType) {
+        BinaryMessageDeserializer deserializer = new BinaryMessageDeserializer();
+        deserializer.configure(Map.of(BinaryMessageDeserializer.VALUE_DEFAULT_TYPE, defaultType.getName()), false);
+        return deserializer;
+    }
+
+    @Benchmark
+    public byte[] jsonEncodeCommand() {
+        return jsonSerializer.serialize(TOPIC, new RecordHeaders(), command);
+    }
+
+    @Benchmark
+    public Object jsonDecodeCommand() {
+        return jsonCommandDeserializer.deserialize(TOPIC, commandHeaders, jsonCommand);
+    }
+
+    @Benchmark
+    public byte[] binaryEncodeCommand() {
+        return binarySerializer.serialize(TOPIC, command);
+    }
+
+    @Benchmark
+    public Object binaryDecodeCommand() {
+        return binaryCommandDeserializer.deserialize(TOPIC, binaryCommand);
+    }
+
+    @Benchmark
+    public byte[] jsonEncodeEvent() {
+        return jsonSerializer.serialize(TOPIC, new RecordHeaders(), event);
+    }
+
+    @Benchmark
+    public Object jsonDecodeEvent() {
+        return jsonEventDeserializer.deserialize(TOPIC, eventHeaders, jsonEvent);
+    }
+
+    @Benchmark
+    public byte[] binaryEncodeEvent() {
+        return binarySerializer.serialize(TOPIC, event);
+    }
+
+    @Benchmark
+    public Object binaryDecodeEvent() {
+        return binaryEventDeserializer.deserialize(TOPIC, binaryEvent);
+    }
+}
@@ -0,0 +1,194 @@
+package com.project.kafkamessagemodels.model.payload;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.project.kafkamessagemodels.codec.BinaryMessageCodec;
+import com.project.kafkamessagemodels.codec.JsonMessageCodec;
+import com.project.kafkamessagemodels.codec.MessageCodec;
+import com.project.kafkamessagemodels.model.CommandMessage;
+import com.project.kafkamessagemodels.model.EventMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PayloadsTest {
+
+    private static final List<Class<?>> PAYLOAD_TYPES = List.of(
+            BalanceUpdatePayload.class, BrokerExecutionPayload.class, BrokerOrderPayload.class,
+            CheckBalancePayload.class, FundsReservationPayload.class, MarketPricePayload.class, OrderPayload.class,
+            PaymentPayload.class, PendingTransactionPayload.class, PositionPayload.class, PriceUpdatePayload.class,
+            SettlementPayload.class, SharesPayload.class);
+
+    private static final Map<String, MessageCodec> CODECS = Map.of(
+            MessageCodec.JSON, new JsonMessageCodec(),
+            MessageCodec.BINARY, new BinaryMessageCodec());
+
+    static Stream<Arguments> payloadTypesAndCodecs() {
+        return PAYLOAD_TYPES.stream().flatMap(type -> CODECS.keySet().stream().map(codec -> Arguments.of(type, codec)));
+    }
+
+    @ParameterizedTest(name = "{0} over {1}")
+    @MethodSource("payloadTypesAndCodecs")
+    void everyFieldIsBoundFromItsKey(Class<?> type, String codec) throws IllegalAccessException {
+        Map<String, Object> payload = payloadOf(type, PayloadsTest::sample);
+
+        Object bound = received(codec, payload).getPayloadAs(type);
+
+        for (Field field : fieldsOf(type)) {
+            assertEquals(sample(field.getType(), field.getName()), field.get(bound), field.getName());
+        }
+        // The same object a Jackson binding, what handlers used before, produces from the sent map
+        assertEquals(new ObjectMapper().convertValue(payload, type), bound);
+    }
+
+    @ParameterizedTest(name = "{0} over {1}")
+    @MethodSource("payloadTypesAndCodecs")
+    void missingKeysAreBoundAsNull(Class<?> type, String codec) throws IllegalAccessException {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("unrelated", "kept out");
+
+        Object bound = received(codec, payload).getPayloadAs(type);
+
+        for (Field field : fieldsOf(type)) {
+            assertNull(field.get(bound), field.getName());
+        }
+        for (Field field : fieldsOf(type)) {
+            assertNull(field.get(Payloads.bind(null, type)), field.getName());
+        }
+    }
+
+    @ParameterizedTest(name = "{0} over {1}")
+    @MethodSource("payloadTypesAndCodecs")
+    void numbersOfAnotherTypeAreConvertedToTheFieldType(Class<?> type, String codec) throws IllegalAccessException {
+        // Integer where a Long or BigDecimal is declared, Long where an Integer is
+        Map<String, Object> narrow = payloadOf(type, (fieldType, name) -> fieldType == Integer.class ? 42L
+                : fieldType == Long.class || fieldType == BigDecimal.class ? 42 : sample(fieldType, name));
+        // BigDecimal where an Integer or Long is declared, Double where a BigDecimal is
+        Map<String, Object> wide = payloadOf(type, (fieldType, name) -> fieldType == Integer.class
+                || fieldType == Long.class ? new BigDecimal("42") : fieldType == BigDecimal.class ? 42.0
+                : sample(fieldType, name));
+        // Numbers written as text
+        Map<String, Object> text = payloadOf(type, (fieldType, name) -> Number.class.isAssignableFrom(fieldType)
+                ? "42" : sample(fieldType, name));
+
+        for (Map<String, Object> payload : List.of(narrow, wide, text)) {
+            Object bound = received(codec, payload).getPayloadAs(type);
+            for (Field field : fieldsOf(type)) {
+                Object value = field.get(bound);
+                if (field.getType() == Integer.class) {
+                    assertEquals(42, value, field.getName());
+                } else if (field.getType() == Long.class) {
+                    assertEquals(42L, value, field.getName());
+                } else if (field.getType() == BigDecimal.class) {
+                    assertEquals(0, new BigDecimal("42").compareTo((BigDecimal) value), field.getName());
+                }
+            }
+        }
+    }
+
+    @Test
+    void textThatIsNotANumberIsRejected() {
+        assertThrows(IllegalArgumentException.class,
+                () -> Payloads.bind(Map.of("quantity", "ten"), OrderPayload.class));
+        assertThrows(IllegalArgumentException.class,
+                () -> Payloads.bind(Map.of("amount", List.of(1)), CheckBalancePayload.class));
+        assertThrows(IllegalArgumentException.class,
+                () -> Payloads.bind(Map.of("volume", true), PriceUpdatePayload.class));
+    }
+
+    @Test
+    void fractionalDecimalsKeepTheirValueThroughBothCodecs() {
+        Map<String, Object> payload = Map.of("amount", new BigDecimal("4685.57"), "accountId", "acc-1");
+
+        for (String codec : CODECS.keySet()) {
+            CheckBalancePayload bound = received(codec, payload).getPayloadAs(CheckBalancePayload.class);
+            assertEquals(0, new BigDecimal("4685.57").compareTo(bound.getAmount()), codec);
+        }
+        // Only the binary codec carries the scale through unchanged
+        assertEquals(new BigDecimal("4685.570"),
+                received(MessageCodec.BINARY, Map.of("amount", new BigDecimal("4685.570")))
+                        .getPayloadAs(CheckBalancePayload.class).getAmount());
+    }
+
+    @Test
+    void bindingIsReusedUntilThePayloadChanges() {
+        EventMessage event = new EventMessage();
+        event.setPayloadValue("quantity", 10);
+
+        OrderPayload first = event.getPayloadAs(OrderPayload.class);
+        assertSame(first, event.getPayloadAs(OrderPayload.class));
+        assertNotSame(first, event.getPayloadAs(PositionPayload.class));
+
+        event.setPayloadValue("quantity", 20);
+        assertEquals(20, event.getPayloadAs(OrderPayload.class).getQuantity());
+
+        CommandMessage command = new CommandMessage();
+        command.setPayload(Map.of("stockSymbol", "AAPL"));
+        assertEquals("AAPL", command.getPayloadAs(SharesPayload.class).getStockSymbol());
+    }
+
+    @Test
+    void typesWithoutABinderAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> Payloads.bind(Map.of(), String.class));
+    }
+
+    private static EventMessage received(String codec, Map<String, Object> payload) {
+        EventMessage event = new EventMessage();
+        event.initialize();
+        event.setType("FUNDS_RESERVED");
+        event.setPayload(new HashMap<>(payload));
+        MessageCodec messageCodec = CODECS.get(codec);
+        return messageCodec.decode(messageCodec.encode(event), EventMessage.class);
+    }
+
+    private static Map<String, Object> payloadOf(Class<?> type, SampleValues values) {
+        Map<String, Object> payload = new HashMap<>();
+        for (Field field : fieldsOf(type)) {
+            payload.put(field.getName(), values.of(field.getType(), field.getName()));
+        }
+        return payload;
+    }
+
+    // A distinct value per field, so a field read from the wrong key shows up
+    private static Object sample(Class<?> fieldType, String name) {
+        int seed = Math.abs(name.hashCode() % 1000);
+        if (fieldType == String.class) {
+            return name + "-value";
+        }
+        if (fieldType == Integer.class) {
+            return seed;
+        }
+        if (fieldType == Long.class) {
+            return 5_000_000_000L + seed;
+        }
+        if (fieldType == BigDecimal.class) {
+            return new BigDecimal(seed + ".25");
+        }
+        throw new IllegalArgumentException("No sample for " + fieldType + " " + name);
+    }
+
+    private static List<Field> fieldsOf(Class<?> type) {
+        List<Field> fields = new ArrayList<>();
+        for (Field field : type.getDeclaredFields()) {
+            if (!Modifier.isStatic(field.getModifiers())) {
+                field.setAccessible(true);
+                fields.add(field);
+            }
+        }
+        assertFalse(fields.isEmpty(), type.getSimpleName());
+        return fields;
+    }
+
+    @FunctionalInterface
+    private interface SampleValues {
+        Object of(Class<?> fieldType, String name);
+    }
+}
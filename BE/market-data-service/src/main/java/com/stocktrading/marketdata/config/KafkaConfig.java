@@ -2,9 +2,15 @@
 package com.stocktrading.marketdata.config;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.project.kafkamessagemodels.codec.BinaryMessageDeserializer;
+import com.project.kafkamessagemodels.codec.BinaryMessageSerializer;
+import com.project.kafkamessagemodels.codec.MessageCodec;
+import com.project.kafkamessagemodels.hop.HopInterceptors;
+import com.project.kafkamessagemodels.hop.HopMetrics;
 import com.project.kafkamessagemodels.model.CommandMessage;
 import com.project.kafkamessagemodels.model.EventMessage;
 import com.stocktrading.marketdata.model.StockUpdate;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.kafka.clients.admin.NewTopic;
@@ -34,10 +40,15 @@ import java.util.Map;
 public class KafkaConfig {
 
     private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
 
     @Value("${spring.kafka.bootstrap-servers:localhost:9092}")
     private String bootstrapServers;
 
+    // Wire format of saga messages, json or binary
+    @Value("${kafka.message-codec:json}")
+    private String messageCodec;
+
     @Value("${spring.kafka.consumer.group-id:market-data-service-group}")
     private String groupId;
 
@@ -59,13 +70,14 @@ public class KafkaConfig {
         props.put(ConsumerConfig.GROUP_ID_CONFIG, groupId);
         props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
         props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ErrorHandlingDeserializer.class);
-        props.put(ErrorHandlingDeserializer.VALUE_DESERIALIZER_CLASS, JsonDeserializer.class.getName());
+        props.put(ErrorHandlingDeserializer.VALUE_DESERIALIZER_CLASS, messageDeserializerClass());
         props.put(JsonDeserializer.TRUSTED_PACKAGES, "*");
         props.put(JsonDeserializer.VALUE_DEFAULT_TYPE, "com.project.kafkamessagemodels.model.CommandMessage");
         props.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
         props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
         props.put(JsonDeserializer.USE_TYPE_INFO_HEADERS, true);
         props.put(JsonDeserializer.REMOVE_TYPE_INFO_HEADERS, false);
+        props.putAll(HopInterceptors.consumerProps(hopMetrics()));
 
         return new DefaultKafkaConsumerFactory<>(props);
     }
@@ -107,11 +119,12 @@ public class KafkaConfig {
         Map<String, Object> configProps = new HashMap<>();
         configProps.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
         configProps.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
-        configProps.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, JsonSerializer.class);
+        configProps.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, messageSerializerClass());
         configProps.put(ProducerConfig.ACKS_CONFIG, "all");
         configProps.put(ProducerConfig.RETRIES_CONFIG, 3);
         configProps.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true);
         configProps.put(JsonSerializer.ADD_TYPE_INFO_HEADERS, true);
+        configProps.putAll(HopInterceptors.producerProps(hopMetrics()));
 
         return new DefaultKafkaProducerFactory<>(configProps);
     }
@@ -133,13 +146,14 @@ public class KafkaConfig {
         props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
         props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
         props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ErrorHandlingDeserializer.class);
-        props.put(ErrorHandlingDeserializer.VALUE_DESERIALIZER_CLASS, JsonDeserializer.class.getName());
+        props.put(ErrorHandlingDeserializer.VALUE_DESERIALIZER_CLASS, messageDeserializerClass());
         props.put(JsonDeserializer.TRUSTED_PACKAGES, "*");
         props.put(JsonDeserializer.VALUE_DEFAULT_TYPE, "com.project.kafkamessagemodels.model.EventMessage");
         props.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
         props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
         props.put(JsonDeserializer.USE_TYPE_INFO_HEADERS, true);
         props.put(JsonDeserializer.REMOVE_TYPE_INFO_HEADERS, false);
+        props.putAll(HopInterceptors.consumerProps(hopMetrics()));
 
         return new DefaultKafkaConsumerFactory<>(props);
     }
@@ -156,4 +170,34 @@ public class KafkaConfig {
 
         return factory;
     }
-}
\ No newline at end of file
+
+    // Whole polls in one call, for listeners that write in bulk
+    @Bean
+    public ConcurrentKafkaListenerContainerFactory<String, EventMessage> eventMessageBatchListenerContainerFactory() {
+        ConcurrentKafkaListenerContainerFactory<String, EventMessage> factory =
+                new ConcurrentKafkaListenerContainerFactory<>();
+        factory.setConsumerFactory(eventMessageConsumerFactory());
+        factory.setConcurrency(3);
+        factory.setBatchListener(true);
+        factory.getContainerProperties().setAckMode(
+                org.springframework.kafka.listener.ContainerProperties.AckMode.MANUAL_IMMEDIATE);
+        factory.setCommonErrorHandler(errorHandler());
+
+        return factory;
+    }
+
+    // Hop trails of saga messages, timed per message type
+    @Bean
+    public HopMetrics hopMetrics() {
+        return new HopMetrics(meterRegistry, "MARKET_DATA_SERVICE");
+    }
+
+    private Class<?> messageSerializerClass() {
+        return MessageCodec.BINARY.equals(messageCodec) ? BinaryMessageSerializer.class : JsonSerializer.class;
+    }
+
+    private String messageDeserializerClass() {
+        return MessageCodec.BINARY.equals(messageCodec)
+                ? BinaryMessageDeserializer.class.getName() : JsonDeserializer.class.getName();
+    }
+}
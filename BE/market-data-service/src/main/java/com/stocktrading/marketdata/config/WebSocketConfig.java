@@ -1,18 +1,26 @@
 package com.stocktrading.marketdata.config;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
+import com.stocktrading.marketdata.handler.PortfolioValuationWebSocketHandler;
 import com.stocktrading.marketdata.handler.StockDataWebSocketHandler;
 import lombok.RequiredArgsConstructor;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.web.socket.WebSocketExtension;
 import org.springframework.web.socket.WebSocketHandler;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
 import org.springframework.web.socket.server.standard.ServletServerContainerFactoryBean;
+import org.springframework.web.socket.server.support.DefaultHandshakeHandler;
 
 import com.stocktrading.marketdata.websocket.MarketDataWebSocketHandler;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @Configuration
 @RequiredArgsConstructor
 @EnableWebSocket
@@ -21,6 +29,11 @@ public class WebSocketConfig implements WebSocketConfigurer {
     @Autowired
     private MarketDataWebSocketHandler marketDataWebSocketHandler;  // Use Autowired instead
     private final StockDataWebSocketHandler stockDataWebSocketHandler;
+    private final PortfolioValuationWebSocketHandler portfolioValuationWebSocketHandler;
+
+    // Tomcat negotiates permessage-deflate when the client offers it, this switch turns it off
+    @Value("${market.data.ws.permessage-deflate:true}")
+    private boolean perMessageDeflate;
 
     @Override
     public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
@@ -28,10 +41,30 @@ public class WebSocketConfig implements WebSocketConfigurer {
         registry.addHandler(marketDataWebSocketHandler, "/ws/market-data")
                 .setAllowedOrigins("*"); // In production, specify exact origins
         registry.addHandler(stockDataWebSocketHandler, "/market-data/ws/stock-data")
+                .setHandshakeHandler(stockDataHandshakeHandler())
+                .setAllowedOrigins("http://127.0.0.1:5173", "http://localhost:5173");
+        registry.addHandler(portfolioValuationWebSocketHandler, "/market-data/ws/portfolio")
+                .addInterceptors(portfolioValuationWebSocketHandler)
                 .setAllowedOrigins("http://127.0.0.1:5173", "http://localhost:5173");
     }
 
 
+    private DefaultHandshakeHandler stockDataHandshakeHandler() {
+        return new DefaultHandshakeHandler() {
+            @Override
+            protected List<WebSocketExtension> filterRequestedExtensions(ServerHttpRequest request,
+                                                                         List<WebSocketExtension> requestedExtensions,
+                                                                         List<WebSocketExtension> supportedExtensions) {
+                List<WebSocketExtension> extensions = new ArrayList<>(
+                        super.filterRequestedExtensions(request, requestedExtensions, supportedExtensions));
+                if (!perMessageDeflate) {
+                    extensions.removeIf(extension -> "permessage-deflate".equals(extension.getName()));
+                }
+                return extensions;
+            }
+        };
+    }
+
     @Bean
     public ServletServerContainerFactoryBean createWebSocketContainer() {
         ServletServerContainerFactoryBean container = new ServletServerContainerFactoryBean();
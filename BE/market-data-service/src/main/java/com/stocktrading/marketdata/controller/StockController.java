@@ -1,11 +1,17 @@
 package com.stocktrading.marketdata.controller;
 
+import com.stocktrading.marketdata.dto.response.ChartHistoryResponse;
+import com.stocktrading.marketdata.model.SymbolInfo;
+import com.stocktrading.marketdata.service.ChartHistoryService;
 import com.stocktrading.marketdata.service.MarketPricePublisher;
+import com.stocktrading.marketdata.service.SymbolRegistry;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.time.Instant;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -18,6 +24,8 @@ import java.util.Map;
 public class StockController {
 
     private final MarketPricePublisher marketPricePublisher;
+    private final SymbolRegistry symbolRegistry;
+    private final ChartHistoryService chartHistoryService;
 
     /**
      * Get all stocks data
@@ -32,6 +40,20 @@ public class StockController {
         return ResponseEntity.ok(response);
     }
 
+    /**
+     * Type-ahead search over listed symbols by ticker or company name
+     */
+    @GetMapping("/search")
+    public ResponseEntity<Map<String, Object>> searchSymbols(@RequestParam("q") String query,
+                                                             @RequestParam(defaultValue = "20") int limit) {
+        List<SymbolInfo> results = symbolRegistry.search(query, Math.min(limit, 100));
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("results", results);
+
+        return ResponseEntity.ok(response);
+    }
+
     /**
      * Get data for a specific stock
      */
@@ -49,6 +71,27 @@ public class StockController {
         return ResponseEntity.ok(stockData);
     }
 
+    /**
+     * Get downsampled price history for a preset range (1D, 1W, 1M, 3M, 1Y) or an explicit from/to window
+     */
+    @GetMapping("/{symbol}/chart")
+    public ResponseEntity<?> getChart(@PathVariable String symbol,
+                                      @RequestParam(required = false) String range,
+                                      @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant from,
+                                      @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant to,
+                                      @RequestParam(defaultValue = "500") int points) {
+        try {
+            ChartHistoryResponse chart = (from != null || to != null)
+                    ? chartHistoryService.getHistory(symbol, from, to != null ? to : Instant.now(), points)
+                    : chartHistoryService.getHistory(symbol, range != null ? range : "1D", points);
+            return ResponseEntity.ok(chart);
+        } catch (IllegalArgumentException e) {
+            Map<String, String> error = new HashMap<>();
+            error.put("error", e.getMessage());
+            return ResponseEntity.badRequest().body(error);
+        }
+    }
+
     /**
      * Add a new stock to track
      */
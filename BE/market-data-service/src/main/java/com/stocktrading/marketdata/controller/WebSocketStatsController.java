@@ -0,0 +1,37 @@
+package com.stocktrading.marketdata.controller;
+
+import com.stocktrading.marketdata.handler.StockDataWebSocketHandler;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@RestController
+@RequiredArgsConstructor
+@RequestMapping("market-data/api/v1/ws")
+public class WebSocketStatsController {
+
+    private final StockDataWebSocketHandler stockDataWebSocketHandler;
+
+    /**
+     * Per-session bytes/s and frames/s of the stock data stream
+     */
+    @GetMapping("/stats")
+    public ResponseEntity<Map<String, Object>> getStats() {
+        List<Map<String, Object>> sessions = stockDataWebSocketHandler.getSessionStats();
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("sessions", sessions);
+        response.put("totalBytesPerSecond", sessions.stream()
+                .mapToDouble(session -> (double) session.get("bytesPerSecond")).sum());
+        response.put("totalFramesPerSecond", sessions.stream()
+                .mapToDouble(session -> (double) session.get("framesPerSecond")).sum());
+
+        return ResponseEntity.ok(response);
+    }
+}
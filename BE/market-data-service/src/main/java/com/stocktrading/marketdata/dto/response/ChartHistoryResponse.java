@@ -0,0 +1,20 @@
+package com.stocktrading.marketdata.dto.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChartHistoryResponse {
+    private String symbol;
+    private Instant from;
+    private Instant to;
+    private int targetPoints;
+    private long rawPoints;
+    private List<ChartPoint> series;
+}
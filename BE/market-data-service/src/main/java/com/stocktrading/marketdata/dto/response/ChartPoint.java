@@ -0,0 +1,16 @@
+package com.stocktrading.marketdata.dto.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChartPoint {
+    private Instant timestamp;
+    private BigDecimal price;
+}
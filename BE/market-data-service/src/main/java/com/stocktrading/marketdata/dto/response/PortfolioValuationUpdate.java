@@ -0,0 +1,39 @@
+package com.stocktrading.marketdata.dto.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+
+/**
+ * Live valuation of a single portfolio pushed over WebSocket.
+ * A "snapshot" carries only the portfolio totals, an "update" also carries the position that moved.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class PortfolioValuationUpdate {
+    private String type;
+    private String userId;
+    private String accountId;
+
+    // Position that changed (only set for "update")
+    private String symbol;
+    private BigDecimal price;
+    private Integer quantity;
+    private BigDecimal positionMarketValue;
+    private BigDecimal positionUnrealizedPnl;
+
+    // Portfolio totals after the change
+    private BigDecimal marketValue;
+    private BigDecimal costBasis;
+    private BigDecimal unrealizedPnl;
+
+    // Some holding is still valued at its stored position price, no market price is known for it yet
+    private Boolean stale;
+
+    private String timestamp;
+}
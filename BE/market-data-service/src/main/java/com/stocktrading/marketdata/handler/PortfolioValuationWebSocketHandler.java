@@ -0,0 +1,143 @@
+package com.stocktrading.marketdata.handler;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stocktrading.marketdata.dto.response.PortfolioValuationUpdate;
+import com.stocktrading.marketdata.security.JwtProvider;
+import com.stocktrading.marketdata.service.PortfolioValuationService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.socket.server.HandshakeInterceptor;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pushes live portfolio valuation deltas to the owning user only.
+ * Browsers cannot set headers on a WebSocket handshake, so the JWT is passed as the "token" query parameter.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class PortfolioValuationWebSocketHandler extends TextWebSocketHandler implements HandshakeInterceptor {
+
+    private static final String USER_ID_ATTRIBUTE = "userId";
+
+    private final PortfolioValuationService portfolioValuationService;
+    private final JwtProvider jwtProvider;
+    private final ObjectMapper objectMapper;
+
+    // userId -> open sessions of that user
+    private final Map<String, Set<WebSocketSession>> sessionsByUser = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean beforeHandshake(ServerHttpRequest request, ServerHttpResponse response,
+                                   WebSocketHandler wsHandler, Map<String, Object> attributes) {
+        String token = UriComponentsBuilder.fromUri(request.getURI()).build().getQueryParams().getFirst("token");
+        if (token == null || !jwtProvider.validateToken(token)) {
+            log.warn("Rejected portfolio valuation handshake without a valid token");
+            return false;
+        }
+        attributes.put(USER_ID_ATTRIBUTE, jwtProvider.getUserIdFromToken(token));
+        return true;
+    }
+
+    @Override
+    public void afterHandshake(ServerHttpRequest request, ServerHttpResponse response,
+                               WebSocketHandler wsHandler, Exception exception) {
+    }
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+        String userId = (String) session.getAttributes().get(USER_ID_ATTRIBUTE);
+        sessionsByUser.computeIfAbsent(userId, u -> ConcurrentHashMap.newKeySet()).add(session);
+        log.info("Portfolio valuation connection established: {} for user: {}", session.getId(), userId);
+
+        // Start the client from the current totals, later frames are deltas
+        for (PortfolioValuationUpdate snapshot : portfolioValuationService.getSnapshot(userId)) {
+            send(session, snapshot);
+        }
+    }
+
+    @Override
+    protected void handleTextMessage(WebSocketSession session, TextMessage message) {
+        log.debug("Ignoring client message on portfolio valuation session {}", session.getId());
+    }
+
+    @Override
+    public void handleTransportError(WebSocketSession session, Throwable exception) {
+        log.error("Portfolio valuation transport error for session {}: {}", session.getId(), exception.getMessage());
+        removeSession(session);
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        removeSession(session);
+        log.info("Portfolio valuation connection closed: {} with status {}", session.getId(), status);
+    }
+
+    /**
+     * Check whether the user has at least one open session
+     */
+    public boolean hasSessions(String userId) {
+        Set<WebSocketSession> sessions = sessionsByUser.get(userId);
+        return sessions != null && !sessions.isEmpty();
+    }
+
+    /**
+     * Send valuation deltas to the sessions of their owners
+     */
+    public void sendUpdates(List<PortfolioValuationUpdate> updates) {
+        for (PortfolioValuationUpdate update : updates) {
+            Set<WebSocketSession> sessions = sessionsByUser.get(update.getUserId());
+            if (sessions == null || sessions.isEmpty()) {
+                continue;
+            }
+            for (WebSocketSession session : sessions) {
+                send(session, update);
+            }
+        }
+    }
+
+    private void send(WebSocketSession session, PortfolioValuationUpdate update) {
+        if (!session.isOpen()) {
+            removeSession(session);
+            return;
+        }
+        try {
+            TextMessage message = new TextMessage(objectMapper.writeValueAsString(update));
+            synchronized (session) {
+                // Synchronize on the session to prevent concurrent sends
+                session.sendMessage(message);
+            }
+        } catch (IOException e) {
+            log.warn("Error sending portfolio valuation to session {}: {}", session.getId(), e.getMessage());
+            removeSession(session);
+        }
+    }
+
+    private void removeSession(WebSocketSession session) {
+        String userId = (String) session.getAttributes().get(USER_ID_ATTRIBUTE);
+        if (userId == null) {
+            return;
+        }
+        Set<WebSocketSession> sessions = sessionsByUser.get(userId);
+        if (sessions != null) {
+            sessions.remove(session);
+            if (sessions.isEmpty()) {
+                sessionsByUser.remove(userId, sessions);
+            }
+        }
+    }
+}
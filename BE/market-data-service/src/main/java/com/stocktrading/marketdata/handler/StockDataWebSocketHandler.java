@@ -3,42 +3,122 @@ package com.stocktrading.marketdata.handler;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.project.kafkamessagemodels.model.EventMessage;
+import com.project.kafkamessagemodels.model.payload.PriceUpdatePayload;
 import com.stocktrading.marketdata.model.StockUpdate;
+import com.stocktrading.marketdata.service.SymbolRegistry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.util.UriComponentsBuilder;
 
+import javax.annotation.PreDestroy;
 import java.io.IOException;
-import java.math.BigDecimal;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.*;
+import java.util.concurrent.*;
 
 @Component
+@RequiredArgsConstructor
 public class StockDataWebSocketHandler extends TextWebSocketHandler {
     private static final Logger logger = LoggerFactory.getLogger(StockDataWebSocketHandler.class);
 
-    // Thread-safe set to keep track of all active sessions
-    private final Set<WebSocketSession> sessions = new CopyOnWriteArraySet<>();
+    // Thread-safe map to keep track of all active sessions by session id
+    private final Map<String, SessionState> sessions = new ConcurrentHashMap<>();
     private final ObjectMapper objectMapper = new ObjectMapper();
+    private final SymbolRegistry symbolRegistry;
+    private final MeterRegistry meterRegistry;
+
+    // Flushes the coalesced updates of sessions that opted into batching
+    private final ScheduledExecutorService batchFlusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ws-batch-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Batch window used when the client does not pass "batchMs" (0 sends every tick immediately)
+    @Value("${market.data.ws.batch-window-ms:0}")
+    private long defaultBatchWindowMs;
+
+    @Value("${market.data.ws.max-batch-window-ms:1000}")
+    private long maxBatchWindowMs;
+
+    @Value("${market.data.ws.send-time-limit-ms:5000}")
+    private int sendTimeLimitMs;
+
+    @Value("${market.data.ws.buffer-size-limit:524288}")
+    private int bufferSizeLimit;
+
+    // Per-session delivery state and traffic counters, the counters are registered as meters for the session's lifetime
+    private static class SessionState {
+        final WebSocketSession session;
+        final long batchWindowMs;
+        final Map<String, StockUpdate> pending = new LinkedHashMap<>();
+        final Counter bytesSent;
+        final Counter framesSent;
+        ScheduledFuture<?> flushTask;
+
+        // Rates over the last sampling interval
+        long sampledBytes;
+        long sampledFrames;
+        long sampledAt = System.currentTimeMillis();
+        volatile double bytesPerSecond;
+        volatile double framesPerSecond;
+
+        SessionState(WebSocketSession session, long batchWindowMs, MeterRegistry registry) {
+            this.session = session;
+            this.batchWindowMs = batchWindowMs;
+            this.bytesSent = Counter.builder("market.data.ws.sent.bytes")
+                    .description("Payload bytes sent to a stock data WebSocket session")
+                    .baseUnit("bytes")
+                    .tag("session", session.getId())
+                    .register(registry);
+            this.framesSent = Counter.builder("market.data.ws.sent.frames")
+                    .description("Frames sent to a stock data WebSocket session")
+                    .tag("session", session.getId())
+                    .register(registry);
+        }
+
+        boolean isBatching() {
+            return batchWindowMs > 0;
+        }
+    }
 
     @Override
     public void afterConnectionEstablished(WebSocketSession session) throws Exception {
-        sessions.add(session);
-        logger.info("WebSocket connection established: {}, Total sessions: {}", session.getId(), sessions.size());
+        long batchWindowMs = resolveBatchWindow(session);
+
+        // The decorator serializes sends, Kafka listener threads and the flusher may send concurrently
+        SessionState state = new SessionState(
+                new ConcurrentWebSocketSessionDecorator(session, sendTimeLimitMs, bufferSizeLimit), batchWindowMs,
+                meterRegistry);
+        if (state.isBatching()) {
+            state.flushTask = batchFlusher.scheduleAtFixedRate(
+                    () -> flush(state), batchWindowMs, batchWindowMs, TimeUnit.MILLISECONDS);
+        }
+        sessions.put(session.getId(), state);
+
+        logger.info("WebSocket connection established: {} (batch window {} ms, extensions {}), Total sessions: {}",
+                session.getId(), batchWindowMs, session.getExtensions(), sessions.size());
     }
 
     @Override
     protected void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
         logger.warn("Received unexpected message from {}: {}", session.getId(), message.getPayload());
         try {
-            session.sendMessage(new TextMessage("{\"warning\": \"Messages from client are not processed.\"}"));
+            SessionState state = sessions.get(session.getId());
+            (state != null ? state.session : session)
+                    .sendMessage(new TextMessage("{\"warning\": \"Messages from client are not processed.\"}"));
         } catch (IOException e) {
             logger.error("Failed to send warning message to session {}", session.getId(), e);
         }
@@ -47,12 +127,12 @@ public class StockDataWebSocketHandler extends TextWebSocketHandler {
     @Override
     public void handleTransportError(WebSocketSession session, Throwable exception) throws Exception {
         logger.error("WebSocket transport error for session {}: {}", session.getId(), exception.getMessage());
-        sessions.remove(session);
+        removeSession(session.getId());
     }
 
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
-        sessions.remove(session);
+        removeSession(session.getId());
         logger.info("WebSocket connection closed: {} with status {}, Total sessions: {}",
                 session.getId(), status, sessions.size());
     }
@@ -66,80 +146,48 @@ public class StockDataWebSocketHandler extends TextWebSocketHandler {
             groupId = "stock-updates-consumer-group"
     )
     public void broadcastStockUpdate(EventMessage eventMessage, Acknowledgment ack) {
-        try {
-            if (eventMessage == null || !eventMessage.getSuccess()) {
-                logger.warn("Received null or unsuccessful event message");
-                ack.acknowledge();
-                return;
-            }
-
-            // Extract data from EventMessage payload
-            Map<String, Object> payload = eventMessage.getPayload();
-            if (payload == null) {
-                logger.warn("Event message has null payload");
-                ack.acknowledge();
-                return;
-            }
-
-            // Convert EventMessage to StockUpdate
-            StockUpdate update = new StockUpdate();
-            update.setSymbol(getStringValue(payload, "symbol"));
-            update.setPrice(getBigDecimalValue(payload, "price"));
-            update.setBidPrice(getBigDecimalValue(payload, "bidPrice"));
-            update.setAskPrice(getBigDecimalValue(payload, "askPrice"));
-            update.setVolume(getLongValue(payload, "volume"));
-            update.setTimestamp(getStringValue(payload, "timestamp"));
-            update.setChange(getBigDecimalValue(payload, "change"));
-            update.setChangePercent(getBigDecimalValue(payload, "changePercent"));
-
-            // Set company name based on symbol (using the same logic as in your existing code)
-            update.setCompany(getCompanyName(update.getSymbol()));
-
-            // Broadcast the update
-            broadcastToClients(update);
-
-            // Acknowledge the message
-            ack.acknowledge();
-
-        } catch (Exception e) {
-            logger.error("Error processing stock update from EventMessage: {}", e.getMessage(), e);
-            // Acknowledge despite error to prevent redelivery attempts for parsing issues
-            ack.acknowledge();
-        }
+        processAndBroadcastEvent(eventMessage);
+        // Acknowledge even when the event could not be used, redelivery would not fix a parsing issue
+        ack.acknowledge();
     }
 
     /**
-     * Broadcasts the stock update to all connected WebSocket clients
+     * Broadcasts the stock update to all connected WebSocket clients.
+     * Immediate sessions get one frame per tick, batching sessions get the latest update per symbol on their next flush.
      */
     private void broadcastToClients(StockUpdate update) {
         if (update == null || update.getSymbol() == null) {
             return;
         }
 
-        TextMessage message;
-        try {
-            // Convert the StockUpdate object to a JSON string
-            message = new TextMessage(objectMapper.writeValueAsString(update));
-        } catch (JsonProcessingException e) {
-            logger.error("Failed to serialize StockUpdate for symbol {}: {}",
-                    update.getSymbol(), e.getMessage());
-            return;
-        }
-
+        TextMessage message = null;
         int sentCount = 0;
-        for (WebSocketSession session : sessions) {
-            if (session.isOpen()) {
+        for (SessionState state : sessions.values()) {
+            if (!state.session.isOpen()) {
+                logger.debug("Removing closed session found during broadcast: {}", state.session.getId());
+                removeSession(state.session.getId());
+                continue;
+            }
+
+            if (state.isBatching()) {
+                synchronized (state.pending) {
+                    state.pending.put(update.getSymbol(), update);
+                }
+                continue;
+            }
+
+            if (message == null) {
                 try {
-                    session.sendMessage(message);
-                    sentCount++;
-                } catch (IOException e) {
-                    logger.error("Failed to send message to session {}. Error: {}",
-                            session.getId(), e.getMessage());
-                    sessions.remove(session);
+                    // Convert the StockUpdate object to a JSON string once for all immediate sessions
+                    message = new TextMessage(objectMapper.writeValueAsString(update));
+                } catch (JsonProcessingException e) {
+                    logger.error("Failed to serialize StockUpdate for symbol {}: {}",
+                            update.getSymbol(), e.getMessage());
+                    return;
                 }
-            } else {
-                logger.debug("Removing closed session found during broadcast: {}", session.getId());
-                sessions.remove(session);
+            }
+            if (send(state, message)) {
+                sentCount++;
             }
         }
 
@@ -149,112 +197,153 @@ public class StockDataWebSocketHandler extends TextWebSocketHandler {
     }
 
     /**
-     * Helper method to get a company name from a stock symbol
+     * Send everything a batching session accumulated during its window as one JSON array frame
      */
-    private String getCompanyName(String symbol) {
-        if (symbol == null) return "Unknown Company";
-
-        switch (symbol) {
-            case "AAPL": return "Apple Inc";
-            case "MSFT": return "Microsoft Corporation";
-            case "GOOGL": return "Alphabet Inc";
-            case "AMZN": return "Amazon.com Inc";
-            case "TSLA": return "Tesla Inc";
-            case "META": return "Meta Platforms Inc";
-            case "NVDA": return "NVIDIA Corporation";
-            case "JPM": return "JPMorgan Chase & Co.";
-            case "V": return "Visa Inc";
-            case "JNJ": return "Johnson & Johnson";
-            case "ABBV": return "AbbVie Inc.";
-            case "WMT": return "Walmart Inc.";
-            case "PG": return "Procter & Gamble Co.";
-            case "MA": return "Mastercard Inc.";
-            case "UNH": return "UnitedHealth Group Inc.";
-            default: return symbol + " Corp";
+    private void flush(SessionState state) {
+        List<StockUpdate> batch;
+        synchronized (state.pending) {
+            if (state.pending.isEmpty()) {
+                return;
+            }
+            batch = new ArrayList<>(state.pending.values());
+            state.pending.clear();
+        }
+
+        try {
+            send(state, new TextMessage(objectMapper.writeValueAsString(batch)));
+        } catch (JsonProcessingException e) {
+            logger.error("Failed to serialize batch of {} updates: {}", batch.size(), e.getMessage());
         }
     }
 
-    // Utility methods for safe extraction of values from the payload
+    private boolean send(SessionState state, TextMessage message) {
+        try {
+            state.session.sendMessage(message);
+            state.bytesSent.increment(message.getPayloadLength());
+            state.framesSent.increment();
+            return true;
+        } catch (IOException | RuntimeException e) {
+            logger.error("Failed to send message to session {}. Error: {}",
+                    state.session.getId(), e.getMessage());
+            removeSession(state.session.getId());
+            return false;
+        }
+    }
 
-    private String getStringValue(Map<String, Object> payload, String key) {
-        Object value = payload.get(key);
-        return value != null ? String.valueOf(value) : null;
+    private void removeSession(String sessionId) {
+        SessionState state = sessions.remove(sessionId);
+        if (state == null) {
+            return;
+        }
+        if (state.flushTask != null) {
+            state.flushTask.cancel(false);
+        }
+        meterRegistry.remove(state.bytesSent);
+        meterRegistry.remove(state.framesSent);
     }
 
-    private BigDecimal getBigDecimalValue(Map<String, Object> payload, String key) {
-        Object value = payload.get(key);
-        if (value == null) return null;
-
-        if (value instanceof BigDecimal) {
-            return (BigDecimal) value;
-        } else if (value instanceof Number) {
-            return BigDecimal.valueOf(((Number) value).doubleValue());
-        } else if (value instanceof String) {
-            try {
-                return new BigDecimal((String) value);
-            } catch (NumberFormatException e) {
-                logger.warn("Could not convert {} to BigDecimal", value);
-                return null;
+    private long resolveBatchWindow(WebSocketSession session) {
+        long window = defaultBatchWindowMs;
+        if (session.getUri() != null) {
+            String batchMs = UriComponentsBuilder.fromUri(session.getUri()).build().getQueryParams().getFirst("batchMs");
+            if (batchMs != null) {
+                try {
+                    window = Long.parseLong(batchMs);
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring invalid batchMs '{}' from session {}", batchMs, session.getId());
+                }
             }
         }
-        return null;
+        return Math.max(0, Math.min(window, maxBatchWindowMs));
     }
 
-    private Long getLongValue(Map<String, Object> payload, String key) {
-        Object value = payload.get(key);
-        if (value == null) return null;
-
-        if (value instanceof Long) {
-            return (Long) value;
-        } else if (value instanceof Number) {
-            return ((Number) value).longValue();
-        } else if (value instanceof String) {
-            try {
-                return Long.parseLong((String) value);
-            } catch (NumberFormatException e) {
-                logger.warn("Could not convert {} to Long", value);
-                return null;
-            }
+    /**
+     * Sample per-session bytes/s and frames/s
+     */
+    @Scheduled(fixedRate = 10000)
+    public void sampleSessionRates() {
+        long now = System.currentTimeMillis();
+        for (SessionState state : sessions.values()) {
+            long bytes = (long) state.bytesSent.count();
+            long frames = (long) state.framesSent.count();
+            double seconds = Math.max(1, now - state.sampledAt) / 1000.0;
+
+            state.bytesPerSecond = (bytes - state.sampledBytes) / seconds;
+            state.framesPerSecond = (frames - state.sampledFrames) / seconds;
+            state.sampledBytes = bytes;
+            state.sampledFrames = frames;
+            state.sampledAt = now;
+
+            logger.debug("Session {}: {} B/s, {} frames/s (batch window {} ms)", state.session.getId(),
+                    String.format("%.1f", state.bytesPerSecond), String.format("%.2f", state.framesPerSecond),
+                    state.batchWindowMs);
         }
-        return null;
     }
+
+    /**
+     * Per-session traffic statistics from the last sampling interval
+     */
+    public List<Map<String, Object>> getSessionStats() {
+        List<Map<String, Object>> stats = new ArrayList<>();
+        for (SessionState state : sessions.values()) {
+            Map<String, Object> entry = new HashMap<>();
+            entry.put("sessionId", state.session.getId());
+            entry.put("batchWindowMs", state.batchWindowMs);
+            entry.put("compressed", state.session.getExtensions().stream()
+                    .anyMatch(extension -> "permessage-deflate".equals(extension.getName())));
+            entry.put("bytesSent", (long) state.bytesSent.count());
+            entry.put("framesSent", (long) state.framesSent.count());
+            entry.put("bytesPerSecond", state.bytesPerSecond);
+            entry.put("framesPerSecond", state.framesPerSecond);
+            stats.add(entry);
+        }
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        batchFlusher.shutdownNow();
+    }
+
     /**
      * Processes an EventMessage and broadcasts it to clients
      * This method is used by KafkaEventListener for compatibility
      */
     public void processAndBroadcastEvent(EventMessage eventMessage) {
         try {
-            if (eventMessage == null || !eventMessage.getSuccess()) {
-                logger.warn("Received null or unsuccessful event message");
-                return;
+            StockUpdate update = toStockUpdate(eventMessage);
+            if (update != null) {
+                broadcastToClients(update);
             }
-
-            // Extract data from EventMessage payload
-            Map<String, Object> payload = eventMessage.getPayload();
-            if (payload == null) {
-                logger.warn("Event message has null payload");
-                return;
-            }
-
-            // Convert EventMessage to StockUpdate
-            StockUpdate update = new StockUpdate();
-            update.setSymbol(getStringValue(payload, "symbol"));
-            update.setPrice(getBigDecimalValue(payload, "price"));
-            update.setBidPrice(getBigDecimalValue(payload, "bidPrice"));
-            update.setAskPrice(getBigDecimalValue(payload, "askPrice"));
-            update.setVolume(getLongValue(payload, "volume"));
-            update.setTimestamp(getStringValue(payload, "timestamp"));
-            update.setChange(getBigDecimalValue(payload, "change"));
-            update.setChangePercent(getBigDecimalValue(payload, "changePercent"));
-
-            // Set company name based on symbol
-            update.setCompany(getCompanyName(update.getSymbol()));
-
-            // Broadcast the update
-            broadcastToClients(update);
-
         } catch (Exception e) {
             logger.error("Error processing stock update from EventMessage: {}", e.getMessage(), e);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Converts a price update event to the StockUpdate sent to clients, null when the event carries no price
+     */
+    private StockUpdate toStockUpdate(EventMessage eventMessage) {
+        if (eventMessage == null || !Boolean.TRUE.equals(eventMessage.getSuccess())) {
+            logger.warn("Received null or unsuccessful event message");
+            return null;
+        }
+        if (eventMessage.getPayload() == null) {
+            logger.warn("Event message has null payload");
+            return null;
+        }
+
+        PriceUpdatePayload tick = eventMessage.getPayloadAs(PriceUpdatePayload.class);
+        StockUpdate update = new StockUpdate();
+        update.setSymbol(tick.getSymbol());
+        update.setCompany(symbolRegistry.getCompanyName(tick.getSymbol()));
+        update.setPrice(tick.getPrice());
+        update.setBidPrice(tick.getBidPrice());
+        update.setAskPrice(tick.getAskPrice());
+        update.setVolume(tick.getVolume());
+        update.setTimestamp(tick.getTimestamp());
+        update.setChange(tick.getChange());
+        update.setChangePercent(tick.getChangePercent());
+        return update;
+    }
+}
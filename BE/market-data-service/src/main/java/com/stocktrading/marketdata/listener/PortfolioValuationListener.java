@@ -0,0 +1,99 @@
+package com.stocktrading.marketdata.listener;
+
+import com.project.kafkamessagemodels.model.EventMessage;
+import com.project.kafkamessagemodels.model.payload.PriceUpdatePayload;
+import com.stocktrading.marketdata.dto.response.PortfolioValuationUpdate;
+import com.stocktrading.marketdata.handler.PortfolioValuationWebSocketHandler;
+import com.stocktrading.marketdata.service.PortfolioService;
+import com.stocktrading.marketdata.service.PortfolioValuationService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.stereotype.Service;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Feeds the portfolio valuation index from price ticks and portfolio events.
+ * The index lives in memory on every instance, so each instance consumes both streams in a group of its own
+ * instead of sharing them, starting from the latest records since the index is loaded from Mongo at startup.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class PortfolioValuationListener {
+
+    // Portfolio events after which the stored positions differ from the index
+    private static final Set<String> POSITION_CHANGING_EVENTS = new HashSet<>(Arrays.asList(
+            "POSITIONS_UPDATED",
+            "POSITIONS_REMOVED",
+            "SHARES_RESERVED",
+            "SHARES_RELEASED",
+            "PORTFOLIO_POSITIONS_RESTORED"
+    ));
+
+    private final PortfolioValuationService portfolioValuationService;
+    private final PortfolioService portfolioService;
+    private final PortfolioValuationWebSocketHandler portfolioValuationWebSocketHandler;
+
+    /**
+     * Revalue the portfolios holding the ticked symbol and push the deltas
+     */
+    @KafkaListener(
+            topics = "${kafka.topics.market-price-updates}",
+            containerFactory = "eventMessageListenerContainerFactory",
+            groupId = "portfolio-valuation-${market.data.instance-id:${random.uuid}}",
+            properties = "auto.offset.reset=latest"
+    )
+    public void onPriceUpdate(EventMessage event, Acknowledgment ack) {
+        try {
+            if (event != null && Boolean.TRUE.equals(event.getSuccess())
+                    && "MARKET_PRICES_UPDATED".equals(event.getType())) {
+                PriceUpdatePayload tick = event.getPayloadAs(PriceUpdatePayload.class);
+                if (tick.getSymbol() != null && tick.getPrice() != null) {
+                    List<PortfolioValuationUpdate> updates =
+                            portfolioValuationService.applyPriceTick(tick.getSymbol(), tick.getPrice());
+                    portfolioValuationWebSocketHandler.sendUpdates(updates);
+                }
+            }
+            ack.acknowledge();
+        } catch (Exception e) {
+            log.error("Error revaluing portfolios for price update: {}", e.getMessage(), e);
+            // A later tick supersedes this one, no need to redeliver
+            ack.acknowledge();
+        }
+    }
+
+    /**
+     * Reload a portfolio in the index and drop the cached general portfolio when its positions change
+     */
+    @KafkaListener(
+            topics = {"${kafka.topics.portfolio-events}", "${kafka.topics.portfolio-events.sell}"},
+            containerFactory = "eventMessageListenerContainerFactory",
+            groupId = "${spring.kafka.consumer.group-id}-portfolio-valuation-${market.data.instance-id:${random.uuid}}",
+            properties = "auto.offset.reset=latest"
+    )
+    public void onPortfolioEvent(EventMessage event, Acknowledgment ack) {
+        try {
+            if (event != null && Boolean.TRUE.equals(event.getSuccess())
+                    && POSITION_CHANGING_EVENTS.contains(event.getType())) {
+                Object userId = event.getPayloadValue("userId");
+                Object accountId = event.getPayloadValue("accountId");
+                if (userId != null) {
+                    portfolioService.evictGeneralPortfolio(userId.toString());
+                }
+                if (userId != null && accountId != null) {
+                    portfolioValuationService.reindexPortfolio(userId.toString(), accountId.toString());
+                }
+            }
+            ack.acknowledge();
+        } catch (Exception e) {
+            log.error("Error reindexing portfolio from event: {}", e.getMessage(), e);
+            throw new RuntimeException("Portfolio event processing failed", e);
+        }
+    }
+}
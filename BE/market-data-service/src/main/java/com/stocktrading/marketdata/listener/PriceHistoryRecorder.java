@@ -0,0 +1,104 @@
+package com.stocktrading.marketdata.listener;
+
+import com.project.kafkamessagemodels.model.EventMessage;
+import com.project.kafkamessagemodels.model.payload.PriceUpdatePayload;
+import com.stocktrading.marketdata.model.PriceTick;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persists price ticks so charts can go back further than the in-memory history.
+ * Each poll is written with one bulk insert, and ticks older than the retention expire through a TTL index.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class PriceHistoryRecorder {
+
+    private final MongoTemplate mongoTemplate;
+
+    // Covers the longest chart range
+    @Value("${market.data.chart.retention-days:366}")
+    private long retentionDays;
+
+    // Index creation is off by default, so make sure the chart query and TTL indexes exist before the first write
+    private volatile boolean indexEnsured;
+
+    @KafkaListener(
+            topics = "${kafka.topics.market-price-updates}",
+            containerFactory = "eventMessageBatchListenerContainerFactory",
+            groupId = "price-history-consumer-group"
+    )
+    public void recordTicks(List<EventMessage> events, Acknowledgment ack) {
+        try {
+            List<PriceTick> ticks = new ArrayList<>(events.size());
+            for (EventMessage event : events) {
+                PriceTick tick = toTick(event);
+                if (tick != null) {
+                    ticks.add(tick);
+                }
+            }
+            if (!ticks.isEmpty()) {
+                ensureIndexes();
+                mongoTemplate.insert(ticks, PriceTick.class);
+            }
+            ack.acknowledge();
+        } catch (Exception e) {
+            log.error("Error recording {} price ticks: {}", events.size(), e.getMessage(), e);
+            throw new RuntimeException("Price tick recording failed", e);
+        }
+    }
+
+    private PriceTick toTick(EventMessage event) {
+        if (event == null || !Boolean.TRUE.equals(event.getSuccess())
+                || !"MARKET_PRICES_UPDATED".equals(event.getType())) {
+            return null;
+        }
+        PriceUpdatePayload tick = event.getPayloadAs(PriceUpdatePayload.class);
+        if (tick.getSymbol() == null || tick.getPrice() == null) {
+            return null;
+        }
+        Instant timestamp = event.getTimestamp() != null ? event.getTimestamp() : Instant.now();
+
+        return new PriceTick(
+                null,
+                tick.getSymbol(),
+                timestamp,
+                tick.getPrice(),
+                tick.getVolume() != null ? tick.getVolume() : 0L
+        );
+    }
+
+    private void ensureIndexes() {
+        if (!indexEnsured) {
+            IndexOperations indexOps = mongoTemplate.indexOps(PriceTick.class);
+            indexOps.ensureIndex(new Index()
+                    .named("symbol_timestamp_idx")
+                    .on("symbol", Sort.Direction.ASC)
+                    .on("timestamp", Sort.Direction.ASC));
+            try {
+                indexOps.ensureIndex(new Index()
+                        .named("timestamp_ttl_idx")
+                        .on("timestamp", Sort.Direction.ASC)
+                        .expire(Duration.ofDays(retentionDays)));
+            } catch (Exception e) {
+                // An existing TTL index with another retention has to be changed in Mongo (collMod)
+                log.warn("Could not ensure price tick TTL index: {}", e.getMessage());
+            }
+            indexEnsured = true;
+        }
+    }
+}
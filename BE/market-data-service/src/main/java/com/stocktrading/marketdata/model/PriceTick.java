@@ -0,0 +1,29 @@
+package com.stocktrading.marketdata.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+/**
+ * One recorded price tick, kept for long-range charts
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "price_ticks")
+@CompoundIndex(name = "symbol_timestamp_idx", def = "{'symbol': 1, 'timestamp': 1}")
+public class PriceTick {
+    @Id
+    private String id;
+
+    private String symbol;
+    private Instant timestamp;
+    private BigDecimal price;
+    private long volume;
+}
@@ -0,0 +1,21 @@
+package com.stocktrading.marketdata.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+
+/**
+ * Reference data of a listed symbol
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class SymbolInfo {
+    private String symbol;
+    private String name;
+    private String sector;
+    private String exchange;
+    private BigDecimal tickSize;
+}
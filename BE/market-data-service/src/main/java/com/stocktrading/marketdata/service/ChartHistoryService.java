@@ -0,0 +1,190 @@
+package com.stocktrading.marketdata.service;
+
+import com.stocktrading.marketdata.dto.response.ChartHistoryResponse;
+import com.stocktrading.marketdata.dto.response.ChartPoint;
+import com.stocktrading.marketdata.model.PriceTick;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Serves long-range price history downsampled on the server.
+ * Ticks are streamed from Mongo in time order and reduced to the min and max of each bucket,
+ * so memory and payload stay bounded by the requested point count whatever the range.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class ChartHistoryService {
+
+    // Popular ranges whose downsampled series are cached
+    private static final Map<String, Duration> PRESET_RANGES = new LinkedHashMap<>();
+
+    static {
+        PRESET_RANGES.put("1D", Duration.ofDays(1));
+        PRESET_RANGES.put("1W", Duration.ofDays(7));
+        PRESET_RANGES.put("1M", Duration.ofDays(30));
+        PRESET_RANGES.put("3M", Duration.ofDays(90));
+        PRESET_RANGES.put("1Y", Duration.ofDays(365));
+    }
+
+    private final MongoTemplate mongoTemplate;
+
+    @Value("${market.data.chart.max-points:2000}")
+    private int maxPoints;
+
+    @Value("${market.data.chart.cache-size:500}")
+    private int cacheSize;
+
+    // Never cache a series for less than one publishing interval
+    @Value("${market.data.chart.min-cache-ttl-ms:15000}")
+    private long minCacheTtlMs;
+
+    // Wide buckets would otherwise hide the latest ticks for hours (a 1Y bucket spans over a day)
+    @Value("${market.data.chart.max-cache-ttl-ms:60000}")
+    private long maxCacheTtlMs;
+
+    // LRU of downsampled preset series, guarded by its own monitor
+    private Map<String, CachedSeries> cache;
+
+    private static class CachedSeries {
+        final ChartHistoryResponse response;
+        final long expiresAt;
+
+        CachedSeries(ChartHistoryResponse response, long expiresAt) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        cache = new LinkedHashMap<String, CachedSeries>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedSeries> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Downsampled history for a preset range ending now, served from cache for at most one bucket width
+     * and never longer than the configured maximum, so the newest bucket stays fresh
+     */
+    public ChartHistoryResponse getHistory(String symbol, String range, int points) {
+        Duration duration = PRESET_RANGES.get(range.toUpperCase(Locale.ROOT));
+        if (duration == null) {
+            throw new IllegalArgumentException("Unsupported range: " + range + ", expected one of " + PRESET_RANGES.keySet());
+        }
+
+        int targetPoints = clampPoints(points);
+        String key = symbol + "|" + range.toUpperCase(Locale.ROOT) + "|" + targetPoints;
+        long now = System.currentTimeMillis();
+
+        CachedSeries cached;
+        synchronized (cache) {
+            cached = cache.get(key);
+        }
+        if (cached != null && cached.expiresAt > now) {
+            return cached.response;
+        }
+
+        Instant to = Instant.ofEpochMilli(now);
+        ChartHistoryResponse response = downsample(symbol, to.minus(duration), to, targetPoints);
+
+        // The series changes when a new bucket opens, or when a tick moves the extremes of the open one
+        long ttl = Math.min(maxCacheTtlMs, Math.max(minCacheTtlMs, bucketWidthMs(duration.toMillis(), targetPoints)));
+        synchronized (cache) {
+            cache.put(key, new CachedSeries(response, now + ttl));
+        }
+        return response;
+    }
+
+    /**
+     * Downsampled history for an arbitrary time range
+     */
+    public ChartHistoryResponse getHistory(String symbol, Instant from, Instant to, int points) {
+        if (from == null || to == null || !from.isBefore(to)) {
+            throw new IllegalArgumentException("'from' must be before 'to'");
+        }
+        return downsample(symbol, from, to, clampPoints(points));
+    }
+
+    private ChartHistoryResponse downsample(String symbol, Instant from, Instant to, int targetPoints) {
+        long fromMs = from.toEpochMilli();
+        long width = bucketWidthMs(to.toEpochMilli() - fromMs, targetPoints);
+
+        Query query = new Query(Criteria.where("symbol").is(symbol).and("timestamp").gte(from).lt(to))
+                .with(Sort.by(Sort.Direction.ASC, "timestamp"));
+        query.fields().include("timestamp").include("price");
+
+        List<ChartPoint> series = new ArrayList<>(targetPoints);
+        long rawPoints = 0;
+        long currentBucket = -1;
+        PriceTick min = null;
+        PriceTick max = null;
+
+        try (CloseableIterator<PriceTick> ticks = mongoTemplate.stream(query, PriceTick.class)) {
+            while (ticks.hasNext()) {
+                PriceTick tick = ticks.next();
+                if (tick.getTimestamp() == null || tick.getPrice() == null) {
+                    continue;
+                }
+                rawPoints++;
+
+                long bucket = (tick.getTimestamp().toEpochMilli() - fromMs) / width;
+                if (bucket != currentBucket) {
+                    flushBucket(series, min, max);
+                    currentBucket = bucket;
+                    min = tick;
+                    max = tick;
+                } else if (tick.getPrice().compareTo(min.getPrice()) < 0) {
+                    min = tick;
+                } else if (tick.getPrice().compareTo(max.getPrice()) > 0) {
+                    max = tick;
+                }
+            }
+        }
+        flushBucket(series, min, max);
+
+        log.debug("Downsampled {} ticks of {} to {} points", rawPoints, symbol, series.size());
+        return new ChartHistoryResponse(symbol, from, to, targetPoints, rawPoints, series);
+    }
+
+    // Emit the extremes of a bucket in time order so the line keeps its shape
+    private void flushBucket(List<ChartPoint> series, PriceTick min, PriceTick max) {
+        if (min == null) {
+            return;
+        }
+        if (min == max) {
+            series.add(new ChartPoint(min.getTimestamp(), min.getPrice()));
+        } else if (min.getTimestamp().isBefore(max.getTimestamp())) {
+            series.add(new ChartPoint(min.getTimestamp(), min.getPrice()));
+            series.add(new ChartPoint(max.getTimestamp(), max.getPrice()));
+        } else {
+            series.add(new ChartPoint(max.getTimestamp(), max.getPrice()));
+            series.add(new ChartPoint(min.getTimestamp(), min.getPrice()));
+        }
+    }
+
+    // Each bucket yields up to two points (min and max)
+    private long bucketWidthMs(long rangeMs, int targetPoints) {
+        int buckets = Math.max(1, targetPoints / 2);
+        return Math.max(1, (rangeMs + buckets - 1) / buckets);
+    }
+
+    private int clampPoints(int points) {
+        return Math.max(2, Math.min(points, maxPoints));
+    }
+}
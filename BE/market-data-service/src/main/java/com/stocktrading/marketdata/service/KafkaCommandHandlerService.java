@@ -2,6 +2,7 @@ package com.stocktrading.marketdata.service;
 
 import com.project.kafkamessagemodels.model.CommandMessage;
 import com.project.kafkamessagemodels.model.EventMessage;
+import com.project.kafkamessagemodels.model.payload.MarketPricePayload;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
@@ -32,7 +33,7 @@ public class KafkaCommandHandlerService {
     public void handleValidateStock(CommandMessage command, String responseTopic) {
         log.info("Handling MARKET_VALIDATE_STOCK command for saga: {}", command.getSagaId());
 
-        String stockSymbol = command.getPayloadValue("stockSymbol");
+        String stockSymbol = command.getPayloadAs(MarketPricePayload.class).getStockSymbol();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -81,7 +82,7 @@ public class KafkaCommandHandlerService {
     public void handleGetPrice(CommandMessage command, String responseTopic) {
         log.info("Handling MARKET_GET_PRICE command for saga: {}", command.getSagaId());
 
-        String stockSymbol = command.getPayloadValue("stockSymbol");
+        String stockSymbol = command.getPayloadAs(MarketPricePayload.class).getStockSymbol();
 
         // Create response event
         EventMessage event = new EventMessage();
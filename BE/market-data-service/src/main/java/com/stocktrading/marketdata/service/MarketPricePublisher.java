@@ -30,6 +30,7 @@ import java.util.concurrent.ConcurrentHashMap;
 public class MarketPricePublisher {
 
     private final KafkaTemplate<String, Object> kafkaTemplate;
+    private final SymbolRegistry symbolRegistry;
     private final Random random = new Random();
 
     // Map to store the last price for each symbol to create realistic price movements
@@ -371,7 +372,7 @@ public class MarketPricePublisher {
             Map<String, Object> data = getCurrentStockData(symbol);
             if (data != null) {
                 // Add company name
-                data.put("name", getCompanyName(symbol));
+                data.put("name", symbolRegistry.getCompanyName(symbol));
                 result.add(data);
             }
         }
@@ -416,26 +417,4 @@ public class MarketPricePublisher {
             log.info("Added symbol {} to tracked list", symbol);
         }
     }
-
-    // Mock method to get company names - in production, you'd load from a database
-    private String getCompanyName(String symbol) {
-        Map<String, String> companyNames = new HashMap<>();
-        companyNames.put("AAPL", "APPLE INC.");
-        companyNames.put("MSFT", "MICROSOFT CORP.");
-        companyNames.put("GOOGL", "ALPHABET INC.");
-        companyNames.put("AMZN", "AMAZON.COM INC.");
-        companyNames.put("META", "META PLATFORMS INC.");
-        companyNames.put("TSLA", "TESLA INC.");
-        companyNames.put("NVDA", "NVIDIA CORP.");
-        companyNames.put("JPM", "JPMORGAN CHASE & CO.");
-        companyNames.put("V", "VISA INC.");
-        companyNames.put("ABBV", "ABBVIE INC.");
-        companyNames.put("JNJ", "JOHNSON & JOHNSON");
-        companyNames.put("WMT", "WALMART INC.");
-        companyNames.put("PG", "PROCTER & GAMBLE CO.");
-        companyNames.put("MA", "MASTERCARD INC.");
-        companyNames.put("UNH", "UNITEDHEALTH GROUP INC.");
-
-        return companyNames.getOrDefault(symbol, symbol + " CORP.");
-    }
 }
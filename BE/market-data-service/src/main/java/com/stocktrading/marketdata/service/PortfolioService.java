@@ -5,4 +5,5 @@ import com.stocktrading.marketdata.common.BaseResponse;
 public interface PortfolioService {
     BaseResponse<?> getPortfolio(String userId, String accountId);
     BaseResponse<?> getGeneralPortfolio(String userId);
+    void evictGeneralPortfolio(String userId);
 }
@@ -0,0 +1,304 @@
+package com.stocktrading.marketdata.service;
+
+import com.stocktrading.marketdata.dto.response.PortfolioValuationUpdate;
+import com.stocktrading.marketdata.model.Portfolio;
+import com.stocktrading.marketdata.model.PositionInfo;
+import com.stocktrading.marketdata.model.PriceTick;
+import com.stocktrading.marketdata.repository.PortfolioRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps live market value and unrealized P&L for every portfolio.
+ * A reverse index from symbol to the portfolios holding it lets a price tick
+ * touch only the affected portfolios instead of rescanning the collection.
+ * Symbols not ticked since startup are priced from the newest recorded tick, and a portfolio holding a symbol
+ * with no market price at all is valued at its stored position prices and flagged stale until that symbol ticks.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class PortfolioValuationService {
+
+    private final PortfolioRepository portfolioRepository;
+    private final MongoTemplate mongoTemplate;
+
+    // symbol -> keys of the portfolios that currently hold it
+    private final Map<String, Set<String>> holdersBySymbol = new ConcurrentHashMap<>();
+
+    // portfolio key (userId:accountId) -> live holdings
+    private final Map<String, PortfolioHoldings> holdingsByKey = new ConcurrentHashMap<>();
+
+    // userId -> portfolio keys owned by that user
+    private final Map<String, Set<String>> keysByUser = new ConcurrentHashMap<>();
+
+    // Last price seen for every symbol, used when a portfolio is (re)indexed between ticks
+    private final Map<String, BigDecimal> lastPrices = new ConcurrentHashMap<>();
+
+    // Symbols looked up in the recorded ticks without finding any
+    private final Set<String> unrecordedSymbols = ConcurrentHashMap.newKeySet();
+
+    // Live view of one portfolio, guarded by its own monitor
+    private static class PortfolioHoldings {
+        final String userId;
+        final String accountId;
+        final Map<String, PositionInfo> positions = new HashMap<>();
+        final Map<String, BigDecimal> prices = new HashMap<>();
+        // Held symbols valued at a stored position price because no market price is known yet
+        final Set<String> unpriced = new HashSet<>();
+        BigDecimal marketValue = BigDecimal.ZERO;
+        BigDecimal costBasis = BigDecimal.ZERO;
+
+        PortfolioHoldings(String userId, String accountId) {
+            this.userId = userId;
+            this.accountId = accountId;
+        }
+    }
+
+    /**
+     * Build the index from the portfolios collection once the application is up
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadIndex() {
+        try {
+            List<Portfolio> portfolios = portfolioRepository.findAll();
+            Set<String> symbols = new HashSet<>();
+            for (Portfolio portfolio : portfolios) {
+                if (portfolio.getPositions() != null) {
+                    portfolio.getPositions().forEach(position -> symbols.add(position.getStockSymbol()));
+                }
+            }
+            seedPrices(symbols);
+            for (Portfolio portfolio : portfolios) {
+                index(portfolio);
+            }
+            log.info("Portfolio valuation index built: {} portfolios, {} symbols",
+                    holdingsByKey.size(), holdersBySymbol.size());
+        } catch (Exception e) {
+            log.error("Could not build portfolio valuation index, it will fill from portfolio events: {}",
+                    e.getMessage());
+        }
+    }
+
+    /**
+     * Reload a single portfolio after a position-changing event
+     */
+    public void reindexPortfolio(String userId, String accountId) {
+        if (userId == null || accountId == null) {
+            return;
+        }
+
+        Optional<Portfolio> portfolio = portfolioRepository.findPortfolioByAccountIdAndUserId(accountId, userId);
+        if (portfolio.isPresent()) {
+            if (portfolio.get().getPositions() != null) {
+                Set<String> symbols = new HashSet<>();
+                portfolio.get().getPositions().forEach(position -> symbols.add(position.getStockSymbol()));
+                seedPrices(symbols);
+            }
+            index(portfolio.get());
+        } else {
+            unindex(key(userId, accountId));
+        }
+        log.debug("Reindexed portfolio for user: {}, account: {}", userId, accountId);
+    }
+
+    /**
+     * Apply a price tick and return the valuation deltas of the portfolios holding the symbol
+     */
+    public List<PortfolioValuationUpdate> applyPriceTick(String symbol, BigDecimal price) {
+        if (symbol == null || price == null) {
+            return Collections.emptyList();
+        }
+
+        lastPrices.put(symbol, price);
+        Set<String> holders = holdersBySymbol.get(symbol);
+        if (holders == null || holders.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        String timestamp = Instant.now().toString();
+        List<PortfolioValuationUpdate> updates = new ArrayList<>(holders.size());
+        for (String key : holders) {
+            PortfolioHoldings holdings = holdingsByKey.get(key);
+            if (holdings == null) {
+                continue;
+            }
+
+            synchronized (holdings) {
+                PositionInfo position = holdings.positions.get(symbol);
+                if (position == null) {
+                    continue;
+                }
+
+                BigDecimal quantity = BigDecimal.valueOf(position.getQuantity());
+                BigDecimal previousPrice = holdings.prices.put(symbol, price);
+                holdings.unpriced.remove(symbol);
+                if (previousPrice != null) {
+                    holdings.marketValue = holdings.marketValue.add(price.subtract(previousPrice).multiply(quantity));
+                } else {
+                    holdings.marketValue = holdings.marketValue.add(price.multiply(quantity));
+                }
+
+                BigDecimal positionMarketValue = price.multiply(quantity);
+                updates.add(PortfolioValuationUpdate.builder()
+                        .type("update")
+                        .userId(holdings.userId)
+                        .accountId(holdings.accountId)
+                        .symbol(symbol)
+                        .price(price)
+                        .quantity(position.getQuantity())
+                        .positionMarketValue(positionMarketValue)
+                        .positionUnrealizedPnl(positionMarketValue.subtract(costOf(position)))
+                        .marketValue(holdings.marketValue)
+                        .costBasis(holdings.costBasis)
+                        .unrealizedPnl(holdings.marketValue.subtract(holdings.costBasis))
+                        .stale(!holdings.unpriced.isEmpty())
+                        .timestamp(timestamp)
+                        .build());
+            }
+        }
+        return updates;
+    }
+
+    /**
+     * Current totals of every portfolio owned by the user
+     */
+    public List<PortfolioValuationUpdate> getSnapshot(String userId) {
+        Set<String> keys = keysByUser.get(userId);
+        if (keys == null || keys.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        String timestamp = Instant.now().toString();
+        List<PortfolioValuationUpdate> snapshot = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            PortfolioHoldings holdings = holdingsByKey.get(key);
+            if (holdings == null) {
+                continue;
+            }
+            synchronized (holdings) {
+                snapshot.add(PortfolioValuationUpdate.builder()
+                        .type("snapshot")
+                        .userId(holdings.userId)
+                        .accountId(holdings.accountId)
+                        .marketValue(holdings.marketValue)
+                        .costBasis(holdings.costBasis)
+                        .unrealizedPnl(holdings.marketValue.subtract(holdings.costBasis))
+                        .stale(!holdings.unpriced.isEmpty())
+                        .timestamp(timestamp)
+                        .build());
+            }
+        }
+        return snapshot;
+    }
+
+    private void index(Portfolio portfolio) {
+        if (portfolio.getUserId() == null || portfolio.getAccountId() == null) {
+            return;
+        }
+
+        String key = key(portfolio.getUserId(), portfolio.getAccountId());
+        PortfolioHoldings holdings = new PortfolioHoldings(portfolio.getUserId(), portfolio.getAccountId());
+        if (portfolio.getPositions() != null) {
+            for (PositionInfo position : portfolio.getPositions()) {
+                if (position.getStockSymbol() == null || position.getQuantity() <= 0) {
+                    continue;
+                }
+                String symbol = position.getStockSymbol();
+                BigDecimal marketPrice = lastPrices.get(symbol);
+                BigDecimal price = marketPrice != null ? marketPrice : storedPriceOf(position);
+                BigDecimal quantity = BigDecimal.valueOf(position.getQuantity());
+
+                holdings.positions.put(symbol, position);
+                holdings.prices.put(symbol, price);
+                if (marketPrice == null) {
+                    holdings.unpriced.add(symbol);
+                }
+                holdings.marketValue = holdings.marketValue.add(price.multiply(quantity));
+                holdings.costBasis = holdings.costBasis.add(costOf(position));
+            }
+        }
+
+        PortfolioHoldings previous = holdingsByKey.put(key, holdings);
+        if (previous != null) {
+            for (String symbol : previous.positions.keySet()) {
+                if (!holdings.positions.containsKey(symbol)) {
+                    removeHolder(symbol, key);
+                }
+            }
+        }
+        for (String symbol : holdings.positions.keySet()) {
+            holdersBySymbol.computeIfAbsent(symbol, s -> ConcurrentHashMap.newKeySet()).add(key);
+        }
+        keysByUser.computeIfAbsent(holdings.userId, u -> ConcurrentHashMap.newKeySet()).add(key);
+    }
+
+    private void unindex(String key) {
+        PortfolioHoldings previous = holdingsByKey.remove(key);
+        if (previous == null) {
+            return;
+        }
+        for (String symbol : previous.positions.keySet()) {
+            removeHolder(symbol, key);
+        }
+        Set<String> keys = keysByUser.get(previous.userId);
+        if (keys != null) {
+            keys.remove(key);
+        }
+    }
+
+    private void removeHolder(String symbol, String key) {
+        Set<String> holders = holdersBySymbol.get(symbol);
+        if (holders != null) {
+            holders.remove(key);
+        }
+    }
+
+    // Price of the newest recorded tick of every symbol not ticked since startup, one indexed lookup per symbol
+    private void seedPrices(Set<String> symbols) {
+        for (String symbol : symbols) {
+            if (symbol == null || lastPrices.containsKey(symbol) || unrecordedSymbols.contains(symbol)) {
+                continue;
+            }
+            Query query = Query.query(Criteria.where("symbol").is(symbol))
+                    .with(Sort.by(Sort.Direction.DESC, "timestamp"))
+                    .limit(1);
+            query.fields().include("price");
+            PriceTick tick = mongoTemplate.findOne(query, PriceTick.class);
+            if (tick != null && tick.getPrice() != null) {
+                // A live tick that arrived meanwhile is newer
+                lastPrices.putIfAbsent(symbol, tick.getPrice());
+            } else {
+                unrecordedSymbols.add(symbol);
+            }
+        }
+    }
+
+    private BigDecimal storedPriceOf(PositionInfo position) {
+        BigDecimal price = position.getCurrentPrice() != null ? position.getCurrentPrice() : position.getAveragePrice();
+        return price != null ? price : BigDecimal.ZERO;
+    }
+
+    private BigDecimal costOf(PositionInfo position) {
+        if (position.getAveragePrice() == null) {
+            return BigDecimal.ZERO;
+        }
+        return position.getAveragePrice().multiply(BigDecimal.valueOf(position.getQuantity()));
+    }
+
+    private String key(String userId, String accountId) {
+        return userId + ":" + accountId;
+    }
+}
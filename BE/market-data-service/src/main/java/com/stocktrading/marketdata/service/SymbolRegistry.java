@@ -0,0 +1,268 @@
+package com.stocktrading.marketdata.service;
+
+import com.stocktrading.marketdata.model.SymbolInfo;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Symbol reference data loaded once at startup from a CSV file.
+ * Every 1-3 character n-gram of the lowercased symbol and name is indexed,
+ * so type-ahead lookups read a posting list instead of scanning and lowercasing every listing.
+ */
+@Slf4j
+@Service
+public class SymbolRegistry {
+
+    private static final int MAX_GRAM = 3;
+
+    @Value("${market.data.symbols-file:classpath:data/symbols.csv}")
+    private Resource symbolsFile;
+
+    private volatile Index index = new Index(Collections.emptyList());
+
+    // Immutable snapshot of the listings and their n-gram postings
+    private static class Index {
+        final SymbolInfo[] listings;
+        final String[] symbolKeys;
+        final String[] nameKeys;
+        final Map<String, SymbolInfo> bySymbol = new HashMap<>();
+        final Map<String, int[]> postings = new HashMap<>();
+
+        Index(List<SymbolInfo> symbols) {
+            listings = symbols.toArray(new SymbolInfo[0]);
+            symbolKeys = new String[listings.length];
+            nameKeys = new String[listings.length];
+
+            Map<String, List<Integer>> grams = new HashMap<>();
+            for (int i = 0; i < listings.length; i++) {
+                symbolKeys[i] = listings[i].getSymbol().toLowerCase(Locale.ROOT);
+                nameKeys[i] = listings[i].getName() != null ? listings[i].getName().toLowerCase(Locale.ROOT) : "";
+                bySymbol.put(listings[i].getSymbol(), listings[i]);
+                addGrams(grams, symbolKeys[i], i);
+                addGrams(grams, nameKeys[i], i);
+            }
+
+            grams.forEach((gram, ids) -> postings.put(gram, ids.stream().mapToInt(Integer::intValue).toArray()));
+        }
+
+        private static void addGrams(Map<String, List<Integer>> grams, String key, int id) {
+            for (int start = 0; start < key.length(); start++) {
+                for (int len = 1; len <= MAX_GRAM && start + len <= key.length(); len++) {
+                    List<Integer> ids = grams.computeIfAbsent(key.substring(start, start + len), g -> new ArrayList<>());
+                    // Ids are added in increasing order, so a duplicate can only be the last element
+                    if (ids.isEmpty() || ids.get(ids.size() - 1) != id) {
+                        ids.add(id);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Load the symbol file and build the search index
+     */
+    @PostConstruct
+    public void load() {
+        List<SymbolInfo> symbols = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(symbolsFile.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                List<String> fields = parseCsvLine(line);
+                if (fields == null || fields.size() < 2) {
+                    log.warn("Skipping malformed symbol line: {}", line);
+                    continue;
+                }
+                BigDecimal tickSize;
+                try {
+                    tickSize = fields.size() > 4 ? new BigDecimal(fields.get(4)) : new BigDecimal("0.01");
+                } catch (NumberFormatException e) {
+                    log.warn("Skipping symbol line with invalid tick size: {}", line);
+                    continue;
+                }
+                symbols.add(new SymbolInfo(
+                        fields.get(0).toUpperCase(Locale.ROOT),
+                        fields.get(1),
+                        fields.size() > 2 ? fields.get(2) : null,
+                        fields.size() > 3 ? fields.get(3) : null,
+                        tickSize
+                ));
+            }
+        } catch (IOException e) {
+            log.error("Could not load symbol reference data from {}: {}", symbolsFile, e.getMessage());
+        }
+
+        index = new Index(symbols);
+        log.info("Symbol registry loaded {} listings ({} n-grams)", symbols.size(), index.postings.size());
+    }
+
+    /**
+     * Split one CSV record into trimmed fields. Fields may be quoted, so names can hold commas,
+     * and a doubled quote inside a quoted field stands for one quote. Null if a quote is left open.
+     */
+    static List<String> parseCsvLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            return null;
+        }
+        fields.add(field.toString().trim());
+        return fields;
+    }
+
+    /**
+     * Reference data of a symbol, or null if it is not listed
+     */
+    public SymbolInfo get(String symbol) {
+        return symbol != null ? index.bySymbol.get(symbol) : null;
+    }
+
+    /**
+     * Company name of a symbol, falling back to a generated name for unknown symbols
+     */
+    public String getCompanyName(String symbol) {
+        if (symbol == null) {
+            return "Unknown Company";
+        }
+        SymbolInfo info = index.bySymbol.get(symbol);
+        return info != null ? info.getName() : symbol + " Corp";
+    }
+
+    /**
+     * Symbols whose ticker or name contains the query, case-insensitive, in no particular order
+     */
+    public Set<String> matchingSymbols(String query) {
+        Index current = index;
+        Set<String> result = new HashSet<>();
+        for (int id : candidates(current, normalize(query))) {
+            result.add(current.listings[id].getSymbol());
+        }
+        return result;
+    }
+
+    /**
+     * Type-ahead search: exact ticker first, then ticker prefix, name prefix, and any other match
+     */
+    public List<SymbolInfo> search(String query, int limit) {
+        Index current = index;
+        String q = normalize(query);
+        if (q.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+
+        int[] ids = candidates(current, q);
+        String wordStart = " " + q;
+        // Keep only the best limit matches, ordered, instead of sorting every candidate of a short query
+        long[] top = new long[Math.min(limit, ids.length)];
+        int size = 0;
+        for (int id : ids) {
+            // Pack rank, ticker length and id into one long so that comparing them orders the matches
+            long key = (rank(current, id, q, wordStart) << 48) | ((long) current.symbolKeys[id].length() << 32) | id;
+            if (size == top.length && key >= top[size - 1]) {
+                continue;
+            }
+            int at = Arrays.binarySearch(top, 0, size, key);
+            at = at < 0 ? -at - 1 : at;
+            int moved = Math.min(size, top.length - 1) - at;
+            System.arraycopy(top, at, top, at + 1, moved);
+            top[at] = key;
+            size = Math.min(size + 1, top.length);
+        }
+
+        List<SymbolInfo> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(current.listings[(int) top[i]]);
+        }
+        return result;
+    }
+
+    private int[] candidates(Index current, String q) {
+        if (q.isEmpty()) {
+            int[] all = new int[current.listings.length];
+            for (int i = 0; i < all.length; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+
+        if (q.length() <= MAX_GRAM) {
+            int[] ids = current.postings.get(q);
+            return ids != null ? ids : new int[0];
+        }
+
+        // Longer queries: verify the listings of the rarest trigram
+        int[] rarest = null;
+        for (int start = 0; start + MAX_GRAM <= q.length(); start++) {
+            int[] ids = current.postings.get(q.substring(start, start + MAX_GRAM));
+            if (ids == null) {
+                return new int[0];
+            }
+            if (rarest == null || ids.length < rarest.length) {
+                rarest = ids;
+            }
+        }
+
+        int[] matches = new int[rarest.length];
+        int count = 0;
+        for (int id : rarest) {
+            if (current.symbolKeys[id].contains(q) || current.nameKeys[id].contains(q)) {
+                matches[count++] = id;
+            }
+        }
+        return Arrays.copyOf(matches, count);
+    }
+
+    private long rank(Index current, int id, String q, String wordStart) {
+        String symbol = current.symbolKeys[id];
+        if (symbol.equals(q)) {
+            return 0;
+        }
+        if (symbol.startsWith(q)) {
+            return 1;
+        }
+        String name = current.nameKeys[id];
+        if (name.startsWith(q) || name.contains(wordStart)) {
+            return 2;
+        }
+        return 3;
+    }
+
+    private String normalize(String query) {
+        return query == null ? "" : query.trim().toLowerCase(Locale.ROOT);
+    }
+}
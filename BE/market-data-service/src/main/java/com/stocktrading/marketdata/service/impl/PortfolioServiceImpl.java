@@ -1,5 +1,6 @@
 package com.stocktrading.marketdata.service.impl;
 
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.stocktrading.marketdata.common.BaseResponse;
 import com.stocktrading.marketdata.common.Const;
 import com.stocktrading.marketdata.dto.response.GetGeneralPortfolioResponse;
@@ -7,18 +8,55 @@ import com.stocktrading.marketdata.model.Portfolio;
 import com.stocktrading.marketdata.model.PositionInfo;
 import com.stocktrading.marketdata.repository.PortfolioRepository;
 import com.stocktrading.marketdata.service.PortfolioService;
-import lombok.AllArgsConstructor;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.ArithmeticOperators;
+import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
-import java.util.HashMap;
+import javax.annotation.PostConstruct;
 import java.util.List;
+import java.util.concurrent.ConcurrentMap;
 
 @Service
 @Transactional
-@AllArgsConstructor
+@RequiredArgsConstructor
 public class PortfolioServiceImpl implements PortfolioService {
     private final PortfolioRepository portfolioRepository;
+    private final MongoTemplate mongoTemplate;
+
+    // Upper bound on staleness in case a portfolio event is missed
+    @Value("${market.data.portfolio.cache-ttl-ms:60000}")
+    private long cacheTtlMs;
+
+    @Value("${market.data.portfolio.cache-size:10000}")
+    private int cacheSize;
+
+    // Bounded userId -> merged portfolio, evicted by portfolio events; reads of different users never wait on each other
+    private ConcurrentMap<String, CachedPortfolio> generalPortfolioCache;
+
+    // A load in progress is marked by an entry without response, which an eviction removes
+    private static class CachedPortfolio {
+        final GetGeneralPortfolioResponse response;
+        final long loadedAt;
+
+        CachedPortfolio(GetGeneralPortfolioResponse response, long loadedAt) {
+            this.response = response;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        generalPortfolioCache = Caffeine.newBuilder()
+                .maximumSize(cacheSize)
+                .<String, CachedPortfolio>build()
+                .asMap();
+    }
 
     @Override
     public BaseResponse<?> getPortfolio(String accountId, String userId) {
@@ -39,29 +77,60 @@ public class PortfolioServiceImpl implements PortfolioService {
 
     @Override
     public BaseResponse<?> getGeneralPortfolio(String userId) {
-        GetGeneralPortfolioResponse response = new GetGeneralPortfolioResponse();
-        List<Portfolio> portfolios = portfolioRepository.getPortfoliosByUserId(userId);
-        HashMap<String, PositionInfo> map = new HashMap<>();
-        for (Portfolio portfolio : portfolios) {
-            List<PositionInfo> positions = portfolio.getPositions();
-            for (PositionInfo positionInfo : positions) {
-                if (map.containsKey(positionInfo.getStockSymbol())) {
-                    positionInfo.setQuantity(map.get(positionInfo.getStockSymbol()).getQuantity() + positionInfo.getQuantity());
-                    map.put(positionInfo.getStockSymbol(), positionInfo);
-                }
-                else {
-                    map.put(positionInfo.getStockSymbol(), positionInfo);
-                }
-            }
+        long now = System.currentTimeMillis();
+        CachedPortfolio cached = generalPortfolioCache.get(userId);
+        if (cached == null || cached.response == null || now - cached.loadedAt > cacheTtlMs) {
+            CachedPortfolio loading = new CachedPortfolio(null, now);
+            generalPortfolioCache.put(userId, loading);
+
+            GetGeneralPortfolioResponse response = new GetGeneralPortfolioResponse();
+            response.setPositions(aggregatePositions(userId));
+            response.setUserId(userId);
+            response.setName("My portfolio");
+
+            cached = new CachedPortfolio(response, now);
+            // Only if no portfolio event evicted the user while loading, the result may predate it
+            generalPortfolioCache.replace(userId, loading, cached);
         }
-        response.setPositions(map.values().stream().toList());
-        response.setUserId(userId);
-        response.setName("My portfolio");
 
         return new BaseResponse<>(
             Const.STATUS_RESPONSE.SUCCESS,
             "General portfolio retrieved successfully",
-            response
+            cached.response
         );
     }
+
+    @Override
+    public void evictGeneralPortfolio(String userId) {
+        if (userId != null) {
+            generalPortfolioCache.remove(userId);
+        }
+    }
+
+    /**
+     * Merge the positions of all the user's portfolios in Mongo:
+     * one row per symbol with the total quantity and the quantity-weighted average price
+     */
+    private List<PositionInfo> aggregatePositions(String userId) {
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.match(Criteria.where("userId").is(userId)),
+                Aggregation.unwind("positions"),
+                Aggregation.match(Criteria.where("positions.quantity").gt(0)),
+                // Oldest first, so the group's last price is the most recently updated one
+                Aggregation.sort(Sort.Direction.ASC, "positions.updatedAt"),
+                Aggregation.group("positions.stockSymbol")
+                        .sum("positions.quantity").as("quantity")
+                        .sum(ArithmeticOperators.Multiply.valueOf("positions.quantity")
+                                .multiplyBy("positions.averagePrice")).as("totalCost")
+                        .last("positions.currentPrice").as("currentPrice")
+                        .min("positions.acquiredAt").as("acquiredAt")
+                        .max("positions.updatedAt").as("updatedAt"),
+                Aggregation.project("quantity", "currentPrice", "acquiredAt", "updatedAt")
+                        .and("stockSymbol").previousOperation()
+                        .and(ArithmeticOperators.Divide.valueOf("totalCost").divideBy("quantity")).as("averagePrice"),
+                Aggregation.sort(Sort.Direction.ASC, "stockSymbol")
+        );
+
+        return mongoTemplate.aggregate(aggregation, Portfolio.class, PositionInfo.class).getMappedResults();
+    }
 }
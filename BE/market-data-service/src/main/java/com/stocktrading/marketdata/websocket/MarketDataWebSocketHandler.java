@@ -17,7 +17,9 @@ import org.springframework.web.socket.handler.TextWebSocketHandler;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.project.kafkamessagemodels.model.EventMessage;
+import com.project.kafkamessagemodels.model.payload.PriceUpdatePayload;
 import com.stocktrading.marketdata.service.MarketPricePublisher;
+import com.stocktrading.marketdata.service.SymbolRegistry;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -31,6 +33,9 @@ public class MarketDataWebSocketHandler extends TextWebSocketHandler {
     @Autowired
     private MarketPricePublisher marketPricePublisher;
 
+    @Autowired
+    private SymbolRegistry symbolRegistry;
+
     // Store sessions and their filter preferences
     private final List<WebSocketSession> sessions = new CopyOnWriteArrayList<>();
     private final Map<String, Map<String, Object>> stockData = new ConcurrentHashMap<>();
@@ -89,26 +94,17 @@ public class MarketDataWebSocketHandler extends TextWebSocketHandler {
     public void handleMarketPriceUpdate(EventMessage event) {
         if ("MARKET_PRICES_UPDATED".equals(event.getType())) {
             try {
-                String symbol = event.getPayloadValue("symbol");
-                BigDecimal price = BigDecimal.valueOf((Double) event.getPayloadValue("price"));
-                BigDecimal bidPrice = BigDecimal.valueOf((Double) event.getPayloadValue("bidPrice"));
-                BigDecimal askPrice = BigDecimal.valueOf((Double) event.getPayloadValue("askPrice"));
-                Object volumeObj = event.getPayloadValue("volume");
-                Long volume;
-                if (volumeObj instanceof Integer) {
-                    volume = ((Integer) volumeObj).longValue();
-                } else if (volumeObj instanceof Long) {
-                    volume = (Long) volumeObj;
-                } else if (volumeObj instanceof Number) {
-                    volume = ((Number) volumeObj).longValue();
-                } else {
-                    volume = 0L; // Default value
-                }
+                PriceUpdatePayload tick = event.getPayloadAs(PriceUpdatePayload.class);
+                String symbol = tick.getSymbol();
+                BigDecimal price = tick.getPrice();
+                BigDecimal bidPrice = tick.getBidPrice();
+                BigDecimal askPrice = tick.getAskPrice();
+                Long volume = tick.getVolume() != null ? tick.getVolume() : 0L;
 
                 // Update current stock data
                 Map<String, Object> stockInfo = new HashMap<>();
                 stockInfo.put("symbol", symbol);
-                stockInfo.put("name", getCompanyName(symbol));
+                stockInfo.put("name", symbolRegistry.getCompanyName(symbol));
                 stockInfo.put("price", price);
                 stockInfo.put("bidPrice", bidPrice);
                 stockInfo.put("askPrice", askPrice);
@@ -181,14 +177,27 @@ public class MarketDataWebSocketHandler extends TextWebSocketHandler {
     private void sendFilteredData(WebSocketSession session, String filter) throws IOException {
         List<Map<String, Object>> filteredStocks = new ArrayList<>();
 
-        for (Map<String, Object> stock : stockData.values()) {
-            String symbol = (String) stock.get("symbol");
-            String name = (String) stock.get("name");
-
-            if (filter == null || filter.isEmpty() ||
-                    symbol.toLowerCase().contains(filter.toLowerCase()) ||
-                    name.toLowerCase().contains(filter.toLowerCase())) {
-                filteredStocks.add(stock);
+        if (filter == null || filter.isEmpty()) {
+            filteredStocks.addAll(stockData.values());
+        } else {
+            // Resolve the filter against the registry index instead of lowercasing every name
+            Set<String> matches = symbolRegistry.matchingSymbols(filter);
+            String lowerFilter = null;
+            for (Map<String, Object> stock : stockData.values()) {
+                String symbol = (String) stock.get("symbol");
+                if (matches.contains(symbol)) {
+                    filteredStocks.add(stock);
+                } else if (symbolRegistry.get(symbol) == null) {
+                    // Symbols added at runtime are not in the registry, match them the old way
+                    if (lowerFilter == null) {
+                        lowerFilter = filter.trim().toLowerCase(Locale.ROOT);
+                    }
+                    String name = (String) stock.get("name");
+                    if ((symbol != null && symbol.toLowerCase(Locale.ROOT).contains(lowerFilter))
+                            || (name != null && name.toLowerCase(Locale.ROOT).contains(lowerFilter))) {
+                        filteredStocks.add(stock);
+                    }
+                }
             }
         }
 
@@ -243,26 +252,4 @@ public class MarketDataWebSocketHandler extends TextWebSocketHandler {
             log.error("Error preparing broadcast message", e);
         }
     }
-
-    // Mock method for company names - in production, you'd load this from a database
-    private String getCompanyName(String symbol) {
-        Map<String, String> companyNames = new HashMap<>();
-        companyNames.put("AAPL", "APPLE INC.");
-        companyNames.put("MSFT", "MICROSOFT CORP.");
-        companyNames.put("GOOGL", "ALPHABET INC.");
-        companyNames.put("AMZN", "AMAZON.COM INC.");
-        companyNames.put("META", "META PLATFORMS INC.");
-        companyNames.put("TSLA", "TESLA INC.");
-        companyNames.put("NVDA", "NVIDIA CORP.");
-        companyNames.put("JPM", "JPMORGAN CHASE & CO.");
-        companyNames.put("V", "VISA INC.");
-        companyNames.put("ABBV", "ABBVIE INC.");
-        companyNames.put("JNJ", "JOHNSON & JOHNSON");
-        companyNames.put("WMT", "WALMART INC.");
-        companyNames.put("PG", "PROCTER & GAMBLE CO.");
-        companyNames.put("MA", "MASTERCARD INC.");
-        companyNames.put("UNH", "UNITEDHEALTH GROUP INC.");
-
-        return companyNames.getOrDefault(symbol, symbol + " CORP.");
-    }
 }
\ No newline at end of file
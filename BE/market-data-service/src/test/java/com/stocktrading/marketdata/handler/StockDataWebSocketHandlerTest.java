@@ -0,0 +1,167 @@
+package com.stocktrading.marketdata.handler;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.project.kafkamessagemodels.model.EventMessage;
+import com.stocktrading.marketdata.service.SymbolRegistry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.math.BigDecimal;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class StockDataWebSocketHandlerTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private SimpleMeterRegistry meterRegistry;
+    private StockDataWebSocketHandler handler;
+
+    @BeforeEach
+    void setUp() {
+        SymbolRegistry symbolRegistry = mock(SymbolRegistry.class);
+        when(symbolRegistry.getCompanyName("AAPL")).thenReturn("Apple Inc.");
+        meterRegistry = new SimpleMeterRegistry();
+        handler = new StockDataWebSocketHandler(symbolRegistry, meterRegistry);
+        ReflectionTestUtils.setField(handler, "maxBatchWindowMs", 1000L);
+        ReflectionTestUtils.setField(handler, "sendTimeLimitMs", 5000);
+        ReflectionTestUtils.setField(handler, "bufferSizeLimit", 512 * 1024);
+    }
+
+    @AfterEach
+    void tearDown() {
+        handler.shutdown();
+    }
+
+    @Test
+    void aTickIsSentToImmediateSessionsAsAStockUpdate() throws Exception {
+        WebSocketSession session = connect("s-1", null);
+        Acknowledgment ack = mock(Acknowledgment.class);
+
+        handler.broadcastStockUpdate(tick("AAPL", "187.42"), ack);
+
+        JsonNode update = objectMapper.readTree(sent(session).get(0).getPayload());
+        assertEquals("AAPL", update.get("symbol").asText());
+        assertEquals("Apple Inc.", update.get("company").asText());
+        assertEquals(0, new BigDecimal("187.42").compareTo(update.get("price").decimalValue()));
+        assertEquals(1200, update.get("volume").asLong());
+        verify(ack).acknowledge();
+    }
+
+    @Test
+    void bothEntryPointsBuildTheSameUpdate() throws Exception {
+        WebSocketSession session = connect("s-1", null);
+
+        handler.broadcastStockUpdate(tick("AAPL", "187.42"), mock(Acknowledgment.class));
+        handler.processAndBroadcastEvent(tick("AAPL", "187.42"));
+
+        List<TextMessage> frames = sent(session);
+        assertEquals(2, frames.size());
+        assertEquals(frames.get(0).getPayload(), frames.get(1).getPayload());
+    }
+
+    @Test
+    void unusableEventsAreAcknowledgedWithoutSending() throws Exception {
+        WebSocketSession session = connect("s-1", null);
+        Acknowledgment ack = mock(Acknowledgment.class);
+        EventMessage failed = tick("AAPL", "187.42");
+        failed.setSuccess(false);
+        EventMessage empty = tick("AAPL", "187.42");
+        empty.setPayload(null);
+
+        handler.broadcastStockUpdate(null, ack);
+        handler.broadcastStockUpdate(failed, ack);
+        handler.broadcastStockUpdate(empty, ack);
+
+        verify(ack, times(3)).acknowledge();
+        verify(session, never()).sendMessage(any());
+    }
+
+    @Test
+    void batchingSessionsGetTheLatestUpdatePerSymbolInOneFrame() throws Exception {
+        WebSocketSession session = connect("s-1", "ws://localhost/ws/stocks?batchMs=50");
+
+        handler.processAndBroadcastEvent(tick("AAPL", "187.42"));
+        handler.processAndBroadcastEvent(tick("AAPL", "187.50"));
+        handler.processAndBroadcastEvent(tick("MSFT", "410.10"));
+
+        ArgumentCaptor<TextMessage> frame = ArgumentCaptor.forClass(TextMessage.class);
+        verify(session, timeout(2000)).sendMessage(frame.capture());
+        JsonNode batch = objectMapper.readTree(frame.getValue().getPayload());
+        assertEquals(2, batch.size());
+        assertEquals(0, new BigDecimal("187.50").compareTo(batch.get(0).get("price").decimalValue()));
+        assertEquals("MSFT", batch.get(1).get("symbol").asText());
+    }
+
+    @Test
+    void trafficIsCountedInPerSessionMetersUntilTheSessionCloses() throws Exception {
+        WebSocketSession session = connect("s-1", null);
+        connect("s-2", null);
+
+        handler.processAndBroadcastEvent(tick("AAPL", "187.42"));
+        handler.processAndBroadcastEvent(tick("AAPL", "187.50"));
+
+        long bytes = sent(session).stream().mapToLong(TextMessage::getPayloadLength).sum();
+        Counter bytesSent = meterRegistry.get("market.data.ws.sent.bytes").tag("session", "s-1").counter();
+        Counter framesSent = meterRegistry.get("market.data.ws.sent.frames").tag("session", "s-1").counter();
+        assertEquals(bytes, (long) bytesSent.count());
+        assertEquals(2, (long) framesSent.count());
+
+        // The REST stats read the same meters
+        Map<String, Object> stats = handler.getSessionStats().stream()
+                .filter(entry -> "s-1".equals(entry.get("sessionId"))).findFirst().orElseThrow();
+        assertEquals(bytes, stats.get("bytesSent"));
+        assertEquals(2L, stats.get("framesSent"));
+
+        handler.afterConnectionClosed(session, CloseStatus.NORMAL);
+
+        assertNull(meterRegistry.find("market.data.ws.sent.bytes").tag("session", "s-1").counter());
+        assertNull(meterRegistry.find("market.data.ws.sent.frames").tag("session", "s-1").counter());
+        assertNotNull(meterRegistry.find("market.data.ws.sent.frames").tag("session", "s-2").counter());
+        assertEquals(1, handler.getSessionStats().size());
+    }
+
+    private WebSocketSession connect(String id, String uri) throws Exception {
+        WebSocketSession session = mock(WebSocketSession.class);
+        when(session.getId()).thenReturn(id);
+        when(session.isOpen()).thenReturn(true);
+        when(session.getExtensions()).thenReturn(Collections.emptyList());
+        when(session.getUri()).thenReturn(uri != null ? URI.create(uri) : null);
+        handler.afterConnectionEstablished(session);
+        return session;
+    }
+
+    private static List<TextMessage> sent(WebSocketSession session) throws Exception {
+        ArgumentCaptor<TextMessage> frames = ArgumentCaptor.forClass(TextMessage.class);
+        verify(session, atLeastOnce()).sendMessage(frames.capture());
+        return frames.getAllValues();
+    }
+
+    private static EventMessage tick(String symbol, String price) {
+        EventMessage event = new EventMessage();
+        event.initialize();
+        event.setType("PRICE_UPDATE");
+        event.setSuccess(true);
+        event.setPayloadValue("symbol", symbol);
+        event.setPayloadValue("price", new BigDecimal(price));
+        event.setPayloadValue("volume", 1200L);
+        event.setPayloadValue("timestamp", "2026-03-02T14:30:15Z");
+        return event;
+    }
+}
@@ -0,0 +1,185 @@
+package com.stocktrading.marketdata.service;
+
+import com.stocktrading.marketdata.dto.response.ChartHistoryResponse;
+import com.stocktrading.marketdata.dto.response.ChartPoint;
+import com.stocktrading.marketdata.model.PriceTick;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class ChartHistoryServiceTest {
+
+    private static final Instant FROM = Instant.parse("2026-03-02T00:00:00Z");
+    private static final Instant TO = FROM.plus(Duration.ofHours(10));
+
+    private MongoTemplate mongoTemplate;
+    private ChartHistoryService service;
+    private List<PriceTick> ticks;
+
+    @BeforeEach
+    void setUp() {
+        mongoTemplate = mock(MongoTemplate.class);
+        service = new ChartHistoryService(mongoTemplate);
+        ReflectionTestUtils.setField(service, "maxPoints", 2000);
+        ReflectionTestUtils.setField(service, "cacheSize", 100);
+        ReflectionTestUtils.setField(service, "minCacheTtlMs", 0L);
+        ReflectionTestUtils.setField(service, "maxCacheTtlMs", 60_000L);
+        service.init();
+        ticks = new ArrayList<>();
+        when(mongoTemplate.stream(any(Query.class), eq(PriceTick.class)))
+                .thenAnswer(invocation -> iterator(ticks));
+    }
+
+    @Test
+    void seriesIsBoundedByTheRequestedPointCount() {
+        // One tick a second over ten hours
+        for (int second = 0; second < 36_000; second++) {
+            ticks.add(tick(FROM.plusSeconds(second), 100 + Math.sin(second / 50.0) * 10));
+        }
+
+        ChartHistoryResponse response = service.getHistory("AAPL", FROM, TO, 100);
+
+        assertEquals(36_000, response.getRawPoints());
+        assertEquals(100, response.getTargetPoints());
+        assertTrue(response.getSeries().size() <= 100, "got " + response.getSeries().size());
+        assertTrue(response.getSeries().size() >= 98, "got " + response.getSeries().size());
+        assertInTimeOrder(response.getSeries());
+    }
+
+    @Test
+    void theExtremesOfEveryBucketAreKept() {
+        // Ten one-hour buckets (20 points), each with a spike and a dip somewhere inside
+        for (int hour = 0; hour < 10; hour++) {
+            Instant start = FROM.plus(Duration.ofHours(hour));
+            ticks.add(tick(start, 100));
+            ticks.add(tick(start.plusSeconds(600), hour % 2 == 0 ? 150 + hour : 40 - hour));
+            ticks.add(tick(start.plusSeconds(1200), 100));
+            ticks.add(tick(start.plusSeconds(1800), hour % 2 == 0 ? 40 - hour : 150 + hour));
+            ticks.add(tick(start.plusSeconds(2400), 100));
+        }
+
+        List<ChartPoint> series = service.getHistory("AAPL", FROM, TO, 20).getSeries();
+
+        assertEquals(20, series.size());
+        assertInTimeOrder(series);
+        List<BigDecimal> prices = series.stream().map(ChartPoint::getPrice).collect(Collectors.toList());
+        for (int hour = 0; hour < 10; hour++) {
+            assertTrue(prices.contains(price(150 + hour)), "max of hour " + hour);
+            assertTrue(prices.contains(price(40 - hour)), "min of hour " + hour);
+        }
+        // The flat ticks between the extremes are dropped
+        assertFalse(prices.contains(price(100)));
+    }
+
+    @Test
+    void anEmptyRangeYieldsAnEmptySeries() {
+        ChartHistoryResponse response = service.getHistory("AAPL", FROM, TO, 100);
+
+        assertEquals(0, response.getRawPoints());
+        assertTrue(response.getSeries().isEmpty());
+    }
+
+    @Test
+    void aSinglePointRangeYieldsThatPoint() {
+        ticks.add(tick(FROM.plusSeconds(30), 187.42));
+
+        List<ChartPoint> series = service.getHistory("AAPL", FROM, TO, 100).getSeries();
+
+        assertEquals(List.of(new ChartPoint(FROM.plusSeconds(30), price(187.42))), series);
+    }
+
+    @Test
+    void ticksWithoutAPriceAreSkipped() {
+        ticks.add(tick(FROM.plusSeconds(30), 187.42));
+        ticks.add(new PriceTick(null, "AAPL", FROM.plusSeconds(40), null, 0));
+
+        ChartHistoryResponse response = service.getHistory("AAPL", FROM, TO, 100);
+
+        assertEquals(1, response.getRawPoints());
+        assertEquals(1, response.getSeries().size());
+    }
+
+    @Test
+    void pointCountIsClampedToTheConfiguredRange() {
+        ReflectionTestUtils.setField(service, "maxPoints", 50);
+        for (int second = 0; second < 36_000; second += 10) {
+            ticks.add(tick(FROM.plusSeconds(second), second % 7));
+        }
+
+        assertEquals(50, service.getHistory("AAPL", FROM, TO, 10_000).getTargetPoints());
+        assertTrue(service.getHistory("AAPL", FROM, TO, 10_000).getSeries().size() <= 50);
+        assertEquals(2, service.getHistory("AAPL", FROM, TO, 0).getTargetPoints());
+    }
+
+    @Test
+    void invalidRangesAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> service.getHistory("AAPL", TO, FROM, 100));
+        assertThrows(IllegalArgumentException.class, () -> service.getHistory("AAPL", FROM, FROM, 100));
+        assertThrows(IllegalArgumentException.class, () -> service.getHistory("AAPL", "2Y", 100));
+    }
+
+    @Test
+    void presetRangesAreCachedForAtMostTheMaximumTtl() {
+        ticks.add(tick(Instant.now().minusSeconds(60), 100));
+
+        ChartHistoryResponse first = service.getHistory("AAPL", "1Y", 500);
+        assertSame(first, service.getHistory("AAPL", "1y", 500));
+        verify(mongoTemplate, times(1)).stream(any(Query.class), eq(PriceTick.class));
+
+        // A 1Y bucket at 500 points is over a day wide, the cap still sends the next read back to Mongo
+        ReflectionTestUtils.setField(service, "maxCacheTtlMs", 0L);
+        service.getHistory("AAPL", "1Y", 400);
+        service.getHistory("AAPL", "1Y", 400);
+        verify(mongoTemplate, times(3)).stream(any(Query.class), eq(PriceTick.class));
+    }
+
+    private static void assertInTimeOrder(List<ChartPoint> series) {
+        for (int i = 1; i < series.size(); i++) {
+            assertFalse(series.get(i).getTimestamp().isBefore(series.get(i - 1).getTimestamp()), "point " + i);
+        }
+    }
+
+    private static PriceTick tick(Instant timestamp, double price) {
+        return new PriceTick(null, "AAPL", timestamp, price(price), 100);
+    }
+
+    private static BigDecimal price(double price) {
+        return BigDecimal.valueOf(price);
+    }
+
+    private static CloseableIterator<PriceTick> iterator(List<PriceTick> ticks) {
+        Iterator<PriceTick> delegate = Collections.unmodifiableList(new ArrayList<>(ticks)).iterator();
+        return new CloseableIterator<PriceTick>() {
+            @Override
+            public boolean hasNext() {
+                return delegate.hasNext();
+            }
+
+            @Override
+            public PriceTick next() {
+                return delegate.next();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
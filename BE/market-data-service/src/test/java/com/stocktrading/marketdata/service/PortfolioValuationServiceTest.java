@@ -0,0 +1,171 @@
+package com.stocktrading.marketdata.service;
+
+import com.stocktrading.marketdata.dto.response.PortfolioValuationUpdate;
+import com.stocktrading.marketdata.model.Portfolio;
+import com.stocktrading.marketdata.model.PositionInfo;
+import com.stocktrading.marketdata.model.PriceTick;
+import com.stocktrading.marketdata.repository.PortfolioRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class PortfolioValuationServiceTest {
+
+    private PortfolioRepository portfolioRepository;
+    private MongoTemplate mongoTemplate;
+    private PortfolioValuationService service;
+
+    // Newest recorded tick price per symbol, as the price_ticks collection would return it
+    private final Map<String, BigDecimal> recordedPrices = new HashMap<>();
+
+    @BeforeEach
+    void setUp() {
+        portfolioRepository = mock(PortfolioRepository.class);
+        mongoTemplate = mock(MongoTemplate.class);
+        service = new PortfolioValuationService(portfolioRepository, mongoTemplate);
+        when(mongoTemplate.findOne(any(Query.class), eq(PriceTick.class))).thenAnswer(invocation -> {
+            String symbol = ((Query) invocation.getArgument(0)).getQueryObject().getString("symbol");
+            BigDecimal price = recordedPrices.get(symbol);
+            return price != null ? new PriceTick(null, symbol, null, price, 0) : null;
+        });
+    }
+
+    @Test
+    void aTickRevaluesOnlyThePortfoliosHoldingTheSymbol() {
+        recordedPrices.put("AAPL", new BigDecimal("100"));
+        recordedPrices.put("MSFT", new BigDecimal("300"));
+        load(portfolio("user-1", "acc-1", position("AAPL", 10, "90"), position("MSFT", 2, "250")),
+                portfolio("user-2", "acc-2", position("MSFT", 5, "310")));
+
+        List<PortfolioValuationUpdate> updates = service.applyPriceTick("AAPL", new BigDecimal("110"));
+
+        assertEquals(1, updates.size());
+        PortfolioValuationUpdate update = updates.get(0);
+        assertEquals("update", update.getType());
+        assertEquals("acc-1", update.getAccountId());
+        assertEquals("AAPL", update.getSymbol());
+        assertAmount("1100", update.getPositionMarketValue());
+        assertAmount("200", update.getPositionUnrealizedPnl());
+        // 10 x 110 + 2 x 300 against a cost of 10 x 90 + 2 x 250
+        assertAmount("1700", update.getMarketValue());
+        assertAmount("1400", update.getCostBasis());
+        assertAmount("300", update.getUnrealizedPnl());
+        assertFalse(update.getStale());
+
+        assertEquals(2, service.applyPriceTick("MSFT", new BigDecimal("320")).size());
+        assertTrue(service.applyPriceTick("TSLA", new BigDecimal("250")).isEmpty());
+    }
+
+    @Test
+    void theFirstFrameIsValuedAtTheNewestRecordedTick() {
+        recordedPrices.put("AAPL", new BigDecimal("120"));
+        load(portfolio("user-1", "acc-1", position("AAPL", 10, "90", "95")));
+
+        PortfolioValuationUpdate snapshot = service.getSnapshot("user-1").get(0);
+
+        assertEquals("snapshot", snapshot.getType());
+        assertAmount("1200", snapshot.getMarketValue());
+        assertAmount("300", snapshot.getUnrealizedPnl());
+        assertFalse(snapshot.getStale());
+    }
+
+    @Test
+    void aHoldingWithoutAnyMarketPriceMarksTheFrameStaleUntilItTicks() {
+        recordedPrices.put("AAPL", new BigDecimal("120"));
+        load(portfolio("user-1", "acc-1", position("AAPL", 10, "90"), position("NEWCO", 4, "20", "25")));
+
+        PortfolioValuationUpdate snapshot = service.getSnapshot("user-1").get(0);
+        // NEWCO is valued at its stored current price meanwhile
+        assertAmount("1300", snapshot.getMarketValue());
+        assertTrue(snapshot.getStale());
+        assertTrue(service.applyPriceTick("AAPL", new BigDecimal("121")).get(0).getStale());
+
+        PortfolioValuationUpdate update = service.applyPriceTick("NEWCO", new BigDecimal("30")).get(0);
+
+        assertFalse(update.getStale());
+        assertAmount("1330", update.getMarketValue());
+        assertFalse(service.getSnapshot("user-1").get(0).getStale());
+    }
+
+    @Test
+    void aLiveTickIsNotOverriddenByTheRecordedPrice() {
+        recordedPrices.put("AAPL", new BigDecimal("120"));
+        service.applyPriceTick("AAPL", new BigDecimal("130"));
+
+        load(portfolio("user-1", "acc-1", position("AAPL", 10, "90")));
+
+        assertAmount("1300", service.getSnapshot("user-1").get(0).getMarketValue());
+        verify(mongoTemplate, never()).findOne(any(Query.class), eq(PriceTick.class));
+    }
+
+    @Test
+    void eachSymbolIsLookedUpOnce() {
+        recordedPrices.put("AAPL", new BigDecimal("120"));
+        load(portfolio("user-1", "acc-1", position("AAPL", 10, "90"), position("NEWCO", 1, "20")),
+                portfolio("user-2", "acc-2", position("AAPL", 3, "100"), position("NEWCO", 2, "20")));
+        when(portfolioRepository.findPortfolioByAccountIdAndUserId("acc-1", "user-1"))
+                .thenReturn(Optional.of(portfolio("user-1", "acc-1", position("AAPL", 12, "90"),
+                        position("NEWCO", 1, "20"))));
+
+        service.reindexPortfolio("user-1", "acc-1");
+
+        // Found or not, neither symbol is read again
+        verify(mongoTemplate, times(2)).findOne(any(Query.class), eq(PriceTick.class));
+        assertAmount("1460", service.getSnapshot("user-1").get(0).getMarketValue());
+    }
+
+    @Test
+    void reindexingDropsSoldPositionsAndRemovedPortfolios() {
+        recordedPrices.put("AAPL", new BigDecimal("100"));
+        recordedPrices.put("MSFT", new BigDecimal("300"));
+        load(portfolio("user-1", "acc-1", position("AAPL", 10, "90"), position("MSFT", 2, "250")));
+        when(portfolioRepository.findPortfolioByAccountIdAndUserId("acc-1", "user-1"))
+                .thenReturn(Optional.of(portfolio("user-1", "acc-1", position("MSFT", 2, "250"))));
+
+        service.reindexPortfolio("user-1", "acc-1");
+
+        assertTrue(service.applyPriceTick("AAPL", new BigDecimal("105")).isEmpty());
+        assertAmount("600", service.getSnapshot("user-1").get(0).getMarketValue());
+
+        when(portfolioRepository.findPortfolioByAccountIdAndUserId("acc-1", "user-1")).thenReturn(Optional.empty());
+        service.reindexPortfolio("user-1", "acc-1");
+
+        assertTrue(service.applyPriceTick("MSFT", new BigDecimal("305")).isEmpty());
+        assertTrue(service.getSnapshot("user-1").isEmpty());
+    }
+
+    private void load(Portfolio... portfolios) {
+        when(portfolioRepository.findAll()).thenReturn(Arrays.asList(portfolios));
+        service.loadIndex();
+    }
+
+    private static Portfolio portfolio(String userId, String accountId, PositionInfo... positions) {
+        Portfolio portfolio = new Portfolio();
+        portfolio.setUserId(userId);
+        portfolio.setAccountId(accountId);
+        portfolio.setPositions(new ArrayList<>(Arrays.asList(positions)));
+        return portfolio;
+    }
+
+    private static PositionInfo position(String symbol, int quantity, String averagePrice) {
+        return position(symbol, quantity, averagePrice, null);
+    }
+
+    private static PositionInfo position(String symbol, int quantity, String averagePrice, String currentPrice) {
+        return new PositionInfo(symbol, quantity, new BigDecimal(averagePrice),
+                currentPrice != null ? new BigDecimal(currentPrice) : null, null, null);
+    }
+
+    private static void assertAmount(String expected, BigDecimal actual) {
+        assertEquals(0, new BigDecimal(expected).compareTo(actual), () -> expected + " but was " + actual);
+    }
+}
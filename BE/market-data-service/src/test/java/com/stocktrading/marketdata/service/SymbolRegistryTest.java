@@ -0,0 +1,175 @@
+package com.stocktrading.marketdata.service;
+
+import com.stocktrading.marketdata.model.SymbolInfo;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SymbolRegistryTest {
+
+    private static final String LISTINGS = String.join("\n",
+            "# symbol,name,sector,exchange,tickSize",
+            "AAPL,Apple Inc.,Information Technology,NASDAQ,0.01",
+            "APP,AppLovin Corporation,Information Technology,NASDAQ,0.01",
+            "AAP,Advance Auto Parts Inc.,Consumer Discretionary,NYSE,0.01",
+            "MAPL,Maple Leaf Holdings,Consumer Staples,NYSE,0.01",
+            "PINE,\"Pineapple, Apple & Pear Co.\",Consumer Staples,NYSE,0.005",
+            "BRK.B,\"Berkshire Hathaway Inc., Class B\",Financials,NYSE,0.01",
+            "QUOT,\"The \"\"Quoted\"\" Company\",Industrials,NYSE",
+            "",
+            "BROKEN,\"Unterminated, Inc.,Industrials,NYSE,0.01",
+            "BADTICK,Bad Tick Inc.,Industrials,NYSE,one cent",
+            "LONE");
+
+    @Test
+    void quotedNamesKeepTheirCommasAndQuotes() {
+        SymbolRegistry registry = registry(LISTINGS);
+
+        SymbolInfo pine = registry.get("PINE");
+        assertEquals("Pineapple, Apple & Pear Co.", pine.getName());
+        assertEquals("Consumer Staples", pine.getSector());
+        assertEquals("NYSE", pine.getExchange());
+        assertEquals(new BigDecimal("0.005"), pine.getTickSize());
+
+        assertEquals("Berkshire Hathaway Inc., Class B", registry.getCompanyName("BRK.B"));
+        assertEquals("Financials", registry.get("BRK.B").getSector());
+        assertEquals("The \"Quoted\" Company", registry.getCompanyName("QUOT"));
+        assertEquals(new BigDecimal("0.01"), registry.get("QUOT").getTickSize());
+    }
+
+    @Test
+    void malformedLinesAreSkipped() {
+        SymbolRegistry registry = registry(LISTINGS);
+
+        assertNull(registry.get("BROKEN"));
+        assertNull(registry.get("BADTICK"));
+        assertNull(registry.get("LONE"));
+        assertEquals("LONE Corp", registry.getCompanyName("LONE"));
+        assertEquals(7, registry.matchingSymbols("").size());
+    }
+
+    @Test
+    void csvFieldsAreSplitOnlyOutsideQuotes() {
+        assertEquals(List.of("A", "b, c", "", "d \"e\""), SymbolRegistry.parseCsvLine("A, \"b, c\",,\"d \"\"e\"\"\""));
+        assertEquals(List.of("", ""), SymbolRegistry.parseCsvLine(","));
+        assertNull(SymbolRegistry.parseCsvLine("A,\"b"));
+    }
+
+    @Test
+    void exactTickerRanksFirstThenTickerPrefixThenNameThenAnyMatch() {
+        SymbolRegistry registry = registry(LISTINGS);
+
+        assertEquals(List.of("AAP", "AAPL"), symbols(registry.search("AAP", 10)));
+        // Ticker prefix, then name prefixes (a word of the name counts), then tickers or names merely containing it;
+        // within a rank the shorter ticker comes first
+        assertEquals(List.of("APP", "AAPL", "PINE", "AAP", "MAPL"), symbols(registry.search("ap", 10)));
+        assertEquals(List.of("APP", "AAPL", "PINE"), symbols(registry.search("app", 10)));
+        assertEquals(List.of("PINE"), symbols(registry.search("pea", 10)));
+        assertEquals(List.of("AAPL", "PINE"), symbols(registry.search("apple", 10)));
+        assertEquals(List.of("PINE"), symbols(registry.search("eapp", 10)));
+    }
+
+    @Test
+    void queriesOfEveryLengthMatchTickersAndNamesCaseInsensitively() {
+        SymbolRegistry registry = registry(LISTINGS);
+
+        assertEquals(Set.of("AAPL", "APP", "AAP", "MAPL", "PINE", "BRK.B", "QUOT"), registry.matchingSymbols("a"));
+        assertEquals(Set.of("BRK.B"), registry.matchingSymbols("K.b"));
+        assertEquals(Set.of("AAPL", "PINE"), registry.matchingSymbols("  APPLE "));
+        assertEquals(Set.of("BRK.B"), registry.matchingSymbols("inc., class"));
+        assertEquals(Set.of("QUOT"), registry.matchingSymbols("\"quoted\""));
+        assertTrue(registry.matchingSymbols("xyz").isEmpty());
+        assertTrue(registry.matchingSymbols("applez").isEmpty());
+    }
+
+    @Test
+    void searchHonoursTheLimitAndIgnoresEmptyQueries() {
+        SymbolRegistry registry = registry(LISTINGS);
+
+        assertEquals(List.of("APP", "AAPL"), symbols(registry.search("app", 2)));
+        assertTrue(registry.search("app", 0).isEmpty());
+        assertTrue(registry.search("  ", 10).isEmpty());
+        assertTrue(registry.search(null, 10).isEmpty());
+    }
+
+    @Test
+    void searchOverTwentyThousandListingsMatchesAFullScan() {
+        Random random = new Random(7);
+        String[] words = {"global", "capital", "energy", "bio", "systems", "holdings", "apple", "micro", "north",
+                "pacific", "digital", "health", "motors", "foods", "trust", "networks", "minerals", "logic"};
+        StringBuilder csv = new StringBuilder("# symbol,name,sector,exchange,tickSize\n");
+        Set<String> tickers = new HashSet<>();
+        while (tickers.size() < 20_000) {
+            StringBuilder ticker = new StringBuilder();
+            for (int i = 1 + random.nextInt(5); i > 0; i--) {
+                ticker.append((char) ('A' + random.nextInt(26)));
+            }
+            if (!tickers.add(ticker.toString())) {
+                continue;
+            }
+            String name = words[random.nextInt(words.length)] + " " + words[random.nextInt(words.length)]
+                    + (random.nextBoolean() ? ", Inc." : " Corp");
+            csv.append(ticker).append(",\"").append(name).append("\",Industrials,NYSE,0.01\n");
+        }
+        SymbolRegistry registry = registry(csv.toString());
+        List<SymbolInfo> all = new ArrayList<>();
+        for (String ticker : tickers) {
+            all.add(registry.get(ticker));
+        }
+        assertEquals(20_000, registry.matchingSymbols("").size());
+
+        List<String> queries = new ArrayList<>(List.of("a", "ab", "xyz", "app", "apple", "al h", "cs, in", "corp"));
+        for (int i = 0; i < 200; i++) {
+            queries.add(all.get(random.nextInt(all.size())).getSymbol().toLowerCase(Locale.ROOT));
+            String name = all.get(random.nextInt(all.size())).getName();
+            int start = random.nextInt(name.length() - 1);
+            queries.add(name.substring(start, Math.min(name.length(), start + 1 + random.nextInt(6))));
+        }
+
+        for (String query : queries) {
+            String q = query.trim().toLowerCase(Locale.ROOT);
+            Set<String> expected = all.stream()
+                    .filter(info -> info.getSymbol().toLowerCase(Locale.ROOT).contains(q)
+                            || info.getName().toLowerCase(Locale.ROOT).contains(q))
+                    .map(SymbolInfo::getSymbol)
+                    .collect(Collectors.toSet());
+            assertEquals(expected, registry.matchingSymbols(query), query);
+            if (q.isEmpty()) {
+                continue;
+            }
+
+            List<SymbolInfo> top = registry.search(query, 20);
+            assertEquals(Math.min(20, expected.size()), top.size(), query);
+            if (tickers.contains(q.toUpperCase(Locale.ROOT))) {
+                assertEquals(q.toUpperCase(Locale.ROOT), top.get(0).getSymbol(), query);
+            }
+        }
+
+        // Typing load over the large index, bounded generously so a slow build box does not flake
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            for (int i = 0; i < 5_000; i++) {
+                registry.search(queries.get(i % queries.size()), 10);
+            }
+        });
+    }
+
+    private static SymbolRegistry registry(String csv) {
+        SymbolRegistry registry = new SymbolRegistry();
+        ReflectionTestUtils.setField(registry, "symbolsFile",
+                new ByteArrayResource(csv.getBytes(StandardCharsets.UTF_8)));
+        registry.load();
+        return registry;
+    }
+
+    private static List<String> symbols(List<SymbolInfo> listings) {
+        return listings.stream().map(SymbolInfo::getSymbol).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,100 @@
+package com.stocktrading.marketdata.service.impl;
+
+import com.stocktrading.marketdata.dto.response.GetGeneralPortfolioResponse;
+import com.stocktrading.marketdata.model.Portfolio;
+import com.stocktrading.marketdata.model.PositionInfo;
+import com.stocktrading.marketdata.repository.PortfolioRepository;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationResults;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class PortfolioServiceImplTest {
+
+    private MongoTemplate mongoTemplate;
+    private PortfolioServiceImpl service;
+
+    @BeforeEach
+    void setUp() {
+        mongoTemplate = mock(MongoTemplate.class);
+        service = new PortfolioServiceImpl(mock(PortfolioRepository.class), mongoTemplate);
+        ReflectionTestUtils.setField(service, "cacheTtlMs", 60_000L);
+        ReflectionTestUtils.setField(service, "cacheSize", 100);
+        service.init();
+        when(mongoTemplate.aggregate(any(Aggregation.class), eq(Portfolio.class), eq(PositionInfo.class)))
+                .thenAnswer(invocation -> results());
+    }
+
+    @Test
+    void generalPortfolioIsServedFromTheCacheUntilEvicted() {
+        GetGeneralPortfolioResponse first = read("user-1");
+        assertSame(first, read("user-1"));
+        verify(mongoTemplate, times(1)).aggregate(any(Aggregation.class), eq(Portfolio.class), eq(PositionInfo.class));
+
+        service.evictGeneralPortfolio("user-1");
+
+        assertNotSame(first, read("user-1"));
+        verify(mongoTemplate, times(2)).aggregate(any(Aggregation.class), eq(Portfolio.class), eq(PositionInfo.class));
+    }
+
+    @Test
+    void loadEvictedWhileRunningIsNotCached() {
+        when(mongoTemplate.aggregate(any(Aggregation.class), eq(Portfolio.class), eq(PositionInfo.class)))
+                .thenAnswer(invocation -> {
+                    // A portfolio event arrives while the aggregation runs
+                    service.evictGeneralPortfolio("user-1");
+                    return results();
+                })
+                .thenAnswer(invocation -> results());
+
+        GetGeneralPortfolioResponse stale = read("user-1");
+        GetGeneralPortfolioResponse fresh = read("user-1");
+
+        assertNotSame(stale, fresh);
+        assertSame(fresh, read("user-1"));
+        verify(mongoTemplate, times(2)).aggregate(any(Aggregation.class), eq(Portfolio.class), eq(PositionInfo.class));
+    }
+
+    @Test
+    void expiredEntryIsReloaded() {
+        ReflectionTestUtils.setField(service, "cacheTtlMs", -1L);
+
+        read("user-1");
+        read("user-1");
+
+        verify(mongoTemplate, times(2)).aggregate(any(Aggregation.class), eq(Portfolio.class), eq(PositionInfo.class));
+    }
+
+    @Test
+    void usersAreCachedSeparately() {
+        GetGeneralPortfolioResponse user1 = read("user-1");
+        GetGeneralPortfolioResponse user2 = read("user-2");
+
+        service.evictGeneralPortfolio("user-2");
+
+        assertEquals("user-1", user1.getUserId());
+        assertEquals("user-2", user2.getUserId());
+        assertSame(user1, read("user-1"));
+        assertNotSame(user2, read("user-2"));
+    }
+
+    private GetGeneralPortfolioResponse read(String userId) {
+        return (GetGeneralPortfolioResponse) service.getGeneralPortfolio(userId).getData();
+    }
+
+    private static AggregationResults<PositionInfo> results() {
+        List<PositionInfo> positions = Collections.singletonList(new PositionInfo());
+        return new AggregationResults<>(positions, new Document());
+    }
+}
@@ -2,6 +2,7 @@ package com.stocktrading.brokerage.service;
 
 import com.project.kafkamessagemodels.model.CommandMessage;
 import com.project.kafkamessagemodels.model.EventMessage;
+import com.project.kafkamessagemodels.model.payload.BrokerOrderPayload;
 import com.stocktrading.brokerage.model.MockOrderBook;
 import com.stocktrading.brokerage.model.PendingOrder;
 import lombok.RequiredArgsConstructor;
@@ -47,31 +48,20 @@ public class KafkaCommandHandlerService {
         log.info("Handling BROKER_EXECUTE_ORDER command for {} saga: {}",
                 isSellOrder ? "SELL" : "BUY", command.getSagaId());
 
-        String orderId = command.getPayloadValue("orderId");
-        String stockSymbol = command.getPayloadValue("stockSymbol");
-        String orderType = command.getPayloadValue("orderType");
-        Integer quantity = command.getPayloadValue("quantity");
-        String timeInForce = command.getPayloadValue("timeInForce");
+        BrokerOrderPayload payload = command.getPayloadAs(BrokerOrderPayload.class);
+        String orderId = payload.getOrderId();
+        String stockSymbol = payload.getStockSymbol();
+        String orderType = payload.getOrderType();
+        Integer quantity = payload.getQuantity();
+        String timeInForce = payload.getTimeInForce();
+        BigDecimal limitPrice = payload.getLimitPrice();
 
         // Get the side (BUY or SELL) from the command or use default based on isSellOrder
-        String side = command.getPayloadValue("side");
+        String side = payload.getSide();
         if (side == null) {
             side = isSellOrder ? "SELL" : "BUY";
         }
 
-        // Convert limit price to BigDecimal, handling different formats
-        BigDecimal limitPrice = null;
-        Object limitPriceObj = command.getPayloadValue("limitPrice");
-        if (limitPriceObj != null) {
-            if (limitPriceObj instanceof BigDecimal) {
-                limitPrice = (BigDecimal) limitPriceObj;
-            } else if (limitPriceObj instanceof Number) {
-                limitPrice = BigDecimal.valueOf(((Number) limitPriceObj).doubleValue());
-            } else if (limitPriceObj instanceof String) {
-                limitPrice = new BigDecimal((String) limitPriceObj);
-            }
-        }
-
         // Create response event
         EventMessage event = new EventMessage();
         event.setMessageId(UUID.randomUUID().toString());
@@ -206,8 +196,9 @@ public class KafkaCommandHandlerService {
         log.info("Handling BROKER_CANCEL_ORDER command for {} saga: {}",
                 isSellOrder ? "SELL" : "BUY", command.getSagaId());
 
-        String orderId = command.getPayloadValue("orderId");
-        String brokerOrderId = command.getPayloadValue("brokerOrderId");
+        BrokerOrderPayload payload = command.getPayloadAs(BrokerOrderPayload.class);
+        String orderId = payload.getOrderId();
+        String brokerOrderId = payload.getBrokerOrderId();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -1,6 +1,7 @@
 package com.stocktrading.brokerage.service;
 
 import com.project.kafkamessagemodels.model.EventMessage;
+import com.project.kafkamessagemodels.model.payload.PriceUpdatePayload;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.stereotype.Component;
@@ -65,24 +66,20 @@ public class MarketPriceCache {
     public void consumeMarketPriceUpdates(EventMessage event) {
         if ("MARKET_PRICES_UPDATED".equals(event.getType())) {
             try {
-                // Extract the symbol and price data
-                String symbol = event.getPayloadValue("symbol");
-                Object priceObj = event.getPayloadValue("price");
-                Object bidObj = event.getPayloadValue("bidPrice");
-                Object askObj = event.getPayloadValue("askPrice");
+                PriceUpdatePayload tick = event.getPayloadAs(PriceUpdatePayload.class);
+                String symbol = tick.getSymbol();
 
-                if (symbol != null && priceObj != null) {
-                    // Convert price to BigDecimal
-                    BigDecimal price = convertToBigDecimal(priceObj);
+                if (symbol != null && tick.getPrice() != null) {
+                    BigDecimal price = tick.getPrice();
                     priceCache.put(symbol, price);
 
                     // Update bid/ask prices if available
-                    if (bidObj != null) {
-                        bidPrices.put(symbol, convertToBigDecimal(bidObj));
+                    if (tick.getBidPrice() != null) {
+                        bidPrices.put(symbol, tick.getBidPrice());
                     }
 
-                    if (askObj != null) {
-                        askPrices.put(symbol, convertToBigDecimal(askObj));
+                    if (tick.getAskPrice() != null) {
+                        askPrices.put(symbol, tick.getAskPrice());
                     }
 
                     // Changed from debug to trace to reduce terminal output
@@ -94,21 +91,4 @@ public class MarketPriceCache {
             }
         }
     }
-
-    /**
-     * Helper method to convert different numeric formats to BigDecimal
-     */
-    private BigDecimal convertToBigDecimal(Object value) {
-        if (value instanceof BigDecimal) {
-            return (BigDecimal) value;
-        } else if (value instanceof Double) {
-            return BigDecimal.valueOf((Double) value);
-        } else if (value instanceof Number) {
-            return BigDecimal.valueOf(((Number) value).doubleValue());
-        } else if (value instanceof String) {
-            return new BigDecimal((String) value);
-        } else {
-            throw new IllegalArgumentException("Cannot convert to BigDecimal: " + value);
-        }
-    }
 }
\ No newline at end of file
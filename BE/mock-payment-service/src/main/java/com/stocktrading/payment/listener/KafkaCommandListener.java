@@ -1,6 +1,7 @@
 // src/main/java/com/stocktrading/payment/listener/KafkaCommandListener.java
 package com.stocktrading.payment.listener;
 
+import com.project.kafkamessagemodels.dedupe.ProcessedCommandStore;
 import com.project.kafkamessagemodels.model.CommandMessage;
 import com.stocktrading.payment.service.DepositPaymentProcessorService;
 import com.stocktrading.payment.service.WithdrawalPaymentProcessorService;
@@ -18,12 +19,19 @@ public class KafkaCommandListener {
 
     private final DepositPaymentProcessorService depositPaymentProcessorService;
     private final WithdrawalPaymentProcessorService withdrawalPaymentProcessorService;
+    // Commands taken on by messageId, the orchestrator may publish a command more than once
+    private final ProcessedCommandStore processedCommands;
 
     @KafkaListener(
             topics = "${kafka.topics.payment-commands.deposit}",
             containerFactory = "kafkaListenerContainerFactory"
     )
     public void consumeDepositPaymentCommands(@Payload CommandMessage command, Acknowledgment ack) {
+        if (!processedCommands.claim(command)) {
+            log.info("Skipping command {} of saga {}, already taken on", command.getMessageId(), command.getSagaId());
+            ack.acknowledge();
+            return;
+        }
         try {
             log.info("Received deposit payment command: {}", command.getType());
 
@@ -45,6 +53,7 @@ public class KafkaCommandListener {
             log.debug("Command processed and acknowledged: {}", command.getType());
 
         } catch (Exception e) {
+            processedCommands.release(command);
             log.error("Error processing deposit payment command: {}", e.getMessage(), e);
             // Don't acknowledge - will be retried or sent to DLQ by the error handler
             throw new RuntimeException("Deposit payment command processing failed", e);
@@ -56,6 +65,11 @@ public class KafkaCommandListener {
             containerFactory = "kafkaListenerContainerFactory"
     )
     public void consumeWithdrawalPaymentCommands(@Payload CommandMessage command, Acknowledgment ack) {
+        if (!processedCommands.claim(command)) {
+            log.info("Skipping command {} of saga {}, already taken on", command.getMessageId(), command.getSagaId());
+            ack.acknowledge();
+            return;
+        }
         try {
             log.info("Received withdrawal payment command: {}", command.getType());
 
@@ -77,6 +91,7 @@ public class KafkaCommandListener {
             log.debug("Command processed and acknowledged: {}", command.getType());
 
         } catch (Exception e) {
+            processedCommands.release(command);
             log.error("Error processing withdrawal payment command: {}", e.getMessage(), e);
             // Don't acknowledge - will be retried or sent to DLQ by the error handler
             throw new RuntimeException("Withdrawal payment command processing failed", e);
@@ -3,6 +3,7 @@ package com.stocktrading.payment.service;
 
 import com.project.kafkamessagemodels.model.CommandMessage;
 import com.project.kafkamessagemodels.model.EventMessage;
+import com.project.kafkamessagemodels.model.payload.PaymentPayload;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
@@ -32,12 +33,12 @@ public class WithdrawalPaymentProcessorService {
     public void processWithdrawal(CommandMessage command) {
         log.info("Processing withdrawal payment for saga: {}", command.getSagaId());
 
-        String paymentMethodId = command.getPayloadValue("paymentMethodId");
-        Object amountObj = command.getPayloadValue("amount");
-        BigDecimal amount = convertToBigDecimal(amountObj);
-        String currency = command.getPayloadValue("currency");
-        String accountId = command.getPayloadValue("accountId");
-        String transactionId = command.getPayloadValue("transactionId");
+        PaymentPayload payload = command.getPayloadAs(PaymentPayload.class);
+        String paymentMethodId = payload.getPaymentMethodId();
+        BigDecimal amount = payload.getAmount();
+        String currency = payload.getCurrency();
+        String accountId = payload.getAccountId();
+        String transactionId = payload.getTransactionId();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -90,11 +91,11 @@ public class WithdrawalPaymentProcessorService {
     public void reverseWithdrawal(CommandMessage command) {
         log.info("Processing withdrawal reversal for saga: {}", command.getSagaId());
 
-        String paymentReference = command.getPayloadValue("paymentReference");
-        Object amountObj = command.getPayloadValue("amount");
-        BigDecimal amount = convertToBigDecimal(amountObj);
-        String reason = command.getPayloadValue("reason");
-        String transactionId = command.getPayloadValue("transactionId");
+        PaymentPayload payload = command.getPayloadAs(PaymentPayload.class);
+        String paymentReference = payload.getPaymentReference();
+        BigDecimal amount = payload.getAmount();
+        String reason = payload.getReason();
+        String transactionId = payload.getTransactionId();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -137,21 +138,6 @@ public class WithdrawalPaymentProcessorService {
         publishEvent(event);
     }
 
-    /**
-     * Helper method to convert any numeric type to BigDecimal
-     */
-    private BigDecimal convertToBigDecimal(Object amountObj) {
-        if (amountObj instanceof BigDecimal) {
-            return (BigDecimal) amountObj;
-        } else if (amountObj instanceof Number) {
-            return BigDecimal.valueOf(((Number) amountObj).doubleValue());
-        } else if (amountObj instanceof String) {
-            return new BigDecimal((String) amountObj);
-        } else {
-            throw new IllegalArgumentException("Amount is not a valid number: " + amountObj);
-        }
-    }
-
     /**
      * Helper method to handle withdrawal payment failure
      */
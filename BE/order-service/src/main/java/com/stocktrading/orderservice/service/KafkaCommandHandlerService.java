@@ -2,6 +2,7 @@ package com.stocktrading.orderservice.service;
 
 import com.project.kafkamessagemodels.model.CommandMessage;
 import com.project.kafkamessagemodels.model.EventMessage;
+import com.project.kafkamessagemodels.model.payload.OrderPayload;
 import com.stocktrading.orderservice.model.Order;
 import com.stocktrading.orderservice.repository.OrderRepository;
 import lombok.RequiredArgsConstructor;
@@ -38,28 +39,14 @@ public class KafkaCommandHandlerService {
     public void handleCreateOrder(CommandMessage command) {
         log.info("Handling ORDER_CREATE command for saga: {}", command.getSagaId());
 
-        String userId = command.getPayloadValue("userId");
-        String accountId = command.getPayloadValue("accountId");
-        String stockSymbol = command.getPayloadValue("stockSymbol");
-        String orderType = command.getPayloadValue("orderType");
-        Integer quantity = command.getPayloadValue("quantity");
-
-        // Safe conversion for limitPrice - handle various number formats
-        BigDecimal limitPrice = null;
-        Object limitPriceObj = command.getPayloadValue("limitPrice");
-        if (limitPriceObj != null) {
-            if (limitPriceObj instanceof BigDecimal) {
-                limitPrice = (BigDecimal) limitPriceObj;
-            } else if (limitPriceObj instanceof Double) {
-                limitPrice = BigDecimal.valueOf((Double) limitPriceObj);
-            } else if (limitPriceObj instanceof Number) {
-                limitPrice = BigDecimal.valueOf(((Number) limitPriceObj).doubleValue());
-            } else if (limitPriceObj instanceof String) {
-                limitPrice = new BigDecimal((String) limitPriceObj);
-            }
-        }
-
-        String timeInForce = command.getPayloadValue("timeInForce");
+        OrderPayload payload = command.getPayloadAs(OrderPayload.class);
+        String userId = payload.getUserId();
+        String accountId = payload.getAccountId();
+        String stockSymbol = payload.getStockSymbol();
+        String orderType = payload.getOrderType();
+        Integer quantity = payload.getQuantity();
+        BigDecimal limitPrice = payload.getLimitPrice();
+        String timeInForce = payload.getTimeInForce();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -122,10 +109,10 @@ public class KafkaCommandHandlerService {
     public void handleUpdateOrderValidated(CommandMessage command) {
         log.info("Handling ORDER_UPDATE_VALIDATED command for saga: {}", command.getSagaId());
 
-        String orderId = command.getPayloadValue("orderId");
-        String reservationId = command.getPayloadValue("reservationId");
-        Object priceObj = command.getPayloadValue("price");
-        BigDecimal price = convertToBigDecimal(priceObj);
+        OrderPayload payload = command.getPayloadAs(OrderPayload.class);
+        String orderId = payload.getOrderId();
+        String reservationId = payload.getReservationId();
+        BigDecimal price = payload.getPrice();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -236,33 +223,17 @@ public class KafkaCommandHandlerService {
         }
     }
 
-    /**
-     * Helper method to safely convert any numeric type to BigDecimal
-     */
-    private BigDecimal convertToBigDecimal(Object amountObj) {
-        if (amountObj instanceof BigDecimal) {
-            return (BigDecimal) amountObj;
-        } else if (amountObj instanceof Number) {
-            return BigDecimal.valueOf(((Number) amountObj).doubleValue());
-        } else if (amountObj instanceof String) {
-            return new BigDecimal((String) amountObj);
-        } else if (amountObj == null) {
-            return null;
-        } else {
-            throw new IllegalArgumentException("Amount is not a valid number: " + amountObj);
-        }
-    }
-
     /**
      * Handle ORDER_UPDATE_EXECUTED command
      */
     public void handleUpdateOrderExecuted(CommandMessage command) {
         log.info("Handling ORDER_UPDATE_EXECUTED command for saga: {}", command.getSagaId());
 
-        String orderId = command.getPayloadValue("orderId");
-        BigDecimal executionPrice = convertToBigDecimal(command.getPayloadValue("executionPrice"));
-        Integer executedQuantity = command.getPayloadValue("executedQuantity");
-        String brokerOrderId = command.getPayloadValue("brokerOrderId");
+        OrderPayload payload = command.getPayloadAs(OrderPayload.class);
+        String orderId = payload.getOrderId();
+        BigDecimal executionPrice = payload.getExecutionPrice();
+        Integer executedQuantity = payload.getExecutedQuantity();
+        String brokerOrderId = payload.getBrokerOrderId();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -363,8 +334,9 @@ public class KafkaCommandHandlerService {
     public void handleCancelOrder(CommandMessage command) {
         log.info("Handling ORDER_CANCEL command for saga: {}", command.getSagaId());
 
-        String orderId = command.getPayloadValue("orderId");
-        String reason = command.getPayloadValue("reason");
+        OrderPayload payload = command.getPayloadAs(OrderPayload.class);
+        String orderId = payload.getOrderId();
+        String reason = payload.getReason();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -464,7 +436,7 @@ public class KafkaCommandHandlerService {
     public void handleUpdateOrderCompleted(CommandMessage command) {
         log.info("Handling ORDER_UPDATE_COMPLETED command for saga: {}", command.getSagaId());
 
-        String orderId = command.getPayloadValue("orderId");
+        String orderId = command.getPayloadAs(OrderPayload.class).getOrderId();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -558,28 +530,14 @@ public class KafkaCommandHandlerService {
     public void handleCreateSellOrder(CommandMessage command) {
         log.info("Handling ORDER_CREATE command for sell saga: {}", command.getSagaId());
 
-        String userId = command.getPayloadValue("userId");
-        String accountId = command.getPayloadValue("accountId");
-        String stockSymbol = command.getPayloadValue("stockSymbol");
-        String orderType = command.getPayloadValue("orderType");
-        Integer quantity = command.getPayloadValue("quantity");
-
-        // Safe conversion for limitPrice - handle various number formats
-        BigDecimal limitPrice = null;
-        Object limitPriceObj = command.getPayloadValue("limitPrice");
-        if (limitPriceObj != null) {
-            if (limitPriceObj instanceof BigDecimal) {
-                limitPrice = (BigDecimal) limitPriceObj;
-            } else if (limitPriceObj instanceof Double) {
-                limitPrice = BigDecimal.valueOf((Double) limitPriceObj);
-            } else if (limitPriceObj instanceof Number) {
-                limitPrice = BigDecimal.valueOf(((Number) limitPriceObj).doubleValue());
-            } else if (limitPriceObj instanceof String) {
-                limitPrice = new BigDecimal((String) limitPriceObj);
-            }
-        }
-
-        String timeInForce = command.getPayloadValue("timeInForce");
+        OrderPayload payload = command.getPayloadAs(OrderPayload.class);
+        String userId = payload.getUserId();
+        String accountId = payload.getAccountId();
+        String stockSymbol = payload.getStockSymbol();
+        String orderType = payload.getOrderType();
+        Integer quantity = payload.getQuantity();
+        BigDecimal limitPrice = payload.getLimitPrice();
+        String timeInForce = payload.getTimeInForce();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -643,10 +601,10 @@ public class KafkaCommandHandlerService {
     public void handleUpdateSellOrderValidated(CommandMessage command) {
         log.info("Handling ORDER_UPDATE_VALIDATED command for sell saga: {}", command.getSagaId());
 
-        String orderId = command.getPayloadValue("orderId");
-        String reservationId = command.getPayloadValue("reservationId");
-        Object priceObj = command.getPayloadValue("price");
-        BigDecimal price = convertToBigDecimal(priceObj);
+        OrderPayload payload = command.getPayloadAs(OrderPayload.class);
+        String orderId = payload.getOrderId();
+        String reservationId = payload.getReservationId();
+        BigDecimal price = payload.getPrice();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -751,10 +709,11 @@ public class KafkaCommandHandlerService {
     public void handleUpdateSellOrderExecuted(CommandMessage command) {
         log.info("Handling ORDER_UPDATE_EXECUTED command for sell saga: {}", command.getSagaId());
 
-        String orderId = command.getPayloadValue("orderId");
-        BigDecimal executionPrice = convertToBigDecimal(command.getPayloadValue("executionPrice"));
-        Integer executedQuantity = command.getPayloadValue("executedQuantity");
-        String brokerOrderId = command.getPayloadValue("brokerOrderId");
+        OrderPayload payload = command.getPayloadAs(OrderPayload.class);
+        String orderId = payload.getOrderId();
+        BigDecimal executionPrice = payload.getExecutionPrice();
+        Integer executedQuantity = payload.getExecutedQuantity();
+        String brokerOrderId = payload.getBrokerOrderId();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -862,8 +821,9 @@ public class KafkaCommandHandlerService {
     public void handleCancelSellOrder(CommandMessage command) {
         log.info("Handling ORDER_CANCEL command for sell saga: {}", command.getSagaId());
 
-        String orderId = command.getPayloadValue("orderId");
-        String reason = command.getPayloadValue("reason");
+        OrderPayload payload = command.getPayloadAs(OrderPayload.class);
+        String orderId = payload.getOrderId();
+        String reason = payload.getReason();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -977,7 +937,7 @@ public class KafkaCommandHandlerService {
     public void handleUpdateSellOrderCompleted(CommandMessage command) {
         log.info("Handling ORDER_UPDATE_COMPLETED command for sell saga: {}", command.getSagaId());
 
-        String orderId = command.getPayloadValue("orderId");
+        String orderId = command.getPayloadAs(OrderPayload.class).getOrderId();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -1,11 +1,18 @@
 package com.stocktrading.portfolio.config;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.project.kafkamessagemodels.codec.BinaryMessageDeserializer;
+import com.project.kafkamessagemodels.codec.BinaryMessageSerializer;
+import com.project.kafkamessagemodels.codec.MessageCodec;
+import com.project.kafkamessagemodels.hop.HopInterceptors;
+import com.project.kafkamessagemodels.hop.HopMetrics;
 import com.project.kafkamessagemodels.model.CommandMessage;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.errors.SerializationException;
 import org.apache.kafka.common.serialization.StringDeserializer;
 import org.apache.kafka.common.serialization.StringSerializer;
 import org.springframework.beans.factory.annotation.Value;
@@ -15,12 +22,16 @@ import org.springframework.kafka.annotation.EnableKafka;
 import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
 import org.springframework.kafka.core.*;
 import org.springframework.kafka.listener.DefaultErrorHandler;
+import org.springframework.kafka.retrytopic.RetryTopicConfiguration;
+import org.springframework.kafka.retrytopic.RetryTopicConfigurationBuilder;
+import org.springframework.kafka.support.serializer.DeserializationException;
 import org.springframework.kafka.support.serializer.ErrorHandlingDeserializer;
 import org.springframework.kafka.support.serializer.JsonDeserializer;
 import org.springframework.kafka.support.serializer.JsonSerializer;
 import org.springframework.util.backoff.FixedBackOff;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 @EnableKafka
@@ -30,13 +41,43 @@ import java.util.Map;
 public class KafkaConfig {
 
     private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
 
     @Value("${spring.kafka.bootstrap-servers:localhost:9092}")
     private String bootstrapServers;
 
+    // Wire format of saga messages, json or binary
+    @Value("${kafka.message-codec:json}")
+    private String messageCodec;
+
     @Value("${spring.kafka.consumer.group-id:portfolio-service-group}")
     private String groupId;
 
+    // Command topics whose failures retry out of band, every other listener keeps the blocking error handler
+    @Value("${kafka.topics.portfolio-commands}")
+    private String portfolioCommandsTopic;
+
+    @Value("${kafka.topics.portfolio-commands.order-sell}")
+    private String portfolioCommandsOrderSellTopic;
+
+    @Value("${kafka.retry.attempts:4}")
+    private int retryAttempts;
+
+    @Value("${kafka.retry.initial-delay-ms:1000}")
+    private long retryInitialDelayMs;
+
+    @Value("${kafka.retry.multiplier:4.0}")
+    private double retryMultiplier;
+
+    @Value("${kafka.retry.max-delay-ms:60000}")
+    private long retryMaxDelayMs;
+
+    @Value("${kafka.retry.partitions:3}")
+    private int retryPartitions;
+
+    @Value("${kafka.retry.replication-factor:1}")
+    private short retryReplicationFactor;
+
     @Bean
     public ConsumerFactory<String, CommandMessage> commandConsumerFactory() {
         Map<String, Object> props = new HashMap<>();
@@ -44,7 +85,7 @@ public class KafkaConfig {
         props.put(ConsumerConfig.GROUP_ID_CONFIG, groupId);
         props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
         props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ErrorHandlingDeserializer.class);
-        props.put(ErrorHandlingDeserializer.VALUE_DESERIALIZER_CLASS, JsonDeserializer.class.getName());
+        props.put(ErrorHandlingDeserializer.VALUE_DESERIALIZER_CLASS, messageDeserializerClass());
         // Use proper trusted packages configuration
         props.put(JsonDeserializer.TRUSTED_PACKAGES, "*");
         // Use correct package path for model
@@ -54,6 +95,7 @@ public class KafkaConfig {
         // Add type info for deserialization
         props.put(JsonDeserializer.USE_TYPE_INFO_HEADERS, true);
         props.put(JsonDeserializer.REMOVE_TYPE_INFO_HEADERS, false);
+        props.putAll(HopInterceptors.consumerProps(hopMetrics()));
 
         return new DefaultKafkaConsumerFactory<>(props);
     }
@@ -92,19 +134,40 @@ public class KafkaConfig {
         return handler;
     }
 
+    /**
+     * Failed commands are republished to one retry topic per attempt (-retry-0, -retry-1, ...) with growing
+     * delays and finally to the -dlt topic, so the command topic keeps flowing while a poison message waits.
+     * The copies carry the original topic, partition, offset and the exception in kafka_dlt-* headers.
+     */
+    @Bean
+    public RetryTopicConfiguration commandRetryTopics() {
+        return RetryTopicConfigurationBuilder.newInstance()
+                .includeTopics(List.of(portfolioCommandsTopic, portfolioCommandsOrderSellTopic))
+                .maxAttempts(retryAttempts)
+                .exponentialBackoff(retryInitialDelayMs, retryMultiplier, retryMaxDelayMs)
+                .suffixTopicsWithIndexValues()
+                .autoCreateTopicsWith(retryPartitions, retryReplicationFactor)
+                .notRetryOn(List.of(SerializationException.class, DeserializationException.class,
+                        IllegalStateException.class))
+                .traversingCauses()
+                .listenerFactory("kafkaListenerContainerFactory")
+                .create(kafkaTemplate());
+    }
+
     // Producer configuration
     @Bean
     public ProducerFactory<String, Object> producerFactory() {
         Map<String, Object> configProps = new HashMap<>();
         configProps.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
         configProps.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
-        configProps.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, JsonSerializer.class);
+        configProps.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, messageSerializerClass());
         configProps.put(ProducerConfig.ACKS_CONFIG, "all");
         configProps.put(ProducerConfig.RETRIES_CONFIG, 3);
         configProps.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true);
 
         // Add type information to headers
         configProps.put(JsonSerializer.ADD_TYPE_INFO_HEADERS, true);
+        configProps.putAll(HopInterceptors.producerProps(hopMetrics()));
 
         return new DefaultKafkaProducerFactory<>(configProps);
     }
@@ -113,4 +176,19 @@ public class KafkaConfig {
     public KafkaTemplate<String, Object> kafkaTemplate() {
         return new KafkaTemplate<>(producerFactory());
     }
-}
\ No newline at end of file
+
+    // Hop trails of saga messages, timed per message type
+    @Bean
+    public HopMetrics hopMetrics() {
+        return new HopMetrics(meterRegistry, "PORTFOLIO_SERVICE");
+    }
+
+    private Class<?> messageSerializerClass() {
+        return MessageCodec.BINARY.equals(messageCodec) ? BinaryMessageSerializer.class : JsonSerializer.class;
+    }
+
+    private String messageDeserializerClass() {
+        return MessageCodec.BINARY.equals(messageCodec)
+                ? BinaryMessageDeserializer.class.getName() : JsonDeserializer.class.getName();
+    }
+}
@@ -1,5 +1,6 @@
 package com.stocktrading.portfolio.listener;
 
+import com.project.kafkamessagemodels.dedupe.ProcessedCommandStore;
 import com.project.kafkamessagemodels.model.CommandMessage;
 import com.stocktrading.portfolio.service.KafkaCommandHandlerService;
 import lombok.RequiredArgsConstructor;
@@ -15,12 +16,19 @@ import org.springframework.stereotype.Component;
 public class KafkaCommandListener {
 
     private final KafkaCommandHandlerService commandHandlerService;
+    // Commands taken on by messageId, the orchestrator may publish a command more than once
+    private final ProcessedCommandStore processedCommands;
 
     @KafkaListener(
             topics = "${kafka.topics.portfolio-commands}",
             containerFactory = "kafkaListenerContainerFactory"
     )
     public void consumePortfolioCommands(@Payload CommandMessage command, Acknowledgment ack) {
+        if (!processedCommands.claim(command)) {
+            log.info("Skipping command {} of saga {}, already taken on", command.getMessageId(), command.getSagaId());
+            ack.acknowledge();
+            return;
+        }
         try {
             log.info("Processing command type: {} for saga: {}", command.getType(), command.getSagaId());
 
@@ -42,6 +50,7 @@ public class KafkaCommandListener {
             log.debug("Command acknowledged: {}", command.getType());
 
         } catch (Exception e) {
+            processedCommands.release(command);
             log.error("Error processing command: {}", e.getMessage(), e);
             // Don't acknowledge - will be retried or sent to DLQ
             throw new RuntimeException("Command processing failed", e);
@@ -53,6 +62,11 @@ public class KafkaCommandListener {
             containerFactory = "kafkaListenerContainerFactory"
     )
     public void consumePortfolioOrderSellCommands(@Payload CommandMessage command, Acknowledgment ack) {
+        if (!processedCommands.claim(command)) {
+            log.info("Skipping command {} of saga {}, already taken on", command.getMessageId(), command.getSagaId());
+            ack.acknowledge();
+            return;
+        }
         try {
             log.info("Processing order sell command type: {} for saga: {}", command.getType(), command.getSagaId());
 
@@ -84,6 +98,7 @@ public class KafkaCommandListener {
             log.debug("Order sell command acknowledged: {}", command.getType());
 
         } catch (Exception e) {
+            processedCommands.release(command);
             log.error("Error processing order sell command: {}", e.getMessage(), e);
             // Don't acknowledge - will be retried or sent to DLQ
             throw new RuntimeException("Command processing failed", e);
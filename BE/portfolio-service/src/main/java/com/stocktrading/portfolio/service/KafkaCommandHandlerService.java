@@ -2,6 +2,7 @@ package com.stocktrading.portfolio.service;
 
 import com.project.kafkamessagemodels.model.CommandMessage;
 import com.project.kafkamessagemodels.model.EventMessage;
+import com.project.kafkamessagemodels.model.payload.PositionPayload;
 import com.stocktrading.portfolio.model.Portfolio;
 import com.stocktrading.portfolio.model.Position;
 import com.stocktrading.portfolio.repository.PortfolioRepository;
@@ -40,13 +41,13 @@ public class KafkaCommandHandlerService {
     public void handleUpdatePositions(CommandMessage command) {
         log.info("Handling PORTFOLIO_UPDATE_POSITIONS command for saga: {}", command.getSagaId());
 
-        String userId = command.getPayloadValue("userId");
-        String accountId = command.getPayloadValue("accountId");
-        String stockSymbol = command.getPayloadValue("stockSymbol");
-        Integer quantity = command.getPayloadValue("quantity");
-        Object priceObj = command.getPayloadValue("price");
-        BigDecimal price = convertToBigDecimal(priceObj);
-        String orderId = command.getPayloadValue("orderId");
+        PositionPayload payload = command.getPayloadAs(PositionPayload.class);
+        String userId = payload.getUserId();
+        String accountId = payload.getAccountId();
+        String stockSymbol = payload.getStockSymbol();
+        Integer quantity = payload.getQuantity();
+        BigDecimal price = payload.getPrice();
+        String orderId = payload.getOrderId();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -114,11 +115,12 @@ public class KafkaCommandHandlerService {
     public void handleRemovePositions(CommandMessage command) {
         log.info("Handling PORTFOLIO_REMOVE_POSITIONS command for saga: {}", command.getSagaId());
 
-        String userId = command.getPayloadValue("userId");
-        String accountId = command.getPayloadValue("accountId");
-        String stockSymbol = command.getPayloadValue("stockSymbol");
-        Integer quantity = command.getPayloadValue("quantity");
-        String orderId = command.getPayloadValue("orderId");
+        PositionPayload payload = command.getPayloadAs(PositionPayload.class);
+        String userId = payload.getUserId();
+        String accountId = payload.getAccountId();
+        String stockSymbol = payload.getStockSymbol();
+        Integer quantity = payload.getQuantity();
+        String orderId = payload.getOrderId();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -195,10 +197,11 @@ public class KafkaCommandHandlerService {
     public void handleVerifyShares(CommandMessage command) {
         log.info("Handling PORTFOLIO_VERIFY_SHARES command for saga: {}", command.getSagaId());
 
-        String userId = command.getPayloadValue("userId");
-        String accountId = command.getPayloadValue("accountId");
-        String stockSymbol = command.getPayloadValue("stockSymbol");
-        Integer quantity = command.getPayloadValue("quantity");
+        PositionPayload payload = command.getPayloadAs(PositionPayload.class);
+        String userId = payload.getUserId();
+        String accountId = payload.getAccountId();
+        String stockSymbol = payload.getStockSymbol();
+        Integer quantity = payload.getQuantity();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -287,11 +290,12 @@ public class KafkaCommandHandlerService {
     public void handleReserveShares(CommandMessage command) {
         log.info("Handling PORTFOLIO_RESERVE_SHARES command for saga: {}", command.getSagaId());
 
-        String userId = command.getPayloadValue("userId");
-        String accountId = command.getPayloadValue("accountId");
-        String stockSymbol = command.getPayloadValue("stockSymbol");
-        Integer quantity = command.getPayloadValue("quantity");
-        String orderId = command.getPayloadValue("orderId");
+        PositionPayload payload = command.getPayloadAs(PositionPayload.class);
+        String userId = payload.getUserId();
+        String accountId = payload.getAccountId();
+        String stockSymbol = payload.getStockSymbol();
+        Integer quantity = payload.getQuantity();
+        String orderId = payload.getOrderId();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -395,11 +399,12 @@ public class KafkaCommandHandlerService {
     public void handleReleaseShares(CommandMessage command) {
         log.info("Handling PORTFOLIO_RELEASE_SHARES command for saga: {}", command.getSagaId());
 
-        String reservationId = command.getPayloadValue("reservationId");
-        String userId = command.getPayloadValue("userId");
-        String accountId = command.getPayloadValue("accountId");
-        String stockSymbol = command.getPayloadValue("stockSymbol");
-        String orderId = command.getPayloadValue("orderId");
+        PositionPayload payload = command.getPayloadAs(PositionPayload.class);
+        String reservationId = payload.getReservationId();
+        String userId = payload.getUserId();
+        String accountId = payload.getAccountId();
+        String stockSymbol = payload.getStockSymbol();
+        String orderId = payload.getOrderId();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -449,11 +454,12 @@ public class KafkaCommandHandlerService {
     public void handleRestorePositions(CommandMessage command) {
         log.info("Handling PORTFOLIO_RESTORE_POSITIONS command for saga: {}", command.getSagaId());
 
-        String userId = command.getPayloadValue("userId");
-        String accountId = command.getPayloadValue("accountId");
-        String stockSymbol = command.getPayloadValue("stockSymbol");
-        Integer quantity = command.getPayloadValue("quantity");
-        String orderId = command.getPayloadValue("orderId");
+        PositionPayload payload = command.getPayloadAs(PositionPayload.class);
+        String userId = payload.getUserId();
+        String accountId = payload.getAccountId();
+        String stockSymbol = payload.getStockSymbol();
+        Integer quantity = payload.getQuantity();
+        String orderId = payload.getOrderId();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -629,14 +635,14 @@ public class KafkaCommandHandlerService {
     public void handleUpdatePortfolioForSellOrder(CommandMessage command) {
         log.info("Handling PORTFOLIO_UPDATE_POSITIONS for sell order, saga: {}", command.getSagaId());
 
-        String userId = command.getPayloadValue("userId");
-        String accountId = command.getPayloadValue("accountId");
-        String stockSymbol = command.getPayloadValue("stockSymbol");
-        Integer quantity = command.getPayloadValue("quantity");
-        String orderId = command.getPayloadValue("orderId");
-        String reservationId = command.getPayloadValue("reservationId");
-        Object priceObj = command.getPayloadValue("price");
-        BigDecimal executionPrice = convertToBigDecimal(priceObj);
+        PositionPayload payload = command.getPayloadAs(PositionPayload.class);
+        String userId = payload.getUserId();
+        String accountId = payload.getAccountId();
+        String stockSymbol = payload.getStockSymbol();
+        Integer quantity = payload.getQuantity();
+        String orderId = payload.getOrderId();
+        String reservationId = payload.getReservationId();
+        BigDecimal executionPrice = payload.getPrice();
 
         // Create response event
         EventMessage event = new EventMessage();
@@ -719,21 +725,4 @@ public class KafkaCommandHandlerService {
             log.error("Error sending event", e);
         }
     }
-
-    /**
-     * Helper method to safely convert any numeric type to BigDecimal
-     */
-    private BigDecimal convertToBigDecimal(Object amountObj) {
-        if (amountObj instanceof BigDecimal) {
-            return (BigDecimal) amountObj;
-        } else if (amountObj instanceof Number) {
-            return BigDecimal.valueOf(((Number) amountObj).doubleValue());
-        } else if (amountObj instanceof String) {
-            return new BigDecimal((String) amountObj);
-        } else if (amountObj == null) {
-            return null;
-        } else {
-            throw new IllegalArgumentException("Amount is not a valid number: " + amountObj);
-        }
-    }
 }
\ No newline at end of file
@@ -0,0 +1,66 @@
+package com.stocktrading.portfolio.service;
+
+import com.project.kafkamessagemodels.dedupe.ProcessedCommandStore;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Date;
+
+/**
+ * Claims of portfolio commands in the processed_commands collection, keyed by messageId.
+ * A claim is one insert, a repeat fails on the _id and is skipped; claims expire through a TTL index.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class MongoProcessedCommandStore implements ProcessedCommandStore {
+
+    private static final String COLLECTION = "processed_commands";
+
+    private final MongoTemplate mongoTemplate;
+
+    @Value("${kafka.processed-commands.retention-days:14}")
+    private long retentionDays;
+
+    private volatile boolean ttlIndexEnsured;
+
+    @Override
+    public boolean claim(String messageId) {
+        ensureTtlIndex();
+        try {
+            mongoTemplate.insert(new Document("_id", messageId).append("claimedAt", new Date()), COLLECTION);
+            return true;
+        } catch (DuplicateKeyException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void release(String messageId) {
+        mongoTemplate.remove(Query.query(Criteria.where("_id").is(messageId)), COLLECTION);
+    }
+
+    private void ensureTtlIndex() {
+        if (ttlIndexEnsured) {
+            return;
+        }
+        try {
+            mongoTemplate.indexOps(COLLECTION).ensureIndex(new Index()
+                    .on("claimedAt", Sort.Direction.ASC)
+                    .expire(Duration.ofDays(retentionDays)));
+            ttlIndexEnsured = true;
+        } catch (Exception e) {
+            log.warn("Could not ensure processed command TTL index: {}", e.getMessage());
+        }
+    }
+}